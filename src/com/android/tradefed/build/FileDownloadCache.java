@@ -26,18 +26,28 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A helper class that maintains a local filesystem LRU cache of downloaded files.
+ * <p/>
+ * The LRU map is guarded by a single lock that is only held for constant-time bookkeeping:
+ * downloads, copies and file deletions happen outside of it. Concurrent requests for a file that
+ * is not cached yet share a single download.
+ * <p/>
+ * The map is persisted in a {@link FileDownloadCacheJournal}, so that it can be restored on
+ * startup without walking the cache directory. The restored map is then reconciled with the
+ * directory contents in the background.
  */
 public class FileDownloadCache {
 
@@ -49,24 +59,57 @@ public class FileDownloadCache {
     private final File mCacheRoot;
 
     /**
-     * The map of remote file paths to local files, stored in least-recently-used order.
+     * The map of remote file paths to cache entries, stored in least-recently-used order.
      * <p/>
      * Used for performance reasons. Functionally speaking, this data structure is not needed,
      * since all info could be obtained from inspecting the filesystem.
      */
-    private final Map<String, File> mCacheMap = new LinkedHashMap<String, File>();
+    private final Map<String, CacheEntry> mCacheMap = new LinkedHashMap<String, CacheEntry>();
 
-    /** the lock for <var>mCacheMap</var> */
+    /** the lock for <var>mCacheMap</var> and <var>mCurrentCacheSize</var> */
     private final ReentrantLock mCacheMapLock = new ReentrantLock();
 
-    /** A map of remote file paths to locks. */
-    private final Map<String, ReentrantLock> mFileLocks = new HashMap<String, ReentrantLock>();
+    /** A map of remote file paths to locks, removed once no thread uses them. */
+    private final ConcurrentHashMap<String, FileLock> mFileLocks = new ConcurrentHashMap<>();
 
     private long mCurrentCacheSize = 0;
 
+    private final FileDownloadCacheJournal mJournal;
+
+    /** The thread reconciling the index loaded from the journal with the cache directory. */
+    private Thread mIndexVerifier = null;
+
     /** The approximate maximum allowed size of the local file cache. Default to 20 gig */
     private long mMaxFileCacheSize = 20L * 1024L * 1024L * 1024L;
 
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mBytesSaved = new AtomicLong();
+    private final AtomicLong mBytesDownloaded = new AtomicLong();
+
+    /**
+     * A cached {@link File} and its size, recorded when it was downloaded so that eviction does
+     * not need to query the filesystem. The size is guarded by <var>mCacheMapLock</var>.
+     */
+    private static class CacheEntry {
+        final File mFile;
+        /** Completed once the file is downloaded, or exceptionally if the download failed. */
+        final CompletableFuture<Void> mReady;
+        long mSize;
+
+        CacheEntry(File file, long size, CompletableFuture<Void> ready) {
+            mFile = file;
+            mSize = size;
+            mReady = ready;
+        }
+    }
+
+    /** A lock for a file, along with the number of threads holding or waiting for it. */
+    private static class FileLock {
+        final ReentrantLock mLock = new ReentrantLock();
+        int mUsers = 0;
+    }
+
     /**
      * Struct for a {@link File} and its remote relative path
      */
@@ -101,6 +144,7 @@ public class FileDownloadCache {
      */
     FileDownloadCache(File cacheRoot) {
         mCacheRoot = cacheRoot;
+        mJournal = new FileDownloadCacheJournal(cacheRoot);
         if (!mCacheRoot.exists()) {
             Log.d(LOG_TAG, String.format("Creating file cache at %s",
                     mCacheRoot.getAbsolutePath()));
@@ -108,6 +152,10 @@ public class FileDownloadCache {
                 throw new FatalHostError(String.format("Could not create cache directory at %s",
                         mCacheRoot.getAbsolutePath()));
             }
+        } else if (mJournal.exists() && loadJournal()) {
+            Log.d(LOG_TAG, String.format("Loaded file cache index of %d files at %s",
+                    mCacheMap.size(), mCacheRoot.getAbsolutePath()));
+            startIndexVerifier();
         } else {
             Log.d(LOG_TAG, String.format("Building file cache from contents at %s",
                     mCacheRoot.getAbsolutePath()));
@@ -119,13 +167,179 @@ public class FileDownloadCache {
             Collections.sort(cacheEntryList, new FileTimeComparator());
             // now insert them into the map
             for (FilePair cacheEntry : cacheEntryList) {
-                mCacheMap.put(cacheEntry.mRelPath, cacheEntry.mFile);
-                mCurrentCacheSize += cacheEntry.mFile.length();
+                long size = cacheEntry.mFile.length();
+                mCacheMap.put(cacheEntry.mRelPath, newCachedEntry(cacheEntry.mFile, size));
+                mCurrentCacheSize += size;
             }
-            // this would be an unusual situation, but check if current cache is already too big
-            if (mCurrentCacheSize > getMaxFileCacheSize()) {
-                incrementAndAdjustCache(0);
+            mJournal.compact(snapshotEntries());
+        }
+        // this would be an unusual situation, but check if current cache is already too big
+        if (mCurrentCacheSize > getMaxFileCacheSize()) {
+            adjustCache();
+        }
+        persistJournal();
+    }
+
+    /** Create the entry of a file already in the cache. */
+    private static CacheEntry newCachedEntry(File file, long size) {
+        return new CacheEntry(file, size, CompletableFuture.<Void>completedFuture(null));
+    }
+
+    /**
+     * Restore the map from the journal.
+     *
+     * @return true if the journal was loaded, false if the directory must be walked instead.
+     */
+    private boolean loadJournal() {
+        Map<String, Long> entries;
+        try {
+            entries = mJournal.load();
+        } catch (IOException e) {
+            CLog.w("Failed to load the file cache index at %s", mCacheRoot.getAbsolutePath());
+            CLog.e(e);
+            return false;
+        }
+        for (Map.Entry<String, Long> entry : entries.entrySet()) {
+            File file = new File(mCacheRoot, convertPath(entry.getKey()));
+            mCacheMap.put(entry.getKey(), newCachedEntry(file, entry.getValue()));
+            mCurrentCacheSize += entry.getValue();
+        }
+        return true;
+    }
+
+    /** Reconcile the index loaded from the journal with the cache directory in the background. */
+    private void startIndexVerifier() {
+        mIndexVerifier =
+                new Thread("FileDownloadCacheIndexVerifier") {
+                    @Override
+                    public void run() {
+                        verifyIndex();
+                    }
+                };
+        mIndexVerifier.setDaemon(true);
+        mIndexVerifier.start();
+    }
+
+    /**
+     * Reconcile the map with the cache directory: files missing from the directory are removed
+     * from the map, and files missing from the map are added as the least recently used.
+     * <p/>
+     * The directory is walked without holding the map lock. Entries that are being used are left
+     * alone, since their state may be changing.
+     */
+    void verifyIndex() {
+        List<FilePair> cacheEntryList = new LinkedList<FilePair>();
+        addFiles(mCacheRoot, new Stack<String>(), cacheEntryList);
+        Collections.sort(cacheEntryList, new FileTimeComparator());
+        Map<String, Long> diskSizes = new LinkedHashMap<>();
+        for (FilePair cacheEntry : cacheEntryList) {
+            diskSizes.put(cacheEntry.mRelPath, cacheEntry.mFile.length());
+        }
+        int added = 0;
+        int removed = 0;
+        int updated = 0;
+        mCacheMapLock.lock();
+        try {
+            Map<String, CacheEntry> unknownEntries = new LinkedHashMap<>();
+            for (FilePair cacheEntry : cacheEntryList) {
+                String remotePath = cacheEntry.mRelPath;
+                if (!mCacheMap.containsKey(remotePath) && tryLockFile(remotePath)) {
+                    try {
+                        // the file may have been evicted since the walk
+                        if (cacheEntry.mFile.exists()) {
+                            long size = diskSizes.get(remotePath);
+                            unknownEntries.put(remotePath, newCachedEntry(cacheEntry.mFile, size));
+                            mCurrentCacheSize += size;
+                            added++;
+                        }
+                    } finally {
+                        unlockFile(remotePath);
+                    }
+                }
+            }
+            Iterator<Map.Entry<String, CacheEntry>> entryIterator =
+                    mCacheMap.entrySet().iterator();
+            while (entryIterator.hasNext()) {
+                Map.Entry<String, CacheEntry> entry = entryIterator.next();
+                String remotePath = entry.getKey();
+                CacheEntry cacheEntry = entry.getValue();
+                if (!cacheEntry.mReady.isDone() || !tryLockFile(remotePath)) {
+                    continue;
+                }
+                try {
+                    Long diskSize = diskSizes.get(remotePath);
+                    if (diskSize == null && !cacheEntry.mFile.exists()) {
+                        entryIterator.remove();
+                        mCurrentCacheSize -= cacheEntry.mSize;
+                        removed++;
+                    } else if (diskSize != null && diskSize != cacheEntry.mSize) {
+                        mCurrentCacheSize += diskSize - cacheEntry.mSize;
+                        cacheEntry.mSize = diskSize;
+                        updated++;
+                    }
+                } finally {
+                    unlockFile(remotePath);
+                }
+            }
+            if (!unknownEntries.isEmpty()) {
+                unknownEntries.putAll(mCacheMap);
+                mCacheMap.clear();
+                mCacheMap.putAll(unknownEntries);
+            }
+            if (added + removed + updated > 0) {
+                mJournal.compact(snapshotEntries());
             }
+        } finally {
+            mCacheMapLock.unlock();
+        }
+        CLog.i("Verified file cache index at %s: %d files added, %d removed, %d updated",
+                mCacheRoot.getAbsolutePath(), added, removed, updated);
+        adjustCache();
+        persistJournal();
+    }
+
+    /**
+     * Wait for the background verification of the index to complete.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void waitForIndexVerification() throws InterruptedException {
+        if (mIndexVerifier != null) {
+            mIndexVerifier.join();
+        }
+    }
+
+    /**
+     * Returns the sizes of the downloaded entries in LRU order. Must be called with the map lock
+     * held.
+     */
+    private Map<String, Long> snapshotEntries() {
+        Map<String, Long> entries = new LinkedHashMap<>();
+        for (Map.Entry<String, CacheEntry> entry : mCacheMap.entrySet()) {
+            if (entry.getValue().mReady.isDone()) {
+                entries.put(entry.getKey(), entry.getValue().mSize);
+            }
+        }
+        return entries;
+    }
+
+    /** Write the pending journal records, compacting the journal first if needed. */
+    private void persistJournal() {
+        mCacheMapLock.lock();
+        try {
+            if (mJournal.needsCompaction(mCacheMap.size())) {
+                mJournal.compact(snapshotEntries());
+            }
+        } finally {
+            mCacheMapLock.unlock();
+        }
+        try {
+            mJournal.flush();
+        } catch (IOException e) {
+            CLog.e("Failed to write the file cache index at %s, it will be rebuilt on next "
+                    + "startup", mCacheRoot.getAbsolutePath());
+            CLog.e(e);
+            mJournal.disable();
         }
     }
 
@@ -148,6 +362,10 @@ public class FileDownloadCache {
             return;
         }
         for (File childFile : fileList) {
+            if (relPathSegments.isEmpty()
+                    && FileDownloadCacheJournal.isJournalFile(childFile.getName())) {
+                continue;
+            }
             if (childFile.isDirectory()) {
                 relPathSegments.push(childFile.getName());
                 addFiles(childFile, relPathSegments, cacheEntryList);
@@ -169,16 +387,15 @@ public class FileDownloadCache {
 
     /** Acquires the lock for a file. */
     protected void lockFile(String remoteFilePath) {
-        ReentrantLock fileLock;
-
-        synchronized (mFileLocks) {
-            fileLock = mFileLocks.get(remoteFilePath);
-            if (fileLock == null) {
-                fileLock = new ReentrantLock();
-                mFileLocks.put(remoteFilePath, fileLock);
-            }
-        }
-        fileLock.lock();
+        FileLock fileLock =
+                mFileLocks.compute(
+                        remoteFilePath,
+                        (path, current) -> {
+                            FileLock lock = current == null ? new FileLock() : current;
+                            lock.mUsers++;
+                            return lock;
+                        });
+        fileLock.mLock.lock();
     }
 
     /**
@@ -187,31 +404,32 @@ public class FileDownloadCache {
      * @return true if the lock was acquired, and false otherwise.
      */
     protected boolean tryLockFile(String remoteFilePath) {
-        synchronized (mFileLocks) {
-            ReentrantLock fileLock = mFileLocks.get(remoteFilePath);
-            if (fileLock == null) {
-                fileLock = new ReentrantLock();
-                mFileLocks.put(remoteFilePath, fileLock);
-            }
-            try {
-                return fileLock.tryLock(0, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                return false;
-            }
-        }
+        final boolean[] locked = {false};
+        mFileLocks.compute(
+                remoteFilePath,
+                (path, current) -> {
+                    FileLock lock = current == null ? new FileLock() : current;
+                    if (lock.mLock.tryLock()) {
+                        lock.mUsers++;
+                        locked[0] = true;
+                        return lock;
+                    }
+                    return current;
+                });
+        return locked[0];
     }
 
     /** Attempt to release a lock for a file. */
     protected void unlockFile(String remoteFilePath) {
-        synchronized (mFileLocks) {
-            ReentrantLock fileLock = mFileLocks.get(remoteFilePath);
-            if (fileLock != null) {
-                if (!fileLock.hasQueuedThreads()) {
-                    mFileLocks.remove(remoteFilePath);
-                }
-                fileLock.unlock();
-            }
-        }
+        mFileLocks.computeIfPresent(
+                remoteFilePath,
+                (path, lock) -> {
+                    if (lock.mLock.isHeldByCurrentThread()) {
+                        lock.mLock.unlock();
+                        lock.mUsers--;
+                    }
+                    return lock.mUsers > 0 ? lock : null;
+                });
     }
 
     /**
@@ -233,7 +451,8 @@ public class FileDownloadCache {
      * Returns a local file corresponding to the given <var>remotePath</var>
      * <p/>
      * The local {@link File} will be copied from the cache if it exists, otherwise will be
-     * downloaded via the given {@link IFileDownloader}.
+     * downloaded via the given {@link IFileDownloader}. If another thread is already downloading
+     * the same file, this waits for that download instead of starting another one.
      *
      * @param downloader the {@link IFileDownloader}
      * @param remotePath the remote file.
@@ -242,50 +461,156 @@ public class FileDownloadCache {
      */
     public File fetchRemoteFile(IFileDownloader downloader, String remotePath)
             throws BuildRetrievalError {
-        boolean download = false;
-        File cachedFile, copyFile;
+        try {
+            return fetchRemoteFileInternal(downloader, remotePath);
+        } finally {
+            persistJournal();
+        }
+    }
 
+    private File fetchRemoteFileInternal(IFileDownloader downloader, String remotePath)
+            throws BuildRetrievalError {
+        while (true) {
+            CacheEntry entry = touchCacheEntry(remotePath);
+            if (entry == null) {
+                File copyFile = downloadAndCopy(downloader, remotePath);
+                if (copyFile != null) {
+                    adjustCache();
+                    return copyFile;
+                }
+                // another thread started downloading the file first
+                continue;
+            }
+            if (!waitForDownload(remotePath, entry)) {
+                // the download failed in another thread, try again
+                continue;
+            }
+            File copyFile = copyCachedFile(remotePath, entry);
+            if (copyFile != null) {
+                mHitCount.incrementAndGet();
+                mBytesSaved.addAndGet(copyFile.length());
+                return copyFile;
+            }
+            CLog.d("Cached file for %s is missing, downloading it again.", remotePath);
+            removeCacheEntry(remotePath, entry);
+        }
+    }
+
+    /**
+     * Download a file into the cache and copy it.
+     * <p/>
+     * The entry is added to the cache before downloading, so that concurrent requests for the same
+     * file wait for this download instead of starting another one.
+     *
+     * @return the local copy, or <code>null</code> if another thread is already downloading the
+     *     file.
+     * @throws BuildRetrievalError if the download or the copy failed.
+     */
+    private File downloadAndCopy(IFileDownloader downloader, String remotePath)
+            throws BuildRetrievalError {
+        // hold the file lock before the entry is visible, so that it cannot be evicted
         lockFile(remotePath);
         try {
+            CacheEntry entry =
+                    new CacheEntry(
+                            new File(mCacheRoot, convertPath(remotePath)),
+                            0L,
+                            new CompletableFuture<Void>());
             mCacheMapLock.lock();
             try {
-                cachedFile = mCacheMap.remove(remotePath);
-                if (cachedFile == null) {
-                    download = true;
-                    String localRelativePath = convertPath(remotePath);
-                    cachedFile = new File(mCacheRoot, localRelativePath);
+                if (mCacheMap.containsKey(remotePath)) {
+                    return null;
                 }
-                mCacheMap.put(remotePath, cachedFile);
+                mCacheMap.put(remotePath, entry);
             } finally {
                 mCacheMapLock.unlock();
             }
-
             try {
-                if (download || !cachedFile.exists()) {
-                    cachedFile.getParentFile().mkdirs();
-                    downloadFile(downloader, remotePath, cachedFile);
-                } else {
-                    Log.d(
-                            LOG_TAG,
-                            String.format(
-                                    "Retrieved remote file %s from cached file %s",
-                                    remotePath, cachedFile.getAbsolutePath()));
-                }
-                copyFile = copyFile(remotePath, cachedFile);
+                entry.mFile.getParentFile().mkdirs();
+                downloadFile(downloader, remotePath, entry.mFile);
             } catch (BuildRetrievalError | RuntimeException e) {
                 // cached file is likely incomplete, delete it.
+                removeCacheEntry(remotePath, entry);
+                FileUtil.deleteFile(entry.mFile);
+                entry.mReady.completeExceptionally(e);
+                throw e;
+            }
+            long size = entry.mFile.length();
+            mCacheMapLock.lock();
+            try {
+                entry.mSize = size;
+                mCurrentCacheSize += size;
+                if (mCacheMap.get(remotePath) == entry) {
+                    mJournal.recordAccess(remotePath, size);
+                }
+            } finally {
+                mCacheMapLock.unlock();
+            }
+            mMissCount.incrementAndGet();
+            mBytesDownloaded.addAndGet(size);
+            entry.mReady.complete(null);
+            try {
+                return copyFile(remotePath, entry.mFile);
+            } catch (BuildRetrievalError | RuntimeException e) {
                 deleteCacheEntry(remotePath);
                 throw e;
             }
+        } finally {
+            unlockFile(remotePath);
+        }
+    }
 
-            // Only the thread that first downloads the file should increment the cache.
-            if (download) {
-               incrementAndAdjustCache(cachedFile.length());
+    /**
+     * Copy a file that is already in the cache.
+     *
+     * @return the local copy, or <code>null</code> if the entry was evicted or its file is missing.
+     * @throws BuildRetrievalError if the copy failed.
+     */
+    private File copyCachedFile(String remotePath, CacheEntry entry) throws BuildRetrievalError {
+        lockFile(remotePath);
+        try {
+            if (!isCached(remotePath, entry) || !entry.mFile.exists()) {
+                return null;
+            }
+            Log.d(
+                    LOG_TAG,
+                    String.format(
+                            "Retrieved remote file %s from cached file %s",
+                            remotePath, entry.mFile.getAbsolutePath()));
+            try {
+                return copyFile(remotePath, entry.mFile);
+            } catch (BuildRetrievalError | RuntimeException e) {
+                // cached file is likely incomplete, delete it.
+                deleteCacheEntry(remotePath);
+                throw e;
             }
         } finally {
             unlockFile(remotePath);
         }
-        return copyFile;
+    }
+
+    /**
+     * Wait for the download of an entry, which may be in progress in another thread.
+     *
+     * @return true if the file was downloaded, false if the download failed.
+     * @throws BuildRetrievalError if interrupted while waiting.
+     */
+    private boolean waitForDownload(String remotePath, CacheEntry entry)
+            throws BuildRetrievalError {
+        if (!entry.mReady.isDone()) {
+            Log.d(LOG_TAG, String.format("Waiting for download of %s in progress", remotePath));
+        }
+        try {
+            entry.mReady.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildRetrievalError(
+                    String.format("Interrupted while waiting for download of %s", remotePath),
+                    e);
+        } catch (ExecutionException e) {
+            return false;
+        }
     }
 
     /** Do the actual file download, clean up on exception is done by the caller. */
@@ -330,25 +655,26 @@ public class FileDownloadCache {
     }
 
     /**
-     * Adjust file cache size to mMaxFileCacheSize if necessary by deleting old files
+     * Adjust file cache size to mMaxFileCacheSize if necessary by deleting old files.
+     * <p/>
+     * Entries are removed from the map under the map lock, but their files are deleted after
+     * releasing it so that lookups of other files are not blocked by the filesystem.
      */
-    private void incrementAndAdjustCache(long length) {
+    private void adjustCache() {
+        Map<String, File> evicted = new LinkedHashMap<>();
         mCacheMapLock.lock();
         try {
-            mCurrentCacheSize += length;
-            Iterator<String> keyIterator = mCacheMap.keySet().iterator();
-            while (mCurrentCacheSize > getMaxFileCacheSize() && keyIterator.hasNext()) {
-                String remotePath = keyIterator.next();
+            Iterator<Map.Entry<String, CacheEntry>> entryIterator =
+                    mCacheMap.entrySet().iterator();
+            while (mCurrentCacheSize > getMaxFileCacheSize() && entryIterator.hasNext()) {
+                Map.Entry<String, CacheEntry> entry = entryIterator.next();
+                String remotePath = entry.getKey();
                 // Only delete the file if it is not being used by another thread.
                 if (tryLockFile(remotePath)) {
-                    try {
-                        File file = mCacheMap.get(remotePath);
-                        mCurrentCacheSize -= file.length();
-                        file.delete();
-                        keyIterator.remove();
-                    } finally {
-                        unlockFile(remotePath);
-                    }
+                    mCurrentCacheSize -= entry.getValue().mSize;
+                    entryIterator.remove();
+                    mJournal.recordRemove(remotePath);
+                    evicted.put(remotePath, entry.getValue().mFile);
                 } else {
                     CLog.i(
                             String.format(
@@ -369,6 +695,64 @@ public class FileDownloadCache {
         } finally {
             mCacheMapLock.unlock();
         }
+        for (Map.Entry<String, File> entry : evicted.entrySet()) {
+            try {
+                entry.getValue().delete();
+            } finally {
+                unlockFile(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns the cache entry for given remote path and marks it as the most recently used, or
+     * returns <code>null</code> if no cached file exists.
+     */
+    private CacheEntry touchCacheEntry(String remoteFilePath) {
+        mCacheMapLock.lock();
+        try {
+            CacheEntry entry = mCacheMap.remove(remoteFilePath);
+            if (entry != null) {
+                mCacheMap.put(remoteFilePath, entry);
+                // downloads in progress are recorded once complete
+                if (entry.mReady.isDone()) {
+                    mJournal.recordAccess(remoteFilePath, entry.mSize);
+                }
+            }
+            return entry;
+        } finally {
+            mCacheMapLock.unlock();
+        }
+    }
+
+    /** Returns true if the given entry is still the cache entry of the remote path. */
+    private boolean isCached(String remoteFilePath, CacheEntry entry) {
+        mCacheMapLock.lock();
+        try {
+            return mCacheMap.get(remoteFilePath) == entry;
+        } finally {
+            mCacheMapLock.unlock();
+        }
+    }
+
+    /**
+     * Remove the entry of a remote path from the map if it is still the given entry.
+     *
+     * @return true if the entry was removed.
+     */
+    private boolean removeCacheEntry(String remoteFilePath, CacheEntry entry) {
+        mCacheMapLock.lock();
+        try {
+            if (mCacheMap.get(remoteFilePath) != entry) {
+                return false;
+            }
+            mCacheMap.remove(remoteFilePath);
+            mCurrentCacheSize -= entry.mSize;
+            mJournal.recordRemove(remoteFilePath);
+            return true;
+        } finally {
+            mCacheMapLock.unlock();
+        }
     }
 
     /**
@@ -382,7 +766,8 @@ public class FileDownloadCache {
      File getCachedFile(String remoteFilePath) {
         mCacheMapLock.lock();
         try {
-            return mCacheMap.get(remoteFilePath);
+            CacheEntry entry = mCacheMap.get(remoteFilePath);
+            return entry == null ? null : entry.mFile;
         } finally {
             mCacheMapLock.unlock();
         }
@@ -395,10 +780,11 @@ public class FileDownloadCache {
      */
      void empty() {
         long currentMax = getMaxFileCacheSize();
-        // reuse incrementAndAdjustCache to clear cache, by setting cache cap to 0
+        // reuse adjustCache to clear cache, by setting cache cap to 0
         setMaxCacheSize(0L);
-        incrementAndAdjustCache(0);
+        adjustCache();
         setMaxCacheSize(currentMax);
+        persistJournal();
     }
 
     /**
@@ -438,19 +824,69 @@ public class FileDownloadCache {
     public void deleteCacheEntry(String remoteFilePath) {
         lockFile(remoteFilePath);
         try {
+            CacheEntry entry;
             mCacheMapLock.lock();
             try {
-                File file = mCacheMap.remove(remoteFilePath);
-                if (file != null) {
-                    FileUtil.recursiveDelete(file);
-                } else {
-                    CLog.i("No cache entry to delete for %s", remoteFilePath);
-                }
+                entry = mCacheMap.get(remoteFilePath);
             } finally {
                 mCacheMapLock.unlock();
             }
+            if (entry != null && removeCacheEntry(remoteFilePath, entry)) {
+                FileUtil.recursiveDelete(entry.mFile);
+            } else {
+                CLog.i("No cache entry to delete for %s", remoteFilePath);
+            }
         } finally {
             unlockFile(remoteFilePath);
         }
+        persistJournal();
+    }
+
+    /**
+     * @return the number of requests served without downloading the file, including requests
+     *     that waited for a download started by another thread.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return the number of downloads performed.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return the total size in bytes of the files downloaded.
+     */
+    public long getBytesDownloaded() {
+        return mBytesDownloaded.get();
+    }
+
+    /**
+     * @return the total size in bytes of the files served without downloading them.
+     */
+    public long getBytesSaved() {
+        return mBytesSaved.get();
+    }
+
+    /**
+     * @return the current size in bytes of the cached files.
+     */
+    public long getCurrentCacheSize() {
+        mCacheMapLock.lock();
+        try {
+            return mCurrentCacheSize;
+        } finally {
+            mCacheMapLock.unlock();
+        }
+    }
+
+    /**
+     * @return the root directory of the cache.
+     */
+    public File getCacheRoot() {
+        return mCacheRoot;
     }
 }
@@ -16,8 +16,10 @@
 package com.android.tradefed.build;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -59,4 +61,11 @@ public class FileDownloadCacheFactory {
         }
         return cache;
     }
+
+    /**
+     * @return the {@link FileDownloadCache}s created so far.
+     */
+    public synchronized List<FileDownloadCache> getCaches() {
+        return new ArrayList<>(mCacheObjectMap.values());
+    }
 }
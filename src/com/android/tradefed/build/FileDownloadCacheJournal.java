@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only journal of the entries of a {@link FileDownloadCache}, used to restore its LRU
+ * order on startup without walking and sorting the cache directory.
+ * <p/>
+ * Each line records either an access to an entry, which makes it the most recently used, or its
+ * removal:
+ * <pre>
+ * A &lt;size&gt; &lt;remote path&gt;
+ * R &lt;remote path&gt;
+ * </pre>
+ * Records are queued in memory by the cache, in the order of its map operations, and written by
+ * {@link #flush()} outside of the cache locks. Once the journal grows much larger than the cache,
+ * it is rewritten from a snapshot of the entries.
+ */
+class FileDownloadCacheJournal {
+
+    /** The name of the journal file, in the cache root directory. */
+    static final String JOURNAL_NAME = ".tradefed-cache-journal";
+
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String ACCESS = "A";
+    private static final String REMOVE = "R";
+
+    /** The minimum number of records in the journal before it is compacted. */
+    private static final int MIN_COMPACTION_RECORDS = 1000;
+
+    private final File mJournalFile;
+
+    /** Records not written yet, guarded by this. */
+    private List<String> mPending = new ArrayList<>();
+    /** A snapshot to replace the journal with, guarded by this. */
+    private Map<String, Long> mSnapshot = null;
+    /** The number of records in the journal file and in the pending records, guarded by this. */
+    private long mRecordCount = 0;
+
+    /** Set once the journal could not be written, guarded by this. */
+    private boolean mDisabled = false;
+
+    /** Serializes the writes to the journal file. */
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+
+    FileDownloadCacheJournal(File cacheRoot) {
+        mJournalFile = new File(cacheRoot, JOURNAL_NAME);
+    }
+
+    /**
+     * @return true if the given file name is reserved by the journal in the cache root.
+     */
+    static boolean isJournalFile(String name) {
+        return JOURNAL_NAME.equals(name) || (JOURNAL_NAME + TMP_SUFFIX).equals(name);
+    }
+
+    /**
+     * @return true if a journal was previously written.
+     */
+    boolean exists() {
+        return mJournalFile.isFile();
+    }
+
+    /**
+     * Replay the journal.
+     *
+     * @return the sizes of the entries by remote path, from the least to the most recently used.
+     * @throws IOException if the journal could not be read.
+     */
+    Map<String, Long> load() throws IOException {
+        Map<String, Long> entries = new LinkedHashMap<>();
+        BufferedReader reader = null;
+        long records = 0;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mJournalFile), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                records++;
+                if (!replay(line, entries)) {
+                    // most likely the last line, truncated by a crash
+                    CLog.w("Ignoring invalid record in %s: '%s'", mJournalFile, line);
+                }
+            }
+        } finally {
+            StreamUtil.close(reader);
+        }
+        synchronized (this) {
+            mRecordCount = records;
+        }
+        return entries;
+    }
+
+    private static boolean replay(String line, Map<String, Long> entries) {
+        if (line.startsWith(ACCESS + " ")) {
+            int sizeEnd = line.indexOf(' ', ACCESS.length() + 1);
+            if (sizeEnd < 0 || sizeEnd == line.length() - 1) {
+                return false;
+            }
+            long size;
+            try {
+                size = Long.parseLong(line.substring(ACCESS.length() + 1, sizeEnd));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            String remotePath = line.substring(sizeEnd + 1);
+            // re-insert so that the entry becomes the most recently used
+            entries.remove(remotePath);
+            entries.put(remotePath, size);
+            return true;
+        } else if (line.startsWith(REMOVE + " ") && line.length() > REMOVE.length() + 1) {
+            entries.remove(line.substring(REMOVE.length() + 1));
+            return true;
+        }
+        return false;
+    }
+
+    /** Record that an entry of the given size was added or accessed. */
+    synchronized void recordAccess(String remotePath, long size) {
+        if (mDisabled) {
+            return;
+        }
+        mPending.add(String.format("%s %d %s", ACCESS, size, remotePath));
+        mRecordCount++;
+    }
+
+    /** Record that an entry was removed. */
+    synchronized void recordRemove(String remotePath) {
+        if (mDisabled) {
+            return;
+        }
+        mPending.add(String.format("%s %s", REMOVE, remotePath));
+        mRecordCount++;
+    }
+
+    /**
+     * @return true if the journal holds enough records to be worth compacting for a cache of the
+     *     given number of entries.
+     */
+    synchronized boolean needsCompaction(int entryCount) {
+        return mRecordCount > Math.max(MIN_COMPACTION_RECORDS, 2L * entryCount);
+    }
+
+    /**
+     * Replace the journal content by the given entries on the next {@link #flush()}. Must be
+     * called in the same order as the record methods, with respect to the cache operations.
+     *
+     * @param entries the sizes of the entries by remote path, in LRU order.
+     */
+    synchronized void compact(Map<String, Long> entries) {
+        if (mDisabled) {
+            return;
+        }
+        mSnapshot = entries;
+        mPending = new ArrayList<>();
+        mRecordCount = entries.size();
+    }
+
+    /**
+     * Write the pending records to the journal file.
+     *
+     * @throws IOException if the journal could not be written.
+     */
+    void flush() throws IOException {
+        mWriteLock.lock();
+        try {
+            List<String> pending;
+            Map<String, Long> snapshot;
+            synchronized (this) {
+                if (mPending.isEmpty() && mSnapshot == null) {
+                    return;
+                }
+                pending = mPending;
+                snapshot = mSnapshot;
+                mPending = new ArrayList<>();
+                mSnapshot = null;
+            }
+            if (snapshot != null) {
+                File tmpFile = new File(mJournalFile.getParentFile(), JOURNAL_NAME + TMP_SUFFIX);
+                Writer writer = open(tmpFile, false);
+                try {
+                    for (Map.Entry<String, Long> entry : snapshot.entrySet()) {
+                        writer.write(String.format("%s %d %s\n", ACCESS, entry.getValue(),
+                                entry.getKey()));
+                    }
+                    writeRecords(writer, pending);
+                } finally {
+                    StreamUtil.close(writer);
+                }
+                Files.move(tmpFile.toPath(), mJournalFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                Writer writer = open(mJournalFile, true);
+                try {
+                    writeRecords(writer, pending);
+                } finally {
+                    StreamUtil.close(writer);
+                }
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    private static Writer open(File file, boolean append) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, append), StandardCharsets.UTF_8));
+    }
+
+    private static void writeRecords(Writer writer, List<String> records) throws IOException {
+        for (String record : records) {
+            writer.write(record);
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Delete the journal and stop recording, so that the cache is rebuilt from the directory on
+     * next startup. Used once the journal could not be written, since it may have lost records.
+     */
+    void disable() {
+        synchronized (this) {
+            mDisabled = true;
+            mPending = new ArrayList<>();
+            mSnapshot = null;
+        }
+        mWriteLock.lock();
+        try {
+            FileUtil.deleteFile(mJournalFile);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+}
@@ -21,8 +21,11 @@ import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.config.OptionCopier;
 import com.android.tradefed.config.OptionUpdateRule;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.AsyncResultForwarder;
 import com.android.tradefed.util.UniqueMultiMap;
 
+import java.io.File;
+
 /**
  * Implementation of {@link ICommandOptions}.
  */
@@ -123,6 +126,15 @@ public class CommandOptions implements ICommandOptions {
     )
     private boolean mDynamicSharding = true;
 
+    @Option(
+        name = "shard-work-stealing",
+        description =
+                "With dynamic sharding, let a shard split a test it takes from the pool once the "
+                        + "other shards have run out of tests, and give them the extra pieces. "
+                        + "A test is only split once."
+    )
+    private boolean mShardWorkStealing = false;
+
     @Option(
         name = "invocation-data",
         description =
@@ -137,6 +149,63 @@ public class CommandOptions implements ICommandOptions {
     )
     private boolean mUseTfSharding = false;
 
+    @Option(
+        name = "shard-runtime-history",
+        description =
+                "File holding the durations of the tests from previous runs, used to order "
+                        + "local shards by expected runtime. Strict shards are only balanced "
+                        + "with it when --shard-runtime-history-md5 is also given. Suites must "
+                        + "record into a separate --record-module-runtimes file, to copy over "
+                        + "this one once all the shards of the run completed."
+    )
+    private File mShardRuntimeHistory = null;
+
+    @Option(
+        name = "shard-runtime-history-md5",
+        description =
+                "The md5 of the --shard-runtime-history file that all the strict shards of the "
+                        + "run balance their tests with. Pass the same value to every shard: a "
+                        + "shard whose file does not have this md5 fails instead of computing a "
+                        + "different split. Without it, strict shards are balanced by number of "
+                        + "tests."
+    )
+    private String mShardRuntimeHistoryMd5 = null;
+
+    @Option(
+        name = "stream-shard-results",
+        description =
+                "Forward the results of each shard to the result reporters as each test run or "
+                        + "module completes, instead of once the shard is over."
+    )
+    private boolean mStreamShardResults = false;
+
+    @Option(
+        name = "async-result-reporting",
+        description =
+                "Deliver the results to each result reporter from its own thread, so that a slow "
+                        + "reporter does not hold up the tests. Events keep their order for each "
+                        + "reporter, and the invocation ends once all of them were delivered."
+    )
+    private boolean mAsyncResultReporting = false;
+
+    @Option(
+        name = "async-result-queue-size",
+        description =
+                "The number of events a result reporter can lag behind when reporting "
+                        + "asynchronously, before async-result-overflow applies."
+    )
+    private int mAsyncResultQueueSize = AsyncResultForwarder.DEFAULT_CAPACITY;
+
+    @Option(
+        name = "async-result-overflow",
+        description =
+                "What to do with an event when a result reporter lags behind by "
+                        + "async-result-queue-size events: BLOCK waits for the reporter, DISCARD "
+                        + "drops the event for that reporter if it is a log, and waits otherwise."
+    )
+    private AsyncResultForwarder.OverflowPolicy mAsyncResultOverflow =
+            AsyncResultForwarder.OverflowPolicy.BLOCK;
+
     public static final String USE_SANDBOX = "use-sandbox";
 
     @Option(
@@ -145,6 +214,23 @@ public class CommandOptions implements ICommandOptions {
     )
     private boolean mUseSandbox = false;
 
+    @Option(
+        name = "sandbox-warm-workers",
+        description =
+                "The number of sandbox processes to keep started ahead of time for each Tradefed "
+                        + "version, so that sandboxed invocations do not wait for a JVM to start. "
+                        + "0 starts a new process for each invocation."
+    )
+    private int mSandboxWarmWorkers = 0;
+
+    @Option(
+        name = "config-prototype",
+        description =
+                "Create the configuration of each new run of a looping command, and the ones used "
+                        + "by shards, as copies of a configuration created once from the command "
+                        + "line, instead of loading the configuration and its options again."
+    )
+    private boolean mUseConfigPrototype = false;
 
     /**
      * Set the help mode for the config.
@@ -386,6 +472,12 @@ public class CommandOptions implements ICommandOptions {
         return mDynamicSharding;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public boolean shouldUseShardWorkStealing() {
+        return mShardWorkStealing;
+    }
+
     /** {@inheritDoc} */
     @Override
     public UniqueMultiMap<String, String> getInvocationData() {
@@ -398,6 +490,42 @@ public class CommandOptions implements ICommandOptions {
         return mUseTfSharding;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public File getShardRuntimeHistory() {
+        return mShardRuntimeHistory;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getShardRuntimeHistoryMd5() {
+        return mShardRuntimeHistoryMd5;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean shouldStreamShardResults() {
+        return mStreamShardResults;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isAsyncResultReportingEnabled() {
+        return mAsyncResultReporting;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getAsyncResultQueueSize() {
+        return mAsyncResultQueueSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public AsyncResultForwarder.OverflowPolicy getAsyncResultOverflowPolicy() {
+        return mAsyncResultOverflow;
+    }
+
     /** {@inheritDoc} */
     @Override
     public boolean shouldUseSandboxing() {
@@ -409,4 +537,16 @@ public class CommandOptions implements ICommandOptions {
     public void setShouldUseSandboxing(boolean use) {
         mUseSandbox = use;
     }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getSandboxWarmWorkers() {
+        return mSandboxWarmWorkers;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean shouldUseConfigPrototype() {
+        return mUseConfigPrototype;
+    }
 }
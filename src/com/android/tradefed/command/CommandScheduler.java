@@ -993,13 +993,21 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         synchronized (this) {
             // sort ready commands by priority, so high priority commands are matched first
             Collections.sort(mReadyCommands, new ExecutableCommandComparator());
+            // device requirements that could not be satisfied during this pass. Devices only get
+            // allocated while the pass runs, so any other command with the same requirements
+            // would fail as well and can be skipped without walking the device list again.
+            Set<DeviceRequirementsKey> unmatchedRequirements = new HashSet<>();
             Iterator<ExecutableCommand> cmdIter = mReadyCommands.iterator();
             while (cmdIter.hasNext()) {
                 ExecutableCommand cmd = cmdIter.next();
                 IConfiguration config = cmd.getConfiguration();
                 IInvocationContext context = new InvocationContext();
                 context.setConfigurationDescriptor(config.getConfigurationDescription());
-                Map<String, ITestDevice> devices = allocateDevices(config, manager);
+                DeviceRequirementsKey requirements = DeviceRequirementsKey.create(config);
+                Map<String, ITestDevice> devices = Collections.emptyMap();
+                if (!unmatchedRequirements.contains(requirements)) {
+                    devices = allocateDevices(config, manager);
+                }
                 if (!devices.isEmpty()) {
                     cmdIter.remove();
                     mExecutingCommands.add(cmd);
@@ -1010,6 +1018,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                     // clean warned list to avoid piling over time.
                     mUnscheduledWarning.remove(cmd);
                 } else {
+                    unmatchedRequirements.add(requirements);
                     if (!mUnscheduledWarning.contains(cmd)) {
                         CLog.logAndDisplay(LogLevel.DEBUG, "No available device matching all the "
                                 + "config's requirements for cmd id %d.",
@@ -1032,7 +1041,8 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             startInvocation(cmdDeviceEntry.getValue(), cmd,
                     new FreeDeviceHandler(getDeviceManager()));
             if (cmd.isLoopMode()) {
-                addNewExecCommandToQueue(cmd.getCommandTracker());
+                addNewExecCommandToQueue(cmd.getCommandTracker(),
+                        cmd.getConfiguration().getCommandOptions().shouldUseConfigPrototype());
             }
         }
         CLog.d("done processReadyCommands...");
@@ -1279,11 +1289,18 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
      * Creates a new {@link ExecutableCommand}, and adds it to queue
      *
      * @param commandTracker
+     * @param fromPrototype whether the configuration is copied from a prototype configuration
      */
-    private void addNewExecCommandToQueue(CommandTracker commandTracker) {
+    private void addNewExecCommandToQueue(CommandTracker commandTracker, boolean fromPrototype) {
         try {
-            IConfiguration config = getConfigFactory().createConfigurationFromArgs(
-                    commandTracker.getArgs(), null, getKeyStoreClient());
+            IConfiguration config;
+            if (fromPrototype) {
+                config = getConfigFactory().createConfigurationFromPrototype(
+                        commandTracker.getArgs(), getKeyStoreClient());
+            } else {
+                config = getConfigFactory().createConfigurationFromArgs(
+                        commandTracker.getArgs(), null, getKeyStoreClient());
+            }
             ExecutableCommand execCmd = createExecutableCommand(commandTracker, config, false);
             addExecCommandToQueue(execCmd, config.getCommandOptions().getLoopTime());
         } catch (ConfigurationException e) {
@@ -1690,6 +1707,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     protected void initLogging() {
         DdmPreferences.setLogLevel(LogLevel.VERBOSE.getStringValue());
         Log.setLogOutput(LogRegistry.getLogRegistry());
+        CLog.setLogRegistry(LogRegistry.getLogRegistry());
     }
 
     /**
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import com.android.tradefed.config.IConfiguration;
+import com.android.tradefed.config.IDeviceConfiguration;
+import com.android.tradefed.device.DeviceSelectionOptions;
+import com.android.tradefed.device.IDeviceSelection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * A value object describing the full set of device requirements of an {@link IConfiguration}.
+ * <p/>
+ * Two commands with equal keys request the same number of devices with the same selection
+ * criteria, so if one of them cannot be matched against the available devices, none of the
+ * others can be either. {@link CommandScheduler} uses this to only attempt allocation once per
+ * distinct set of requirements in each scheduling pass, instead of once per ready command.
+ * <p/>
+ * Only {@link DeviceSelectionOptions} can be described by value. Any other
+ * {@link IDeviceSelection} implementation gets a key that is only equal to itself.
+ */
+final class DeviceRequirementsKey {
+
+    private final List<Object> mRequirements;
+
+    private DeviceRequirementsKey(List<Object> requirements) {
+        mRequirements = requirements;
+    }
+
+    /**
+     * Create the {@link DeviceRequirementsKey} for the given configuration.
+     *
+     * @param config the {@link IConfiguration} for which to describe the device requirements.
+     * @return the {@link DeviceRequirementsKey} of the configuration.
+     */
+    static DeviceRequirementsKey create(IConfiguration config) {
+        List<Object> requirements = new ArrayList<>();
+        for (IDeviceConfiguration deviceConfig : config.getDeviceConfig()) {
+            requirements.add(describe(deviceConfig.getDeviceRequirements()));
+        }
+        return new DeviceRequirementsKey(requirements);
+    }
+
+    /**
+     * Returns a value description of the {@link IDeviceSelection}, or a unique object if the
+     * selection cannot be described by value.
+     */
+    private static Object describe(IDeviceSelection selection) {
+        if (!(selection instanceof DeviceSelectionOptions)) {
+            return new Object();
+        }
+        DeviceSelectionOptions options = (DeviceSelectionOptions) selection;
+        List<Object> description = new ArrayList<>();
+        // Sub-classes may override the extra matching, so they never match each other.
+        description.add(options.getClass().getName());
+        description.add(options.getSerials());
+        description.add(options.getExcludeSerials());
+        description.add(options.getProductTypes());
+        description.add(new TreeMap<>(options.getProperties()));
+        description.add(options.emulatorRequested());
+        description.add(options.deviceRequested());
+        description.add(options.stubEmulatorRequested());
+        description.add(options.nullDeviceRequested());
+        description.add(options.tcpDeviceRequested());
+        description.add(options.getMinBatteryLevel());
+        description.add(options.getMaxBatteryLevel());
+        description.add(options.getRequireBatteryCheck());
+        description.add(options.getMinSdkVersion());
+        description.add(options.getMaxSdkVersion());
+        return description;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return mRequirements.hashCode();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof DeviceRequirementsKey)) {
+            return false;
+        }
+        return mRequirements.equals(((DeviceRequirementsKey) obj).mRequirements);
+    }
+}
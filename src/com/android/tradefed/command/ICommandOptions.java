@@ -16,8 +16,11 @@
 
 package com.android.tradefed.command;
 
+import com.android.tradefed.result.AsyncResultForwarder;
 import com.android.tradefed.util.UniqueMultiMap;
 
+import java.io.File;
+
 /**
  *  Container for execution options for commands.
  */
@@ -149,15 +152,48 @@ public interface ICommandOptions {
     /** Returns if we should use dynamic sharding or not */
     public boolean shouldUseDynamicSharding();
 
+    /** Returns true if shards that run out of tests may split the tests of the other shards. */
+    public boolean shouldUseShardWorkStealing();
+
     /** Returns the data passed to the invocation to describe it */
     public UniqueMultiMap<String, String> getInvocationData();
 
     /** Returns true if we should use Tf new sharding logic */
     public boolean shouldUseTfSharding();
 
+    /**
+     * Returns the file of test durations used to balance the shards, or null to balance them by
+     * number of tests.
+     */
+    public File getShardRuntimeHistory();
+
+    /**
+     * Returns the md5 of the runtime history that all the strict shards of the run balance their
+     * tests with, or null to balance strict shards by number of tests.
+     */
+    public String getShardRuntimeHistoryMd5();
+
+    /** Returns true if the results of the shards should be forwarded as their runs complete. */
+    public boolean shouldStreamShardResults();
+
+    /** Returns true if the results should be delivered to each reporter from its own thread. */
+    public boolean isAsyncResultReportingEnabled();
+
+    /** Returns the number of events a reporter can lag behind when reporting asynchronously. */
+    public int getAsyncResultQueueSize();
+
+    /** Returns what to do with an event when an asynchronous reporter lags behind too much. */
+    public AsyncResultForwarder.OverflowPolicy getAsyncResultOverflowPolicy();
+
     /** Returns true if we should use Tf containers to run the invocation */
     public boolean shouldUseSandboxing();
 
     /** Sets whether or not we should use TF containers */
     public void setShouldUseSandboxing(boolean use);
+
+    /** Returns the number of sandbox processes to keep started for each Tradefed version. */
+    public int getSandboxWarmWorkers();
+
+    /** Returns true if configurations should be copied from a prototype configuration. */
+    public boolean shouldUseConfigPrototype();
 }
@@ -39,6 +39,7 @@ import com.android.tradefed.targetprep.multi.IMultiTargetPreparer;
 import com.android.tradefed.targetprep.multi.StubMultiTargetPreparer;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.StubTest;
+import com.android.tradefed.testtype.suite.ITestSuite;
 import com.android.tradefed.util.MultiMap;
 import com.android.tradefed.util.QuotationAwareTokenizer;
 import com.android.tradefed.util.keystore.IKeyStoreClient;
@@ -50,6 +51,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.kxml2.io.KXmlSerializer;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
@@ -60,6 +62,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -629,6 +632,83 @@ public class Configuration implements IConfiguration {
         return clone;
     }
 
+    /**
+     * Creates a deep copy of this object: all the configuration objects are new instances of the
+     * same classes, with the same option values. Only objects created from a configuration
+     * definition can be copied, they must have a public no-argument constructor.
+     *
+     * @throws ConfigurationException if an object could not be copied
+     */
+    Configuration deepCopy() throws ConfigurationException {
+        Configuration copy = new Configuration(getName(), getDescription());
+        // Objects present in several lists, like the ones of the default device, are copied once.
+        Map<Object, Object> copies = new IdentityHashMap<Object, Object>();
+        copy.mConfigMap = new LinkedHashMap<String, List<Object>>();
+        for (Map.Entry<String, List<Object>> entry : mConfigMap.entrySet()) {
+            List<Object> objectList = new ArrayList<Object>(entry.getValue().size());
+            for (Object configObject : entry.getValue()) {
+                if (configObject instanceof IDeviceConfiguration) {
+                    objectList.add(
+                            copyDeviceConfig((IDeviceConfiguration) configObject, copies));
+                } else {
+                    objectList.add(copyConfigObject(configObject, copies));
+                }
+            }
+            copy.mConfigMap.put(entry.getKey(), objectList);
+        }
+        for (FieldDef fieldDef : mFieldSources.keySet()) {
+            Object object = copies.get(fieldDef.object);
+            if (object != null) {
+                FieldDef copyFieldDef = new FieldDef(object, fieldDef.field, fieldDef.key);
+                for (String source : mFieldSources.get(fieldDef)) {
+                    copy.mFieldSources.put(copyFieldDef, source);
+                }
+            }
+        }
+        copy.setCommandLine(mCommandLine);
+        for (Object object : copies.values()) {
+            if (object instanceof IConfigurationReceiver) {
+                ((IConfigurationReceiver) object).setConfiguration(copy);
+            }
+        }
+        return copy;
+    }
+
+    private IDeviceConfiguration copyDeviceConfig(IDeviceConfiguration deviceConfig,
+            Map<Object, Object> copies) throws ConfigurationException {
+        if (!DeviceConfigurationHolder.class.equals(deviceConfig.getClass())) {
+            throw new ConfigurationException(String.format("Cannot copy device configuration %s",
+                    deviceConfig.getClass().getName()));
+        }
+        IDeviceConfiguration copy = new DeviceConfigurationHolder(deviceConfig.getDeviceName());
+        for (Object configObject : deviceConfig.getAllObjects()) {
+            Object objectCopy = copyConfigObject(configObject, copies);
+            copy.addSpecificConfig(objectCopy);
+            Integer frequency = deviceConfig.getFrequency(configObject);
+            if (frequency != null) {
+                copy.addFrequency(objectCopy, frequency);
+            }
+        }
+        return copy;
+    }
+
+    private static Object copyConfigObject(Object configObject, Map<Object, Object> copies)
+            throws ConfigurationException {
+        Object copy = copies.get(configObject);
+        if (copy == null) {
+            try {
+                copy = configObject.getClass().newInstance();
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new ConfigurationException(String.format(
+                        "Could not instantiate class %s to copy the configuration",
+                        configObject.getClass().getName()), e);
+            }
+            OptionCopier.copyOptionValues(configObject, copy);
+            copies.put(configObject, copy);
+        }
+        return copy;
+    }
+
     private void addToDefaultDeviceConfig(Object obj) {
         try {
             getDeviceConfigByName(ConfigurationDef.DEFAULT_DEVICE_NAME).addSpecificConfig(obj);
@@ -1177,6 +1257,31 @@ public class Configuration implements IConfiguration {
                         || options.getShardIndex() >= options.getShardCount())) {
             throw new ConfigurationException("a shard index must be in range [0, shard count)");
         }
+        File runtimeHistory = options.getShardRuntimeHistory();
+        if (options.getShardRuntimeHistoryMd5() != null && runtimeHistory == null) {
+            throw new ConfigurationException(
+                    "a shard runtime history md5 requires a shard runtime history file");
+        }
+        if (options.getShardIndex() != null && runtimeHistory != null) {
+            // the strict shards must all plan from the same content of the history
+            for (IRemoteTest test : getTests()) {
+                if (!(test instanceof ITestSuite)) {
+                    continue;
+                }
+                File recordFile = ((ITestSuite) test).getModuleRuntimesFile();
+                if (recordFile != null
+                        && recordFile.getAbsoluteFile().equals(runtimeHistory.getAbsoluteFile())) {
+                    throw new ConfigurationException(
+                            String.format(
+                                    "record-module-runtimes and shard-runtime-history are both "
+                                            + "%s: strict shards would plan from a history "
+                                            + "changing while they run. Record into another "
+                                            + "file and copy it over the history once all the "
+                                            + "shards completed.",
+                                    runtimeHistory));
+                }
+            }
+        }
     }
 
     /**
@@ -43,6 +43,7 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -61,9 +62,35 @@ public class ConfigurationFactory implements IConfigurationFactory {
     private static final String CONFIG_PREFIX = "config/";
     private static final String DRY_RUN_TEMPLATE_CONFIG = "empty";
     private static final String CONFIG_ERROR_PATTERN = "(Could not find option with name )(.*)";
+    private static final int MAX_PROTOTYPES = 100;
 
     private Map<ConfigId, ConfigurationDef> mConfigDefMap;
 
+    /**
+     * The prototype configurations by command line, see {@link #createConfigurationFromPrototype}.
+     * They are never handed out, only copied, and the least recently used are dropped.
+     */
+    private final Map<List<String>, Prototype> mPrototypes =
+            new LinkedHashMap<List<String>, Prototype>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<String>, Prototype> eldest) {
+                    return size() > MAX_PROTOTYPES;
+                }
+            };
+
+    /** A configuration created from a command line, with the definition it was created from. */
+    private static class Prototype {
+        final Configuration mConfig;
+        final ConfigurationDef mConfigDef;
+
+        Prototype(Configuration config, ConfigurationDef configDef) {
+            mConfig = config;
+            mConfigDef = configDef;
+        }
+    }
+
     /**
      * A simple struct-like class that stores a configuration's name alongside
      * the arguments for any {@code <template-include>} tags it may contain.
@@ -460,11 +487,66 @@ public class ConfigurationFactory implements IConfigurationFactory {
     public IConfiguration createConfigurationFromArgs(String[] arrayArgs,
             List<String> unconsumedArgs, IKeyStoreClient keyStoreClient)
             throws ConfigurationException {
+        return createConfigurationFromArgs(arrayArgs, unconsumedArgs, keyStoreClient, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IConfiguration createConfigurationFromPrototype(String[] arrayArgs,
+            IKeyStoreClient keyStoreClient) throws ConfigurationException {
+        for (String arg : arrayArgs) {
+            if (OptionSetter.USE_KEYSTORE_REGEX.matcher(arg).find()) {
+                // Key store values can change, they are read for each configuration. They may be
+                // embedded in the argument, e.g. --option=USE_KEYSTORE@key or key=USE_KEYSTORE@key.
+                return createConfigurationFromArgs(arrayArgs, null, keyStoreClient);
+            }
+        }
+        List<String> key = Arrays.asList(arrayArgs.clone());
+        Prototype prototype;
+        synchronized (mPrototypes) {
+            prototype = mPrototypes.get(key);
+        }
+        if (prototype == null || prototype.mConfigDef.isStale()) {
+            List<ConfigurationDef> configDefRef = new ArrayList<ConfigurationDef>(1);
+            IConfiguration config =
+                    createConfigurationFromArgs(arrayArgs, null, keyStoreClient, configDefRef);
+            if (!(config instanceof Configuration)) {
+                return config;
+            }
+            prototype = new Prototype((Configuration) config, configDefRef.get(0));
+            synchronized (mPrototypes) {
+                mPrototypes.put(key, prototype);
+            }
+        }
+        try {
+            return prototype.mConfig.deepCopy();
+        } catch (ConfigurationException e) {
+            CLog.w("Could not copy the prototype configuration of '%s': %s", arrayArgs[0],
+                    e.getMessage());
+            synchronized (mPrototypes) {
+                mPrototypes.remove(key);
+            }
+            return createConfigurationFromArgs(arrayArgs, null, keyStoreClient);
+        }
+    }
+
+    /**
+     * Creates a {@link Configuration} from command line arguments, like
+     * {@link #createConfigurationFromArgs(String[], List, IKeyStoreClient)}.
+     *
+     * @param configDefRef a list to populate with the {@link ConfigurationDef} the configuration
+     *            was created from, or null.
+     */
+    private IConfiguration createConfigurationFromArgs(String[] arrayArgs,
+            List<String> unconsumedArgs, IKeyStoreClient keyStoreClient,
+            List<ConfigurationDef> configDefRef) throws ConfigurationException {
         List<String> listArgs = new ArrayList<String>(arrayArgs.length);
         // FIXME: Update parsing to not care about arg order.
         String[] reorderedArrayArgs = reorderArgs(arrayArgs);
-        IConfiguration config =
-                internalCreateConfigurationFromArgs(reorderedArrayArgs, listArgs, keyStoreClient);
+        IConfiguration config = internalCreateConfigurationFromArgs(
+                reorderedArrayArgs, listArgs, keyStoreClient, configDefRef);
         config.setCommandLine(arrayArgs);
         if (listArgs.contains("--" + CommandOptions.DRY_RUN_OPTION)) {
             // In case of dry-run, we replace the KeyStore by a dry-run one.
@@ -499,13 +581,15 @@ public class ConfigurationFactory implements IConfigurationFactory {
      *            option arguments left to be interpreted
      * @param keyStoreClient {@link IKeyStoreClient} keystore client to use if
      *            any.
+     * @param configDefRef a list to populate with the {@link ConfigurationDef} of the
+     *            configuration, or null.
      * @return An {@link IConfiguration} object representing the configuration
      *         that was loaded
      * @throws ConfigurationException
      */
     private IConfiguration internalCreateConfigurationFromArgs(String[] arrayArgs,
-            List<String> optionArgsRef, IKeyStoreClient keyStoreClient)
-            throws ConfigurationException {
+            List<String> optionArgsRef, IKeyStoreClient keyStoreClient,
+            List<ConfigurationDef> configDefRef) throws ConfigurationException {
         if (arrayArgs.length == 0) {
             throw new ConfigurationException("Configuration to run was not specified");
         }
@@ -534,6 +618,9 @@ public class ConfigurationFactory implements IConfigurationFactory {
             throw new ConfigurationException(String.format("Unused template:map parameters: %s",
                     parserSettings.templateMap.toString()));
         }
+        if (configDefRef != null) {
+            configDefRef.add(configDef);
+        }
         return configDef.createConfiguration();
     }
 
@@ -708,7 +795,7 @@ public class ConfigurationFactory implements IConfigurationFactory {
     public void printHelpForConfig(String[] args, boolean importantOnly, PrintStream out) {
         try {
             IConfiguration config = internalCreateConfigurationFromArgs(args,
-                    new ArrayList<String>(args.length), null);
+                    new ArrayList<String>(args.length), null, null);
             config.printCommandUsage(importantOnly, out);
         } catch (ConfigurationException e) {
             // config must not be specified. Print generic help
@@ -828,6 +915,9 @@ public class ConfigurationFactory implements IConfigurationFactory {
     @VisibleForTesting
     public void clearMapConfig() {
         mConfigDefMap.clear();
+        synchronized (mPrototypes) {
+            mPrototypes.clear();
+        }
     }
 
     /** Reorder the args so that template:map args are all moved to the front. */
@@ -75,6 +75,24 @@ public interface IConfigurationFactory {
     public IConfiguration createConfigurationFromArgs(String[] args, List<String> unconsumedArgs,
             IKeyStoreClient keyStoreClient) throws ConfigurationException;
 
+    /**
+     * Create the {@link IConfiguration} from command line arguments like
+     * {@link #createConfigurationFromArgs(String[], List, IKeyStoreClient)}, as a copy of a
+     * prototype configuration created once for the same arguments and kept by the factory.
+     * <p/>
+     * All the objects of the copy are new instances with the same option values, so that
+     * commands run again and again, like looping commands, are not parsed and injected each time.
+     *
+     * @param args the command line arguments
+     * @param keyStoreClient a {@link IKeyStoreClient} which is used to obtain sensitive info in
+     *                       the args. Arguments using the key store are not cached.
+     *
+     * @return the loaded {@link IConfiguration}.
+     * @throws ConfigurationException if configuration could not be loaded
+     */
+    public IConfiguration createConfigurationFromPrototype(String[] args,
+            IKeyStoreClient keyStoreClient) throws ConfigurationException;
+
     /**
      * Create a {@link IGlobalConfiguration} from command line arguments.
      * <p/>
@@ -17,10 +17,13 @@
 package com.android.tradefed.config;
 
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.MultiMap;
 
 import java.lang.reflect.Field;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -29,6 +32,35 @@ import java.util.Map;
  */
 public class OptionCopier {
 
+    /**
+     * The {@link Option} fields to copy from each class by option name, the first one found for
+     * each name. Like the fields set, a {@link ClassValue} lets the classes of an invocation be
+     * unloaded.
+     */
+    private static final ClassValue<Map<String, Field>> sCopiedFields =
+            new ClassValue<Map<String, Field>>() {
+                @Override
+                protected Map<String, Field> computeValue(Class<?> origClass) {
+                    Map<String, Field> fieldMap = new LinkedHashMap<String, Field>();
+                    for (Field field : OptionSetter.getOptionFieldsForClass(origClass)) {
+                        String name = field.getAnnotation(Option.class).name();
+                        if (!fieldMap.containsKey(name)) {
+                            fieldMap.put(name, field);
+                        }
+                    }
+                    return Collections.unmodifiableMap(fieldMap);
+                }
+            };
+
+    /** The {@link Option} fields to set in each class by option name. */
+    private static final ClassValue<Map<String, Field>> sSetFields =
+            new ClassValue<Map<String, Field>>() {
+                @Override
+                protected Map<String, Field> computeValue(Class<?> destClass) {
+                    return Collections.unmodifiableMap(getFieldOptionMap(destClass));
+                }
+            };
+
     /**
      * Copy the values from {@link Option} fields in <var>origObject</var> to <var>destObject</var>
      *
@@ -38,15 +70,65 @@ public class OptionCopier {
      */
     public static void copyOptions(Object origObject, Object destObject)
             throws ConfigurationException {
-        Collection<Field> origFields = OptionSetter.getOptionFieldsForClass(origObject.getClass());
-        Map<String, Field> destFieldMap = getFieldOptionMap(destObject);
-        for (Field origField : origFields) {
-            final Option option = origField.getAnnotation(Option.class);
-            Field destField = destFieldMap.remove(option.name());
+        Map<String, Field> destFieldMap = sSetFields.get(destObject.getClass());
+        for (Map.Entry<String, Field> origField :
+                sCopiedFields.get(origObject.getClass()).entrySet()) {
+            Field destField = destFieldMap.get(origField.getKey());
             if (destField != null) {
-                Object origValue = OptionSetter.getFieldValue(origField,
-                        origObject);
-                OptionSetter.setFieldValue(option.name(), destObject, destField, origValue);
+                Object origValue = OptionSetter.getFieldValue(origField.getValue(), origObject);
+                OptionSetter.setFieldValue(origField.getKey(), destObject, destField, origValue);
+            }
+        }
+    }
+
+    /**
+     * Make the {@link Option} fields of <var>destObject</var>, of the same class as
+     * <var>origObject</var>, hold the same values. Unlike {@link #copyOptions(Object, Object)},
+     * update rules do not apply, and the content of collections and maps is replaced instead of
+     * added to, so that the copy does not depend on the defaults of the class.
+     *
+     * @param origObject the {@link Object} to copy from
+     * @param destObject the {@link Object} to copy to, a new instance of the same class
+     * @throws ConfigurationException if options failed to copy
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    static void copyOptionValues(Object origObject, Object destObject)
+            throws ConfigurationException {
+        if (!origObject.getClass().equals(destObject.getClass())) {
+            throw new ConfigurationException(String.format("Cannot copy the options of %s to %s",
+                    origObject.getClass().getName(), destObject.getClass().getName()));
+        }
+        for (Field field : OptionSetter.getOptionFieldsForClass(origObject.getClass())) {
+            Object origValue = OptionSetter.getFieldValue(field, origObject);
+            Object destValue = OptionSetter.getFieldValue(field, destObject);
+            if (origValue != null && origValue == destValue) {
+                // shared by all the instances, nothing to copy
+                continue;
+            }
+            if (origValue instanceof Collection && destValue instanceof Collection) {
+                ((Collection) destValue).clear();
+                ((Collection) destValue).addAll((Collection) origValue);
+            } else if (origValue instanceof Map && destValue instanceof Map) {
+                ((Map) destValue).clear();
+                ((Map) destValue).putAll((Map) origValue);
+            } else if (origValue instanceof MultiMap && destValue instanceof MultiMap) {
+                ((MultiMap) destValue).clear();
+                ((MultiMap) destValue).putAll((MultiMap) origValue);
+            } else if (origValue instanceof Collection || origValue instanceof Map
+                    || origValue instanceof MultiMap) {
+                // the copy would share the collection with the original
+                throw new ConfigurationException(String.format(
+                        "Cannot copy option '%s' of %s, the field of the copy is null",
+                        field.getAnnotation(Option.class).name(),
+                        origObject.getClass().getName()));
+            } else {
+                try {
+                    field.set(destObject, origValue);
+                } catch (IllegalAccessException | IllegalArgumentException e) {
+                    throw new ConfigurationException(String.format(
+                            "internal error when copying option '%s'",
+                            field.getAnnotation(Option.class).name()), e);
+                }
             }
         }
     }
@@ -64,13 +146,13 @@ public class OptionCopier {
     }
 
     /**
-     * Build a map of {@link Option#name()} to {@link Field} for given {@link Object}.
+     * Build a map of {@link Option#name()} to {@link Field} for given {@link Class}.
      *
-     * @param destObject
+     * @param destClass
      * @return a {@link Map}
      */
-    private static Map<String, Field> getFieldOptionMap(Object destObject) {
-        Collection<Field> destFields = OptionSetter.getOptionFieldsForClass(destObject.getClass());
+    private static Map<String, Field> getFieldOptionMap(Class<?> destClass) {
+        Collection<Field> destFields = OptionSetter.getOptionFieldsForClass(destClass);
         Map<String, Field> fieldMap = new HashMap<String, Field>(destFields.size());
         for (Field field : destFields) {
             Option o = field.getAnnotation(Option.class);
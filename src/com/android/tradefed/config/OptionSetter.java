@@ -32,12 +32,14 @@ import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -68,6 +70,19 @@ public class OptionSetter {
     private static final HashMap<Class<?>, Handler> handlers = new HashMap<Class<?>, Handler>();
     static final char NAMESPACE_SEPARATOR = ':';
     static final Pattern USE_KEYSTORE_REGEX = Pattern.compile("USE_KEYSTORE@(.*)");
+
+    /**
+     * The {@link Option} fields of each class, found once and shared by all the configurations,
+     * since each call to {@link Class#getDeclaredFields()} returns new copies whose annotations
+     * have to be parsed again. A {@link ClassValue} does not keep the classes loaded by the class
+     * loader of an invocation from being unloaded, unlike a map keyed by class.
+     */
+    private static final ClassValue<OptionFields> sOptionFields = new ClassValue<OptionFields>() {
+        @Override
+        protected OptionFields computeValue(Class<?> optionClass) {
+            return new OptionFields(optionClass);
+        }
+    };
     private IKeyStoreClient mKeyStoreClient = null;
 
     static {
@@ -193,6 +208,23 @@ public class OptionSetter {
                 type));
     }
 
+    /**
+     * Returns the {@link Handler} for the type of a field, looked up once per field.
+     *
+     * @return the {@link Handler}, or null if the type of the field is not supported.
+     */
+    private static Handler getFieldHandler(Field field) throws ConfigurationException {
+        Map<Field, Handler> fieldHandlers = sOptionFields.get(field.getDeclaringClass()).mHandlers;
+        Handler handler = fieldHandlers.get(field);
+        if (handler == null) {
+            handler = getHandler(field.getGenericType());
+            if (handler != null) {
+                fieldHandlers.put(field, handler);
+            }
+        }
+        return handler;
+    }
+
     /**
      * Does some magic to distinguish TimeVal long field from normal long fields, then calls
      * {@link #getHandler(Type)} in the appropriate manner.
@@ -252,8 +284,8 @@ public class OptionSetter {
 
         void addField(String name, Object source, Field field) throws ConfigurationException {
             if (size() > 0) {
-                Handler existingFieldHandler = getHandler(getFirstField().getGenericType());
-                Handler newFieldHandler = getHandler(field.getGenericType());
+                Handler existingFieldHandler = getFieldHandler(getFirstField());
+                Handler newFieldHandler = getFieldHandler(field);
                 if (!existingFieldHandler.getClass().equals(newFieldHandler.getClass())) {
                     throw new ConfigurationException(String.format(
                             "@Option field with name '%s' in class '%s' is defined with a " +
@@ -433,7 +465,7 @@ public class OptionSetter {
         boolean fieldWasSet = true;
 
         try {
-            field.setAccessible(true);
+            makeAccessible(field);
 
             if (Collection.class.isAssignableFrom(field.getType())) {
                 if (key != null) {
@@ -601,48 +633,21 @@ public class OptionSetter {
     private void addOptionsForObject(Object optionSource,
             Map<String, OptionFieldsForName> optionMap, Integer index, String deviceName)
             throws ConfigurationException {
-        Collection<Field> optionFields = getOptionFieldsForClass(optionSource.getClass());
+        OptionFields classFields = sOptionFields.get(optionSource.getClass());
+        Collection<Field> optionFields = classFields.mFields;
+        if (!classFields.mValidated) {
+            validateOptionFields(optionSource.getClass(), optionFields);
+            classFields.mValidated = true;
+        }
+        // Allow classes to opt out of the global Option namespace
+        boolean addToGlobalNamespace = true;
+        if (optionSource.getClass().isAnnotationPresent(OptionClass.class)) {
+            final OptionClass classAnnotation = optionSource.getClass().getAnnotation(
+                    OptionClass.class);
+            addToGlobalNamespace = classAnnotation.global_namespace();
+        }
         for (Field field : optionFields) {
             final Option option = field.getAnnotation(Option.class);
-            if (option.name().indexOf(NAMESPACE_SEPARATOR) != -1) {
-                throw new ConfigurationException(String.format(
-                        "Option name '%s' in class '%s' is invalid. " +
-                        "Option names cannot contain the namespace separator character '%c'",
-                        option.name(), optionSource.getClass().getName(), NAMESPACE_SEPARATOR));
-            }
-
-            // Make sure the source doesn't use GREATEST or LEAST for a non-Comparable field.
-            final Type type = field.getGenericType();
-            if ((type instanceof Class) && !(type instanceof ParameterizedType)) {
-                // Not a parameterized type
-                if ((option.updateRule() == OptionUpdateRule.GREATEST) ||
-                        (option.updateRule() == OptionUpdateRule.LEAST)) {
-                    Class cType = (Class) type;
-                    if (!(Comparable.class.isAssignableFrom(cType))) {
-                        throw new ConfigurationException(String.format(
-                                "Option '%s' in class '%s' attempts to use updateRule %s with " +
-                                "non-Comparable type '%s'.", option.name(),
-                                optionSource.getClass().getName(), option.updateRule(),
-                                field.getGenericType()));
-                    }
-                }
-
-                // don't allow 'final' for non-Collections
-                if ((field.getModifiers() & Modifier.FINAL) != 0) {
-                    throw new ConfigurationException(String.format(
-                            "Option '%s' in class '%s' is final and cannot be set", option.name(),
-                            optionSource.getClass().getName()));
-                }
-            }
-
-            // Allow classes to opt out of the global Option namespace
-            boolean addToGlobalNamespace = true;
-            if (optionSource.getClass().isAnnotationPresent(OptionClass.class)) {
-                final OptionClass classAnnotation = optionSource.getClass().getAnnotation(
-                        OptionClass.class);
-                addToGlobalNamespace = classAnnotation.global_namespace();
-            }
-
             if (addToGlobalNamespace) {
                 addNameToMap(optionMap, optionSource, option.name(), field);
                 if (deviceName != null) {
@@ -677,6 +682,50 @@ public class OptionSetter {
         }
     }
 
+    /**
+     * Report any problem with the {@link Option} fields of a class.
+     *
+     * @param optionClass the {@link Class} declaring or inheriting the fields
+     * @param optionFields the {@link Option} fields of <var>optionClass</var>
+     * @throws ConfigurationException if any {@link Option} is incorrectly specified
+     */
+    private static void validateOptionFields(Class<?> optionClass, Collection<Field> optionFields)
+            throws ConfigurationException {
+        for (Field field : optionFields) {
+            final Option option = field.getAnnotation(Option.class);
+            if (option.name().indexOf(NAMESPACE_SEPARATOR) != -1) {
+                throw new ConfigurationException(String.format(
+                        "Option name '%s' in class '%s' is invalid. " +
+                        "Option names cannot contain the namespace separator character '%c'",
+                        option.name(), optionClass.getName(), NAMESPACE_SEPARATOR));
+            }
+
+            // Make sure the source doesn't use GREATEST or LEAST for a non-Comparable field.
+            final Type type = field.getGenericType();
+            if ((type instanceof Class) && !(type instanceof ParameterizedType)) {
+                // Not a parameterized type
+                if ((option.updateRule() == OptionUpdateRule.GREATEST) ||
+                        (option.updateRule() == OptionUpdateRule.LEAST)) {
+                    Class cType = (Class) type;
+                    if (!(Comparable.class.isAssignableFrom(cType))) {
+                        throw new ConfigurationException(String.format(
+                                "Option '%s' in class '%s' attempts to use updateRule %s with " +
+                                "non-Comparable type '%s'.", option.name(),
+                                optionClass.getName(), option.updateRule(),
+                                field.getGenericType()));
+                    }
+                }
+
+                // don't allow 'final' for non-Collections
+                if ((field.getModifiers() & Modifier.FINAL) != 0) {
+                    throw new ConfigurationException(String.format(
+                            "Option '%s' in class '%s' is final and cannot be set", option.name(),
+                            optionClass.getName()));
+                }
+            }
+        }
+    }
+
     /**
      * Returns the names of all of the {@link Option}s that are marked as {@code mandatory} but
      * remain unset.
@@ -706,7 +755,7 @@ public class OptionSetter {
                 }
 
                 // At this point, we know this is a mandatory field; make sure it's set
-                field.setAccessible(true);
+                makeAccessible(field);
                 final Object value;
                 try {
                     value = field.get(obj);
@@ -743,12 +792,32 @@ public class OptionSetter {
      * Gets a list of all {@link Option} fields (both declared and inherited) for given class.
      *
      * @param optionClass the {@link Class} to search
-     * @return a {@link Collection} of fields annotated with {@link Option}
+     * @return an unmodifiable {@link Collection} of fields annotated with {@link Option}, already
+     *         made accessible
      */
     static Collection<Field> getOptionFieldsForClass(final Class<?> optionClass) {
-        Collection<Field> fieldList = new ArrayList<Field>();
-        buildOptionFieldsForClass(optionClass, fieldList);
-        return fieldList;
+        return sOptionFields.get(optionClass).mFields;
+    }
+
+    /**
+     * What is known about the {@link Option} fields of a class.
+     */
+    private static class OptionFields {
+        /** The accessible {@link Option} fields, declared or inherited. */
+        final List<Field> mFields;
+        /** The {@link Handler} of each field declared by the class, with a supported type. */
+        final Map<Field, Handler> mHandlers = new ConcurrentHashMap<Field, Handler>();
+        /** Whether the fields were checked by {@link #validateOptionFields}. */
+        volatile boolean mValidated = false;
+
+        OptionFields(Class<?> optionClass) {
+            List<Field> fieldList = new ArrayList<Field>();
+            buildOptionFieldsForClass(optionClass, fieldList);
+            for (Field field : fieldList) {
+                field.setAccessible(true);
+            }
+            mFields = Collections.unmodifiableList(fieldList);
+        }
     }
 
     /**
@@ -771,6 +840,17 @@ public class OptionSetter {
         }
     }
 
+    /**
+     * Make a field accessible, unless it already is like the fields returned by
+     * {@link #getOptionFieldsForClass(Class)}.
+     */
+    @SuppressWarnings("deprecation")
+    private static void makeAccessible(Field field) {
+        if (!field.isAccessible()) {
+            field.setAccessible(true);
+        }
+    }
+
     /**
      * Return the given {@link Field}'s value as a {@link String}.
      *
@@ -812,7 +892,7 @@ public class OptionSetter {
      */
     static Object getFieldValue(Field field, Object optionObject) {
         try {
-            field.setAccessible(true);
+            makeAccessible(field);
             return field.get(optionObject);
         } catch (IllegalArgumentException e) {
             CLog.w("Could not read value for field %s in class %s. Reason: %s", field.getName(),
@@ -850,7 +930,7 @@ public class OptionSetter {
     }
 
     static boolean isBooleanField(Field field) throws ConfigurationException {
-        return getHandler(field.getGenericType()).isBoolean();
+        return getFieldHandler(field).isBoolean();
     }
 
     public boolean isMapOption(String name) throws ConfigurationException {
@@ -859,7 +939,7 @@ public class OptionSetter {
     }
 
     static boolean isMapField(Field field) throws ConfigurationException {
-        return getHandler(field.getGenericType()).isMap();
+        return getFieldHandler(field).isMap();
     }
 
     private void addNameToMap(Map<String, OptionFieldsForName> optionMap, Object optionSource,
@@ -871,7 +951,7 @@ public class OptionSetter {
         }
 
         fields.addField(name, optionSource, field);
-        if (getHandler(field.getGenericType()) == null) {
+        if (getFieldHandler(field) == null) {
             throw new ConfigurationException(String.format(
                     "Option name '%s' in class '%s' is invalid. Unsupported @Option field type "
                     + "'%s'", name, optionSource.getClass().getName(), field.getType()));
@@ -897,26 +977,25 @@ public class OptionSetter {
 
         // Allows use of a className-delimited namespace.
         // Example option name: com.fully.qualified.ClassName:option-name
-        addNameToMap(optionMap, optionSource, String.format("%s%c%s",
-                className, NAMESPACE_SEPARATOR, name), field);
+        addNameToMap(optionMap, optionSource, className + NAMESPACE_SEPARATOR + name, field);
 
         // Allows use of an enumerated namespace, to enable options to map to specific instances of
         // a className, rather than just to all instances of that particular className.
         // Example option name: com.fully.qualified.ClassName:2:option-name
-        addNameToMap(optionMap, optionSource, String.format("%s%c%d%c%s",
-                className, NAMESPACE_SEPARATOR, index, NAMESPACE_SEPARATOR, name), field);
+        addNameToMap(optionMap, optionSource,
+                className + NAMESPACE_SEPARATOR + index + NAMESPACE_SEPARATOR + name, field);
 
         if (deviceName != null) {
             // Example option name: {device1}com.fully.qualified.ClassName:option-name
-            addNameToMap(optionMap, optionSource, String.format("{%s}%s%c%s",
-                    deviceName, className, NAMESPACE_SEPARATOR, name), field);
+            addNameToMap(optionMap, optionSource,
+                    "{" + deviceName + "}" + className + NAMESPACE_SEPARATOR + name, field);
 
             // Allows use of an enumerated namespace, to enable options to map to specific
             // instances of a className inside a device configuration holder,
             // rather than just to all instances of that particular className.
             // Example option name: {device1}com.fully.qualified.ClassName:2:option-name
-            addNameToMap(optionMap, optionSource, String.format("{%s}%s%c%d%c%s",
-                    deviceName, className, NAMESPACE_SEPARATOR, index, NAMESPACE_SEPARATOR, name),
+            addNameToMap(optionMap, optionSource, "{" + deviceName + "}"
+                    + className + NAMESPACE_SEPARATOR + index + NAMESPACE_SEPARATOR + name,
                     field);
         }
     }
@@ -929,26 +1008,23 @@ public class OptionSetter {
     private void addNamespacedAliasOptionToMap(Map<String, OptionFieldsForName> optionMap,
             Object optionSource, String name, Field field, int index, String deviceName,
             String alias) throws ConfigurationException {
-        addNameToMap(optionMap, optionSource, String.format("%s%c%s", alias,
-                NAMESPACE_SEPARATOR, name), field);
+        addNameToMap(optionMap, optionSource, alias + NAMESPACE_SEPARATOR + name, field);
 
         // Allows use of an enumerated namespace, to enable options to map to specific instances
         // of a class alias, rather than just to all instances of that particular alias.
         // Example option name: alias:2:option-name
-        addNameToMap(optionMap, optionSource, String.format("%s%c%d%c%s",
-                alias, NAMESPACE_SEPARATOR, index, NAMESPACE_SEPARATOR, name),
-                field);
+        addNameToMap(optionMap, optionSource,
+                alias + NAMESPACE_SEPARATOR + index + NAMESPACE_SEPARATOR + name, field);
 
         if (deviceName != null) {
-            addNameToMap(optionMap, optionSource, String.format("{%s}%s%c%s", deviceName,
-                    alias, NAMESPACE_SEPARATOR, name), field);
+            addNameToMap(optionMap, optionSource,
+                    "{" + deviceName + "}" + alias + NAMESPACE_SEPARATOR + name, field);
             // Allows use of an enumerated namespace, to enable options to map to specific
             // instances of a class alias inside a device configuration holder,
             // rather than just to all instances of that particular alias.
             // Example option name: {device1}alias:2:option-name
-            addNameToMap(optionMap, optionSource, String.format("{%s}%s%c%d%c%s",
-                    deviceName, alias, NAMESPACE_SEPARATOR, index,
-                    NAMESPACE_SEPARATOR, name), field);
+            addNameToMap(optionMap, optionSource, "{" + deviceName + "}"
+                    + alias + NAMESPACE_SEPARATOR + index + NAMESPACE_SEPARATOR + name, field);
         }
     }
 
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A host-side record of the content of files previously synced to devices, used by
+ * {@link NativeDevice#syncFiles(File, String)} to push only the files that changed.
+ * <p/>
+ * For each device, the manifest maps a remote path to the size and md5 of the content last known
+ * to be there. It also caches the md5 of local files, keyed by path, size and modification time,
+ * so that syncing the same artifacts again does not re-read them.
+ * <p/>
+ * Entries are only hints: callers must still check them against the sizes reported by the
+ * device, since the content may have been wiped or replaced by something else than a sync.
+ */
+class DeviceFileManifest {
+
+    /** The size and md5 of a file. */
+    static final class Entry {
+        private final long mSize;
+        private final String mMd5;
+
+        Entry(long size, String md5) {
+            mSize = size;
+            mMd5 = md5;
+        }
+
+        long getSize() {
+            return mSize;
+        }
+
+        String getMd5() {
+            return mMd5;
+        }
+
+        boolean matches(long size, String md5) {
+            return mSize == size && mMd5.equals(md5);
+        }
+    }
+
+    /** A local md5 along with the file state it was computed for. */
+    private static final class LocalHash {
+        private final long mSize;
+        private final long mLastModified;
+        private final String mMd5;
+
+        LocalHash(long size, long lastModified, String md5) {
+            mSize = size;
+            mLastModified = lastModified;
+            mMd5 = md5;
+        }
+    }
+
+    private static final DeviceFileManifest sInstance = new DeviceFileManifest();
+
+    private final Map<String, Map<String, Entry>> mDeviceEntries = new ConcurrentHashMap<>();
+    private final Map<String, LocalHash> mLocalHashes = new ConcurrentHashMap<>();
+
+    /**
+     * @return the {@link DeviceFileManifest} shared by all devices of this process.
+     */
+    static DeviceFileManifest getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return the last known {@link Entry} for the remote path, or <code>null</code> if unknown.
+     */
+    Entry getEntry(String serial, String remotePath) {
+        Map<String, Entry> entries = mDeviceEntries.get(serial);
+        if (entries == null) {
+            return null;
+        }
+        return entries.get(remotePath);
+    }
+
+    /**
+     * Record the content now present at the remote path.
+     */
+    void putEntry(String serial, String remotePath, long size, String md5) {
+        Map<String, Entry> entries = mDeviceEntries.get(serial);
+        if (entries == null) {
+            mDeviceEntries.putIfAbsent(serial, new ConcurrentHashMap<String, Entry>());
+            entries = mDeviceEntries.get(serial);
+        }
+        entries.put(remotePath, new Entry(size, md5));
+    }
+
+    /**
+     * Forget the content of the remote path, e.g. after a failed push.
+     */
+    void removeEntry(String serial, String remotePath) {
+        Map<String, Entry> entries = mDeviceEntries.get(serial);
+        if (entries != null) {
+            entries.remove(remotePath);
+        }
+    }
+
+    /**
+     * Return the md5 of a local file, only reading it if it changed since the last call.
+     *
+     * @throws IOException if the file could not be read.
+     */
+    String getLocalMd5(File localFile) throws IOException {
+        String key = localFile.getAbsolutePath();
+        long size = localFile.length();
+        long lastModified = localFile.lastModified();
+        LocalHash cached = mLocalHashes.get(key);
+        if (cached != null && cached.mSize == size && cached.mLastModified == lastModified) {
+            return cached.mMd5;
+        }
+        String md5 = FileUtil.calculateMd5(localFile);
+        mLocalHashes.put(key, new LocalHash(size, lastModified, md5));
+        return md5;
+    }
+}
@@ -57,8 +57,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 @OptionClass(alias = "dmgr", global_namespace = false)
@@ -77,6 +83,13 @@ public class DeviceManager implements IDeviceManager {
      */
     private static final int CHECK_WAIT_DEVICE_AVAIL_MS = 30 * 1000;
 
+    /** max wait time in ms for the battery level when refreshing a device property snapshot */
+    private static final long SNAPSHOT_BATTERY_TIMEOUT = 10 * 1000;
+    /** max number of threads refreshing device property snapshots on device events */
+    private static final int MAX_SNAPSHOT_THREADS = 4;
+    /** time in seconds an idle snapshot refresh thread is kept */
+    private static final long SNAPSHOT_THREAD_KEEP_ALIVE_SEC = 60;
+
     /* the max size of the emulator output in bytes */
     private static final long MAX_EMULATOR_OUTPUT = 20 * 1024 * 1024;
 
@@ -139,8 +152,23 @@ public class DeviceManager implements IDeviceManager {
             + "default use the one in $PATH.")
     private String mFastbootPath = "fastboot";
 
+    @Option(name = "device-property-snapshot-interval",
+            description = "the interval in ms between refreshes of the device properties and "
+                    + "battery level used for device selection. When set, allocation matches "
+                    + "devices against these snapshots instead of querying them over adb. "
+                    + "0 disables snapshots.",
+            isTimeVal = true)
+    private long mPropertySnapshotInterval = 0;
+
     private DeviceRecoverer mDeviceRecoverer;
 
+    /** Device selection snapshots keyed by serial, only populated if snapshots are enabled */
+    private Map<String, DevicePropertySnapshot> mPropertySnapshots = new ConcurrentHashMap<>();
+    private PropertySnapshotRefresher mPropertySnapshotRefresher;
+    /** Runs the refreshes triggered by device events, at most one pending per serial */
+    private ThreadPoolExecutor mPropertySnapshotExecutor;
+    private final Set<String> mPendingSnapshotRefreshes = ConcurrentHashMap.newKeySet();
+
     private List<IHostMonitor> mGlobalHostMonitors = null;
 
     /** Counter to wait for the first physical connection before proceeding **/
@@ -202,6 +230,11 @@ public class DeviceManager implements IDeviceManager {
             mDvcMon.addMonitors(globalDeviceMonitors);
         }
         mManagedDeviceList = new ManagedDeviceList(deviceFactory);
+        if (mPropertySnapshotInterval > 0) {
+            mPropertySnapshotRefresher = new PropertySnapshotRefresher();
+            mPropertySnapshotRefresher.start();
+            mPropertySnapshotExecutor = createPropertySnapshotExecutor();
+        }
 
         final FastbootHelper fastboot = new FastbootHelper(getRunUtil(), mFastbootPath);
         if (fastboot.isFastbootAvailable()) {
@@ -362,6 +395,8 @@ public class DeviceManager implements IDeviceManager {
                 CLog.d("checking new '%s' '%s' responsiveness", testDevice.getClass().getName(),
                         testDevice.getSerialNumber());
                 if (testDevice.getMonitor().waitForDeviceShell(CHECK_WAIT_DEVICE_AVAIL_MS)) {
+                    // take the snapshot before the device can be allocated
+                    refreshPropertySnapshot(testDevice);
                     DeviceEventResponse r = mManagedDeviceList.handleDeviceEvent(testDevice,
                             DeviceEvent.AVAILABLE_CHECK_PASSED);
                     if (r.stateChanged && r.allocationState == DeviceAllocationState.Available) {
@@ -472,7 +507,7 @@ public class DeviceManager implements IDeviceManager {
     @Override
     public ITestDevice allocateDevice(IDeviceSelection options) {
         checkInit();
-        return mManagedDeviceList.allocate(options);
+        return mManagedDeviceList.allocate(options, mPropertySnapshots);
     }
 
     /**
@@ -808,11 +843,18 @@ public class DeviceManager implements IDeviceManager {
                     hm.terminate();
                 }
             }
+            if (mPropertySnapshotExecutor != null) {
+                mPropertySnapshotExecutor.shutdownNow();
+            }
         }
     }
 
     /** Stop adb bridge and services depending on adb connection. */
     private synchronized void stopAdbBridgeAndDependentServices() {
+        if (mPropertySnapshotRefresher != null) {
+            mPropertySnapshotRefresher.terminate();
+            mPropertySnapshotRefresher = null;
+        }
         terminateDeviceRecovery();
         mAdbBridge.removeDeviceChangeListener(mManagedDeviceListener);
         mAdbBridge.terminate();
@@ -1004,6 +1046,7 @@ public class DeviceManager implements IDeviceManager {
                 TestDeviceState newState = TestDeviceState.getStateByDdms(idevice.getState());
                 testDevice.setDeviceState(newState);
                 if (newState == TestDeviceState.ONLINE) {
+                    refreshPropertySnapshotAsync(testDevice);
                     DeviceEventResponse r = mManagedDeviceList.handleDeviceEvent(testDevice,
                             DeviceEvent.STATE_CHANGE_ONLINE);
                     if (r.stateChanged && r.allocationState ==
@@ -1016,6 +1059,11 @@ public class DeviceManager implements IDeviceManager {
                     mManagedDeviceList.handleDeviceEvent(testDevice,
                             DeviceEvent.STATE_CHANGE_OFFLINE);
                 }
+            } else if ((changeMask & IDevice.CHANGE_BUILD_INFO) != 0) {
+                IManagedTestDevice testDevice = mManagedDeviceList.find(idevice.getSerialNumber());
+                if (testDevice != null) {
+                    refreshPropertySnapshotAsync(testDevice);
+                }
             }
         }
 
@@ -1084,6 +1132,7 @@ public class DeviceManager implements IDeviceManager {
         @Override
         public void deviceDisconnected(IDevice disconnectedDevice) {
             IManagedTestDevice d = mManagedDeviceList.find(disconnectedDevice.getSerialNumber());
+            mPropertySnapshots.remove(disconnectedDevice.getSerialNumber());
             if (d != null) {
                 mManagedDeviceList.handleDeviceEvent(d, DeviceEvent.DISCONNECTED);
                 d.setDeviceState(TestDeviceState.NOT_AVAILABLE);
@@ -1219,6 +1268,140 @@ public class DeviceManager implements IDeviceManager {
         }
     }
 
+    /**
+     * Refresh the {@link DevicePropertySnapshot} of a device if snapshots are enabled. May block on
+     * adb, so should never be called while allocating.
+     */
+    @VisibleForTesting
+    void refreshPropertySnapshot(IManagedTestDevice device) {
+        if (mPropertySnapshotInterval <= 0) {
+            return;
+        }
+        IDevice idevice = device.getIDevice();
+        if (idevice instanceof StubDevice) {
+            // placeholders have nothing to query
+            return;
+        }
+        try {
+            mPropertySnapshots.put(idevice.getSerialNumber(),
+                    DevicePropertySnapshot.create(idevice, SNAPSHOT_BATTERY_TIMEOUT));
+        } catch (RuntimeException e) {
+            // drop the stale snapshot, allocation will query the device directly
+            mPropertySnapshots.remove(idevice.getSerialNumber());
+            CLog.w("Failed to refresh property snapshot of %s: %s", idevice.getSerialNumber(),
+                    e.toString());
+        }
+    }
+
+    /**
+     * Asynchronously refresh the {@link DevicePropertySnapshot} of a device, to avoid blocking
+     * the ddmlib event thread. A refresh requested while another one of the same device is still
+     * queued is merged into it.
+     */
+    @VisibleForTesting
+    void refreshPropertySnapshotAsync(final IManagedTestDevice device) {
+        if (mPropertySnapshotInterval <= 0) {
+            return;
+        }
+        if (mSynchronousMode) {
+            refreshPropertySnapshot(device);
+            return;
+        }
+        final String serial = device.getSerialNumber();
+        if (mPropertySnapshotExecutor == null || !mPendingSnapshotRefreshes.add(serial)) {
+            return;
+        }
+        try {
+            mPropertySnapshotExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // events from now on need a new refresh, this one may have read too early
+                    mPendingSnapshotRefreshes.remove(serial);
+                    refreshPropertySnapshot(device);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // terminated
+            mPendingSnapshotRefreshes.remove(serial);
+        }
+    }
+
+    /**
+     * Create the executor of the refreshes triggered by device events, with a few daemon threads
+     * that time out when idle.
+     */
+    private ThreadPoolExecutor createPropertySnapshotExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_SNAPSHOT_THREADS,
+                MAX_SNAPSHOT_THREADS, SNAPSHOT_THREAD_KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, String.format("PropertySnapshot-%d",
+                                mCount.incrementAndGet()));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Returns the number of devices with a refresh of their snapshot waiting to run.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    @VisibleForTesting
+    int getPendingSnapshotRefreshCount() {
+        return mPendingSnapshotRefreshes.size();
+    }
+
+    /**
+     * Returns the current {@link DevicePropertySnapshot} of a device, or null if none.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    @VisibleForTesting
+    DevicePropertySnapshot getPropertySnapshot(String serial) {
+        return mPropertySnapshots.get(serial);
+    }
+
+    /**
+     * A class for a thread which periodically refreshes the {@link DevicePropertySnapshot} of all
+     * online devices.
+     */
+    private class PropertySnapshotRefresher extends Thread {
+
+        private boolean mQuit = false;
+
+        PropertySnapshotRefresher() {
+            super("PropertySnapshotRefresher");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!mQuit) {
+                getRunUtil().sleep(mPropertySnapshotInterval);
+                if (mQuit) {
+                    return;
+                }
+                for (IManagedTestDevice device : mManagedDeviceList) {
+                    if (TestDeviceState.ONLINE.equals(device.getDeviceState())) {
+                        refreshPropertySnapshot(device);
+                    }
+                }
+            }
+        }
+
+        public void terminate() {
+            mQuit = true;
+            interrupt();
+        }
+    }
+
     @VisibleForTesting
     List<IManagedTestDevice> getDeviceList() {
         return mManagedDeviceList.getCopy();
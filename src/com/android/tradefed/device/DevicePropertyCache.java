@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A cache of the system properties of a device, filled from the output of a single
+ * <code>getprop</code> call.
+ * <p/>
+ * Read-only properties (<code>ro.*</code>) cannot change until the device reboots, so their
+ * values are kept until {@link #invalidate()}. Other properties are only served while the
+ * snapshot they come from is younger than the configured time to live. Properties missing from
+ * the snapshot, because they are unset or their value spans several lines, are read on their own
+ * and added with {@link #put(String, String, long)}.
+ */
+class DevicePropertyCache {
+
+    private static final String READ_ONLY_PREFIX = "ro.";
+
+    /** Matches a line of getprop output, for example "[ro.build.id]: [NRD90M]". */
+    private static final Pattern GETPROP_LINE = Pattern.compile("^\\[([^\\]]+)\\]: \\[(.*)\\]$");
+
+    private final long mTtlMs;
+
+    /** Guarded by this. */
+    private final Map<String, String> mReadOnlyProperties = new HashMap<>();
+    private Map<String, String> mSnapshot = null;
+    private long mSnapshotTime = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    /**
+     * @param ttlMs how long in ms the values of properties that are not read-only are served.
+     */
+    DevicePropertyCache(long ttlMs) {
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * @return the cached value of the property, or <code>null</code> if it is not cached or its
+     *     value is too old. An unset property is cached as "", like getprop reports it.
+     */
+    synchronized String get(String name, long now) {
+        String value = mReadOnlyProperties.get(name);
+        if (value == null && isFresh(now)) {
+            value = mSnapshot.get(name);
+        }
+        if (value == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return value;
+    }
+
+    /**
+     * @return <code>true</code> if the last snapshot can still serve properties that are not
+     *     read-only.
+     */
+    synchronized boolean isFresh(long now) {
+        return mSnapshot != null && now - mSnapshotTime < mTtlMs;
+    }
+
+    /**
+     * Replace the snapshot with the given properties, loaded at the given time.
+     */
+    synchronized void update(Map<String, String> properties, long now) {
+        mSnapshot = new HashMap<>(properties);
+        mSnapshotTime = now;
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            // read-only properties are only set once, but may not be set yet while booting
+            if (entry.getKey().startsWith(READ_ONLY_PREFIX) && !entry.getValue().isEmpty()) {
+                mReadOnlyProperties.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Add a property read on its own to the current snapshot, if it is still fresh.
+     *
+     * @param value the value of the property, <code>null</code> if it is unset.
+     */
+    synchronized void put(String name, String value, long now) {
+        if (value == null) {
+            value = "";
+        }
+        if (isFresh(now)) {
+            mSnapshot.put(name, value);
+        }
+        if (name.startsWith(READ_ONLY_PREFIX) && !value.isEmpty()) {
+            mReadOnlyProperties.put(name, value);
+        }
+    }
+
+    /**
+     * Forget the cached value of a property, for example because it was just set.
+     */
+    synchronized void remove(String name) {
+        mReadOnlyProperties.remove(name);
+        if (mSnapshot != null) {
+            mSnapshot.remove(name);
+        }
+    }
+
+    /**
+     * Forget all the cached values, for example because the device rebooted.
+     */
+    synchronized void invalidate() {
+        mReadOnlyProperties.clear();
+        mSnapshot = null;
+        mSnapshotTime = 0;
+    }
+
+    synchronized long getHitCount() {
+        return mHits;
+    }
+
+    synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Reset the hit and miss counters, for example at the start of an invocation.
+     */
+    synchronized void resetCounters() {
+        mHits = 0;
+        mMisses = 0;
+    }
+
+    /**
+     * Parse the output of <code>getprop</code>. Values spanning several lines are ignored, those
+     * properties have to be read on their own.
+     *
+     * @return the properties by name.
+     */
+    static Map<String, String> parseGetprop(String output) {
+        Map<String, String> properties = new HashMap<>();
+        if (output == null) {
+            return properties;
+        }
+        for (String line : output.split("\r?\n")) {
+            Matcher m = GETPROP_LINE.matcher(line.trim());
+            if (m.matches()) {
+                properties.put(m.group(1), m.group(2));
+            }
+        }
+        return properties;
+    }
+}
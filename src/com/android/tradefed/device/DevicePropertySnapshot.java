@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An immutable copy of the device properties and battery level used for device selection.
+ * <p/>
+ * Snapshots are maintained by {@link DeviceManager} outside of allocation, so that
+ * {@link IDeviceSelection#matches(IDevice, DevicePropertySnapshot)} can evaluate selection
+ * criteria without blocking on adb.
+ */
+public final class DevicePropertySnapshot {
+
+    /** Properties that are always queried, even if the device has not reported them yet. */
+    private static final String[] SELECTION_PROPERTIES = {
+        DeviceSelectionOptions.DEVICE_PRODUCT_PROPERTY,
+        DeviceSelectionOptions.DEVICE_VARIANT_PROPERTY,
+        DeviceSelectionOptions.DEVICE_SDK_PROPERTY
+    };
+
+    private final String mSerial;
+    private final Map<String, String> mProperties;
+    private final Integer mBatteryLevel;
+    private final long mTimestamp;
+
+    /**
+     * Creates a {@link DevicePropertySnapshot}.
+     *
+     * @param serial the serial of the device the snapshot describes.
+     * @param properties the device properties.
+     * @param batteryLevel the battery level of the device, or <code>null</code> if unknown.
+     * @param timestamp the time in ms at which the snapshot was taken.
+     */
+    public DevicePropertySnapshot(String serial, Map<String, String> properties,
+            Integer batteryLevel, long timestamp) {
+        mSerial = serial;
+        mProperties = Collections.unmodifiableMap(new HashMap<>(properties));
+        mBatteryLevel = batteryLevel;
+        mTimestamp = timestamp;
+    }
+
+    /**
+     * Query the given {@link IDevice} and build a snapshot of its current state. This may block on
+     * adb and should not be called while allocating devices.
+     *
+     * @param device the {@link IDevice} to query.
+     * @param batteryTimeoutMs the maximum time in ms to wait for the battery level.
+     * @return the {@link DevicePropertySnapshot} of the device.
+     */
+    public static DevicePropertySnapshot create(IDevice device, long batteryTimeoutMs) {
+        Map<String, String> properties = new HashMap<>();
+        Map<String, String> cached = device.getProperties();
+        if (cached != null) {
+            properties.putAll(cached);
+        }
+        for (String name : SELECTION_PROPERTIES) {
+            if (!properties.containsKey(name)) {
+                // record missing values too, so that matching does not query the device again
+                properties.put(name, device.getProperty(name));
+            }
+        }
+        Integer batteryLevel = null;
+        try {
+            batteryLevel = device.getBattery().get(batteryTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException
+                | java.util.concurrent.TimeoutException e) {
+            CLog.w("Failed to query battery level for %s: %s", device.getSerialNumber(),
+                    e.toString());
+        }
+        return new DevicePropertySnapshot(device.getSerialNumber(), properties, batteryLevel,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * @return the serial of the device this snapshot describes.
+     */
+    public String getSerial() {
+        return mSerial;
+    }
+
+    /**
+     * @return <code>true</code> if the property was queried when the snapshot was taken, even if
+     *     the device did not have a value for it.
+     */
+    public boolean hasProperty(String name) {
+        return mProperties.containsKey(name);
+    }
+
+    /**
+     * @return the value of the property, or <code>null</code> if not part of the snapshot.
+     */
+    public String getProperty(String name) {
+        return mProperties.get(name);
+    }
+
+    /**
+     * @return the battery level of the device, or <code>null</code> if unknown.
+     */
+    public Integer getBatteryLevel() {
+        return mBatteryLevel;
+    }
+
+    /**
+     * @return the time in ms at which the snapshot was taken.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+}
@@ -293,6 +293,20 @@ public class DeviceSelectionOptions implements IDeviceSelection {
         return mRequireBatteryCheck;
     }
 
+    /**
+     * Gets the requested minimum sdk level
+     */
+    public Integer getMinSdkVersion() {
+        return mMinSdk;
+    }
+
+    /**
+     * Gets the requested maximum sdk level
+     */
+    public Integer getMaxSdkVersion() {
+        return mMaxSdk;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -324,6 +338,28 @@ public class DeviceSelectionOptions implements IDeviceSelection {
      */
     @Override
     public boolean matches(IDevice device) {
+        return matchesDevice(device, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Without a snapshot this is {@link #matches(IDevice)}, so that subclasses overriding it are
+     * still used.
+     */
+    @Override
+    public boolean matches(IDevice device, DevicePropertySnapshot snapshot) {
+        if (snapshot == null) {
+            return matches(device);
+        }
+        return matchesDevice(device, snapshot);
+    }
+
+    /**
+     * Returns whether the given device matches the options, reading its properties from the
+     * snapshot when there is one.
+     */
+    private boolean matchesDevice(IDevice device, DevicePropertySnapshot snapshot) {
         Collection<String> serials = getSerials();
         Collection<String> excludeSerials = getExcludeSerials();
         Map<String, Collection<String>> productVariants = splitOnVariant(getProductTypes());
@@ -338,10 +374,15 @@ public class DeviceSelectionOptions implements IDeviceSelection {
             return false;
         }
         if (!productTypes.isEmpty()) {
-            String productType = getDeviceProductType(device);
+            String productType = snapshot != null && snapshot.hasProperty(DEVICE_PRODUCT_PROPERTY)
+                    ? snapshot.getProperty(DEVICE_PRODUCT_PROPERTY)
+                    : getDeviceProductType(device);
             if (productTypes.contains(productType)) {
                 // check variant
-                String productVariant = getDeviceProductVariant(device);
+                String productVariant =
+                        snapshot != null && snapshot.hasProperty(DEVICE_VARIANT_PROPERTY)
+                                ? snapshot.getProperty(DEVICE_VARIANT_PROPERTY)
+                                : getDeviceProductVariant(device);
                 Collection<String> variants = productVariants.get(productType);
                 if (variants != null && !variants.contains(productVariant)) {
                     return false;
@@ -352,7 +393,8 @@ public class DeviceSelectionOptions implements IDeviceSelection {
             }
         }
         for (Map.Entry<String, String> propEntry : properties.entrySet()) {
-            if (!propEntry.getValue().equals(device.getProperty(propEntry.getKey()))) {
+            if (!propEntry.getValue().equals(
+                    getProperty(device, snapshot, propEntry.getKey()))) {
                 return false;
             }
         }
@@ -374,7 +416,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
             return false;
         }
         if ((mMinSdk != null) || (mMaxSdk != null)) {
-          int deviceSdkLevel = getDeviceSdkLevel(device);
+          int deviceSdkLevel = getDeviceSdkLevel(device, snapshot);
           if (deviceSdkLevel < 0) {
               return false;
           }
@@ -386,7 +428,8 @@ public class DeviceSelectionOptions implements IDeviceSelection {
           }
         }
         if ((mMinBattery != null) || (mMaxBattery != null)) {
-            Integer deviceBattery = getBatteryLevel(device);
+            Integer deviceBattery =
+                    snapshot != null ? snapshot.getBatteryLevel() : getBatteryLevel(device);
             if (mRequireBatteryCheck && (deviceBattery == null)) {
                 // Couldn't determine battery level when that check is required; reject device
                 return false;
@@ -466,6 +509,16 @@ public class DeviceSelectionOptions implements IDeviceSelection {
         return device.getProperty(propName);
     }
 
+    /**
+     * Get a device property, from the snapshot if it has it, from the device otherwise.
+     */
+    private String getProperty(IDevice device, DevicePropertySnapshot snapshot, String propName) {
+        if (snapshot != null && snapshot.hasProperty(propName)) {
+            return snapshot.getProperty(propName);
+        }
+        return getProperty(device, propName);
+    }
+
     @Override
     public String getDeviceProductVariant(IDevice device) {
         return getProperty(device, DEVICE_VARIANT_PROPERTY);
@@ -489,11 +542,12 @@ public class DeviceSelectionOptions implements IDeviceSelection {
     /**
      * Get the device's supported API level or -1 if it cannot be retrieved
      * @param device
+     * @param snapshot the {@link DevicePropertySnapshot} of the device, or <code>null</code>
      * @return the device's supported API level.
      */
-    private int getDeviceSdkLevel(IDevice device) {
+    private int getDeviceSdkLevel(IDevice device, DevicePropertySnapshot snapshot) {
         int apiLevel = -1;
-        String prop = getProperty(device, DEVICE_SDK_PROPERTY);
+        String prop = getProperty(device, snapshot, DEVICE_SDK_PROPERTY);
         try {
             apiLevel = Integer.parseInt(prop);
         } catch (NumberFormatException nfe) {
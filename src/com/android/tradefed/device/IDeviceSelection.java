@@ -76,6 +76,22 @@ public interface IDeviceSelection extends IMatcher<IDevice> {
      */
     public boolean nullDeviceRequested();
 
+    /**
+     * Returns whether the given device matches the selection criteria, given a snapshot of its
+     * properties.
+     * <p/>
+     * By default the snapshot is ignored and this is the same as {@link #matches(IDevice)}. Only
+     * {@link DeviceSelectionOptions} reads device properties and battery level from the snapshot
+     * instead of querying the device.
+     *
+     * @param device the {@link IDevice} to match
+     * @param snapshot the {@link DevicePropertySnapshot} of the device, or <code>null</code>
+     * @return <code>true</code> if the device matches
+     */
+    public default boolean matches(IDevice device, DevicePropertySnapshot snapshot) {
+        return matches(device);
+    }
+
     /**
      * Gets the given devices product type
      *
@@ -18,6 +18,8 @@ package com.android.tradefed.device;
 
 import com.android.tradefed.result.InputStreamSource;
 
+import java.util.TimeZone;
+
 /**
  * A class that provides the output of a device's logcat as an {@link InputStreamSource}.
  */
@@ -32,5 +34,17 @@ public interface ILogcatReceiver {
     public InputStreamSource getLogcatData();
 
     public InputStreamSource getLogcatData(int maxBytes);
+
+    /**
+     * Get the captured logcat lines logged between two device times, without querying the
+     * device.
+     *
+     * @param startDate the device time in ms since epoch of the first line to return.
+     * @param endDate the device time in ms since epoch before which lines should be returned.
+     * @param timeZone the time zone of the device, to interpret logcat timestamps.
+     * @return the lines, or <code>null</code> if the capture does not cover
+     *     <var>startDate</var>.
+     */
+    public InputStreamSource getLogcatData(long startDate, long endDate, TimeZone timeZone);
 }
 
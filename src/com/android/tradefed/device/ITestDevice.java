@@ -118,6 +118,22 @@ public interface ITestDevice extends INativeDevice {
     public String installPackage(File packageFile, boolean reinstall, boolean grantPermissions,
             String... extraArgs) throws DeviceNotAvailableException;
 
+    /**
+     * Install an Android package already pushed to the device.
+     * <p>Like {@link #installPackage(File, boolean, String...)}, all runtime permissions are
+     * granted if the platform supports them.
+     *
+     * @param remoteApkPath the path of the apk file on the device
+     * @param reinstall <code>true</code> if a reinstall should be performed
+     * @param extraArgs optional extra arguments to pass. See 'adb shell pm install --help' for
+     *            available options.
+     * @return a {@link String} with an error code, or <code>null</code> if success.
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered.
+     */
+    public String installRemotePackage(String remoteApkPath, boolean reinstall,
+            String... extraArgs) throws DeviceNotAvailableException;
+
     /**
      * Install an Android package on device for a given user.
      *
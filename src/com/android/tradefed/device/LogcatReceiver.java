@@ -17,13 +17,15 @@ package com.android.tradefed.device;
 
 import com.android.tradefed.result.InputStreamSource;
 
+import java.util.TimeZone;
+
 /**
  * Class that collects logcat in background. Continues to capture logcat even if device goes
  * offline then online.
  */
 public class LogcatReceiver implements ILogcatReceiver {
     private BackgroundDeviceAction mDeviceAction;
-    private LargeOutputReceiver mReceiver;
+    private LogcatRingBuffer mReceiver;
 
     static final String LOGCAT_CMD = "logcat -v threadtime";
     private static final String LOGCAT_DESC = "logcat";
@@ -39,8 +41,7 @@ public class LogcatReceiver implements ILogcatReceiver {
     public LogcatReceiver(ITestDevice device, String logcatCmd,
             long maxFileSize, int logStartDelay) {
 
-        mReceiver = new LargeOutputReceiver(LOGCAT_DESC, device.getSerialNumber(),
-                maxFileSize);
+        mReceiver = new LogcatRingBuffer(LOGCAT_DESC, device.getSerialNumber(), maxFileSize);
         // FIXME: remove mLogStartDelay. Currently delay starting logcat, as starting
         // immediately after a device comes online has caused adb instability
         mDeviceAction = new BackgroundDeviceAction(logcatCmd, LOGCAT_DESC, device,
@@ -79,6 +80,11 @@ public class LogcatReceiver implements ILogcatReceiver {
         return mReceiver.getData(maxBytes);
     }
 
+    @Override
+    public InputStreamSource getLogcatData(long startDate, long endDate, TimeZone timeZone) {
+        return mReceiver.getData(startDate, endDate, timeZone);
+    }
+
     @Override
     public void clear() {
         mReceiver.clear();
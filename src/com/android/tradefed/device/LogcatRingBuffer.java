@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.FileInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * A receiver that keeps the last {@code capacity} bytes of logcat output in a fixed-size ring,
+ * backed by a memory-mapped temp file.
+ * <p/>
+ * The data is returned in snapshot files written straight from the ring, so that a read does not
+ * hold a copy of the ring in the heap.
+ * <p/>
+ * Output is appended by a single thread (the adb shell thread) without locking: the appending
+ * thread publishes how far it is about to write before copying bytes into the ring, and readers
+ * discard anything that may have been overwritten while they were copying.
+ * <p/>
+ * Lines starting with a logcat timestamp ("MM-DD HH:MM:SS.mmm", as printed by the 'time' and
+ * 'threadtime' formats) are indexed about every {@link #INDEX_INTERVAL} bytes, so that
+ * {@link #getData(long, long, TimeZone)} can return the lines between two device times without
+ * copying the whole buffer or querying the device again. Logcat timestamps have no year, so the
+ * index keys count the years from the start of the capture, assuming that timestamps less than
+ * half a year apart are the closest ones.
+ */
+public class LogcatRingBuffer implements IShellOutputReceiver {
+
+    /** Approximate number of bytes between two entries of the timestamp index. */
+    static final int INDEX_INTERVAL = 4 * 1024;
+    /** Length of the "MM-DD HH:MM:SS.mmm" prefix of a logcat line. */
+    private static final int TIMESTAMP_LENGTH = 18;
+    private static final int MIN_INDEX_SIZE = 16;
+    /** Number of times a read is attempted when the output it copies is overwritten. */
+    private static final int MAX_READ_ATTEMPTS = 3;
+    /** The key span of a year, larger than the key of any timestamp within a year. */
+    private static final long YEAR_KEY_SPAN = toKey(13, 0, 0, 0, 0, 0);
+
+    private final int mCapacity;
+    private final File mFile;
+    /** The file holding the mapping, open until {@link #delete()}. */
+    private final RandomAccessFile mMappedFile;
+    /** The ring storage, only ever read through duplicates. Null once deleted. */
+    private volatile ByteBuffer mBuffer;
+    /** The view of {@link #mBuffer} used by the appending thread. Null once deleted. */
+    private volatile ByteBuffer mWriteBuffer;
+
+    /** Total number of bytes that are fully written to the ring. */
+    private volatile long mWritten = 0;
+    /** Total number of bytes that may have been written to the ring, including in-flight ones. */
+    private volatile long mReserved = 0;
+    /** Offset of the first byte that is still part of the data, moved by {@link #clear()}. */
+    private volatile long mBase = 0;
+    private volatile boolean mIsCancelled = false;
+
+    private final long[] mIndexKeys;
+    private final long[] mIndexOffsets;
+    private volatile long mIndexCount = 0;
+
+    // state of the appending thread only
+    private final byte[] mLineHead = new byte[TIMESTAMP_LENGTH];
+    private int mLineHeadLength = 0;
+    private boolean mInLineHead = true;
+    private long mLineStart = 0;
+    private long mLastIndexedOffset = -INDEX_INTERVAL;
+    private long mLastIndexedKey = Long.MIN_VALUE;
+
+    /**
+     * Creates a {@link LogcatRingBuffer}.
+     *
+     * @param descriptor the descriptor of the command to run. For logging only.
+     * @param serialNumber the serial number of the device. For logging only.
+     * @param capacity the amount of data to keep, in bytes.
+     */
+    public LogcatRingBuffer(String descriptor, String serialNumber, long capacity) {
+        mCapacity = (int) Math.max(1, Math.min(capacity, Integer.MAX_VALUE));
+        File file = null;
+        ByteBuffer buffer = null;
+        RandomAccessFile raf = null;
+        try {
+            file = FileUtil.createTempFile(String.format("%s_%s", descriptor, serialNumber),
+                    ".txt");
+            raf = new RandomAccessFile(file, "rw");
+            buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, mCapacity);
+        } catch (IOException e) {
+            CLog.w("Failed to map a file for %s of %s, keeping it in memory: %s", descriptor,
+                    serialNumber, e.getMessage());
+            StreamUtil.close(raf);
+            raf = null;
+            FileUtil.deleteFile(file);
+            file = null;
+            buffer = ByteBuffer.allocate(mCapacity);
+        }
+        mFile = file;
+        mMappedFile = raf;
+        mBuffer = buffer;
+        mWriteBuffer = buffer.duplicate();
+        int indexSize = Math.max(MIN_INDEX_SIZE, mCapacity / INDEX_INTERVAL + 1);
+        mIndexKeys = new long[indexSize];
+        mIndexOffsets = new long[indexSize];
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Must only be called by one thread at a time.
+     */
+    @Override
+    public void addOutput(byte[] data, int offset, int length) {
+        ByteBuffer writeBuffer = mWriteBuffer;
+        if (mIsCancelled || writeBuffer == null || length <= 0) {
+            return;
+        }
+        long written = mWritten;
+        int src = offset;
+        int remaining = length;
+        long start = written;
+        if (remaining > mCapacity) {
+            // only the end of the chunk fits
+            src += remaining - mCapacity;
+            start += remaining - mCapacity;
+            remaining = mCapacity;
+        }
+        mReserved = written + length;
+        int pos = (int) (start % mCapacity);
+        int first = Math.min(remaining, mCapacity - pos);
+        writeBuffer.position(pos);
+        writeBuffer.put(data, src, first);
+        if (remaining > first) {
+            writeBuffer.position(0);
+            writeBuffer.put(data, src + first, remaining - first);
+        }
+        mWritten = written + length;
+        // index after publishing, so that indexed offsets are always readable
+        indexLines(data, offset, length, written);
+    }
+
+    /**
+     * Track line starts in the appended data, and index one timestamped line about every
+     * {@link #INDEX_INTERVAL} bytes.
+     */
+    private void indexLines(byte[] data, int offset, int length, long written) {
+        for (int i = 0; i < length; i++) {
+            byte b = data[offset + i];
+            if (b == '\n') {
+                mInLineHead = true;
+                mLineHeadLength = 0;
+                mLineStart = written + i + 1;
+            } else if (mInLineHead) {
+                mLineHead[mLineHeadLength++] = b;
+                if (mLineHeadLength == TIMESTAMP_LENGTH) {
+                    mInLineHead = false;
+                    if (mLineStart - mLastIndexedOffset >= INDEX_INTERVAL) {
+                        long key = parseTimestampKey(mLineHead, 0, TIMESTAMP_LENGTH);
+                        if (key >= 0) {
+                            if (mLastIndexedKey != Long.MIN_VALUE) {
+                                key = alignKey(key, mLastIndexedKey);
+                            }
+                            addIndexEntry(key, mLineStart);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void addIndexEntry(long key, long offset) {
+        long count = mIndexCount;
+        int slot = (int) (count % mIndexKeys.length);
+        mIndexKeys[slot] = key;
+        mIndexOffsets[slot] = offset;
+        mIndexCount = count + 1;
+        mLastIndexedOffset = offset;
+        mLastIndexedKey = key;
+    }
+
+    /**
+     * Gets all the retained output as a {@link InputStreamSource}. If older output was dropped,
+     * the data starts at the first complete line.
+     */
+    public InputStreamSource getData() {
+        return getData(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Gets the last <var>maxBytes</var> of retained output as a {@link InputStreamSource}.
+     */
+    public InputStreamSource getData(int maxBytes) {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            ByteBuffer buffer = mBuffer;
+            if (buffer == null) {
+                break;
+            }
+            long to = mWritten;
+            long from = Math.max(mBase, to - Math.min(maxBytes, mCapacity));
+            long valid = Math.max(from, mReserved - mCapacity);
+            if (valid > from || (maxBytes >= mCapacity && from > mBase)) {
+                // the beginning was overwritten, start at the next complete line
+                from = nextLineStart(buffer, valid, to);
+            }
+            InputStreamSource data = snapshot(buffer, from, to);
+            if (data != null) {
+                return data;
+            }
+            // overwritten while being copied, read again from the new data
+        }
+        return new ByteArrayInputStreamSource(new byte[0]);
+    }
+
+    /**
+     * Gets the retained lines logged between two device times, without copying the rest of the
+     * buffer.
+     *
+     * @param startDate the device time in ms since epoch of the first line to return.
+     * @param endDate the device time in ms since epoch before which lines should be returned.
+     * @param timeZone the time zone of the device, to interpret logcat timestamps.
+     * @return the lines, or <code>null</code> if output logged at <var>startDate</var> is not
+     *     retained anymore.
+     */
+    public InputStreamSource getData(long startDate, long endDate, TimeZone timeZone) {
+        ByteBuffer buffer = mBuffer;
+        if (buffer == null) {
+            return null;
+        }
+        long to = mWritten;
+        long retainedFrom = Math.max(mBase, to - mCapacity);
+        long count = mIndexCount;
+        if (count == 0) {
+            return null;
+        }
+        // place the times in the year of the capture closest to the latest indexed line
+        long latestKey = mIndexKeys[(int) ((count - 1) % mIndexKeys.length)];
+        long startKey = alignKey(toTimestampKey(startDate, timeZone), latestKey);
+        long endKey = endDate == Long.MAX_VALUE ? Long.MAX_VALUE
+                : alignKey(toTimestampKey(endDate, timeZone), latestKey);
+        long firstEntry = Math.max(0, count - mIndexKeys.length + 1);
+        long from = -1;
+        long fromKey = -1;
+        boolean foundOldest = false;
+        for (long i = firstEntry; i < count; i++) {
+            int slot = (int) (i % mIndexKeys.length);
+            long offset = mIndexOffsets[slot];
+            long key = mIndexKeys[slot];
+            if (offset < retainedFrom) {
+                continue;
+            }
+            if (offset > to) {
+                break;
+            }
+            if (!foundOldest) {
+                foundOldest = true;
+                if (key > startKey) {
+                    // lines before the oldest index entry are not guaranteed to be retained
+                    return null;
+                }
+            }
+            if (key > startKey) {
+                break;
+            }
+            from = offset;
+            fromKey = key;
+        }
+        // entries overwritten while they were read cannot be trusted
+        if (from < 0 || firstEntry <= mIndexCount - mIndexKeys.length) {
+            return null;
+        }
+        long start = -1;
+        long end = to;
+        long previousKey = fromKey;
+        byte[] lineHead = new byte[TIMESTAMP_LENGTH];
+        for (long lineStart = from; lineStart < to; ) {
+            int headLength = (int) Math.min(TIMESTAMP_LENGTH, to - lineStart);
+            get(buffer, lineStart, lineHead, headLength);
+            long key = parseTimestampKey(lineHead, 0, headLength);
+            if (key >= 0) {
+                key = alignKey(key, previousKey);
+                previousKey = key;
+                if (start < 0 && key >= startKey) {
+                    start = lineStart;
+                }
+                if (key >= endKey) {
+                    end = lineStart;
+                    break;
+                }
+            }
+            lineStart = nextLineStart(buffer, lineStart, to);
+        }
+        if (from < mReserved - mCapacity) {
+            // overwritten while being searched
+            return null;
+        }
+        if (start < 0 || start >= end) {
+            return new ByteArrayInputStreamSource(new byte[0]);
+        }
+        // overwritten while being copied if null
+        return snapshot(buffer, start, end);
+    }
+
+    /**
+     * Write the ring content between two absolute offsets to a snapshot file, deleted when the
+     * returned source is closed.
+     *
+     * @return the snapshot, or <code>null</code> if the content was overwritten while it was
+     *     copied or could not be written.
+     */
+    private InputStreamSource snapshot(ByteBuffer buffer, long from, long to) {
+        if (from >= to) {
+            return new ByteArrayInputStreamSource(new byte[0]);
+        }
+        File file = null;
+        FileOutputStream output = null;
+        try {
+            file = FileUtil.createTempFile("logcat_snapshot", ".txt");
+            output = new FileOutputStream(file);
+            FileChannel channel = output.getChannel();
+            int pos = (int) (from % mCapacity);
+            int length = (int) (to - from);
+            int first = Math.min(length, mCapacity - pos);
+            writeFully(channel, buffer, pos, first);
+            if (length > first) {
+                writeFully(channel, buffer, 0, length - first);
+            }
+            output.close();
+            output = null;
+            if (from >= mReserved - mCapacity) {
+                return new FileInputStreamSource(file, true);
+            }
+        } catch (IOException e) {
+            CLog.e("Failed to write a logcat snapshot");
+            CLog.e(e);
+        } finally {
+            StreamUtil.close(output);
+        }
+        FileUtil.deleteFile(file);
+        return null;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, int pos, int length)
+            throws IOException {
+        ByteBuffer segment = buffer.duplicate();
+        segment.limit(pos + length);
+        segment.position(pos);
+        while (segment.hasRemaining()) {
+            channel.write(segment);
+        }
+    }
+
+    /** Copy <var>length</var> bytes of the ring from an absolute offset into the given array. */
+    private void get(ByteBuffer buffer, long from, byte[] data, int length) {
+        for (int i = 0; i < length; i++) {
+            data[i] = buffer.get((int) ((from + i) % mCapacity));
+        }
+    }
+
+    /** Returns the absolute offset of the line after the one at <var>from</var>, or to. */
+    private long nextLineStart(ByteBuffer buffer, long from, long to) {
+        for (long i = from; i < to; i++) {
+            if (buffer.get((int) (i % mCapacity)) == '\n') {
+                return i + 1;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * Parse the "MM-DD HH:MM:SS.mmm" timestamp at the given position into a key that orders like
+     * the time it represents within a year.
+     *
+     * @return the key, or -1 if there is no timestamp at this position.
+     */
+    static long parseTimestampKey(byte[] data, int offset, int limit) {
+        if (limit - offset < TIMESTAMP_LENGTH
+                || data[offset + 2] != '-' || data[offset + 5] != ' '
+                || data[offset + 8] != ':' || data[offset + 11] != ':'
+                || data[offset + 14] != '.') {
+            return -1;
+        }
+        int month = parseDigits(data, offset, 2);
+        int day = parseDigits(data, offset + 3, 2);
+        int hour = parseDigits(data, offset + 6, 2);
+        int minute = parseDigits(data, offset + 9, 2);
+        int second = parseDigits(data, offset + 12, 2);
+        int millis = parseDigits(data, offset + 15, 3);
+        if (month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0 || millis < 0) {
+            return -1;
+        }
+        return toKey(month, day, hour, minute, second, millis);
+    }
+
+    /**
+     * Convert a device time into the key of the logcat timestamp it would be printed with.
+     */
+    static long toTimestampKey(long date, TimeZone timeZone) {
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(date);
+        return toKey(calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH),
+                calendar.get(Calendar.HOUR_OF_DAY), calendar.get(Calendar.MINUTE),
+                calendar.get(Calendar.SECOND), calendar.get(Calendar.MILLISECOND));
+    }
+
+    /**
+     * Place a key within a year in the year closest to a reference key, so that keys compare
+     * across the end of a year.
+     */
+    static long alignKey(long key, long reference) {
+        return key + Math.floorDiv(reference - key + YEAR_KEY_SPAN / 2, YEAR_KEY_SPAN)
+                * YEAR_KEY_SPAN;
+    }
+
+    private static long toKey(int month, int day, int hour, int minute, int second, int millis) {
+        return ((((month * 32L + day) * 24 + hour) * 60 + minute) * 60 + second) * 1000 + millis;
+    }
+
+    private static int parseDigits(byte[] data, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() {
+        // nothing to do, data is visible to readers as soon as it is appended
+    }
+
+    /**
+     * Discard the currently retained data.
+     */
+    public void clear() {
+        mBase = mWritten;
+    }
+
+    /**
+     * Cancels the command.
+     */
+    public void cancel() {
+        mIsCancelled = true;
+    }
+
+    /**
+     * Delete all retained data and the backing file.
+     * <p/>
+     * The JDK cannot unmap a file explicitly: the mapping is released when the buffer is garbage
+     * collected, so the references to it are dropped here, and the file is closed before being
+     * deleted.
+     */
+    public void delete() {
+        mWriteBuffer = null;
+        mBuffer = null;
+        StreamUtil.close(mMappedFile);
+        FileUtil.deleteFile(mFile);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCancelled() {
+        return mIsCancelled;
+    }
+}
@@ -22,10 +22,12 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -47,14 +49,21 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
      */
     private static class AllocationMatcher implements IMatcher<IManagedTestDevice> {
         private IDeviceSelection mDeviceSelectionMatcher;
+        private Map<String, DevicePropertySnapshot> mSnapshots;
 
-        AllocationMatcher(IDeviceSelection options) {
+        AllocationMatcher(IDeviceSelection options, Map<String, DevicePropertySnapshot> snapshots) {
             mDeviceSelectionMatcher = options;
+            mSnapshots = snapshots;
         }
 
         @Override
         public boolean matches(IManagedTestDevice element) {
-            if (mDeviceSelectionMatcher.matches(element.getIDevice())) {
+            IDevice idevice = element.getIDevice();
+            DevicePropertySnapshot snapshot = null;
+            if (!mSnapshots.isEmpty()) {
+                snapshot = mSnapshots.get(idevice.getSerialNumber());
+            }
+            if (mDeviceSelectionMatcher.matches(idevice, snapshot)) {
                 DeviceEventResponse r = element.handleAllocationEvent(DeviceEvent.ALLOCATE_REQUEST);
                 return r.stateChanged && r.allocationState == DeviceAllocationState.Allocated;
             }
@@ -157,7 +166,20 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
      * @return the {@link IManagedTestDevice} that was successfully allocated, null otherwise
      */
     public IManagedTestDevice allocate(IDeviceSelection options) {
-        AllocationMatcher m = new AllocationMatcher(options);
+        return allocate(options, Collections.<String, DevicePropertySnapshot>emptyMap());
+    }
+
+    /**
+     * Attempt to allocate a device from the list, matching device properties against the given
+     * snapshots when available.
+     *
+     * @param options
+     * @param snapshots the {@link DevicePropertySnapshot}s of the devices, keyed by serial
+     * @return the {@link IManagedTestDevice} that was successfully allocated, null otherwise
+     */
+    public IManagedTestDevice allocate(IDeviceSelection options,
+            Map<String, DevicePropertySnapshot> snapshots) {
+        AllocationMatcher m = new AllocationMatcher(options, snapshots);
         // this method is a variant of find, that attempts to find a device matching options
         // and that can be transitioned to allocated state.
         // if found, the device will be moved to the back of the list to try to even out
@@ -54,6 +54,7 @@ import com.android.tradefed.util.PsParser;
 import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.SizeLimitedOutputStream;
 import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.TarUtil;
 import com.android.tradefed.util.ZipUtil2;
 
 import org.apache.commons.compress.archivers.zip.ZipFile;
@@ -68,7 +69,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
@@ -122,6 +126,9 @@ public class NativeDevice implements IManagedTestDevice {
             //Fs 1K-blks Used    Available Use%      Mounted on
             "^/\\S+\\s+\\d+\\s+\\d+\\s+(\\d+)\\s+\\d+%\\s+/\\S*$", Pattern.MULTILINE);
     private static final Pattern BUGREPORTZ_RESPONSE_PATTERN = Pattern.compile("(OK:)(.*)");
+    /** regex to match a shell command setting a single property */
+    private static final Pattern SETPROP_COMMAND =
+            Pattern.compile("^\\s*setprop\\s+(\\S+)[^;&|]*$");
 
     protected static final long MAX_HOST_DEVICE_TIME_OFFSET = 5 * 1000;
 
@@ -153,6 +160,29 @@ public class NativeDevice implements IManagedTestDevice {
     private static final String SIM_STATE_PROP = "gsm.sim.state";
     private static final String SIM_OPERATOR_PROP = "gsm.operator.alpha";
 
+    /** the build attributes reporting the usage of the property cache during the invocation */
+    static final String PROPERTY_CACHE_HITS_ATTRIBUTE = "device_property_cache_hits";
+    static final String PROPERTY_CACHE_MISSES_ATTRIBUTE = "device_property_cache_misses";
+
+    /**
+     * the prefixes of the build attributes reporting the bulk transfers during the invocation,
+     * followed by {@link #TRANSFER_ATTRIBUTE_SUFFIXES}
+     */
+    static final String BULK_PUSH_ATTRIBUTE = "device_bulk_push";
+    static final String BULK_PULL_ATTRIBUTE = "device_bulk_pull";
+    static final String BULK_SYNC_ATTRIBUTE = "device_bulk_sync";
+    static final String[] TRANSFER_ATTRIBUTE_SUFFIXES = {
+        "_files", "_bytes", "_time_ms", "_files_per_sec", "_mb_per_sec"
+    };
+
+    /** the maximum length of a shell command issued when transferring directories in bulk */
+    private static final int MAX_BULK_SHELL_COMMAND_LENGTH = 1000;
+    private static final String BULK_PUSH_TAR_NAME = ".tradefed-bulk-push.tar";
+    private static final String BULK_PUSH_TAR_SUCCESS = "TRADEFED_BULK_PUSH_OK";
+    private static final String BULK_PULL_FILES_MARKER = "TRADEFED_BULK_PULL_FILES";
+    private static final String SYNC_LISTING_END_MARKER = "TRADEFED_SYNC_LISTING_END";
+    private static final Pattern MD5SUM_PATTERN = Pattern.compile("^([0-9a-fA-F]{32})\\s+(.*)$");
+
     static final String MAC_ADDRESS_PATTERN = "([0-9a-fA-F]{2}:){5}[0-9a-fA-F]{2}";
     static final String MAC_ADDRESS_COMMAND = "su root cat /sys/class/net/wlan0/address";
 
@@ -195,6 +225,14 @@ public class NativeDevice implements IManagedTestDevice {
     private String mLastConnectedWifiPsk = null;
     private boolean mNetworkMonitorEnabled = false;
 
+    /** the cached device properties, created on first use when the cache is enabled */
+    private DevicePropertyCache mPropertyCache = null;
+    /** the build of the current invocation, to report the property cache and transfer usage */
+    private IBuildInfo mInvocationBuild = null;
+    /** the files, bytes and ms of the bulk transfers of the invocation, by attribute prefix */
+    @GuardedBy("mTransferTotals")
+    private final Map<String, long[]> mTransferTotals = new LinkedHashMap<>();
+
     /**
      * Interface for a generic device communication attempt.
      */
@@ -374,6 +412,24 @@ public class NativeDevice implements IManagedTestDevice {
             CLog.d("Device %s is not online cannot get property %s.", getSerialNumber(), name);
             return null;
         }
+        if (mOptions.isPropertyCacheEnabled()) {
+            String cached = getCachedProperty(name);
+            if (cached != null) {
+                // getprop reports unset properties as empty, getSystemProperty as null
+                return cached.isEmpty() ? null : cached;
+            }
+        }
+        String value = getSystemProperty(name);
+        if (mOptions.isPropertyCacheEnabled()) {
+            getPropertyCache().put(name, value, System.currentTimeMillis());
+        }
+        return value;
+    }
+
+    /**
+     * Read a single property from the device, bypassing the property cache.
+     */
+    private String getSystemProperty(final String name) throws DeviceNotAvailableException {
         final String[] result = new String[1];
         DeviceAction propAction = new DeviceAction() {
 
@@ -408,6 +464,66 @@ public class NativeDevice implements IManagedTestDevice {
         return result[0];
     }
 
+    /**
+     * Get a property from the property cache, loading all the device properties with a single
+     * getprop call if the cached value is missing or too old.
+     *
+     * @return the value of the property, "" if it is not set, or <code>null</code> if it has to be
+     *     read on its own: the properties could not be loaded, or the property is missing from
+     *     the getprop output because it is unset or its value spans several lines.
+     */
+    private String getCachedProperty(String name) throws DeviceNotAvailableException {
+        DevicePropertyCache cache = getPropertyCache();
+        long now = System.currentTimeMillis();
+        String value = cache.get(name, now);
+        if (value == null && !cache.isFresh(now)) {
+            Map<String, String> properties =
+                    DevicePropertyCache.parseGetprop(executeShellCommand("getprop"));
+            if (properties.isEmpty()) {
+                CLog.w("Failed to load the properties of device %s", getSerialNumber());
+                return null;
+            }
+            cache.update(properties, now);
+            value = properties.get(name);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the {@link DevicePropertyCache} of this device. Exposed for testing.
+     */
+    synchronized DevicePropertyCache getPropertyCache() {
+        if (mPropertyCache == null) {
+            mPropertyCache = new DevicePropertyCache(mOptions.getPropertyCacheTtl());
+        }
+        return mPropertyCache;
+    }
+
+    /**
+     * Forget the cached device properties, because the device is rebooting or being flashed.
+     */
+    protected synchronized void invalidatePropertyCache() {
+        if (mPropertyCache != null) {
+            mPropertyCache.invalidate();
+        }
+    }
+
+    /**
+     * Forget the cached value of the properties a shell command may have set: the property of a
+     * single setprop command, all of them if setprop is part of a longer command.
+     */
+    private synchronized void invalidatePropertiesSetBy(String command) {
+        if (mPropertyCache == null || !command.contains("setprop")) {
+            return;
+        }
+        Matcher m = SETPROP_COMMAND.matcher(command);
+        if (m.matches()) {
+            mPropertyCache.remove(m.group(1));
+        } else {
+            mPropertyCache.invalidate();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -559,7 +675,11 @@ public class NativeDevice implements IManagedTestDevice {
                 return true;
             }
         };
-        performDeviceAction(String.format("shell %s", command), action, MAX_RETRY_ATTEMPTS);
+        try {
+            performDeviceAction(String.format("shell %s", command), action, MAX_RETRY_ATTEMPTS);
+        } finally {
+            invalidatePropertiesSetBy(command);
+        }
     }
 
     /**
@@ -578,7 +698,11 @@ public class NativeDevice implements IManagedTestDevice {
                 return true;
             }
         };
-        performDeviceAction(String.format("shell %s", command), action, retryAttempts);
+        try {
+            performDeviceAction(String.format("shell %s", command), action, retryAttempts);
+        } finally {
+            invalidatePropertiesSetBy(command);
+        }
     }
 
     /** {@inheritDoc} */
@@ -607,7 +731,11 @@ public class NativeDevice implements IManagedTestDevice {
                         return true;
                     }
                 };
-        performDeviceAction(String.format("shell %s", command), action, retryAttempts);
+        try {
+            performDeviceAction(String.format("shell %s", command), action, retryAttempts);
+        } finally {
+            invalidatePropertiesSetBy(command);
+        }
     }
 
     /**
@@ -775,6 +903,15 @@ public class NativeDevice implements IManagedTestDevice {
         throw new UnsupportedOperationException("No support for Package Manager's features");
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String installRemotePackage(String remoteApkPath, boolean reinstall,
+            String... extraArgs) throws DeviceNotAvailableException {
+        throw new UnsupportedOperationException("No support for Package Manager's features");
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1211,6 +1348,9 @@ public class NativeDevice implements IManagedTestDevice {
             CLog.e("file %s is not a directory", localFileDir.getAbsolutePath());
             return false;
         }
+        if (getOptions().isBulkDirTransferEnabled()) {
+            return pushDirBulk(localFileDir, deviceFilePath);
+        }
         File[] childFiles = localFileDir.listFiles();
         if (childFiles == null) {
             CLog.e("Could not read files in %s", localFileDir.getAbsolutePath());
@@ -1246,6 +1386,12 @@ public class NativeDevice implements IManagedTestDevice {
             CLog.e("Device path %s is not a directory", deviceFilePath);
             return false;
         }
+        if (getOptions().isBulkDirTransferEnabled()) {
+            Boolean result = pullDirBulk(deviceFilePath, localDir);
+            if (result != null) {
+                return result;
+            }
+        }
         String lsOutput = executeShellCommand(String.format("ls -Ap1 %s", deviceFilePath));
         if (lsOutput.trim().isEmpty()) {
             CLog.i("Device path is empty, nothing to do.");
@@ -1285,6 +1431,317 @@ public class NativeDevice implements IManagedTestDevice {
         return true;
     }
 
+    /**
+     * Push the content of a local directory with a fixed number of device round trips: all remote
+     * directories are created by a single <code>mkdir</code> command (split only if it would be
+     * too long), and all files are pushed through one {@link SyncService} session. Files smaller
+     * than {@link TestDeviceOptions#getBulkDirTarThreshold()} are packed into one tar archive
+     * that is extracted on the device.
+     */
+    private boolean pushDirBulk(File localFileDir, String deviceFilePath)
+            throws DeviceNotAvailableException {
+        long startTime = System.currentTimeMillis();
+        String remoteRoot = interpolatePathVariables(deviceFilePath);
+        List<String> remoteDirs = new ArrayList<>();
+        List<File> localFiles = new ArrayList<>();
+        List<String> remoteFiles = new ArrayList<>();
+        if (!planPushDir(localFileDir, remoteRoot, remoteDirs, localFiles, remoteFiles)) {
+            return false;
+        }
+        long totalBytes = 0;
+        for (File localFile : localFiles) {
+            totalBytes += localFile.length();
+        }
+        int totalFiles = localFiles.size();
+        createRemoteDirs(remoteDirs);
+
+        long tarThreshold = getOptions().getBulkDirTarThreshold();
+        if (tarThreshold > 0) {
+            List<File> smallFiles = new ArrayList<>();
+            for (File localFile : localFiles) {
+                if (localFile.length() < tarThreshold) {
+                    smallFiles.add(localFile);
+                }
+            }
+            // an archive is only worth it if it saves round trips
+            if (smallFiles.size() > 1 && pushAndExtractTar(localFileDir, smallFiles, remoteRoot)) {
+                for (int i = localFiles.size() - 1; i >= 0; i--) {
+                    if (localFiles.get(i).length() < tarThreshold) {
+                        localFiles.remove(i);
+                        remoteFiles.remove(i);
+                    }
+                }
+            }
+        }
+        if (!localFiles.isEmpty() && !syncFilesInSession(localFiles, remoteFiles, true)) {
+            return false;
+        }
+        logTransferRate("Pushed", BULK_PUSH_ATTRIBUTE, totalFiles, totalBytes,
+                System.currentTimeMillis() - startTime);
+        return true;
+    }
+
+    /**
+     * Walk the local directory tree and collect the remote directories to create and the files to
+     * push, in the same order as {@link #pushDir(File, String)} would.
+     */
+    private boolean planPushDir(File localDir, String remoteDir, List<String> remoteDirs,
+            List<File> localFiles, List<String> remoteFiles) {
+        File[] childFiles = localDir.listFiles();
+        if (childFiles == null) {
+            CLog.e("Could not read files in %s", localDir.getAbsolutePath());
+            return false;
+        }
+        for (File childFile : childFiles) {
+            String remotePath = String.format("%s/%s", remoteDir, childFile.getName());
+            if (childFile.isDirectory()) {
+                remoteDirs.add(remotePath);
+                if (!planPushDir(childFile, remotePath, remoteDirs, localFiles, remoteFiles)) {
+                    return false;
+                }
+            } else if (childFile.isFile()) {
+                localFiles.add(childFile);
+                remoteFiles.add(remotePath);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create the given remote directories with as few <code>mkdir -p</code> commands as the
+     * maximum shell command length allows.
+     */
+    private void createRemoteDirs(List<String> remoteDirs) throws DeviceNotAvailableException {
+        StringBuilder command = new StringBuilder();
+        for (String remoteDir : remoteDirs) {
+            String arg = String.format(" \"%s\"", remoteDir);
+            if (command.length() > 0
+                    && command.length() + arg.length() > MAX_BULK_SHELL_COMMAND_LENGTH) {
+                executeShellCommand(command.toString());
+                command.setLength(0);
+            }
+            if (command.length() == 0) {
+                command.append("mkdir -p");
+            }
+            command.append(arg);
+        }
+        if (command.length() > 0) {
+            executeShellCommand(command.toString());
+        }
+    }
+
+    /**
+     * Pack the given files in a tar archive, push it and extract it under <var>remoteRoot</var>.
+     *
+     * @return <code>true</code> if the files were extracted on the device, <code>false</code> if
+     *     they still need to be pushed individually.
+     */
+    private boolean pushAndExtractTar(File localRoot, List<File> files, String remoteRoot)
+            throws DeviceNotAvailableException {
+        File tarFile = null;
+        try {
+            tarFile = TarUtil.tar(localRoot, files);
+        } catch (IOException e) {
+            CLog.w("Failed to pack %d files from %s: %s", files.size(),
+                    localRoot.getAbsolutePath(), e.getMessage());
+            return false;
+        }
+        try {
+            String remoteTar = String.format("%s/%s", remoteRoot, BULK_PUSH_TAR_NAME);
+            if (!syncFilesInSession(Arrays.asList(tarFile), Arrays.asList(remoteTar), true)) {
+                return false;
+            }
+            String output = executeShellCommand(String.format(
+                    "tar -xf \"%1$s\" -C \"%2$s\" && echo %3$s; rm -f \"%1$s\"",
+                    remoteTar, remoteRoot, BULK_PUSH_TAR_SUCCESS));
+            if (output == null || !output.contains(BULK_PUSH_TAR_SUCCESS)) {
+                CLog.w("Failed to extract %s on %s, pushing files individually. Output: %s",
+                        remoteTar, getSerialNumber(), output);
+                return false;
+            }
+            return true;
+        } finally {
+            FileUtil.deleteFile(tarFile);
+        }
+    }
+
+    /**
+     * Pull the content of a device directory with a fixed number of device round trips: the
+     * remote tree is listed by a single <code>find</code> command and all files are pulled
+     * through one {@link SyncService} session.
+     *
+     * @return the result of the pull, or <code>null</code> if the device could not list the tree
+     *     and the directory should be pulled one level at a time.
+     */
+    private Boolean pullDirBulk(String deviceFilePath, File localDir)
+            throws DeviceNotAvailableException {
+        long startTime = System.currentTimeMillis();
+        String remoteRoot = interpolatePathVariables(deviceFilePath);
+        while (remoteRoot.length() > 1 && remoteRoot.endsWith("/")) {
+            remoteRoot = remoteRoot.substring(0, remoteRoot.length() - 1);
+        }
+        String output = executeShellCommand(String.format(
+                "find \"%1$s\" -type d; echo %2$s; find \"%1$s\" -type f",
+                remoteRoot, BULK_PULL_FILES_MARKER));
+        String prefix = remoteRoot.endsWith("/") ? remoteRoot : remoteRoot + "/";
+        List<String> relativeDirs = new ArrayList<>();
+        List<String> relativeFiles = new ArrayList<>();
+        boolean foundRoot = false;
+        boolean inFiles = false;
+        for (String line : output.split("\r?\n")) {
+            if (line.isEmpty()) {
+                continue;
+            } else if (line.equals(BULK_PULL_FILES_MARKER)) {
+                inFiles = true;
+            } else if (!inFiles && line.equals(remoteRoot)) {
+                foundRoot = true;
+            } else if (line.startsWith(prefix)) {
+                (inFiles ? relativeFiles : relativeDirs).add(line.substring(prefix.length()));
+            } else {
+                // not a path: the device does not support find
+                foundRoot = false;
+                break;
+            }
+        }
+        if (!foundRoot || !inFiles) {
+            CLog.w("Could not list %s on %s in one command, pulling it one level at a time.",
+                    remoteRoot, getSerialNumber());
+            return null;
+        }
+        for (String relativeDir : relativeDirs) {
+            File subDir = new File(localDir, relativeDir);
+            if (!subDir.isDirectory() && !subDir.mkdirs()) {
+                CLog.w("Failed to create sub directory %s, aborting.", subDir.getAbsolutePath());
+                return false;
+            }
+        }
+        List<File> localFiles = new ArrayList<>();
+        List<String> remoteFiles = new ArrayList<>();
+        for (String relativeFile : relativeFiles) {
+            localFiles.add(new File(localDir, relativeFile));
+            remoteFiles.add(prefix + relativeFile);
+        }
+        if (!localFiles.isEmpty() && !syncFilesInSession(localFiles, remoteFiles, false)) {
+            CLog.w("Failed to pull %s from device, aborting", remoteRoot);
+            return false;
+        }
+        long totalBytes = 0;
+        for (File localFile : localFiles) {
+            totalBytes += localFile.length();
+        }
+        logTransferRate("Pulled", BULK_PULL_ATTRIBUTE, localFiles.size(), totalBytes,
+                System.currentTimeMillis() - startTime);
+        return true;
+    }
+
+    /**
+     * Transfer files through a single {@link SyncService} session. If the session fails and is
+     * retried after recovery, the transfer resumes from the file that failed instead of starting
+     * over.
+     *
+     * @param localFiles the local files.
+     * @param remotePaths the already interpolated device paths, matching <var>localFiles</var>.
+     * @param push <code>true</code> to push the files to the device, <code>false</code> to pull
+     *     them.
+     */
+    boolean syncFilesInSession(final List<File> localFiles, final List<String> remotePaths,
+            final boolean push) throws DeviceNotAvailableException {
+        final int[] nextIndex = {0};
+        DeviceAction syncAction =
+                new DeviceAction() {
+                    @Override
+                    public boolean run()
+                            throws TimeoutException, IOException, AdbCommandRejectedException,
+                                    SyncException {
+                        SyncService syncService = null;
+                        try {
+                            syncService = getIDevice().getSyncService();
+                            if (syncService == null) {
+                                throw new IOException("SyncService returned null.");
+                            }
+                            for (; nextIndex[0] < localFiles.size(); nextIndex[0]++) {
+                                String localPath = localFiles.get(nextIndex[0]).getAbsolutePath();
+                                String remotePath = remotePaths.get(nextIndex[0]);
+                                try {
+                                    if (push) {
+                                        syncService.pushFile(localPath, remotePath,
+                                                SyncService.getNullProgressMonitor());
+                                    } else {
+                                        syncService.pullFile(remotePath, localPath,
+                                                SyncService.getNullProgressMonitor());
+                                    }
+                                } catch (SyncException e) {
+                                    CLog.w("Failed to %s %s on device %s. Message: '%s'. "
+                                            + "Error code: %s", push ? "push" : "pull",
+                                            remotePath, getSerialNumber(), e.getMessage(),
+                                            e.getErrorCode());
+                                    if (SyncError.TRANSFER_PROTOCOL_ERROR.equals(
+                                            e.getErrorCode())
+                                            && e.getMessage().contains("Permission denied")) {
+                                        return false;
+                                    }
+                                    throw e;
+                                }
+                            }
+                            return true;
+                        } finally {
+                            if (syncService != null) {
+                                syncService.close();
+                            }
+                        }
+                    }
+                };
+        return performDeviceAction(String.format("%s %d files", push ? "push" : "pull",
+                localFiles.size()), syncAction, MAX_RETRY_ATTEMPTS);
+    }
+
+    /**
+     * Log the throughput of a bulk transfer, and add it to the totals reported with the invocation
+     * under the given attribute prefix.
+     */
+    private void logTransferRate(String action, String attributePrefix, int fileCount,
+            long bytes, long elapsedMs) {
+        double seconds = Math.max(elapsedMs, 1) / 1000.0;
+        CLog.i("%s %d files (%d bytes) in %d ms on %s: %.1f files/s, %.2f MB/s", action,
+                fileCount, bytes, elapsedMs, getSerialNumber(), fileCount / seconds,
+                bytes / (1024.0 * 1024.0) / seconds);
+        synchronized (mTransferTotals) {
+            long[] totals = mTransferTotals.get(attributePrefix);
+            if (totals == null) {
+                totals = new long[3];
+                mTransferTotals.put(attributePrefix, totals);
+            }
+            totals[0] += fileCount;
+            totals[1] += bytes;
+            totals[2] += elapsedMs;
+        }
+    }
+
+    /**
+     * Report the totals of the bulk transfers of the invocation as attributes of its build: the
+     * files, bytes, time, files/s and MB/s of each kind of transfer that happened.
+     */
+    private void reportTransferTotals(IBuildInfo info) {
+        synchronized (mTransferTotals) {
+            for (Map.Entry<String, long[]> entry : mTransferTotals.entrySet()) {
+                long[] totals = entry.getValue();
+                double seconds = Math.max(totals[2], 1) / 1000.0;
+                String[] values = {
+                    Long.toString(totals[0]),
+                    Long.toString(totals[1]),
+                    Long.toString(totals[2]),
+                    String.format(Locale.US, "%.1f", totals[0] / seconds),
+                    String.format(Locale.US, "%.2f", totals[1] / (1024.0 * 1024.0) / seconds)
+                };
+                for (int i = 0; i < values.length; i++) {
+                    info.addBuildAttribute(entry.getKey() + TRANSFER_ATTRIBUTE_SUFFIXES[i],
+                            values[i]);
+                }
+            }
+            mTransferTotals.clear();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1304,6 +1761,12 @@ public class NativeDevice implements IManagedTestDevice {
         // implementation will add localFileDir.getName() to destination path
         deviceFilePath = String.format("%s/%s", interpolatePathVariables(deviceFilePath),
                 localFileDir.getName());
+        if (getOptions().isHashSyncFilesEnabled()) {
+            Boolean result = syncFilesByHash(localFileDir, deviceFilePath);
+            if (result != null) {
+                return result;
+            }
+        }
         if (!doesFileExist(deviceFilePath)) {
             executeShellCommand(String.format("mkdir -p \"%s\"", deviceFilePath));
         }
@@ -1380,6 +1843,197 @@ public class NativeDevice implements IManagedTestDevice {
                 syncAction, MAX_RETRY_ATTEMPTS);
     }
 
+    /**
+     * Sync the content of a local directory by comparing sizes and md5 hashes. Files whose
+     * remote size matches are hashed on the device, unless
+     * {@link TestDeviceOptions#isHashSyncTrustManifestEnabled()} is set: then the
+     * {@link DeviceFileManifest} is trusted for them, and a repeated sync of unchanged files
+     * costs a single shell command, but a file changed on the device without changing its size
+     * is not detected.
+     *
+     * @return the result of the sync, or <code>null</code> if the device could not list the
+     *     remote files and timestamps should be used instead.
+     */
+    private Boolean syncFilesByHash(File localFileDir, String remoteRoot)
+            throws DeviceNotAvailableException {
+        long startTime = System.currentTimeMillis();
+        Map<String, Long> remoteSizes = getRemoteFileSizes(remoteRoot);
+        if (remoteSizes == null) {
+            CLog.w("Could not list files of %s on %s, syncing by timestamps instead.",
+                    remoteRoot, getSerialNumber());
+            return null;
+        }
+        List<String> remoteDirs = new ArrayList<>();
+        remoteDirs.add(remoteRoot);
+        List<File> localFiles = new ArrayList<>();
+        List<String> remotePaths = new ArrayList<>();
+        planSyncFiles(localFileDir, remoteRoot, remoteDirs, localFiles, remotePaths);
+
+        DeviceFileManifest manifest = getFileManifest();
+        String serial = getSerialNumber();
+        boolean trustManifest = getOptions().isHashSyncTrustManifestEnabled();
+        List<String> localMd5s = new ArrayList<>(localFiles.size());
+        List<Integer> toPush = new ArrayList<>();
+        Map<String, Integer> toVerify = new LinkedHashMap<>();
+        for (int i = 0; i < localFiles.size(); i++) {
+            File localFile = localFiles.get(i);
+            String remotePath = remotePaths.get(i);
+            try {
+                localMd5s.add(manifest.getLocalMd5(localFile));
+            } catch (IOException e) {
+                CLog.e("Failed to compute md5 of %s: %s", localFile.getAbsolutePath(),
+                        e.getMessage());
+                return false;
+            }
+            Long remoteSize = remoteSizes.get(remotePath);
+            if (remoteSize == null || remoteSize != localFile.length()) {
+                toPush.add(i);
+                continue;
+            }
+            DeviceFileManifest.Entry entry = manifest.getEntry(serial, remotePath);
+            if (!trustManifest || entry == null
+                    || !entry.matches(localFile.length(), localMd5s.get(i))) {
+                toVerify.put(remotePath, i);
+            }
+        }
+        if (!toVerify.isEmpty()) {
+            Map<String, String> remoteMd5s = getRemoteMd5s(toVerify.keySet());
+            for (Map.Entry<String, Integer> verify : toVerify.entrySet()) {
+                int i = verify.getValue();
+                String localMd5 = localMd5s.get(i);
+                if (localMd5.equals(remoteMd5s.get(verify.getKey()))) {
+                    manifest.putEntry(serial, verify.getKey(), localFiles.get(i).length(),
+                            localMd5);
+                } else {
+                    toPush.add(i);
+                }
+            }
+        }
+        if (toPush.isEmpty()) {
+            CLog.d("No files to sync");
+            return true;
+        }
+        List<File> pushFiles = new ArrayList<>(toPush.size());
+        List<String> pushPaths = new ArrayList<>(toPush.size());
+        long pushBytes = 0;
+        for (int i : toPush) {
+            CLog.d("Detected changed file %s", localFiles.get(i).getAbsolutePath());
+            pushFiles.add(localFiles.get(i));
+            pushPaths.add(remotePaths.get(i));
+            pushBytes += localFiles.get(i).length();
+            // the remote content is unknown until the push succeeds
+            manifest.removeEntry(serial, remotePaths.get(i));
+        }
+        createRemoteDirs(remoteDirs);
+        if (!syncFilesInSession(pushFiles, pushPaths, true)) {
+            return false;
+        }
+        for (int i : toPush) {
+            manifest.putEntry(serial, remotePaths.get(i), localFiles.get(i).length(),
+                    localMd5s.get(i));
+        }
+        logTransferRate("Synced", BULK_SYNC_ATTRIBUTE, pushFiles.size(), pushBytes,
+                System.currentTimeMillis() - startTime);
+        return true;
+    }
+
+    /**
+     * Walk the local directory tree, skipping hidden files like
+     * {@link #syncFiles(File, IFileEntry)}, and collect the remote directories and files.
+     */
+    private void planSyncFiles(File localDir, String remoteDir, List<String> remoteDirs,
+            List<File> localFiles, List<String> remotePaths) {
+        for (File localFile : localDir.listFiles(new NoHiddenFilesFilter())) {
+            String remotePath = String.format("%s/%s", remoteDir, localFile.getName());
+            if (localFile.isDirectory()) {
+                remoteDirs.add(remotePath);
+                planSyncFiles(localFile, remotePath, remoteDirs, localFiles, remotePaths);
+            } else if (localFile.isFile()) {
+                localFiles.add(localFile);
+                remotePaths.add(remotePath);
+            }
+        }
+    }
+
+    /**
+     * List the sizes of all the files under a remote directory with a single shell command.
+     *
+     * @return a map of remote path to size, empty if the directory does not exist, or
+     *     <code>null</code> if the listing failed.
+     */
+    private Map<String, Long> getRemoteFileSizes(String remoteRoot)
+            throws DeviceNotAvailableException {
+        String output = executeShellCommand(String.format(
+                "if [ -d \"%1$s\" ]; then find \"%1$s\" -type f -exec stat -c '%%s %%n' {} +; fi;"
+                        + " echo %2$s", remoteRoot, SYNC_LISTING_END_MARKER));
+        String prefix = remoteRoot + "/";
+        Map<String, Long> sizes = new HashMap<>();
+        for (String line : output.split("\r?\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.equals(SYNC_LISTING_END_MARKER)) {
+                return sizes;
+            }
+            int separator = line.indexOf(' ');
+            if (separator < 0 || !line.startsWith(prefix, separator + 1)) {
+                CLog.d("Unexpected line in listing of %s: %s", remoteRoot, line);
+                return null;
+            }
+            try {
+                sizes.put(line.substring(separator + 1),
+                        Long.parseLong(line.substring(0, separator)));
+            } catch (NumberFormatException e) {
+                CLog.d("Unexpected line in listing of %s: %s", remoteRoot, line);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compute the md5 of the given remote files, with as few <code>md5sum</code> commands as the
+     * maximum shell command length allows. Files that could not be hashed are missing from the
+     * result.
+     */
+    private Map<String, String> getRemoteMd5s(Collection<String> remotePaths)
+            throws DeviceNotAvailableException {
+        Map<String, String> md5s = new HashMap<>();
+        StringBuilder command = new StringBuilder();
+        for (String remotePath : remotePaths) {
+            String arg = String.format(" \"%s\"", remotePath);
+            if (command.length() > 0
+                    && command.length() + arg.length() > MAX_BULK_SHELL_COMMAND_LENGTH) {
+                parseMd5sumOutput(executeShellCommand(command.toString()), md5s);
+                command.setLength(0);
+            }
+            if (command.length() == 0) {
+                command.append("md5sum");
+            }
+            command.append(arg);
+        }
+        if (command.length() > 0) {
+            parseMd5sumOutput(executeShellCommand(command.toString()), md5s);
+        }
+        return md5s;
+    }
+
+    private static void parseMd5sumOutput(String output, Map<String, String> md5s) {
+        for (String line : output.split("\r?\n")) {
+            Matcher matcher = MD5SUM_PATTERN.matcher(line);
+            if (matcher.matches()) {
+                md5s.put(matcher.group(2), matcher.group(1).toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * Returns the {@link DeviceFileManifest} used for hash based file sync. Exposed for testing.
+     */
+    DeviceFileManifest getFileManifest() {
+        return DeviceFileManifest.getInstance();
+    }
+
     /**
      * Queries the file listing service for a given directory
      *
@@ -1856,6 +2510,18 @@ public class NativeDevice implements IManagedTestDevice {
      */
     @Override
     public InputStreamSource getLogcatSince(long date) {
+        if (mLogcatReceiver != null) {
+            // read the time zone each time, it changes with setDate or the device settings
+            TimeZone timeZone = TimeZone.getTimeZone(getDeviceTimezone());
+            // the date is in seconds since epoch, like "date +%s" prints it
+            InputStreamSource captured = mLogcatReceiver.getLogcatData(date * 1000, Long.MAX_VALUE,
+                    timeZone);
+            if (captured != null) {
+                return captured;
+            }
+            CLog.d("Background logcat of %s does not cover %s, querying the device",
+                    getSerialNumber(), date);
+        }
         try {
             if (getApiLevel() <= 22) {
                 CLog.i("Api level too low to use logcat -t 'time' reverting to dump");
@@ -2523,6 +3189,7 @@ public class NativeDevice implements IManagedTestDevice {
                 getDeviceState());
         if (TestDeviceState.FASTBOOT.equals(getDeviceState())) {
             CLog.i("device %s already in fastboot. Rebooting anyway", getSerialNumber());
+            invalidatePropertyCache();
             executeFastbootCommand("reboot-bootloader");
         } else {
             CLog.i("Booting device %s into bootloader", getSerialNumber());
@@ -2610,6 +3277,7 @@ public class NativeDevice implements IManagedTestDevice {
     void doReboot() throws DeviceNotAvailableException, UnsupportedOperationException {
         if (TestDeviceState.FASTBOOT == getDeviceState()) {
             CLog.i("device %s in fastboot. Rebooting to userspace.", getSerialNumber());
+            invalidatePropertyCache();
             executeFastbootCommand("reboot");
         } else {
             if (mOptions.shouldDisableReboot()) {
@@ -2638,6 +3306,7 @@ public class NativeDevice implements IManagedTestDevice {
                 return true;
             }
         };
+        invalidatePropertyCache();
         performDeviceAction("reboot", rebootAction, MAX_RETRY_ATTEMPTS);
 
     }
@@ -3136,6 +3805,10 @@ public class NativeDevice implements IManagedTestDevice {
                 return;
             }
             mState = deviceState;
+            if (!TestDeviceState.ONLINE.equals(deviceState)) {
+                // the device rebooted or is being flashed, its properties may change
+                invalidatePropertyCache();
+            }
             CLog.d("Device %s state is now %s", getSerialNumber(), deviceState);
             mStateMonitor.setState(deviceState);
         }
@@ -3682,7 +4355,13 @@ public class NativeDevice implements IManagedTestDevice {
     @Override
     public void preInvocationSetup(IBuildInfo info)
             throws TargetSetupError, DeviceNotAvailableException {
-        // Default implementation empty on purpose
+        mInvocationBuild = info;
+        if (mOptions.isPropertyCacheEnabled()) {
+            getPropertyCache().resetCounters();
+        }
+        synchronized (mTransferTotals) {
+            mTransferTotals.clear();
+        }
     }
 
     /**
@@ -3690,7 +4369,21 @@ public class NativeDevice implements IManagedTestDevice {
      */
     @Override
     public void postInvocationTearDown() {
-        // Default implementation empty on purpose
+        if (mOptions.isPropertyCacheEnabled() && mInvocationBuild != null) {
+            // report the usage of the property cache with the invocation
+            DevicePropertyCache cache = getPropertyCache();
+            CLog.d("Property cache of device %s: %d hits, %d misses", getSerialNumber(),
+                    cache.getHitCount(), cache.getMissCount());
+            mInvocationBuild.addBuildAttribute(PROPERTY_CACHE_HITS_ATTRIBUTE,
+                    Long.toString(cache.getHitCount()));
+            mInvocationBuild.addBuildAttribute(PROPERTY_CACHE_MISSES_ATTRIBUTE,
+                    Long.toString(cache.getMissCount()));
+        }
+        if (mInvocationBuild != null) {
+            // report the bulk transfers with the invocation
+            reportTransferTotals(mInvocationBuild);
+        }
+        mInvocationBuild = null;
     }
 
     /**
@@ -166,6 +166,37 @@ public class TestDevice extends NativeDevice {
         return internalInstallPackage(packageFile, reinstall, args);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String installRemotePackage(final String remoteApkPath, final boolean reinstall,
+            final String... extraArgs) throws DeviceNotAvailableException {
+        final List<String> args = new ArrayList<>(Arrays.asList(extraArgs));
+        // grant all permissions by default if feature is supported
+        if (isRuntimePermissionSupported()) {
+            args.add("-g");
+        }
+        // use array to store response, so it can be returned to caller
+        final String[] response = new String[1];
+        DeviceAction installAction = new DeviceAction() {
+            @Override
+            public boolean run() throws InstallException {
+                try {
+                    getIDevice().installRemotePackage(remoteApkPath, reinstall,
+                            args.toArray(new String[]{}));
+                    response[0] = null;
+                } catch (InstallException e) {
+                    response[0] = e.getMessage();
+                }
+                return response[0] == null;
+            }
+        };
+        performDeviceAction(String.format("install %s", remoteApkPath), installAction,
+                MAX_RETRY_ATTEMPTS);
+        return response[0];
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -602,6 +633,7 @@ public class TestDevice extends NativeDevice {
      */
     @Override
     protected void doAdbReboot(final String into) throws DeviceNotAvailableException {
+        invalidatePropertyCache();
         if (!doAdbFrameworkReboot(into)) {
             DeviceAction rebootAction = new DeviceAction() {
                 @Override
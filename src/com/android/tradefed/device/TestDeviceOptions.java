@@ -107,6 +107,36 @@ public class TestDeviceOptions {
             "the minimum battery level required to continue the invocation. Scale: 0-100")
     private Integer mCutoffBattery = null;
 
+    @Option(name = "bulk-dir-transfer", description = "push and pull directories through a "
+            + "single sync session, creating all remote directories with one shell command.")
+    private boolean mBulkDirTransfer = false;
+
+    @Option(name = "bulk-dir-tar-threshold", description = "when pushing directories in bulk, "
+            + "pack files smaller than this many bytes into a single tar archive extracted on "
+            + "the device. 0 to push every file individually.")
+    private long mBulkDirTarThreshold = 0;
+
+    @Option(name = "hash-sync-files", description = "compare file sizes and md5 hashes instead "
+            + "of timestamps to decide which files syncFiles pushes, keeping a host-side "
+            + "manifest of the content already synced to the device.")
+    private boolean mHashSyncFiles = false;
+
+    @Option(name = "hash-sync-trust-manifest", description = "with hash-sync-files, consider a "
+            + "file synced when its remote size matches the host-side manifest, without hashing "
+            + "it on the device. Faster, but a file changed on the device without changing its "
+            + "size is not pushed again.")
+    private boolean mHashSyncTrustManifest = false;
+
+    @Option(name = "property-cache", description = "load all the device properties with a single "
+            + "getprop call and serve getProperty from that snapshot. Read-only properties are "
+            + "cached until the device reboots.")
+    private boolean mPropertyCache = false;
+
+    @Option(name = "property-cache-ttl", description = "how long in ms the cached value of a "
+            + "property that is not read-only is served before the properties are loaded again.",
+            isTimeVal = true)
+    private long mPropertyCacheTtl = 5 * 1000;
+
     /**
      * Check whether adb root should be enabled on boot for this device
      */
@@ -334,4 +364,94 @@ public class TestDeviceOptions {
     public String getWifiUtilAPKPath() {
         return mWifiUtilAPKPath;
     }
+
+    /**
+     * @return <code>true</code> if directories should be pushed and pulled in bulk.
+     */
+    public boolean isBulkDirTransferEnabled() {
+        return mBulkDirTransfer;
+    }
+
+    /**
+     * Set whether directories should be pushed and pulled in bulk.
+     */
+    public void setBulkDirTransferEnabled(boolean bulkDirTransfer) {
+        mBulkDirTransfer = bulkDirTransfer;
+    }
+
+    /**
+     * @return the size in bytes under which files are packed into a tar archive when pushing a
+     *     directory in bulk, or 0 if disabled.
+     */
+    public long getBulkDirTarThreshold() {
+        return mBulkDirTarThreshold;
+    }
+
+    /**
+     * Set the size in bytes under which files are packed into a tar archive when pushing a
+     * directory in bulk.
+     */
+    public void setBulkDirTarThreshold(long bulkDirTarThreshold) {
+        mBulkDirTarThreshold = bulkDirTarThreshold;
+    }
+
+    /**
+     * @return <code>true</code> if syncFiles should compare content hashes instead of timestamps.
+     */
+    public boolean isHashSyncFilesEnabled() {
+        return mHashSyncFiles;
+    }
+
+    /**
+     * Set whether syncFiles should compare content hashes instead of timestamps.
+     */
+    public void setHashSyncFilesEnabled(boolean hashSyncFiles) {
+        mHashSyncFiles = hashSyncFiles;
+    }
+
+    /**
+     * @return <code>true</code> if hash sync should trust the host-side manifest for files whose
+     *     remote size did not change, instead of hashing them on the device.
+     */
+    public boolean isHashSyncTrustManifestEnabled() {
+        return mHashSyncTrustManifest;
+    }
+
+    /**
+     * Set whether hash sync should trust the host-side manifest for files whose remote size did
+     * not change.
+     */
+    public void setHashSyncTrustManifestEnabled(boolean trustManifest) {
+        mHashSyncTrustManifest = trustManifest;
+    }
+
+    /**
+     * @return <code>true</code> if getProperty should be served from a cached snapshot of all
+     *     the device properties.
+     */
+    public boolean isPropertyCacheEnabled() {
+        return mPropertyCache;
+    }
+
+    /**
+     * Set whether getProperty should be served from a cached snapshot of all the device
+     * properties.
+     */
+    public void setPropertyCacheEnabled(boolean propertyCache) {
+        mPropertyCache = propertyCache;
+    }
+
+    /**
+     * @return how long in ms the cached value of a property that is not read-only is served.
+     */
+    public long getPropertyCacheTtl() {
+        return mPropertyCacheTtl;
+    }
+
+    /**
+     * Set how long in ms the cached value of a property that is not read-only is served.
+     */
+    public void setPropertyCacheTtl(long propertyCacheTtl) {
+        mPropertyCacheTtl = propertyCacheTtl;
+    }
 }
@@ -27,17 +27,25 @@ import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.util.TimeUtil;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * A {@link ITestInvocationListener} that collects results from a invocation shard (aka an
  * invocation split to run on multiple resources in parallel), and forwards them to another
  * listener.
+ * <p/>
+ * By default the results are forwarded once the shard completes. When created with a
+ * {@link ShardResultMerger}, each test run, or each module when running modules, is forwarded as
+ * soon as it completes and is then dropped from the shard.
  */
 public class ShardListener extends CollectingTestListener {
 
     private ITestInvocationListener mMasterListener;
+    private ShardResultMerger mMerger = null;
+    private boolean mInModule = false;
 
     /**
      * Create a {@link ShardListener}.
@@ -51,12 +59,25 @@ public class ShardListener extends CollectingTestListener {
         mMasterListener = master;
     }
 
+    /**
+     * Create a {@link ShardListener} streaming its results to the master listener of a
+     * {@link ShardResultMerger} as they complete.
+     */
+    public ShardListener(ShardResultMerger merger) {
+        mMasterListener = merger.getMasterListener();
+        mMerger = merger;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void invocationStarted(IInvocationContext context) {
         super.invocationStarted(context);
+        if (mMerger != null) {
+            mMerger.submit(() -> mMasterListener.invocationStarted(context));
+            return;
+        }
         synchronized (mMasterListener) {
             mMasterListener.invocationStarted(context);
         }
@@ -68,6 +89,10 @@ public class ShardListener extends CollectingTestListener {
     @Override
     public void invocationFailed(Throwable cause) {
         super.invocationFailed(cause);
+        if (mMerger != null) {
+            mMerger.submit(() -> mMasterListener.invocationFailed(cause));
+            return;
+        }
         synchronized (mMasterListener) {
             mMasterListener.invocationFailed(cause);
         }
@@ -85,6 +110,24 @@ public class ShardListener extends CollectingTestListener {
         }
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public void testModuleStarted(IInvocationContext moduleContext) {
+        super.testModuleStarted(moduleContext);
+        mInModule = true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testModuleEnded() {
+        super.testModuleEnded();
+        mInModule = false;
+        if (mMerger != null) {
+            Map<TestRunResult, IInvocationContext> runResults = takeRunResults();
+            mMerger.submit(() -> forwardRunResults(runResults));
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -93,6 +136,11 @@ public class ShardListener extends CollectingTestListener {
         super.testRunEnded(elapsedTime, runMetrics);
         CLog.logAndDisplay(LogLevel.INFO, "Sharded test completed: %s",
                 getCurrentRunResults().getName());
+        // the runs of a module are forwarded together when the module ends
+        if (mMerger != null && !mInModule) {
+            Map<TestRunResult, IInvocationContext> runResults = takeRunResults();
+            mMerger.submit(() -> forwardRunResults(runResults));
+        }
     }
 
     /**
@@ -111,34 +159,67 @@ public class ShardListener extends CollectingTestListener {
     @Override
     public void invocationEnded(long elapsedTime) {
         super.invocationEnded(elapsedTime);
+        if (mMerger != null) {
+            // forward what did not complete, like a run interrupted by the device going away
+            Map<TestRunResult, IInvocationContext> runResults = takeRunResults();
+            mMerger.shardEnded(() -> {
+                forwardRunResults(runResults);
+                mMasterListener.invocationEnded(elapsedTime);
+            });
+            return;
+        }
         synchronized (mMasterListener) {
             logShardContent(getRunResults());
-            IInvocationContext moduleContext = null;
+            Map<TestRunResult, IInvocationContext> runResults = new LinkedHashMap<>();
             for (TestRunResult runResult : getRunResults()) {
-                // Stop or start the module
-                if (moduleContext != null
-                        && !getModuleContextForRunResult(runResult).equals(moduleContext)) {
-                    mMasterListener.testModuleEnded();
-                    moduleContext = null;
-                }
-                if (moduleContext == null && getModuleContextForRunResult(runResult) != null) {
-                    moduleContext = getModuleContextForRunResult(runResult);
-                    mMasterListener.testModuleStarted(moduleContext);
-                }
-
-                mMasterListener.testRunStarted(runResult.getName(), runResult.getNumTests());
-                forwardTestResults(runResult.getTestResults());
-                if (runResult.isRunFailure()) {
-                    mMasterListener.testRunFailed(runResult.getRunFailureMessage());
-                }
-                mMasterListener.testRunEnded(runResult.getElapsedTime(), runResult.getRunMetrics());
+                runResults.put(runResult, getModuleContextForRunResult(runResult));
             }
-            // Close the last module
-            if (moduleContext != null) {
+            forwardRunResults(runResults);
+            mMasterListener.invocationEnded(elapsedTime);
+        }
+    }
+
+    /**
+     * Returns the results of the runs collected so far with their module context, and forget them.
+     */
+    private Map<TestRunResult, IInvocationContext> takeRunResults() {
+        Map<TestRunResult, IInvocationContext> runResults = new LinkedHashMap<>();
+        for (TestRunResult runResult : new ArrayList<>(getRunResults())) {
+            runResults.put(runResult, getModuleContextForRunResult(runResult));
+            clearRunResults(runResult);
+        }
+        return runResults;
+    }
+
+    /**
+     * Forward the results of the given runs to the master listener, grouping the consecutive runs
+     * of a module. Must be called while holding the lock on the master listener.
+     */
+    private void forwardRunResults(Map<TestRunResult, IInvocationContext> runResults) {
+        IInvocationContext moduleContext = null;
+        for (Map.Entry<TestRunResult, IInvocationContext> entry : runResults.entrySet()) {
+            TestRunResult runResult = entry.getKey();
+            // Stop or start the module
+            if (moduleContext != null && !entry.getValue().equals(moduleContext)) {
                 mMasterListener.testModuleEnded();
                 moduleContext = null;
             }
-            mMasterListener.invocationEnded(elapsedTime);
+            if (moduleContext == null && entry.getValue() != null) {
+                moduleContext = entry.getValue();
+                mMasterListener.testModuleStarted(moduleContext);
+            }
+
+            mMasterListener.testRunStarted(runResult.getName(), runResult.getNumTests());
+            forwardTestResults(runResult.getTestResults());
+            if (runResult.isRunFailure()) {
+                mMasterListener.testRunFailed(runResult.getRunFailureMessage());
+            }
+            mMasterListener.testRunEnded(runResult.getElapsedTime(), runResult.getRunMetrics());
+        }
+        // Close the last module
+        if (moduleContext != null) {
+            mMasterListener.testModuleEnded();
+            moduleContext = null;
         }
     }
 
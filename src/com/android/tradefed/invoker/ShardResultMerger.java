@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.util.TimeUtil;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Merges the results of the shards of an invocation into the master listener as the shards
+ * complete their test runs, instead of once each shard is over.
+ * <p/>
+ * The {@link ShardListener}s submit batches of results, each a complete test run or module, to a
+ * lock-free queue. The shard threads deliver the queued batches themselves, one at a time and
+ * holding the lock on the master listener, so the results of a run are never interleaved with
+ * another. A shard only delivers the batches queued before it took the delivery lock, so it is not
+ * kept delivering the results of shards that keep submitting. A shard whose batch was not
+ * delivered yet waits for the shard holding the lock, then delivers its own. No thread is started,
+ * so nothing outlives the invocation that created the merger once its shards are rescheduled.
+ */
+public class ShardResultMerger {
+
+    private final ITestInvocationListener mMaster;
+    private final ConcurrentLinkedQueue<Batch> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mShardsRemaining;
+    private final AtomicLong mSubmittedCount = new AtomicLong();
+    private final ReentrantLock mDeliveryLock = new ReentrantLock();
+
+    /** Guarded by mDeliveryLock. */
+    private long mBatchCount = 0;
+    private long mMaxWaitMs = 0;
+
+    /** A batch of results, with the time it was submitted. */
+    private static class Batch {
+        final Runnable mResults;
+        final long mSubmitTime = System.currentTimeMillis();
+        volatile boolean mDelivered = false;
+
+        Batch(Runnable results) {
+            mResults = results;
+        }
+    }
+
+    /**
+     * Create a {@link ShardResultMerger}.
+     *
+     * @param master the {@link ITestInvocationListener} to merge the results into.
+     * @param expectedShards the number of shards, the merger logs its stats once all of them
+     *     ended.
+     */
+    public ShardResultMerger(ITestInvocationListener master, int expectedShards) {
+        mMaster = master;
+        mShardsRemaining = new AtomicInteger(expectedShards);
+    }
+
+    /**
+     * Queue a batch of results for the master listener, and return once it was delivered, by this
+     * shard or by the shard holding the delivery lock.
+     *
+     * @param results forwards the results to {@link #getMasterListener()}. It may run on another
+     *     shard thread and must not use any state the shard may still change.
+     */
+    void submit(Runnable results) {
+        Batch batch = new Batch(results);
+        // counted before it is queued, so that a count covers all the batches queued before it
+        mSubmittedCount.incrementAndGet();
+        mQueue.offer(batch);
+        if (batch.mDelivered) {
+            return;
+        }
+        mDeliveryLock.lock();
+        try {
+            if (!batch.mDelivered) {
+                deliverQueued(mSubmittedCount.get());
+            }
+        } finally {
+            mDeliveryLock.unlock();
+        }
+    }
+
+    /**
+     * Queue the last batch of results of a shard. The last shard to end waits until all the
+     * results were delivered, so that the invocation is only over once they were reported.
+     */
+    void shardEnded(Runnable results) {
+        submit(results);
+        if (mShardsRemaining.decrementAndGet() <= 0) {
+            mDeliveryLock.lock();
+            try {
+                deliverQueued(Long.MAX_VALUE);
+                CLog.i("Merged %d batches of shard results, the longest waited %s.",
+                        mBatchCount, TimeUtil.formatElapsedTime(mMaxWaitMs));
+            } finally {
+                mDeliveryLock.unlock();
+            }
+        }
+    }
+
+    /** Returns the listener the results are merged into. */
+    ITestInvocationListener getMasterListener() {
+        return mMaster;
+    }
+
+    /**
+     * Deliver the queued batches, with mDeliveryLock held, until the given number of batches were
+     * delivered since the merger was created.
+     */
+    private void deliverQueued(long maxBatchCount) {
+        Batch batch;
+        while (mBatchCount < maxBatchCount && (batch = mQueue.poll()) != null) {
+            deliver(batch);
+        }
+    }
+
+    private void deliver(Batch batch) {
+        mMaxWaitMs = Math.max(mMaxWaitMs, System.currentTimeMillis() - batch.mSubmitTime);
+        mBatchCount++;
+        synchronized (mMaster) {
+            try {
+                batch.mResults.run();
+            } catch (RuntimeException e) {
+                // do not let a failing listener stop the results of the other shards
+                CLog.e("Failed to forward shard results");
+                CLog.e(e);
+            }
+        }
+        batch.mDelivered = true;
+    }
+}
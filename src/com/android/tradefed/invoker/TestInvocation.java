@@ -40,6 +40,7 @@ import com.android.tradefed.log.ILogRegistry;
 import com.android.tradefed.log.LogRegistry;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.AggregatingProfilerListener;
+import com.android.tradefed.result.AsyncResultForwarder;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.ITestLoggerReceiver;
 import com.android.tradefed.result.InputStreamSource;
@@ -941,6 +942,13 @@ public class TestInvocation implements ITestInvocation {
         if (config.getProfiler() != null) {
             allListeners.add(new AggregatingProfilerListener(config.getProfiler()));
         }
+        if (config.getCommandOptions().isAsyncResultReportingEnabled()) {
+            ITestInvocationListener asyncForwarder = new AsyncResultForwarder(allListeners,
+                    config.getCommandOptions().getAsyncResultQueueSize(),
+                    config.getCommandOptions().getAsyncResultOverflowPolicy());
+            allListeners = new ArrayList<>();
+            allListeners.add(asyncForwarder);
+        }
         ITestInvocationListener listener =
                 new LogSaverResultForwarder(config.getLogSaver(), allListeners);
         try {
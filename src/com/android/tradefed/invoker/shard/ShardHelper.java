@@ -22,6 +22,7 @@ import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.IRescheduler;
 import com.android.tradefed.invoker.ShardListener;
 import com.android.tradefed.invoker.ShardMasterResultForwarder;
+import com.android.tradefed.invoker.ShardResultMerger;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.IShardableListener;
 import com.android.tradefed.result.ITestInvocationListener;
@@ -32,6 +33,7 @@ import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IShardableTest;
 import com.android.tradefed.util.QuotationAwareTokenizer;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -80,32 +82,53 @@ public class ShardHelper implements IShardHelper {
                         config.getLogSaver(), buildMasterShardListeners(config), expectedShard);
 
         resultCollector.invocationStarted(context);
+        ShardResultMerger merger = null;
+        if (config.getCommandOptions().shouldStreamShardResults()) {
+            merger = new ShardResultMerger(resultCollector, expectedShard);
+        }
+        boolean workStealing = config.getCommandOptions().shouldUseShardWorkStealing();
+        // the pool keeps its order unless a runtime history is given
+        File historyFile = config.getCommandOptions().getShardRuntimeHistory();
+        TestRuntimeHistory runtimeHistory =
+                historyFile != null ? TestRuntimeHistory.getInstance(historyFile) : null;
         synchronized (shardableTests) {
             // When shardCount is available only create 1 poller per shard
             // TODO: consider aggregating both case by picking a predefined shardCount if not
             // available (like 4) for autosharding.
             if (shardCount != null) {
                 // We shuffle the tests for best results: avoid having the same module sub-tests
-                // contiguously in the list.
+                // contiguously in the list. Then the longest tests go first so that they do not
+                // end up delaying the last shard.
                 Collections.shuffle(shardableTests);
+                if (runtimeHistory != null) {
+                    runtimeHistory.sortByExpectedRuntime(shardableTests);
+                }
                 int maxShard = Math.min(shardCount, shardableTests.size());
                 CountDownLatch tracker = new CountDownLatch(maxShard);
                 for (int i = 0; i < maxShard; i++) {
                     IConfiguration shardConfig = config.clone();
-                    shardConfig.setTest(new TestsPoolPoller(shardableTests, tracker));
-                    rescheduleConfig(shardConfig, config, context, rescheduler, resultCollector);
+                    shardConfig.setTest(
+                            new TestsPoolPoller(shardableTests, tracker, workStealing));
+                    rescheduleConfig(
+                            shardConfig, config, context, rescheduler, resultCollector, merger);
                 }
             } else {
+                if (config.getCommandOptions().shouldUseDynamicSharding()
+                        && runtimeHistory != null) {
+                    runtimeHistory.sortByExpectedRuntime(shardableTests);
+                }
                 CountDownLatch tracker = new CountDownLatch(shardableTests.size());
                 for (IRemoteTest testShard : shardableTests) {
                     CLog.i("Rescheduling sharded config...");
                     IConfiguration shardConfig = config.clone();
                     if (config.getCommandOptions().shouldUseDynamicSharding()) {
-                        shardConfig.setTest(new TestsPoolPoller(shardableTests, tracker));
+                        shardConfig.setTest(
+                                new TestsPoolPoller(shardableTests, tracker, workStealing));
                     } else {
                         shardConfig.setTest(testShard);
                     }
-                    rescheduleConfig(shardConfig, config, context, rescheduler, resultCollector);
+                    rescheduleConfig(
+                            shardConfig, config, context, rescheduler, resultCollector, merger);
                 }
             }
         }
@@ -124,11 +147,26 @@ public class ShardHelper implements IShardHelper {
             IInvocationContext context,
             IRescheduler rescheduler,
             ShardMasterResultForwarder resultCollector) {
+        rescheduleConfig(shardConfig, config, context, rescheduler, resultCollector, null);
+    }
+
+    /**
+     * Reschedule a shard, streaming its results through the given {@link ShardResultMerger} if
+     * not null.
+     */
+    private void rescheduleConfig(
+            IConfiguration shardConfig,
+            IConfiguration config,
+            IInvocationContext context,
+            IRescheduler rescheduler,
+            ShardMasterResultForwarder resultCollector,
+            ShardResultMerger merger) {
         cloneStatusChecker(config, shardConfig);
         ShardBuildCloner.cloneBuildInfos(config, shardConfig, context);
 
         shardConfig.setTestInvocationListeners(
-                buildShardListeners(resultCollector, config.getTestInvocationListeners()));
+                buildShardListeners(
+                        resultCollector, merger, config.getTestInvocationListeners()));
         shardConfig.setLogOutput(config.getLogOutput().clone());
         shardConfig.setCommandOptions(config.getCommandOptions().clone());
         // use the same {@link ITargetPreparer}, {@link IDeviceRecovery} etc as original config
@@ -140,11 +178,14 @@ public class ShardHelper implements IShardHelper {
      */
     private static void cloneStatusChecker(IConfiguration oriConfig, IConfiguration clonedConfig) {
         try {
-            IConfiguration deepCopy =
-                    ConfigurationFactory.getInstance()
-                            .createConfigurationFromArgs(
-                                    QuotationAwareTokenizer.tokenizeLine(
-                                            oriConfig.getCommandLine()));
+            String[] args = QuotationAwareTokenizer.tokenizeLine(oriConfig.getCommandLine());
+            IConfiguration deepCopy;
+            if (oriConfig.getCommandOptions().shouldUseConfigPrototype()) {
+                deepCopy = ConfigurationFactory.getInstance()
+                        .createConfigurationFromPrototype(args, null);
+            } else {
+                deepCopy = ConfigurationFactory.getInstance().createConfigurationFromArgs(args);
+            }
             clonedConfig.setSystemStatusCheckers(deepCopy.getSystemStatusCheckers());
         } catch (ConfigurationException e) {
             // should not happen
@@ -211,17 +252,20 @@ public class ShardHelper implements IShardHelper {
     /**
      * Builds the list of {@link ITestInvocationListener}s for each shard. Currently includes any
      * {@link IShardableListener}, plus a single listener that will forward results to the master
-     * shard collector.
+     * shard collector, directly or through the {@link ShardResultMerger} if not null.
      */
     private static List<ITestInvocationListener> buildShardListeners(
-            ITestInvocationListener resultCollector, List<ITestInvocationListener> origListeners) {
+            ITestInvocationListener resultCollector,
+            ShardResultMerger merger,
+            List<ITestInvocationListener> origListeners) {
         List<ITestInvocationListener> shardListeners = new ArrayList<ITestInvocationListener>();
         for (ITestInvocationListener l : origListeners) {
             if (l instanceof IShardableListener) {
                 shardListeners.add(((IShardableListener) l).clone());
             }
         }
-        ShardListener origConfigListener = new ShardListener(resultCollector);
+        ShardListener origConfigListener =
+                merger != null ? new ShardListener(merger) : new ShardListener(resultCollector);
         shardListeners.add(origConfigListener);
         return shardListeners;
     }
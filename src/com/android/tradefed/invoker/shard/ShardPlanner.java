@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker.shard;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.util.TimeUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Splits tests into shards of similar expected duration, using the longest processing time first
+ * heuristic: tests are assigned from the longest to the shortest, each to the shard with the least
+ * work so far.
+ * <p/>
+ * The split only depends on the order of the tests and on their expected durations, so that
+ * independent shards of the same command compute the same split from the same
+ * {@link TestRuntimeHistory}.
+ */
+public class ShardPlanner {
+
+    private final TestRuntimeHistory mHistory;
+
+    /**
+     * Creates a {@link ShardPlanner} estimating durations from the given history.
+     */
+    public ShardPlanner(TestRuntimeHistory history) {
+        mHistory = history;
+    }
+
+    /**
+     * Split the tests into shards.
+     *
+     * @param tests the tests to split.
+     * @param shardCount the number of shards.
+     * @return the tests of each shard, in their original relative order.
+     */
+    public List<List<IRemoteTest>> plan(List<IRemoteTest> tests, int shardCount) {
+        long[] durations = new long[tests.size()];
+        for (int i = 0; i < tests.size(); i++) {
+            durations[i] = mHistory.getExpectedRuntime(tests.get(i));
+        }
+        int[] assignment = assign(durations, shardCount);
+        List<List<IRemoteTest>> shards = new ArrayList<>(shardCount);
+        long[] loads = new long[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new ArrayList<IRemoteTest>());
+        }
+        for (int i = 0; i < tests.size(); i++) {
+            shards.get(assignment[i]).add(tests.get(i));
+            loads[assignment[i]] += durations[i];
+        }
+        for (int i = 0; i < shardCount; i++) {
+            CLog.d("Shard %d: %d tests, expected time %s", i, shards.get(i).size(),
+                    TimeUtil.formatElapsedTime(loads[i]));
+        }
+        return shards;
+    }
+
+    /**
+     * Assign jobs of the given durations to shards, longest first, each to the least loaded shard.
+     * Ties are broken by number of jobs then by index, so that the result is deterministic.
+     *
+     * @return the shard index of each job.
+     */
+    static int[] assign(final long[] durations, int shardCount) {
+        Integer[] order = new Integer[durations.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer job1, Integer job2) {
+                int byDuration = Long.compare(durations[job2], durations[job1]);
+                return byDuration != 0 ? byDuration : Integer.compare(job1, job2);
+            }
+        });
+        // each element is {load, job count, shard index}; the job count spreads the jobs without
+        // known duration instead of piling them on the first shard.
+        PriorityQueue<long[]> shards = new PriorityQueue<>(Math.max(1, shardCount),
+                new Comparator<long[]>() {
+                    @Override
+                    public int compare(long[] shard1, long[] shard2) {
+                        for (int i = 0; i < shard1.length; i++) {
+                            int result = Long.compare(shard1[i], shard2[i]);
+                            if (result != 0) {
+                                return result;
+                            }
+                        }
+                        return 0;
+                    }
+                });
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new long[] {0L, 0L, i});
+        }
+        int[] assignment = new int[durations.length];
+        for (int job : order) {
+            long[] shard = shards.poll();
+            assignment[job] = (int) shard[2];
+            shard[0] += durations[job];
+            shard[1]++;
+            shards.add(shard);
+        }
+        return assignment;
+    }
+}
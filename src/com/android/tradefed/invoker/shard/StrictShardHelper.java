@@ -29,6 +29,8 @@ import com.android.tradefed.testtype.suite.ITestSuite;
 import com.android.tradefed.testtype.suite.ModuleMerger;
 import com.android.tradefed.util.TimeUtil;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -56,14 +58,24 @@ public class StrictShardHelper extends ShardHelper {
             // TODO: remove when IStrictShardableTest is removed.
             updateConfigIfSharded(config, shardCount, shardIndex);
         } else {
+            TestRuntimeHistory runtimeHistory = null;
+            if (shardCount > 1) {
+                runtimeHistory = loadRuntimeHistory(config);
+            }
             List<IRemoteTest> listAllTests = getAllTests(config, shardCount, context);
-            // We cannot shuffle to get better average results
-            normalizeDistribution(listAllTests, shardCount);
             List<IRemoteTest> splitList;
             if (shardCount == 1) {
                 // not sharded
                 splitList = listAllTests;
+            } else if (runtimeHistory != null) {
+                // Every shard plans from the same content, so they all compute the same split.
+                splitList =
+                        new ShardPlanner(runtimeHistory)
+                                .plan(listAllTests, shardCount)
+                                .get(shardIndex);
             } else {
+                // We cannot shuffle to get better average results
+                normalizeDistribution(listAllTests, shardCount);
                 splitList = splitTests(listAllTests, shardCount, shardIndex);
             }
             aggregateSuiteModules(splitList);
@@ -72,6 +84,35 @@ public class StrictShardHelper extends ShardHelper {
         return false;
     }
 
+    /**
+     * Returns the runtime history the strict shards of the run plan from, or null if the run does
+     * not give the md5 of one.
+     */
+    private TestRuntimeHistory loadRuntimeHistory(IConfiguration config) {
+        File historyFile = config.getCommandOptions().getShardRuntimeHistory();
+        String md5 = config.getCommandOptions().getShardRuntimeHistoryMd5();
+        if (historyFile == null || md5 == null) {
+            return null;
+        }
+        TestRuntimeHistory history = null;
+        try {
+            history = TestRuntimeHistory.loadFixed(historyFile, md5);
+        } catch (IOException e) {
+            CLog.e(e);
+        }
+        if (history == null) {
+            // falling back to another split would drop or repeat the tests of other shards
+            throw new IllegalStateException(
+                    String.format(
+                            "Cannot read the shard runtime history %s with md5 %s that the "
+                                    + "shards of the run split their tests with. Provide the "
+                                    + "same file to all the shards, or remove "
+                                    + "--shard-runtime-history-md5 from all of them.",
+                            historyFile, md5));
+        }
+        return history;
+    }
+
     // TODO: Retire IStrictShardableTest for IShardableTest and have TF balance the list of tests.
     private void updateConfigIfSharded(IConfiguration config, int shardCount, int shardIndex) {
         List<IRemoteTest> testShards = new ArrayList<>();
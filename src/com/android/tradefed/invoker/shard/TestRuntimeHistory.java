@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker.shard;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.testtype.IRuntimeHintProvider;
+import com.android.tradefed.testtype.suite.ITestSuite;
+import com.android.tradefed.testtype.suite.ModuleDefinition;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The durations of the tests run by previous invocations, used to balance the work between shards.
+ * <p/>
+ * The history is kept in a file given by the options of the invocation. Only tests that can be
+ * identified across invocations are recorded: currently the modules of an {@link ITestSuite},
+ * keyed by module id and ABI, which record their preparation, test and tear down times once they
+ * complete. The recorded duration is a moving average of the last runs, so that it follows the
+ * evolution of a module without being thrown off by a single slow run. Other tests fall back to
+ * their {@link IRuntimeHintProvider#getRuntimeHint()}.
+ */
+public class TestRuntimeHistory {
+
+    private static final String TMP_FILE_PREFIX = "tradefed-test-runtimes";
+
+    /** The weight of the latest run in the recorded duration. */
+    private static final double LATEST_RUN_WEIGHT = 0.5;
+
+    /** The histories shared by the invocations of this host, by file. Guarded by the class. */
+    private static final Map<File, TestRuntimeHistory> sInstances = new HashMap<>();
+
+    private final File mHistoryFile;
+
+    /** The durations in ms by test key, loaded on first use. Guarded by this. */
+    private Map<String, Long> mRuntimes = null;
+    private boolean mModified = false;
+
+    /**
+     * Creates a {@link TestRuntimeHistory} persisted in the given file, or <code>null</code> for an
+     * empty history that is not persisted and only provides the runtime hints of the tests.
+     */
+    public TestRuntimeHistory(File historyFile) {
+        mHistoryFile = historyFile;
+    }
+
+    /**
+     * @return the {@link TestRuntimeHistory} persisted in the given file, shared by the
+     *     invocations of this host so that the durations recorded by the shards of an invocation
+     *     are all saved.
+     */
+    public static synchronized TestRuntimeHistory getInstance(File historyFile) {
+        File key = historyFile.getAbsoluteFile();
+        TestRuntimeHistory history = sInstances.get(key);
+        if (history == null) {
+            history = new TestRuntimeHistory(key);
+            sInstances.put(key, history);
+        }
+        return history;
+    }
+
+    /**
+     * Returns the history the strict shards of a run split their tests with: the content of the
+     * file, provided it has the md5 given to all the shards. Shards that start after the file
+     * changed, or that run on another host with another file, do not get a history and cannot
+     * compute a different split than their siblings.
+     *
+     * @param historyFile the file holding the durations.
+     * @param expectedMd5 the md5 of the content the shards of the run plan from.
+     * @return the history, not persisted, or <code>null</code> if the content of the file does not
+     *     have the expected md5.
+     * @throws IOException if the file cannot be read.
+     */
+    public static TestRuntimeHistory loadFixed(File historyFile, String expectedMd5)
+            throws IOException {
+        // read the file once, so that the durations are the ones the md5 was computed on
+        byte[] content = Files.readAllBytes(historyFile.toPath());
+        String md5 = StreamUtil.calculateMd5(new ByteArrayInputStream(content));
+        if (!md5.equalsIgnoreCase(expectedMd5)) {
+            CLog.w("The md5 of %s is %s, the shards of the run expect %s", historyFile, md5,
+                    expectedMd5);
+            return null;
+        }
+        TestRuntimeHistory history = new TestRuntimeHistory(null);
+        history.mRuntimes = new HashMap<>();
+        history.parse(new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(content), StandardCharsets.UTF_8)), historyFile);
+        return history;
+    }
+
+    /**
+     * @return the key identifying the test across invocations, or <code>null</code> if the test
+     *     cannot be identified.
+     */
+    public static String getKey(IRemoteTest test) {
+        if (test instanceof ITestSuite && ((ITestSuite) test).getDirectModule() != null) {
+            return getKey(((ITestSuite) test).getDirectModule());
+        }
+        return null;
+    }
+
+    /**
+     * @return the key identifying the module across invocations: its id, qualified by its ABI
+     *     unless the id already contains it.
+     */
+    public static String getKey(ModuleDefinition module) {
+        String id = module.getId();
+        List<String> abis =
+                module.getModuleInvocationContext().getAttributes().get(
+                        ModuleDefinition.MODULE_ABI);
+        if (abis == null || abis.isEmpty() || id.contains(abis.get(0))) {
+            return id;
+        }
+        return String.format("%s %s", abis.get(0), id);
+    }
+
+    /**
+     * @return the recorded duration in ms of the test with the given key, or <code>null</code> if
+     *     it never ran on this host.
+     */
+    public synchronized Long getRuntime(String key) {
+        return getRuntimes().get(key);
+    }
+
+    /**
+     * @return a copy of all the recorded durations in ms, by test key.
+     */
+    public synchronized Map<String, Long> getAllRuntimes() {
+        return new HashMap<>(getRuntimes());
+    }
+
+    /**
+     * Record the duration of a run of the test with the given key. Call {@link #save()} to persist
+     * it.
+     */
+    public synchronized void recordRuntime(String key, long runtimeMs) {
+        Map<String, Long> runtimes = getRuntimes();
+        Long previous = runtimes.get(key);
+        long runtime = runtimeMs;
+        if (previous != null) {
+            runtime = Math.round(
+                    LATEST_RUN_WEIGHT * runtimeMs + (1 - LATEST_RUN_WEIGHT) * previous);
+        }
+        runtimes.put(key, runtime);
+        mModified = true;
+    }
+
+    /**
+     * @return the expected duration in ms of the test: the recorded one if any, otherwise its
+     *     runtime hint, otherwise 0.
+     */
+    public long getExpectedRuntime(IRemoteTest test) {
+        String key = getKey(test);
+        if (key != null) {
+            Long runtime = getRuntime(key);
+            if (runtime != null) {
+                return runtime;
+            }
+        }
+        if (test instanceof IRuntimeHintProvider) {
+            return ((IRuntimeHintProvider) test).getRuntimeHint();
+        }
+        return 0L;
+    }
+
+    /**
+     * Sort the tests by decreasing expected duration. Tests with the same expected duration keep
+     * their relative order.
+     */
+    public void sortByExpectedRuntime(List<IRemoteTest> tests) {
+        final Map<IRemoteTest, Long> expected = new IdentityHashMap<>();
+        for (IRemoteTest test : tests) {
+            expected.put(test, getExpectedRuntime(test));
+        }
+        Collections.sort(tests, new Comparator<IRemoteTest>() {
+            @Override
+            public int compare(IRemoteTest test1, IRemoteTest test2) {
+                return Long.compare(expected.get(test2), expected.get(test1));
+            }
+        });
+    }
+
+    /**
+     * Persist the recorded durations, if any changed.
+     */
+    public synchronized void save() {
+        if (!mModified || mHistoryFile == null) {
+            return;
+        }
+        File tmpFile = null;
+        Writer writer = null;
+        try {
+            tmpFile = FileUtil.createTempFile(TMP_FILE_PREFIX, ".tmp",
+                    mHistoryFile.getAbsoluteFile().getParentFile());
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmpFile), StandardCharsets.UTF_8));
+            for (Map.Entry<String, Long> entry : mRuntimes.entrySet()) {
+                writer.write(String.format("%d %s\n", entry.getValue(), entry.getKey()));
+            }
+            writer.close();
+            Files.move(tmpFile.toPath(), mHistoryFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            mModified = false;
+        } catch (IOException e) {
+            CLog.w("Failed to save the test runtimes to %s", mHistoryFile);
+            CLog.e(e);
+            StreamUtil.close(writer);
+            FileUtil.deleteFile(tmpFile);
+        }
+    }
+
+    private Map<String, Long> getRuntimes() {
+        if (mRuntimes == null) {
+            mRuntimes = new HashMap<>();
+            if (mHistoryFile != null && mHistoryFile.isFile()) {
+                load();
+            }
+        }
+        return mRuntimes;
+    }
+
+    private void load() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mHistoryFile), StandardCharsets.UTF_8));
+            parse(reader, mHistoryFile);
+        } catch (IOException e) {
+            CLog.w("Failed to load the test runtimes from %s", mHistoryFile);
+            CLog.e(e);
+        } finally {
+            StreamUtil.close(reader);
+        }
+    }
+
+    /** Add the durations read from the given history content to the loaded ones. */
+    private void parse(BufferedReader reader, File source) throws IOException {
+        String line;
+        int invalidLines = 0;
+        while ((line = reader.readLine()) != null) {
+            int separator = line.indexOf(' ');
+            if (separator <= 0 || separator == line.length() - 1) {
+                invalidLines++;
+                continue;
+            }
+            try {
+                mRuntimes.put(line.substring(separator + 1),
+                        Long.parseLong(line.substring(0, separator)));
+            } catch (NumberFormatException e) {
+                invalidLines++;
+            }
+        }
+        if (invalidLines > 0) {
+            CLog.w("Ignored %d invalid lines in %s", invalidLines, source);
+        }
+    }
+}
@@ -34,19 +34,32 @@ import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IInvocationContextReceiver;
 import com.android.tradefed.testtype.IMultiDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.testtype.IShardableTest;
 import com.android.tradefed.testtype.ITestCollector;
 import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.TimeUtil;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.CountDownLatch;
 
 /**
  * Tests wrapper that allow to execute all the tests of a pool of tests. Tests can be shared by
  * another {@link TestsPoolPoller} so synchronization is required.
  *
+ * <p>Tests are taken in the order of the pool, which {@link ShardHelper} sorts by decreasing
+ * expected duration when given a runtime history. With work stealing, once fewer tests remain than
+ * pollers, a poller taking an {@link IShardableTest} splits it and gives the extra pieces back to
+ * the pool, so that the other pollers do not sit idle while it runs. The pieces of a split test
+ * are not split again.
+ *
  * <p>TODO: Add handling for token module/tests.
  */
 public class TestsPoolPoller
@@ -61,8 +74,21 @@ public class TestsPoolPoller
 
     private static final long WAIT_RECOVERY_TIME = 15 * 60 * 1000;
 
+    /** The pieces of split tests, shared by all the pollers, so that they are not split again. */
+    private static final Set<IRemoteTest> sSplitPieces =
+            Collections.synchronizedSet(
+                    Collections.newSetFromMap(new WeakHashMap<IRemoteTest, Boolean>()));
+
+    /**
+     * The stats of the finished pollers, by the tracker they share, until the last one finishes.
+     * Guarded by itself.
+     */
+    private static final Map<CountDownLatch, List<PollerStats>> sFinishedPollers =
+            new WeakHashMap<>();
+
     private Collection<IRemoteTest> mGenericPool;
     private CountDownLatch mTracker;
+    private boolean mWorkStealing;
 
     private ITestDevice mDevice;
     private IBuildInfo mBuildInfo;
@@ -72,6 +98,22 @@ public class TestsPoolPoller
     private List<ISystemStatusChecker> mSystemStatusCheckers;
     private boolean mShouldCollectTest = false;
 
+    private final PollerStats mStats = new PollerStats();
+
+    /**
+     * How a poller ran its tests. Does not reference the poller or its tracker, so that it can be
+     * kept until the last poller of the pool finishes.
+     */
+    private static class PollerStats {
+        private String mSerial = null;
+        private int mTestCount = 0;
+        private long mBusyTime = 0L;
+        /** When the last test of the poller completed, or when it started if it ran none. */
+        private long mLastTestEnd = 0L;
+        /** The time from the last test of the poller to the end of the last poller, or -1. */
+        private volatile long mTailTime = -1L;
+    }
+
     /**
      * Ctor where the pool of {@link IRemoteTest} is provided.
      *
@@ -79,54 +121,122 @@ public class TestsPoolPoller
      * @param tracker a {@link CountDownLatch} shared to get the number of running poller.
      */
     public TestsPoolPoller(Collection<IRemoteTest> tests, CountDownLatch tracker) {
+        this(tests, tracker, false);
+    }
+
+    /**
+     * Ctor where the pool of {@link IRemoteTest} is provided.
+     *
+     * @param tests {@link IRemoteTest}s pool of all tests.
+     * @param tracker a {@link CountDownLatch} shared to get the number of running poller.
+     * @param workStealing whether tests are split for the pollers that found the pool empty.
+     */
+    public TestsPoolPoller(
+            Collection<IRemoteTest> tests, CountDownLatch tracker, boolean workStealing) {
         mGenericPool = tests;
         mTracker = tracker;
+        mWorkStealing = workStealing;
     }
 
     /** Returns the first {@link IRemoteTest} from the pool or null if none remaining. */
     IRemoteTest poll() {
+        IRemoteTest test;
+        int idlePollers;
         synchronized (mGenericPool) {
             if (mGenericPool.isEmpty()) {
                 return null;
             }
-            IRemoteTest test = mGenericPool.iterator().next();
-            mGenericPool.remove(test);
-            return test;
+            Iterator<IRemoteTest> iterator = mGenericPool.iterator();
+            test = iterator.next();
+            iterator.remove();
+            // the other running pollers that will find the pool empty
+            idlePollers = (int) mTracker.getCount() - 1 - mGenericPool.size();
+        }
+        if (mWorkStealing
+                && idlePollers > 0
+                && test instanceof IShardableTest
+                && !sSplitPieces.contains(test)) {
+            return splitForIdlePollers((IShardableTest) test, idlePollers);
+        }
+        return test;
+    }
+
+    /**
+     * Split a test taken from the pool so that the given number of otherwise idle pollers can
+     * share it, and give the extra pieces back to the pool.
+     *
+     * @return the piece to run in this poller.
+     */
+    private IRemoteTest splitForIdlePollers(IShardableTest test, int idlePollers) {
+        injectInfo((IRemoteTest) test);
+        Collection<IRemoteTest> pieces = null;
+        try {
+            pieces = test.split(idlePollers + 1);
+        } catch (RuntimeException e) {
+            CLog.e("Failed to split %s, running it as is.", test.getClass());
+            CLog.e(e);
+        }
+        if (pieces == null || pieces.size() <= 1) {
+            return (IRemoteTest) test;
+        }
+        CLog.i("Split %s in %d pieces for idle pollers.", test.getClass().getSimpleName(),
+                pieces.size());
+        sSplitPieces.addAll(pieces);
+        Iterator<IRemoteTest> iterator = pieces.iterator();
+        IRemoteTest first = iterator.next();
+        synchronized (mGenericPool) {
+            while (iterator.hasNext()) {
+                IRemoteTest piece = iterator.next();
+                if (mGenericPool instanceof List) {
+                    // the pieces of the longest test go first
+                    ((List<IRemoteTest>) mGenericPool).add(0, piece);
+                } else {
+                    mGenericPool.add(piece);
+                }
+            }
+        }
+        return first;
+    }
+
+    /** Inject the information of this poller into a test taken from the pool. */
+    private void injectInfo(IRemoteTest test) {
+        if (test instanceof IBuildReceiver) {
+            ((IBuildReceiver) test).setBuild(mBuildInfo);
+        }
+        if (test instanceof IConfigurationReceiver) {
+            ((IConfigurationReceiver) test).setConfiguration(mConfig);
+        }
+        if (test instanceof IDeviceTest) {
+            ((IDeviceTest) test).setDevice(mDevice);
+        }
+        if (test instanceof IInvocationContextReceiver) {
+            ((IInvocationContextReceiver) test).setInvocationContext(mContext);
+        }
+        if (test instanceof IMultiDeviceTest) {
+            ((IMultiDeviceTest) test).setDeviceInfos(mDeviceInfos);
+        }
+        if (test instanceof ISystemStatusCheckerReceiver) {
+            ((ISystemStatusCheckerReceiver) test).setSystemStatusChecker(mSystemStatusCheckers);
+        }
+        if (test instanceof ITestCollector) {
+            ((ITestCollector) test).setCollectTestsOnly(mShouldCollectTest);
         }
     }
 
     /** {@inheritDoc} */
     @Override
     public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
+        mStats.mSerial = mDevice != null ? mDevice.getSerialNumber() : null;
+        mStats.mLastTestEnd = System.currentTimeMillis();
         try {
             while (true) {
                 IRemoteTest test = poll();
                 if (test == null) {
                     return;
                 }
-                if (test instanceof IBuildReceiver) {
-                    ((IBuildReceiver) test).setBuild(mBuildInfo);
-                }
-                if (test instanceof IConfigurationReceiver) {
-                    ((IConfigurationReceiver) test).setConfiguration(mConfig);
-                }
-                if (test instanceof IDeviceTest) {
-                    ((IDeviceTest) test).setDevice(mDevice);
-                }
-                if (test instanceof IInvocationContextReceiver) {
-                    ((IInvocationContextReceiver) test).setInvocationContext(mContext);
-                }
-                if (test instanceof IMultiDeviceTest) {
-                    ((IMultiDeviceTest) test).setDeviceInfos(mDeviceInfos);
-                }
-                if (test instanceof ISystemStatusCheckerReceiver) {
-                    ((ISystemStatusCheckerReceiver) test)
-                            .setSystemStatusChecker(mSystemStatusCheckers);
-                }
-                if (test instanceof ITestCollector) {
-                    ((ITestCollector) test).setCollectTestsOnly(mShouldCollectTest);
-                }
+                injectInfo(test);
                 // Run the test itself and prevent random exception from stopping the poller.
+                long testStartTime = System.currentTimeMillis();
                 try {
                     test.run(listener);
                 } catch (RuntimeException e) {
@@ -144,11 +254,86 @@ public class TestsPoolPoller
                     CLog.w("Proceeding to the next test.");
                 } catch (DeviceNotAvailableException dnae) {
                     HandleDeviceNotAvailable(dnae, test);
+                } finally {
+                    mStats.mTestCount++;
+                    mStats.mLastTestEnd = System.currentTimeMillis();
+                    mStats.mBusyTime += mStats.mLastTestEnd - testStartTime;
                 }
             }
         } finally {
+            finishPoller();
+        }
+    }
+
+    /**
+     * Count this poller down. The last poller of the pool then reports, for each poller, how long
+     * it waited for the others once it had no tests left.
+     */
+    private void finishPoller() {
+        CLog.i(
+                "Test poller for %s ran %d tests in %s.",
+                mStats.mSerial,
+                mStats.mTestCount,
+                TimeUtil.formatElapsedTime(mStats.mBusyTime));
+        List<PollerStats> finished = null;
+        synchronized (sFinishedPollers) {
+            List<PollerStats> pollers = sFinishedPollers.get(mTracker);
+            if (pollers == null) {
+                pollers = new ArrayList<>();
+                sFinishedPollers.put(mTracker, pollers);
+            }
+            pollers.add(mStats);
             mTracker.countDown();
+            if (mTracker.getCount() == 0) {
+                finished = sFinishedPollers.remove(mTracker);
+            }
+        }
+        if (finished == null) {
+            return;
         }
+        long endTime = System.currentTimeMillis();
+        for (PollerStats stats : finished) {
+            stats.mTailTime = Math.max(0L, endTime - stats.mLastTestEnd);
+            logPollerStats(stats, endTime);
+        }
+    }
+
+    /** Log how long a poller ran tests and waited, to compare the completion of the shards. */
+    private static void logPollerStats(PollerStats stats, long endTime) {
+        CLog.i(
+                "Test poller for %s ran %d tests: busy %s, waited %s for the last poller.",
+                stats.mSerial,
+                stats.mTestCount,
+                TimeUtil.formatElapsedTime(stats.mBusyTime),
+                TimeUtil.formatElapsedTime(stats.mTailTime));
+        Map<String, String> args = new HashMap<>();
+        args.put("serial", stats.mSerial);
+        args.put("tests", Integer.toString(stats.mTestCount));
+        args.put("busy_ms", Long.toString(stats.mBusyTime));
+        args.put("tail_ms", Long.toString(stats.mTailTime));
+        args.put("end_timestamp", Long.toString(endTime));
+        LogRegistry.getLogRegistry()
+                .logEvent(LogLevel.INFO, EventType.SHARD_POLLER_FINISHED, args);
+    }
+
+    /**
+     * Returns the time in ms spent running tests by {@link #run(ITestInvocationListener)}.
+     */
+    public long getBusyTime() {
+        return mStats.mBusyTime;
+    }
+
+    /**
+     * Returns the time in ms between the last test of this poller and the end of the last poller
+     * of the pool, or -1 if the pool did not finish yet.
+     */
+    public long getTailTime() {
+        return mStats.mTailTime;
+    }
+
+    /** Returns the number of tests run by {@link #run(ITestInvocationListener)}. */
+    public int getTestCount() {
+        return mStats.mTestCount;
     }
 
     /**
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes the entries of a log to its {@link OutputStream} from a background thread, so that the
+ * threads logging do not wait for the disk.
+ * <p/>
+ * Entries are queued in a bounded buffer. Once it is full, the logging threads wait for the
+ * writer to catch up rather than dropping entries.
+ */
+class AsyncLogWriter extends Thread {
+
+    /** The maximum number of entries waiting to be written. */
+    static final int CAPACITY = 4096;
+
+    private final OutputStream mStream;
+    private final BlockingQueue<String> mQueue;
+
+    /** The number of entries queued, and written. Guarded by this. */
+    private long mQueuedCount = 0;
+    private long mWrittenCount = 0;
+    private boolean mClosed = false;
+
+    AsyncLogWriter(String name, OutputStream stream) {
+        this(name, stream, CAPACITY);
+    }
+
+    AsyncLogWriter(String name, OutputStream stream, int capacity) {
+        super(name);
+        setDaemon(true);
+        mStream = stream;
+        mQueue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Queue an entry to be written. Waits if the buffer is full.
+     *
+     * @return false if the writer is closed and the entry was not queued.
+     */
+    boolean write(String entry) {
+        synchronized (this) {
+            if (mClosed) {
+                return false;
+            }
+            mQueuedCount++;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mQueue.put(entry);
+                break;
+            } catch (InterruptedException e) {
+                // do not lose the entry, but preserve the interruption for the caller
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    /** Wait until the entries queued so far are written to the stream. */
+    synchronized void flush() {
+        long target = mQueuedCount;
+        boolean interrupted = false;
+        while (mWrittenCount < target && isAlive()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Write the queued entries, then stop the writer. */
+    void close() {
+        synchronized (this) {
+            mClosed = true;
+        }
+        flush();
+        interrupt();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<String> entries = new ArrayList<>();
+        while (true) {
+            try {
+                entries.add(mQueue.take());
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    if (mClosed && mQueue.isEmpty()) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            mQueue.drainTo(entries);
+            for (String entry : entries) {
+                try {
+                    mStream.write(entry.getBytes());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            synchronized (this) {
+                mWrittenCount += entries.size();
+                notifyAll();
+            }
+            entries.clear();
+        }
+    }
+}
@@ -53,7 +53,15 @@ public class FileLogger implements ILeveledLogOutput {
     @Option(name = "max-log-size", description = "maximum allowable size of tmp log data in mB.")
     private long mMaxLogSizeMbytes = 20;
 
+    @Option(
+        name = "async-log-write",
+        description = "Write the log file from a background thread, so that logging does not wait "
+                + "for the disk."
+    )
+    private boolean mAsyncWrite = true;
+
     private SizeLimitedOutputStream mLogStream;
+    private AsyncLogWriter mLogWriter;
 
     /**
      * Adds tags to the log-tag-display list
@@ -89,6 +97,10 @@ public class FileLogger implements ILeveledLogOutput {
     protected void init(String logPrefix, String fileSuffix) {
         mLogStream =
                 new SizeLimitedOutputStream(mMaxLogSizeMbytes * 1024 * 1024, logPrefix, fileSuffix);
+        if (mAsyncWrite) {
+            mLogWriter = new AsyncLogWriter(logPrefix + "writer", mLogStream);
+            mLogWriter.start();
+        }
     }
 
     /**
@@ -148,11 +160,23 @@ public class FileLogger implements ILeveledLogOutput {
      * @throws IOException
      */
     void writeToLog(String outMessage) throws IOException {
+        AsyncLogWriter logWriter = mLogWriter;
+        if (logWriter != null && logWriter.write(outMessage)) {
+            return;
+        }
         if (mLogStream != null) {
             mLogStream.write(outMessage.getBytes());
         }
     }
 
+    /** Wait for the messages already logged to be written to the log stream. */
+    private void flushLogWriter() {
+        AsyncLogWriter logWriter = mLogWriter;
+        if (logWriter != null) {
+            logWriter.flush();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -200,6 +224,7 @@ public class FileLogger implements ILeveledLogOutput {
         if (mLogStream != null) {
             try {
                 // create a InputStream from log file
+                flushLogWriter();
                 mLogStream.flush();
                 return new SnapshotInputStreamSource("FileLogger", mLogStream.getData());
             } catch (IOException e) {
@@ -224,6 +249,11 @@ public class FileLogger implements ILeveledLogOutput {
      * Exposed for unit testing.
      */
     void doCloseLog() {
+        AsyncLogWriter logWriter = mLogWriter;
+        mLogWriter = null;
+        if (logWriter != null) {
+            logWriter.close();
+        }
         SizeLimitedOutputStream stream = mLogStream;
         mLogStream = null;
         StreamUtil.flushAndCloseStream(stream);
@@ -240,6 +270,8 @@ public class FileLogger implements ILeveledLogOutput {
      */
     void dumpToLog(InputStream inputStream) throws IOException {
         if (mLogStream != null) {
+            // keep the dump after the messages already logged
+            flushLogWriter();
             StreamUtil.copyStreams(inputStream, mLogStream);
         }
     }
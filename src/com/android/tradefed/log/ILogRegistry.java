@@ -36,7 +36,9 @@ public interface ILogRegistry extends ILogOutput {
         INVOCATION_START,
         INVOCATION_END,
         HEAP_MEMORY,
+        FILE_DOWNLOAD_CACHE,
         SHARD_POLLER_EARLY_TERMINATION,
+        SHARD_POLLER_FINISHED,
         MODULE_DEVICE_NOT_AVAILABLE,
     }
 
@@ -59,6 +61,14 @@ public interface ILogRegistry extends ILogOutput {
      */
     public LogLevel getGlobalLogDisplayLevel();
 
+    /**
+     * Returns true if a message of the given level would be logged by the logger of the current
+     * thread.
+     *
+     * @param logLevel the {@link LogLevel} of the message.
+     */
+    public boolean isLoggable(LogLevel logLevel);
+
     /**
      * Registers the logger as the instance to use for the current thread.
      */
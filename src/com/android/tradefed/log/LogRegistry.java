@@ -26,9 +26,9 @@ import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.Date;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A {@link ILogRegistry} implementation that multiplexes and manages different loggers,
@@ -44,7 +44,11 @@ public class LogRegistry implements ILogRegistry {
     private static final String GLOBAL_LOG_PREFIX = "tradefed_global_log_";
     private static final String HISTORY_LOG_PREFIX = "tradefed_history_log_";
     private static LogRegistry mLogRegistry = null;
-    private Map<ThreadGroup, ILeveledLogOutput> mLogTable = new Hashtable<>();
+    /** Overrides the thread group of the threads working on behalf of another one. */
+    private static final InheritableThreadLocal<ThreadGroup> sLoggingThreadGroup =
+            new InheritableThreadLocal<>();
+    /** The loggers by thread group. Looked up without locking, updated under its own lock. */
+    private Map<ThreadGroup, ILeveledLogOutput> mLogTable = new ConcurrentHashMap<>();
     private FileLogger mGlobalLogger;
     private HistoryLogger mHistoryLogger;
 
@@ -161,9 +165,35 @@ public class LogRegistry implements ILogRegistry {
      * @return the ThreadGroup that the current thread belongs to
      */
     ThreadGroup getCurrentThreadGroup() {
+        return getLoggingThreadGroup();
+    }
+
+    /**
+     * Returns the {@link ThreadGroup} whose logger receives the logs of the current thread: the
+     * group set by {@link #setLoggingThreadGroup(ThreadGroup)} if any, or the group of the thread.
+     */
+    public static ThreadGroup getLoggingThreadGroup() {
+        ThreadGroup group = sLoggingThreadGroup.get();
+        if (group != null) {
+            return group;
+        }
         return Thread.currentThread().getThreadGroup();
     }
 
+    /**
+     * Sends the logs of the current thread, and of the threads it starts, to the logger of the
+     * given {@link ThreadGroup}. Used by pooled threads working on behalf of another thread.
+     *
+     * @param group the {@link ThreadGroup}, or null to use the group of the thread again.
+     */
+    public static void setLoggingThreadGroup(ThreadGroup group) {
+        if (group == null) {
+            sLoggingThreadGroup.remove();
+        } else {
+            sLoggingThreadGroup.set(group);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -176,6 +206,14 @@ public class LogRegistry implements ILogRegistry {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isLoggable(LogLevel logLevel) {
+        return logLevel.getPriority() >= getLogger().getLogLevel().getPriority();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -190,14 +228,16 @@ public class LogRegistry implements ILogRegistry {
      * @return the logger for this thread, or null if one has not been registered.
      */
     ILeveledLogOutput getLogger() {
-        synchronized (mLogTable) {
-            ILeveledLogOutput log = mLogTable.get(getCurrentThreadGroup());
-            if (log == null) {
-                // If there's no logger set for this thread, use global logger
-                log = mGlobalLogger;
-            }
-            return log;
+        ThreadGroup currentThreadGroup = getCurrentThreadGroup();
+        ILeveledLogOutput log = null;
+        if (currentThreadGroup != null) {
+            log = mLogTable.get(currentThreadGroup);
+        }
+        if (log == null) {
+            // If there's no logger set for this thread, use global logger
+            log = mGlobalLogger;
         }
+        return log;
     }
 
     /**
@@ -25,6 +25,8 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A logging utility class.  Useful for code that needs to override static methods from {@link Log}
@@ -36,6 +38,15 @@ public class LogUtil {
      */
     private LogUtil() {}
 
+    /** {@link SimpleDateFormat} is not thread safe, and costly to create for every message. */
+    private static final ThreadLocal<SimpleDateFormat> sDateFormat =
+            new ThreadLocal<SimpleDateFormat>() {
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat("MM-dd HH:mm:ss");
+                }
+            };
+
     /**
      * Sent when a log message needs to be printed.  This implementation prints the message to
      * stdout in all cases.
@@ -56,9 +67,16 @@ public class LogUtil {
      * @see Log#getLogFormatString(LogLevel, String, String)
      */
     public static String getLogFormatString(LogLevel logLevel, String tag, String message) {
-        SimpleDateFormat formatter = new SimpleDateFormat("MM-dd HH:mm:ss");
-        return String.format("%s %c/%s: %s\n", formatter.format(new Date()),
-                logLevel.getPriorityLetter(), tag, message);
+        StringBuilder builder = new StringBuilder(message.length() + tag.length() + 20);
+        builder.append(sDateFormat.get().format(new Date()));
+        builder.append(' ');
+        builder.append(logLevel.getPriorityLetter());
+        builder.append('/');
+        builder.append(tag);
+        builder.append(": ");
+        builder.append(message);
+        builder.append('\n');
+        return builder.toString();
     }
 
     /**
@@ -69,6 +87,9 @@ public class LogUtil {
 
         protected static final String CLASS_NAME = CLog.class.getName();
         private static IGlobalConfiguration sGlobalConfig = null;
+        private static volatile ILogRegistry sLogRegistry = null;
+        /** The simple class names by full class name, to tag the messages. */
+        private static final Map<String, String> sClassNames = new ConcurrentHashMap<>();
 
         /**
          * The shim version of {@link Log#v(String, String)}.
@@ -76,8 +97,10 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void v(String message) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.v(getClassName(2), message);
+            if (isLoggable(LogLevel.VERBOSE)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.v(getClassName(2), message);
+            }
         }
 
         /**
@@ -88,8 +111,10 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void v(String format, Object... args) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.v(getClassName(2), String.format(format, args));
+            if (isLoggable(LogLevel.VERBOSE)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.v(getClassName(2), String.format(format, args));
+            }
         }
 
         /**
@@ -98,8 +123,10 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void d(String message) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.d(getClassName(2), message);
+            if (isLoggable(LogLevel.DEBUG)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.d(getClassName(2), message);
+            }
         }
 
         /**
@@ -110,8 +137,10 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void d(String format, Object... args) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.d(getClassName(2), String.format(format, args));
+            if (isLoggable(LogLevel.DEBUG)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.d(getClassName(2), String.format(format, args));
+            }
         }
 
         /**
@@ -120,8 +149,10 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void i(String message) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.i(getClassName(2), message);
+            if (isLoggable(LogLevel.INFO)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.i(getClassName(2), message);
+            }
         }
 
         /**
@@ -132,8 +163,10 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void i(String format, Object... args) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.i(getClassName(2), String.format(format, args));
+            if (isLoggable(LogLevel.INFO)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.i(getClassName(2), String.format(format, args));
+            }
         }
 
         /**
@@ -292,6 +325,25 @@ public class LogUtil {
             sGlobalConfig = globalConfig;
         }
 
+        /**
+         * Sets the {@link ILogRegistry} that receives the ddmlib logs, so that the messages it
+         * would filter out are not even formatted.
+         *
+         * @param logRegistry the {@link ILogRegistry}, or null to format all messages.
+         */
+        public static void setLogRegistry(ILogRegistry logRegistry) {
+            sLogRegistry = logRegistry;
+        }
+
+        /**
+         * Returns false if the messages of the given level are filtered out for the current
+         * thread.
+         */
+        private static boolean isLoggable(LogLevel logLevel) {
+            ILogRegistry logRegistry = sLogRegistry;
+            return logRegistry == null || logRegistry.isLoggable(logLevel);
+        }
+
         /**
          * Gets the GlobalConfiguration instance, useful for unit testing
          *
@@ -333,7 +385,13 @@ public class LogUtil {
          */
         public static String getClassName(int frame) {
             StackTraceElement[] frames = (new Throwable()).getStackTrace();
-            return parseClassName(frames[frame].getClassName());
+            String fullName = frames[frame].getClassName();
+            String simpleName = sClassNames.get(fullName);
+            if (simpleName == null) {
+                simpleName = parseClassName(fullName);
+                sClassNames.put(fullName, simpleName);
+            }
+            return simpleName;
         }
 
         /**
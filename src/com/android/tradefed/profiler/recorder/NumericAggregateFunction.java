@@ -17,12 +17,13 @@
 package com.android.tradefed.profiler.recorder;
 
 import java.util.function.BiFunction;
+import java.util.function.DoubleBinaryOperator;
 
 /** A wrapper of BiFunction that aggregates numeric values. */
 public class NumericAggregateFunction {
 
     private double mCount = 0;
-    private BiFunction<Double, Double, Double> f;
+    private DoubleBinaryOperator f;
 
     /** Creates an aggregate function for the given {@link MetricType}. */
     public NumericAggregateFunction(MetricType metricType) {
@@ -53,6 +54,11 @@ public class NumericAggregateFunction {
 
     /** Returns the stored aggregate function. */
     public BiFunction<Double, Double, Double> getFunction() {
+        return (a, b) -> f.applyAsDouble(a, b);
+    }
+
+    /** Returns the stored aggregate function, for primitive values. */
+    public DoubleBinaryOperator getOperator() {
         return f;
     }
 }
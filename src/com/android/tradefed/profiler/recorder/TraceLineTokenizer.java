@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.profiler.recorder;
+
+/**
+ * Splits a line of ftrace output into its fields without allocating, for the format matched by
+ * {@link TraceParser#TRACE_LINE}, for example:
+ * <pre>
+ *          mmcqd/0-260   [000] d.h2 87062.464736: mmc_cmd_rw_end: cmd=25,int_status=0x00000001
+ * </pre>
+ * The fields of the last line given to {@link #tokenize(char[], int, int)} are kept as offsets in
+ * the caller's buffer, which must not change while they are read. Numbers are parsed on request.
+ */
+class TraceLineTokenizer {
+
+    private char[] mLine;
+    private int mTaskStart;
+    private int mTaskEnd;
+    private int mCpu;
+    private int mFlags;
+    private int mTimestampStart;
+    private int mTimestampEnd;
+    private int mFunctionStart;
+    private int mFunctionEnd;
+    private int mParamsStart;
+    private int mParamsEnd;
+    private long mParamValue;
+
+    /**
+     * Split the line found between <var>start</var> and <var>end</var> in the buffer.
+     *
+     * @return true if the line is a trace event, false otherwise.
+     */
+    boolean tokenize(char[] line, int start, int end) {
+        mLine = line;
+        int i = skipSpaces(line, start, end);
+        // task name and pid: "<task>-<pid>", the task name may contain '-'
+        mTaskStart = i;
+        int cpuStart = indexOf(line, '[', i, end);
+        if (cpuStart < 0) {
+            return false;
+        }
+        int pidEnd = cpuStart;
+        while (pidEnd > i && line[pidEnd - 1] == ' ') {
+            pidEnd--;
+        }
+        int dash = pidEnd - 1;
+        while (dash > i && isDigit(line[dash])) {
+            dash--;
+        }
+        if (dash < i || line[dash] != '-' || dash == pidEnd - 1) {
+            return false;
+        }
+        mTaskEnd = dash;
+        // cpu: "[ddd]"
+        if (cpuStart + 5 > end || line[cpuStart + 4] != ']') {
+            return false;
+        }
+        mCpu = 0;
+        for (int j = cpuStart + 1; j < cpuStart + 4; j++) {
+            if (!isDigit(line[j])) {
+                return false;
+            }
+            mCpu = mCpu * 10 + line[j] - '0';
+        }
+        // flags: irqs-off, need-resched, hardirq/softirq and preempt-depth
+        i = skipSpaces(line, cpuStart + 5, end);
+        if (i + 4 > end || (line[i] != 'd' && line[i] != '.') || !isDigit(line[i + 3])) {
+            return false;
+        }
+        mFlags = i;
+        // timestamp: "seconds.micros:"
+        i = skipSpaces(line, i + 4, end);
+        mTimestampStart = i;
+        while (i < end && isDigit(line[i])) {
+            i++;
+        }
+        if (i == mTimestampStart || i >= end || line[i] != '.') {
+            return false;
+        }
+        i++;
+        while (i < end && isDigit(line[i])) {
+            i++;
+        }
+        if (i >= end || line[i] != ':') {
+            return false;
+        }
+        mTimestampEnd = i;
+        // function name: "name: "
+        i = skipSpaces(line, i + 1, end);
+        mFunctionStart = i;
+        while (i < end && isWordChar(line[i])) {
+            i++;
+        }
+        if (i == mFunctionStart || i + 1 >= end || line[i] != ':' || line[i + 1] != ' ') {
+            return false;
+        }
+        mFunctionEnd = i;
+        mParamsStart = i + 2;
+        mParamsEnd = end;
+        return true;
+    }
+
+    /** Returns true if the function name of the line is the given one. */
+    boolean functionNameEquals(String name) {
+        if (mFunctionEnd - mFunctionStart != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (mLine[mFunctionStart + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the timestamp of the line, in seconds. It may differ from
+     * {@link Double#parseDouble(String)} in the last bit, which is fine to compute intervals.
+     */
+    double getTimestamp() {
+        long seconds = 0;
+        int i = mTimestampStart;
+        for (; mLine[i] != '.'; i++) {
+            seconds = seconds * 10 + mLine[i] - '0';
+        }
+        long fraction = 0;
+        long scale = 1;
+        for (i++; i < mTimestampEnd; i++) {
+            fraction = fraction * 10 + mLine[i] - '0';
+            scale *= 10;
+        }
+        return seconds + (double) fraction / scale;
+    }
+
+    /**
+     * Look for a parameter of the function, "name=value" in a comma separated list. Values
+     * starting with "0x" are hexadecimal.
+     *
+     * @return true if the parameter was found, its value is then given by
+     *     {@link #getParamValue()}.
+     */
+    boolean findParam(String name) {
+        int i = mParamsStart;
+        while (i < mParamsEnd) {
+            int pairEnd = indexOf(mLine, ',', i, mParamsEnd);
+            if (pairEnd < 0) {
+                pairEnd = mParamsEnd;
+            }
+            int equals = indexOf(mLine, '=', i, pairEnd);
+            if (equals - i == name.length() && regionMatches(i, name)) {
+                return parseValue(equals + 1, pairEnd);
+            }
+            i = pairEnd + 1;
+        }
+        return false;
+    }
+
+    /** Returns the value of the parameter found by {@link #findParam(String)}. */
+    long getParamValue() {
+        return mParamValue;
+    }
+
+    /** Returns a {@link TraceLine} holding the fields of the line. */
+    TraceLine toTraceLine() {
+        TraceLine descriptor = new TraceLine();
+        descriptor.setTaskName(new String(mLine, mTaskStart, mTaskEnd - mTaskStart));
+        descriptor.setCoreNum(mCpu);
+        descriptor.setIrqsOff(mLine[mFlags] != '.');
+        descriptor.setNeedsResched(mLine[mFlags + 1] != '.');
+        descriptor.setHardIrq(mLine[mFlags + 2] == 'H');
+        descriptor.setPreemptDelay(mLine[mFlags + 3] - '0');
+        descriptor.setTimestamp(Double.parseDouble(
+                new String(mLine, mTimestampStart, mTimestampEnd - mTimestampStart)));
+        descriptor.setFunctionName(
+                new String(mLine, mFunctionStart, mFunctionEnd - mFunctionStart));
+        return descriptor;
+    }
+
+    /** Returns the parameters of the function, as found in the line. */
+    String getParams() {
+        return new String(mLine, mParamsStart, mParamsEnd - mParamsStart);
+    }
+
+    private boolean parseValue(int start, int end) {
+        int radix = 10;
+        if (end - start >= 2 && mLine[start + 1] == 'x') {
+            radix = 16;
+            start += 2;
+        }
+        if (start >= end) {
+            return false;
+        }
+        boolean negative = mLine[start] == '-';
+        if (negative) {
+            start++;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(mLine[i], radix);
+            if (digit < 0) {
+                return false;
+            }
+            value = value * radix + digit;
+        }
+        mParamValue = negative ? -value : value;
+        return true;
+    }
+
+    private boolean regionMatches(int start, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (mLine[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipSpaces(char[] line, int i, int end) {
+        while (i < end && Character.isWhitespace(line[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int indexOf(char[] line, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWordChar(char c) {
+        return isDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+}
@@ -19,45 +19,70 @@ package com.android.tradefed.profiler.recorder;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StreamUtil;
 
+import com.google.common.annotations.VisibleForTesting;
+
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.function.BiFunction;
+import java.util.function.DoubleBinaryOperator;
 
 /**
  * An {@link IMetricsRecorder} that records metrics taken from the /d/tracing directory.
  *
  * Metrics to be recorded need to be provided as TraceMetrics. The default descriptor
  * has the format prefix:funcname:param[=expectedval]:metrictype.
+ *
+ * The trace is filtered on the device down to the enabled events before being pulled, then parsed
+ * as a stream without creating objects for each line.
  */
 public class TraceMetricsRecorder implements IMetricsRecorder {
 
     private static final String TRACE_DIR = "/d/tracing";
     private static final String EVENT_DIR = TRACE_DIR + "/events/";
+    private static final String FILTERED_TRACE = "/data/local/tmp/tradefed_trace.txt";
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     private Map<String, TraceMetric> mTraceMetrics;
-    private Map<TraceMetric, BiFunction<Double, Double, Double>> mMergeFunctions;
-    private TraceParser mParser;
+    private Map<TraceMetric, NumericAggregateFunction> mMergeFunctions;
+
+    /** The value of a metric, aggregated as the trace is read like {@link Map#merge} would. */
+    private static class MetricValue {
+        final TraceMetric mMetric;
+        final DoubleBinaryOperator mOperator;
+        boolean mHasValue = false;
+        double mValue;
+
+        MetricValue(TraceMetric metric, DoubleBinaryOperator operator) {
+            mMetric = metric;
+            mOperator = operator;
+        }
+
+        void merge(double value) {
+            mValue = mHasValue ? mOperator.applyAsDouble(mValue, value) : value;
+            mHasValue = true;
+        }
+    }
 
     @Override
     public void setUp(ITestDevice device, Collection<String> descriptors)
             throws DeviceNotAvailableException {
         mMergeFunctions = new HashMap<>();
         mTraceMetrics = new HashMap<>();
-        mParser = new TraceParser();
         for (String descriptor : descriptors) {
             TraceMetric metric = TraceMetric.parse(descriptor);
             enableSingleEventTrace(device, metric.getPrefix() + "/" + metric.getFuncName());
             mTraceMetrics.put(metric.getFuncName(), metric);
-            mMergeFunctions.put(
-                    metric, new NumericAggregateFunction(metric.getMetricType()).getFunction());
+            mMergeFunctions.put(metric, new NumericAggregateFunction(metric.getMetricType()));
         }
     }
 
@@ -69,63 +94,155 @@ public class TraceMetricsRecorder implements IMetricsRecorder {
     @Override
     public Map<String, Double> stopMetrics(ITestDevice device) throws DeviceNotAvailableException {
         disableTracing(device);
-        Map<String, Double> metrics = new HashMap<>();
-        File fullTrace = device.pullFile(TRACE_DIR + "/trace");
+        File fullTrace = pullTrace(device);
         if (fullTrace == null) {
             throw new AssertionError("Failed to pull trace file");
         }
+        Map<String, Double> metrics = null;
         BufferedReader trace = null;
         try {
             trace = getReaderFromFile(fullTrace);
-            String line;
-            Double lastTimestamp = null;
-            while ((line = trace.readLine()) != null) {
-                if (line.startsWith("#")) {
-                    continue;
-                }
-                line = line.trim();
-                CLog.v("Got trace line %s", line);
-                TraceLine descriptor = mParser.parseTraceLine(line);
-                TraceMetric matchedMetric = mTraceMetrics.get(descriptor.getFunctionName());
-                // There's no template for handling this metric, so ignore it.
-                if (matchedMetric == null) {
-                    continue;
-                }
-                if (matchedMetric.getMetricType() == MetricType.AVGTIME) {
-                    lastTimestamp = descriptor.getTimestamp();
-                    continue;
-                } else if (lastTimestamp != null) {
-                    double timeDiff = descriptor.getTimestamp() - lastTimestamp;
-                    lastTimestamp = null;
-                    metrics.merge(
-                            matchedMetric.toString(), timeDiff, mMergeFunctions.get(matchedMetric));
-                } else {
-                    Long baseParamValue =
-                            descriptor.getFunctionParams().get(matchedMetric.getParam());
-                    if (baseParamValue == null) {
-                        continue;
-                    }
-                    metrics.merge(
-                            matchedMetric.toString(), Double.valueOf(baseParamValue),
-                            mMergeFunctions.get(matchedMetric));
-                }
-            }
+            metrics = parseMetrics(trace);
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
             StreamUtil.close(trace);
+            FileUtil.deleteFile(fullTrace);
         }
         // Clear out the trace
         device.executeShellCommand("echo > " + TRACE_DIR + "/trace");
         return metrics;
     }
 
+    /**
+     * Aggregate the values of the trace lines matching a metric.
+     *
+     * @return the value of each metric found in the trace.
+     */
+    @VisibleForTesting
+    Map<String, Double> parseMetrics(BufferedReader trace) throws IOException {
+        MetricValue[] values = new MetricValue[mTraceMetrics.size()];
+        int index = 0;
+        for (TraceMetric metric : mTraceMetrics.values()) {
+            values[index++] =
+                    new MetricValue(metric, mMergeFunctions.get(metric).getOperator());
+        }
+        parseTrace(trace, values);
+        Map<String, Double> metrics = new HashMap<>();
+        for (MetricValue value : values) {
+            if (value.mHasValue) {
+                metrics.put(value.mMetric.toString(), value.mValue);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Pull the lines of the trace for the enabled events, filtering them on the device when
+     * possible to only transfer what is needed.
+     */
+    private File pullTrace(ITestDevice device) throws DeviceNotAvailableException {
+        if (!mTraceMetrics.isEmpty()) {
+            String events = String.join("|", mTraceMetrics.keySet());
+            // grep exits with 0 when lines matched, 1 when none did and 2 on errors
+            String status = device.executeShellCommand(String.format(
+                    "grep -E ': (%s): ' %s/trace > %s; echo $?", events, TRACE_DIR,
+                    FILTERED_TRACE));
+            if (status != null && (status.trim().equals("0") || status.trim().equals("1"))) {
+                File filteredTrace = device.pullFile(FILTERED_TRACE);
+                device.executeShellCommand("rm -f " + FILTERED_TRACE);
+                if (filteredTrace != null) {
+                    return filteredTrace;
+                }
+            }
+            CLog.w("Failed to filter the trace on the device, pulling all of it");
+        }
+        return device.pullFile(TRACE_DIR + "/trace");
+    }
+
+    /**
+     * Read the trace line by line into a reused buffer, and aggregate the values of the lines
+     * matching a metric.
+     */
+    private void parseTrace(BufferedReader trace, MetricValue[] values) throws IOException {
+        TraceLineTokenizer tokenizer = new TraceLineTokenizer();
+        char[] buffer = new char[BUFFER_SIZE];
+        // the unread part of the buffer is between start and length
+        int start = 0;
+        int length = 0;
+        int scanned = 0;
+        long lineCount = 0;
+        long invalidCount = 0;
+        boolean hasLastTimestamp = false;
+        double lastTimestamp = 0;
+        boolean endOfStream = false;
+        while (start < length || !endOfStream) {
+            int lineEnd = scanned;
+            while (lineEnd < length && buffer[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == length && !endOfStream) {
+                // no complete line left, make room and read more
+                if (start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, length - start);
+                    length -= start;
+                    lineEnd -= start;
+                    start = 0;
+                } else if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int read = trace.read(buffer, length, buffer.length - length);
+                if (read < 0) {
+                    endOfStream = true;
+                } else {
+                    length += read;
+                }
+                scanned = lineEnd;
+                continue;
+            }
+            int end = lineEnd;
+            while (end > start && Character.isWhitespace(buffer[end - 1])) {
+                end--;
+            }
+            lineCount++;
+            if (buffer[start] != '#') {
+                if (!tokenizer.tokenize(buffer, start, end)) {
+                    invalidCount++;
+                } else {
+                    MetricValue matched = null;
+                    for (MetricValue value : values) {
+                        if (tokenizer.functionNameEquals(value.mMetric.getFuncName())) {
+                            matched = value;
+                            break;
+                        }
+                    }
+                    // There's no template for handling this metric, so ignore it.
+                    if (matched != null) {
+                        if (matched.mMetric.getMetricType() == MetricType.AVGTIME) {
+                            lastTimestamp = tokenizer.getTimestamp();
+                            hasLastTimestamp = true;
+                        } else if (hasLastTimestamp) {
+                            matched.merge(tokenizer.getTimestamp() - lastTimestamp);
+                            hasLastTimestamp = false;
+                        } else if (tokenizer.findParam(matched.mMetric.getParam())) {
+                            matched.merge(tokenizer.getParamValue());
+                        }
+                    }
+                }
+            }
+            start = Math.min(lineEnd + 1, length);
+            scanned = start;
+        }
+        CLog.d("Parsed %d trace lines, %d were not trace events", lineCount, invalidCount);
+    }
+
     @Override
     public BiFunction<Double, Double, Double> getMergeFunction(String key) {
         CLog.i("Looking up merge function for metric %s", key);
-        return mMergeFunctions.get(TraceMetric.parse(key));
+        NumericAggregateFunction function = mMergeFunctions.get(TraceMetric.parse(key));
+        return function == null ? null : function.getFunction();
     }
 
     @Override
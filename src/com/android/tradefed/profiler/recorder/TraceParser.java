@@ -18,13 +18,13 @@ package com.android.tradefed.profiler.recorder;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * A parser for interpreting lines from /d/tracing/trace and encoding them as {@link TraceLine}s.
  */
 public class TraceParser {
+    // The format of a trace line. Lines are split by TraceLineTokenizer, which is much faster.
     protected static final String REGEX_TASK_NAME = "^\\s*([a-zA-Z0-9_/\\-:<>]*)-\\d+";
     protected static final String REGEX_CPU_NUM = "\\s*\\[(\\d\\d\\d)\\]";
     protected static final String REGEX_FLAG_CLUSTER = "\\s*([d\\.])(.)(.)(\\d)";
@@ -32,16 +32,6 @@ public class TraceParser {
     protected static final String REGEX_FUNCTION_NAME = "\\s*(\\w+):";
     protected static final String REGEX_FUNCTION_PARAMS = " (.*)$";
 
-    private static final int GRP_TASK_NAME = 1;
-    private static final int GRP_CPU_NUM = 2;
-    private static final int GRP_IRQS_OFF = 3;
-    private static final int GRP_RESCHED = 4;
-    private static final int GRP_HARD_IRQ = 5;
-    private static final int GRP_PREEMPT = 6;
-    private static final int GRP_TIMESTAMP = 7;
-    private static final int GRP_FUNC_NAME = 8;
-    private static final int GRP_FUNC_PARAM = 9;
-
     protected static final Pattern TRACE_LINE =
             Pattern.compile(
                     REGEX_TASK_NAME
@@ -68,20 +58,13 @@ public class TraceParser {
     }
 
     public TraceLine parseTraceLine(String line) {
-        Matcher m = TRACE_LINE.matcher(line);
-        if (!m.find()) {
+        char[] chars = line.toCharArray();
+        TraceLineTokenizer tokenizer = new TraceLineTokenizer();
+        if (!tokenizer.tokenize(chars, 0, chars.length)) {
             throw new IllegalArgumentException("Didn't match line: " + line);
         }
-        TraceLine descriptor = new TraceLine();
-        descriptor.setTaskName(m.group(GRP_TASK_NAME));
-        descriptor.setCoreNum(Integer.parseInt(m.group(GRP_CPU_NUM)));
-        descriptor.setIrqsOff(!m.group(GRP_IRQS_OFF).equals("."));
-        descriptor.setNeedsResched(!m.group(GRP_RESCHED).equals("."));
-        descriptor.setHardIrq(m.group(GRP_HARD_IRQ).equals("H"));
-        descriptor.setPreemptDelay(Integer.parseInt(m.group(GRP_PREEMPT)));
-        descriptor.setTimestamp(Double.parseDouble(m.group(GRP_TIMESTAMP)));
-        descriptor.setFunctionName(m.group(GRP_FUNC_NAME));
-        descriptor.setFunctionParams(parseFunctionParams(m.group(GRP_FUNC_PARAM)));
+        TraceLine descriptor = tokenizer.toTraceLine();
+        descriptor.setFunctionParams(parseFunctionParams(tokenizer.getParams()));
         return descriptor;
     }
 }
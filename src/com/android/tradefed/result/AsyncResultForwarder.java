@@ -0,0 +1,562 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * A {@link ResultForwarder} that delivers the events to each listener from a dedicated thread, so
+ * that a slow listener does not hold up the tests.
+ * <p/>
+ * Each listener has its own bounded queue of events, delivered in the order they were received.
+ * When a queue is full, the {@link OverflowPolicy} decides whether the caller waits for the
+ * listener to catch up or a log event is discarded for that listener. The other events always
+ * wait: the listeners track the state of the invocation, runs and tests from them. {@link #invocationEnded(long)}
+ * waits for all the queued events to be delivered, then stops the threads and ends the invocation
+ * of the listeners synchronously, so that the summaries are gathered as usual.
+ * <p/>
+ * The caller of {@link #testLog(String, LogDataType, InputStreamSource)} may invalidate the source
+ * as soon as the call returns, so the data is first copied to a temporary file shared by the
+ * listeners, and deleted once they all received it.
+ * <p/>
+ * When the invocation ends, the largest delay between the reception of an event and its delivery,
+ * and the number of discarded events, are added to the invocation attributes for each listener.
+ */
+public class AsyncResultForwarder extends ResultForwarder implements ILogSaverListener {
+
+    /** What to do with an event when the queue of a listener is full. */
+    public enum OverflowPolicy {
+        /** Wait for the listener to make room in its queue. */
+        BLOCK,
+        /** Drop log events for that listener, wait for room for the other events. */
+        DISCARD,
+    }
+
+    /** The default number of events each listener can lag behind. */
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    static final String MAX_LAG_ATTRIBUTE = "async_listener_max_lag_ms";
+    static final String DISCARDED_ATTRIBUTE = "async_listener_discarded_events";
+
+    private final List<ListenerQueue> mQueues = new ArrayList<>();
+    private IInvocationContext mContext = null;
+
+    /** The last log copied, kept for the testLogSaved call following its testLog. */
+    private InputStreamSource mLastLogSource = null;
+    private SharedLogSource mLastLogCopy = null;
+
+    /**
+     * Create an {@link AsyncResultForwarder} that blocks when a listener lags behind by more than
+     * {@link #DEFAULT_CAPACITY} events.
+     *
+     * @param listeners the real {@link ITestInvocationListener}s to forward results to
+     */
+    public AsyncResultForwarder(List<ITestInvocationListener> listeners) {
+        this(listeners, DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Create an {@link AsyncResultForwarder}.
+     *
+     * @param listeners the real {@link ITestInvocationListener}s to forward results to
+     * @param capacity the number of events each listener can lag behind
+     * @param policy what to do with an event when a listener lags behind by capacity events
+     */
+    public AsyncResultForwarder(List<ITestInvocationListener> listeners, int capacity,
+            OverflowPolicy policy) {
+        super(listeners);
+        for (ITestInvocationListener listener : listeners) {
+            mQueues.add(new ListenerQueue(listener, capacity, policy));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationStarted(IInvocationContext context) {
+        mContext = context;
+        dispatch("invocationStarted", listener -> listener.invocationStarted(context));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationFailed(Throwable cause) {
+        dispatch("invocationFailed", listener -> listener.invocationFailed(cause));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Waits for the listeners to receive all the previous events.
+     */
+    @Override
+    public void invocationEnded(long elapsedTime) {
+        for (ListenerQueue queue : mQueues) {
+            queue.close();
+        }
+        releaseLastLog();
+        reportLag();
+        super.invocationEnded(elapsedTime);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
+        releaseLastLog();
+        SharedLogSource copy = copyLog(dataName, dataStream);
+        if (copy == null) {
+            // deliver the original source while the caller still holds it
+            waitForListeners();
+            super.testLog(dataName, dataType, dataStream);
+            return;
+        }
+        // keep a reference for the testLogSaved call that may follow
+        copy.acquire(mQueues.size() + 1);
+        mLastLogSource = dataStream;
+        mLastLogCopy = copy;
+        for (ListenerQueue queue : mQueues) {
+            queue.enqueue("testLog", copy, true,
+                    listener -> listener.testLog(dataName, dataType, copy));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testLogSaved(String dataName, LogDataType dataType, InputStreamSource dataStream,
+            LogFile logFile) {
+        List<ListenerQueue> queues = new ArrayList<>();
+        for (ListenerQueue queue : mQueues) {
+            if (queue.getListener() instanceof ILogSaverListener) {
+                queues.add(queue);
+            }
+        }
+        SharedLogSource copy = null;
+        if (dataStream != null && dataStream == mLastLogSource) {
+            copy = mLastLogCopy;
+            mLastLogSource = null;
+            mLastLogCopy = null;
+        } else {
+            releaseLastLog();
+            copy = copyLog(dataName, dataStream);
+            if (copy == null) {
+                waitForListeners();
+                for (ListenerQueue queue : queues) {
+                    ((ILogSaverListener) queue.getListener()).testLogSaved(dataName, dataType,
+                            dataStream, logFile);
+                }
+                return;
+            }
+            copy.acquire(1);
+        }
+        copy.acquire(queues.size());
+        for (ListenerQueue queue : queues) {
+            final SharedLogSource source = copy;
+            queue.enqueue("testLogSaved", source, true, listener -> ((ILogSaverListener) listener)
+                    .testLogSaved(dataName, dataType, source, logFile));
+        }
+        copy.release();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setLogSaver(ILogSaver logSaver) {
+        for (ITestInvocationListener listener : getListeners()) {
+            if (listener instanceof ILogSaverListener) {
+                ((ILogSaverListener) listener).setLogSaver(logSaver);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+        dispatch("testRunStarted", listener -> listener.testRunStarted(runName, testCount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunFailed(String errorMessage) {
+        dispatch("testRunFailed", listener -> listener.testRunFailed(errorMessage));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStopped(long elapsedTime) {
+        dispatch("testRunStopped", listener -> listener.testRunStopped(elapsedTime));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        // the caller may reuse the map once the call returns
+        Map<String, String> metrics = copyMetrics(runMetrics);
+        dispatch("testRunEnded", listener -> listener.testRunEnded(elapsedTime, metrics));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testStarted(TestIdentifier test, long startTime) {
+        dispatch("testStarted", listener -> listener.testStarted(test, startTime));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testFailed(TestIdentifier test, String trace) {
+        dispatch("testFailed", listener -> listener.testFailed(test, trace));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testEnded(TestIdentifier test, long endTime, Map<String, String> testMetrics) {
+        Map<String, String> metrics = copyMetrics(testMetrics);
+        dispatch("testEnded", listener -> listener.testEnded(test, endTime, metrics));
+    }
+
+    @Override
+    public void testAssumptionFailure(TestIdentifier test, String trace) {
+        dispatch("testAssumptionFailure", listener -> listener.testAssumptionFailure(test, trace));
+    }
+
+    @Override
+    public void testIgnored(TestIdentifier test) {
+        dispatch("testIgnored", listener -> listener.testIgnored(test));
+    }
+
+    @Override
+    public void testModuleStarted(IInvocationContext moduleContext) {
+        dispatch("testModuleStarted", listener -> listener.testModuleStarted(moduleContext));
+    }
+
+    @Override
+    public void testModuleEnded() {
+        dispatch("testModuleEnded", listener -> listener.testModuleEnded());
+    }
+
+    /**
+     * Wait until the listeners received all the events queued so far.
+     */
+    public void waitForListeners() {
+        for (ListenerQueue queue : mQueues) {
+            queue.drain();
+        }
+    }
+
+    private void dispatch(String method, Consumer<ITestInvocationListener> event) {
+        for (ListenerQueue queue : mQueues) {
+            queue.enqueue(method, null, false, event);
+        }
+    }
+
+    private static Map<String, String> copyMetrics(Map<String, String> metrics) {
+        return metrics == null ? null : new HashMap<>(metrics);
+    }
+
+    /**
+     * Copy the data of a log to a temporary file.
+     *
+     * @return the copy, or <code>null</code> if the data could not be copied.
+     */
+    private SharedLogSource copyLog(String dataName, InputStreamSource dataStream) {
+        if (dataStream == null) {
+            return null;
+        }
+        InputStream input = dataStream.createInputStream();
+        if (input == null) {
+            return null;
+        }
+        File copy = null;
+        try {
+            copy = FileUtil.createTempFile(String.format("async-log-%s", dataName), ".tmp");
+            FileUtil.writeToFile(input, copy);
+            return new SharedLogSource(copy);
+        } catch (IOException e) {
+            CLog.w("Failed to copy log %s for asynchronous delivery", dataName);
+            CLog.e(e);
+            FileUtil.deleteFile(copy);
+            return null;
+        }
+    }
+
+    private void releaseLastLog() {
+        if (mLastLogCopy != null) {
+            mLastLogCopy.release();
+            mLastLogCopy = null;
+            mLastLogSource = null;
+        }
+    }
+
+    /**
+     * Add the lag of each listener to the invocation attributes.
+     */
+    private void reportLag() {
+        for (ListenerQueue queue : mQueues) {
+            String name = queue.getListener().getClass().getName();
+            CLog.d("Listener %s lagged at most %d ms behind, %d events discarded", name,
+                    queue.getMaxLagMs(), queue.getDiscardedCount());
+            if (mContext != null) {
+                mContext.addInvocationAttribute(
+                        String.format("%s:%s", MAX_LAG_ATTRIBUTE, name),
+                        Long.toString(queue.getMaxLagMs()));
+                mContext.addInvocationAttribute(
+                        String.format("%s:%s", DISCARDED_ATTRIBUTE, name),
+                        Long.toString(queue.getDiscardedCount()));
+            }
+        }
+    }
+
+    /** An event waiting to be delivered to a listener. */
+    private static class Event {
+        final String mMethod;
+        final SharedLogSource mLog;
+        final Consumer<ITestInvocationListener> mCall;
+        final long mReceivedTime = System.currentTimeMillis();
+
+        Event(String method, SharedLogSource log, Consumer<ITestInvocationListener> call) {
+            mMethod = method;
+            mLog = log;
+            mCall = call;
+        }
+    }
+
+    /** The queue of events of a listener, and the thread delivering them. */
+    private static class ListenerQueue extends Thread {
+        private final ITestInvocationListener mListener;
+        private final BlockingQueue<Event> mQueue;
+        private final OverflowPolicy mPolicy;
+
+        /** Guarded by this. */
+        private long mQueuedCount = 0;
+        private long mDeliveredCount = 0;
+        private long mDiscardedCount = 0;
+        private long mMaxLagMs = 0;
+        private boolean mStarted = false;
+        private boolean mClosed = false;
+
+        ListenerQueue(ITestInvocationListener listener, int capacity, OverflowPolicy policy) {
+            super(String.format("AsyncResultForwarder-%s", listener.getClass().getSimpleName()));
+            setDaemon(true);
+            mListener = listener;
+            mQueue = new ArrayBlockingQueue<>(capacity);
+            mPolicy = policy;
+        }
+
+        ITestInvocationListener getListener() {
+            return mListener;
+        }
+
+        /**
+         * Queue an event, or discard it if the queue is full, the event can be dropped and the
+         * policy says so. A log given with the event is released once the event is delivered or
+         * discarded.
+         *
+         * @param droppable whether the event can be dropped, only logs can be.
+         */
+        void enqueue(String method, SharedLogSource log, boolean droppable,
+                Consumer<ITestInvocationListener> call) {
+            Event event = new Event(method, log, call);
+            synchronized (this) {
+                if (mClosed) {
+                    CLog.w("Dropping %s for %s, the invocation ended", method,
+                            mListener.getClass().getName());
+                    releaseLog(event);
+                    return;
+                }
+                if (!mStarted) {
+                    // only start the thread once there is something to deliver, an invocation
+                    // that is sharded for example never starts
+                    start();
+                    mStarted = true;
+                }
+                if (droppable && OverflowPolicy.DISCARD.equals(mPolicy)) {
+                    if (mQueue.offer(event)) {
+                        mQueuedCount++;
+                    } else {
+                        mDiscardedCount++;
+                        releaseLog(event);
+                    }
+                    return;
+                }
+                mQueuedCount++;
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mQueue.put(event);
+                    break;
+                } catch (InterruptedException e) {
+                    // do not lose the event, but preserve the interruption for the caller
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** Wait until the events queued so far are delivered. */
+        synchronized void drain() {
+            long target = mQueuedCount;
+            boolean interrupted = false;
+            while (mDeliveredCount < target && isAlive()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** Deliver the queued events, then stop the thread. */
+        void close() {
+            synchronized (this) {
+                mClosed = true;
+            }
+            drain();
+            interrupt();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized long getMaxLagMs() {
+            return mMaxLagMs;
+        }
+
+        synchronized long getDiscardedCount() {
+            return mDiscardedCount;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Event event;
+                try {
+                    event = mQueue.take();
+                } catch (InterruptedException e) {
+                    synchronized (this) {
+                        if (mClosed && mQueue.isEmpty()) {
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                long lag = System.currentTimeMillis() - event.mReceivedTime;
+                try {
+                    event.mCall.accept(mListener);
+                } catch (RuntimeException e) {
+                    CLog.e("RuntimeException while invoking %s#%s",
+                            mListener.getClass().getName(), event.mMethod);
+                    CLog.e(e);
+                } finally {
+                    releaseLog(event);
+                }
+                synchronized (this) {
+                    mMaxLagMs = Math.max(mMaxLagMs, lag);
+                    mDeliveredCount++;
+                    notifyAll();
+                }
+            }
+        }
+
+        private static void releaseLog(Event event) {
+            if (event.mLog != null) {
+                event.mLog.release();
+            }
+        }
+    }
+
+    /**
+     * A copy of the data of a log, shared by the listeners and deleted once they all received it.
+     * Listeners closing it do not invalidate it for the others.
+     */
+    private static class SharedLogSource implements InputStreamSource {
+        private final File mFile;
+        /** Guarded by this. */
+        private int mReferences = 0;
+
+        SharedLogSource(File file) {
+            mFile = file;
+        }
+
+        synchronized void acquire(int count) {
+            mReferences += count;
+        }
+
+        synchronized void release() {
+            mReferences--;
+            if (mReferences == 0) {
+                FileUtil.deleteFile(mFile);
+            }
+        }
+
+        @Override
+        public InputStream createInputStream() {
+            try {
+                return new FileInputStream(mFile);
+            } catch (IOException e) {
+                CLog.e(e);
+                return null;
+            }
+        }
+
+        @Override
+        public void close() {
+            // the file is deleted once all the listeners received it
+        }
+
+        @Override
+        public long size() {
+            return mFile.length();
+        }
+    }
+}
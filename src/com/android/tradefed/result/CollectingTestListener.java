@@ -57,6 +57,22 @@ public class CollectingTestListener implements ITestInvocationListener {
         "attempt to add test metrics values for test runs with the same name." )
     private boolean mIsAggregateMetrics = false;
 
+    @Option(name = "compact-results", description =
+        "store the test results in a compact form, to reduce the memory used by invocations "
+        + "with a very large number of tests. The detailed results of a run are rebuilt each "
+        + "time they are requested.")
+    private boolean mCompactResults = false;
+
+    @Option(name = "spill-stack-traces", description =
+        "with compact-results, write the stack traces of the failed tests to a temporary file "
+        + "instead of keeping them in memory. The file is deleted once the results of the "
+        + "invocation were reported.")
+    private boolean mSpillStackTraces = false;
+
+    /** The names and stack traces shared by the compact results of all runs. */
+    private CompactTestRunResult.NamePool mNamePool = null;
+    private CompactTestRunResult.TraceStore mTraceStore = null;
+
     private IBuildInfo mBuildInfo;
     private IInvocationContext mContext;
 
@@ -65,6 +81,18 @@ public class CollectingTestListener implements ITestInvocationListener {
         mIsAggregateMetrics = aggregate;
     }
 
+    /** Toggle the 'compact-results' option */
+    @VisibleForTesting
+    void setCompactResults(boolean compact) {
+        mCompactResults = compact;
+    }
+
+    /** Toggle the 'spill-stack-traces' option */
+    @VisibleForTesting
+    void setSpillStackTraces(boolean spill) {
+        mSpillStackTraces = spill;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -139,7 +167,7 @@ public class CollectingTestListener implements ITestInvocationListener {
             mCurrentResults = mRunResultsMap.get(name);
         } else {
             // new run
-            mCurrentResults = new TestRunResult();
+            mCurrentResults = createRunResult();
             mCurrentResults.setAggregateMetrics(mIsAggregateMetrics);
 
             mRunResultsMap.put(name, mCurrentResults);
@@ -152,6 +180,20 @@ public class CollectingTestListener implements ITestInvocationListener {
         mIsCountDirty = true;
     }
 
+    /**
+     * Create the {@link TestRunResult} storing the results of a new run.
+     */
+    private TestRunResult createRunResult() {
+        if (!mCompactResults) {
+            return new TestRunResult();
+        }
+        if (mNamePool == null) {
+            mNamePool = new CompactTestRunResult.NamePool();
+            mTraceStore = new CompactTestRunResult.TraceStore(mSpillStackTraces);
+        }
+        return new CompactTestRunResult(mNamePool, mTraceStore);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -257,6 +299,16 @@ public class CollectingTestListener implements ITestInvocationListener {
         return mModuleContextMap.get(res);
     }
 
+    /**
+     * Forget the results of a run, for example once they were forwarded to another listener. A
+     * later run with the same name starts over with new results.
+     */
+    protected void clearRunResults(TestRunResult runResult) {
+        mRunResultsMap.remove(runResult.getName());
+        mModuleContextMap.remove(runResult);
+        mIsCountDirty = true;
+    }
+
     /** Returns True if the result map already has an entry for the run name. */
     public boolean hasResultFor(String runName) {
         return mRunResultsMap.containsKey(runName);
@@ -304,6 +356,18 @@ public class CollectingTestListener implements ITestInvocationListener {
         // ignore
     }
 
+    /**
+     * Delete the stack traces written to disk with spill-stack-traces, once the results were
+     * reported. This is done when the invocation ended for all the listeners, since reporters
+     * read the results after {@link #invocationEnded(long)}. The stack traces of the failed
+     * tests are not available afterwards.
+     */
+    public void releaseSpilledStackTraces() {
+        if (mTraceStore != null) {
+            mTraceStore.close();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
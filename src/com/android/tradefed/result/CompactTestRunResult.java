@@ -0,0 +1,598 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestResult;
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.android.ddmlib.testrunner.TestRunResult;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link TestRunResult} storing the results of its tests in columns instead of one
+ * {@link TestIdentifier} and {@link TestResult} per test, for runs with a very large number of
+ * tests.
+ * <p/>
+ * Class and method names are interned in a {@link NamePool}, statuses and times are kept in
+ * primitive arrays, identical stack traces are stored once in a {@link TraceStore}, and metrics
+ * are only kept for the tests that have some. {@link #getTestResults()} and
+ * {@link #getCompletedTests()} build a new snapshot of the results on each call: modifying the
+ * returned objects does not change the stored results.
+ */
+class CompactTestRunResult extends TestRunResult {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NO_TRACE = -1;
+    private static final TestStatus[] STATUSES = TestStatus.values();
+
+    private final NamePool mNames;
+    private final TraceStore mTraces;
+
+    private String mTestRunName = null;
+    private Map<String, String> mRunMetrics = new HashMap<>();
+    private boolean mIsRunComplete = false;
+    private long mElapsedTime = 0;
+    private String mRunFailureError = null;
+    private boolean mAggregateMetrics = false;
+
+    /** The columns of the test results, in the order the tests started. */
+    private int mTestCount = 0;
+    private int[] mClassNames = new int[INITIAL_CAPACITY];
+    private int[] mTestNames = new int[INITIAL_CAPACITY];
+    private byte[] mStatuses = new byte[INITIAL_CAPACITY];
+    private long[] mStartTimes = new long[INITIAL_CAPACITY];
+    private long[] mEndTimes = new long[INITIAL_CAPACITY];
+    private int[] mTraceIds = new int[INITIAL_CAPACITY];
+    /** The metrics of the tests that have some, by test index. */
+    private final Map<Integer, Map<String, String>> mTestMetrics = new HashMap<>();
+    private final TestIndex mIndex = new TestIndex();
+    private final int[] mStatusCounts = new int[STATUSES.length];
+
+    /**
+     * Creates a {@link CompactTestRunResult}.
+     *
+     * @param names the pool interning the class and method names, may be shared between runs
+     * @param traces the store of the stack traces, may be shared between runs
+     */
+    CompactTestRunResult(NamePool names, TraceStore traces) {
+        mNames = names;
+        mTraces = traces;
+    }
+
+    @Override
+    public void setAggregateMetrics(boolean metricAggregation) {
+        mAggregateMetrics = metricAggregation;
+    }
+
+    @Override
+    public String getName() {
+        return mTestRunName;
+    }
+
+    @Override
+    public Map<TestIdentifier, TestResult> getTestResults() {
+        Map<TestIdentifier, TestResult> results = new LinkedHashMap<>();
+        for (int i = 0; i < mTestCount; i++) {
+            results.put(getTestIdentifier(i), getTestResult(i));
+        }
+        return results;
+    }
+
+    @Override
+    public Map<String, String> getRunMetrics() {
+        return mRunMetrics;
+    }
+
+    @Override
+    public Set<TestIdentifier> getCompletedTests() {
+        Set<TestIdentifier> completedTests = new LinkedHashSet<>();
+        for (int i = 0; i < mTestCount; i++) {
+            if (mStatuses[i] != TestStatus.INCOMPLETE.ordinal()) {
+                completedTests.add(getTestIdentifier(i));
+            }
+        }
+        return completedTests;
+    }
+
+    @Override
+    public boolean isRunFailure() {
+        return mRunFailureError != null;
+    }
+
+    @Override
+    public boolean isRunComplete() {
+        return mIsRunComplete;
+    }
+
+    @Override
+    public void setRunComplete(boolean runComplete) {
+        mIsRunComplete = runComplete;
+    }
+
+    @Override
+    public int getNumTestsInState(TestStatus status) {
+        return mStatusCounts[status.ordinal()];
+    }
+
+    @Override
+    public int getNumTests() {
+        return mTestCount;
+    }
+
+    @Override
+    public int getNumCompleteTests() {
+        return getNumTests() - getNumTestsInState(TestStatus.INCOMPLETE);
+    }
+
+    @Override
+    public boolean hasFailedTests() {
+        return getNumAllFailedTests() > 0;
+    }
+
+    @Override
+    public int getNumAllFailedTests() {
+        return getNumTestsInState(TestStatus.FAILURE);
+    }
+
+    @Override
+    public long getElapsedTime() {
+        return mElapsedTime;
+    }
+
+    @Override
+    public String getRunFailureMessage() {
+        return mRunFailureError;
+    }
+
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+        mTestRunName = runName;
+        mIsRunComplete = false;
+        mRunFailureError = null;
+    }
+
+    @Override
+    public void testStarted(TestIdentifier test) {
+        testStarted(test, System.currentTimeMillis());
+    }
+
+    @Override
+    public void testStarted(TestIdentifier test, long startTime) {
+        int index = findOrAddTest(test);
+        setStatus(index, TestStatus.INCOMPLETE);
+        mStartTimes[index] = startTime;
+        mEndTimes[index] = 0;
+        mTraceIds[index] = NO_TRACE;
+        mTestMetrics.remove(index);
+    }
+
+    @Override
+    public void testFailed(TestIdentifier test, String trace) {
+        updateTestResult(test, TestStatus.FAILURE, trace);
+    }
+
+    @Override
+    public void testAssumptionFailure(TestIdentifier test, String trace) {
+        updateTestResult(test, TestStatus.ASSUMPTION_FAILURE, trace);
+    }
+
+    @Override
+    public void testIgnored(TestIdentifier test) {
+        updateTestResult(test, TestStatus.IGNORED, null);
+    }
+
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        testEnded(test, System.currentTimeMillis(), testMetrics);
+    }
+
+    @Override
+    public void testEnded(TestIdentifier test, long endTime, Map<String, String> testMetrics) {
+        int index = findTest(test);
+        if (index < 0) {
+            CLog.w("Received test ended for %s without testStarted", test);
+            index = findOrAddTest(test);
+            setStatus(index, TestStatus.INCOMPLETE);
+            mStartTimes[index] = endTime;
+            mTraceIds[index] = NO_TRACE;
+        }
+        if (mStatuses[index] == TestStatus.INCOMPLETE.ordinal()) {
+            setStatus(index, TestStatus.PASSED);
+        }
+        mEndTimes[index] = endTime;
+        if (testMetrics != null && !testMetrics.isEmpty()) {
+            Map<String, String> metrics = new HashMap<>(testMetrics.size());
+            for (Map.Entry<String, String> entry : testMetrics.entrySet()) {
+                metrics.put(mNames.getName(mNames.intern(entry.getKey())), entry.getValue());
+            }
+            mTestMetrics.put(index, metrics);
+        } else {
+            mTestMetrics.remove(index);
+        }
+    }
+
+    @Override
+    public void testRunFailed(String errorMessage) {
+        mRunFailureError = errorMessage;
+    }
+
+    @Override
+    public void testRunStopped(long elapsedTime) {
+        mElapsedTime += elapsedTime;
+        mIsRunComplete = true;
+    }
+
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        if (mAggregateMetrics) {
+            for (Map.Entry<String, String> entry : runMetrics.entrySet()) {
+                String combined = combineValues(mRunMetrics.get(entry.getKey()), entry.getValue());
+                mRunMetrics.put(entry.getKey(), combined);
+            }
+        } else {
+            mRunMetrics.putAll(runMetrics);
+        }
+        mElapsedTime += elapsedTime;
+        mIsRunComplete = true;
+    }
+
+    @Override
+    public String getTextSummary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("Total tests %d, ", getNumTests()));
+        for (TestStatus status : STATUSES) {
+            int count = getNumTestsInState(status);
+            // only add descriptive state for states that have non zero values, to avoid cluttering
+            // the response
+            if (count > 0) {
+                builder.append(String.format("%s %d, ", status.toString().toLowerCase(), count));
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Combine old and new metrics value: sum them if they are both numbers, otherwise keep the
+     * new value.
+     */
+    private static String combineValues(String existingValue, String newValue) {
+        if (existingValue != null) {
+            try {
+                return Long.toString(Long.parseLong(existingValue) + Long.parseLong(newValue));
+            } catch (NumberFormatException e) {
+                // not integers, try floating point numbers
+            }
+            try {
+                return Double.toString(
+                        Double.parseDouble(existingValue) + Double.parseDouble(newValue));
+            } catch (NumberFormatException e) {
+                // not numbers, keep the new value
+            }
+        }
+        return newValue;
+    }
+
+    private void updateTestResult(TestIdentifier test, TestStatus status, String trace) {
+        int index = findTest(test);
+        if (index < 0) {
+            CLog.w("Received test result for %s without testStarted", test);
+            index = findOrAddTest(test);
+            mStartTimes[index] = System.currentTimeMillis();
+        }
+        setStatus(index, status);
+        mTraceIds[index] = trace == null ? NO_TRACE : mTraces.add(trace);
+    }
+
+    private void setStatus(int index, TestStatus status) {
+        mStatusCounts[mStatuses[index]]--;
+        mStatuses[index] = (byte) status.ordinal();
+        mStatusCounts[status.ordinal()]++;
+    }
+
+    private int findTest(TestIdentifier test) {
+        int className = mNames.find(test.getClassName());
+        int testName = mNames.find(test.getTestName());
+        if (className < 0 || testName < 0) {
+            return -1;
+        }
+        return mIndex.get(TestIndex.key(className, testName));
+    }
+
+    /**
+     * @return the index of the test, adding an incomplete result for it if it has none.
+     */
+    private int findOrAddTest(TestIdentifier test) {
+        int className = mNames.intern(test.getClassName());
+        int testName = mNames.intern(test.getTestName());
+        long key = TestIndex.key(className, testName);
+        int index = mIndex.get(key);
+        if (index >= 0) {
+            return index;
+        }
+        if (mTestCount == mClassNames.length) {
+            int capacity = mTestCount * 2;
+            mClassNames = Arrays.copyOf(mClassNames, capacity);
+            mTestNames = Arrays.copyOf(mTestNames, capacity);
+            mStatuses = Arrays.copyOf(mStatuses, capacity);
+            mStartTimes = Arrays.copyOf(mStartTimes, capacity);
+            mEndTimes = Arrays.copyOf(mEndTimes, capacity);
+            mTraceIds = Arrays.copyOf(mTraceIds, capacity);
+        }
+        index = mTestCount++;
+        mClassNames[index] = className;
+        mTestNames[index] = testName;
+        mStatuses[index] = (byte) TestStatus.INCOMPLETE.ordinal();
+        mStatusCounts[TestStatus.INCOMPLETE.ordinal()]++;
+        mTraceIds[index] = NO_TRACE;
+        mIndex.put(key, index);
+        return index;
+    }
+
+    private TestIdentifier getTestIdentifier(int index) {
+        return new TestIdentifier(
+                mNames.getName(mClassNames[index]), mNames.getName(mTestNames[index]));
+    }
+
+    private TestResult getTestResult(int index) {
+        TestResult result = new TestResult();
+        result.setStartTime(mStartTimes[index]);
+        result.setStatus(STATUSES[mStatuses[index]]);
+        if (mTraceIds[index] != NO_TRACE) {
+            result.setStackTrace(mTraces.get(mTraceIds[index]));
+        }
+        if (mEndTimes[index] != 0) {
+            // like TestRunResult, the metrics are only set once the test ended
+            result.setEndTime(mEndTimes[index]);
+            Map<String, String> metrics = mTestMetrics.get(index);
+            result.setMetrics(
+                    metrics == null ? new HashMap<String, String>() : new HashMap<>(metrics));
+        }
+        return result;
+    }
+
+    /** An open addressing map from a pair of name ids to a test index. */
+    private static class TestIndex {
+        private long[] mKeys = new long[INITIAL_CAPACITY * 2];
+        private int[] mValues = new int[INITIAL_CAPACITY * 2];
+        private int mSize = 0;
+
+        TestIndex() {
+            Arrays.fill(mKeys, -1L);
+        }
+
+        static long key(int className, int testName) {
+            return ((long) className << 32) | (testName & 0xffffffffL);
+        }
+
+        /** @return the index of the key, or -1 if absent. */
+        int get(long key) {
+            int slot = slot(key, mKeys.length);
+            while (mKeys[slot] != -1L) {
+                if (mKeys[slot] == key) {
+                    return mValues[slot];
+                }
+                slot = (slot + 1) & (mKeys.length - 1);
+            }
+            return -1;
+        }
+
+        void put(long key, int value) {
+            if ((mSize + 1) * 2 > mKeys.length) {
+                resize();
+            }
+            int slot = slot(key, mKeys.length);
+            while (mKeys[slot] != -1L && mKeys[slot] != key) {
+                slot = (slot + 1) & (mKeys.length - 1);
+            }
+            if (mKeys[slot] == -1L) {
+                mSize++;
+            }
+            mKeys[slot] = key;
+            mValues[slot] = value;
+        }
+
+        private void resize() {
+            long[] keys = mKeys;
+            int[] values = mValues;
+            mKeys = new long[keys.length * 2];
+            mValues = new int[keys.length * 2];
+            Arrays.fill(mKeys, -1L);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != -1L) {
+                    int slot = slot(keys[i], mKeys.length);
+                    while (mKeys[slot] != -1L) {
+                        slot = (slot + 1) & (mKeys.length - 1);
+                    }
+                    mKeys[slot] = keys[i];
+                    mValues[slot] = values[i];
+                }
+            }
+        }
+
+        private static int slot(long key, int length) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash >>> 32) & (length - 1);
+        }
+    }
+
+    /**
+     * Interns the class, method and metric names of the tests, so that each distinct name is held
+     * once however many tests use it.
+     */
+    static class NamePool {
+        private final Map<String, Integer> mIds = new HashMap<>();
+        private final List<String> mNames = new ArrayList<>();
+
+        /** @return the id of the name, adding it to the pool if needed. */
+        synchronized int intern(String name) {
+            Integer id = mIds.get(name);
+            if (id == null) {
+                id = mNames.size();
+                mNames.add(name);
+                mIds.put(name, id);
+            }
+            return id;
+        }
+
+        /** @return the id of the name, or -1 if it is not in the pool. */
+        synchronized int find(String name) {
+            Integer id = mIds.get(name);
+            return id == null ? -1 : id;
+        }
+
+        synchronized String getName(int id) {
+            return mNames.get(id);
+        }
+    }
+
+    /**
+     * Stores each distinct stack trace once. When spilling, the traces are written to a temporary
+     * file instead of being kept in memory, until the store is closed.
+     */
+    static class TraceStore {
+        private final boolean mSpill;
+        /** The traces by id when kept in memory. */
+        private final List<String> mTraces = new ArrayList<>();
+        /** The ids of the traces by content when kept in memory, by hash code when spilling. */
+        private final Map<String, Integer> mIds = new HashMap<>();
+        private final Map<Integer, Integer> mIdsByHash = new HashMap<>();
+        /** The position and length in the spill file of the traces by id. */
+        private long[] mOffsets = new long[INITIAL_CAPACITY];
+        private int[] mLengths = new int[INITIAL_CAPACITY];
+        private int mSpilledCount = 0;
+        private File mSpillFile = null;
+        private RandomAccessFile mSpillStore = null;
+        private boolean mClosed = false;
+
+        /**
+         * @param spill whether to write the traces to a temporary file, deleted when the store is
+         *     closed, instead of keeping them in memory.
+         */
+        TraceStore(boolean spill) {
+            mSpill = spill;
+        }
+
+        /** @return the id of the trace, adding it to the store if needed. */
+        synchronized int add(String trace) {
+            if (mSpill && !mClosed) {
+                try {
+                    return spill(trace);
+                } catch (IOException e) {
+                    CLog.w("Failed to spill a stack trace to disk, keeping it in memory");
+                    CLog.e(e);
+                }
+            }
+            Integer id = mIds.get(trace);
+            if (id == null) {
+                // spilled traces have non negative ids, traces in memory negative ones
+                id = -2 - mTraces.size();
+                mTraces.add(trace);
+                mIds.put(trace, id);
+            }
+            return id;
+        }
+
+        synchronized String get(int id) {
+            if (id <= -2) {
+                return mTraces.get(-2 - id);
+            }
+            if (mClosed) {
+                return null;
+            }
+            try {
+                return read(id);
+            } catch (IOException e) {
+                CLog.e(e);
+                return null;
+            }
+        }
+
+        private int spill(String trace) throws IOException {
+            Integer previous = mIdsByHash.get(trace.hashCode());
+            if (previous != null && trace.equals(read(previous))) {
+                return previous;
+            }
+            if (mSpillStore == null) {
+                mSpillFile = FileUtil.createTempFile("stack-traces", ".txt");
+                try {
+                    mSpillStore = new RandomAccessFile(mSpillFile, "rw");
+                } catch (IOException e) {
+                    FileUtil.deleteFile(mSpillFile);
+                    mSpillFile = null;
+                    throw e;
+                }
+            }
+            byte[] data = trace.getBytes(StandardCharsets.UTF_8);
+            if (mSpilledCount == mOffsets.length) {
+                mOffsets = Arrays.copyOf(mOffsets, mSpilledCount * 2);
+                mLengths = Arrays.copyOf(mLengths, mSpilledCount * 2);
+            }
+            int id = mSpilledCount++;
+            mOffsets[id] = mSpillStore.length();
+            mLengths[id] = data.length;
+            mSpillStore.seek(mOffsets[id]);
+            mSpillStore.write(data);
+            if (previous == null) {
+                mIdsByHash.put(trace.hashCode(), id);
+            }
+            return id;
+        }
+
+        /**
+         * Closes and deletes the temporary file, once the results were reported. The spilled
+         * traces are not available anymore, new traces are kept in memory.
+         */
+        synchronized void close() {
+            mClosed = true;
+            if (mSpillStore == null) {
+                return;
+            }
+            StreamUtil.close(mSpillStore);
+            FileUtil.deleteFile(mSpillFile);
+            mSpillStore = null;
+            mSpillFile = null;
+        }
+
+        /** @return the temporary file the traces are spilled to, null if there is none. */
+        @VisibleForTesting
+        synchronized File getSpillFile() {
+            return mSpillFile;
+        }
+
+        private String read(int id) throws IOException {
+            byte[] data = new byte[mLengths[id]];
+            mSpillStore.seek(mOffsets[id]);
+            mSpillStore.readFully(data);
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    }
+}
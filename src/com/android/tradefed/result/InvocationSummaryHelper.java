@@ -56,5 +56,12 @@ public class InvocationSummaryHelper {
                 listener.invocationEnded(elapsedTime);
             }
         }
+
+        // all the results were reported, release what was only kept for reporting them
+        for (ITestInvocationListener listener : listeners) {
+            if (listener instanceof CollectingTestListener) {
+                ((CollectingTestListener) listener).releaseSpilledStackTraces();
+            }
+        }
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.sandbox;
+
+import com.android.tradefed.command.CommandRunner.ExitCode;
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.config.GlobalConfiguration;
+import com.android.tradefed.sandbox.SandboxConfigDump.DumpCmd;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pre-started sandbox process, kept warm by the {@link SandboxWorkerPool}. It initializes the
+ * global configuration, then waits for one {@link Request} on its stdin: it dumps the configuration
+ * of the command line and runs it like {@link TradefedSanboxRunner}, then exits.
+ * <p/>
+ * Once ready, the worker writes the time it took to start in {@link #READY_FILE}, in its
+ * java.io.tmpdir.
+ */
+public class SandboxWorker {
+
+    /** The file holding the start up time of the worker in ms, once it is waiting for work. */
+    public static final String READY_FILE = "sandbox-worker-ready";
+
+    /** The invocation a worker should run. */
+    static class Request {
+        final File mConfigFile;
+        final File mSerializedContext;
+        final int mReportPort;
+        final List<String> mArgs;
+
+        /**
+         * @param configFile where to dump the configuration of the command line.
+         * @param serializedContext the serialized {@link
+         *     com.android.tradefed.invoker.IInvocationContext} of the invocation.
+         * @param reportPort the port the results are streamed to.
+         * @param args the command line of the invocation.
+         */
+        Request(File configFile, File serializedContext, int reportPort, List<String> args) {
+            mConfigFile = configFile;
+            mSerializedContext = serializedContext;
+            mReportPort = reportPort;
+            mArgs = args;
+        }
+
+        /** Send the request to a worker. */
+        void write(OutputStream output) throws IOException {
+            DataOutputStream out = new DataOutputStream(output);
+            out.writeUTF(mConfigFile.getAbsolutePath());
+            out.writeUTF(mSerializedContext.getAbsolutePath());
+            out.writeInt(mReportPort);
+            out.writeInt(mArgs.size());
+            for (String arg : mArgs) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+        }
+
+        /**
+         * Receive a request.
+         *
+         * @return the {@link Request}, or null if the stream ended before any request.
+         */
+        static Request read(InputStream input) throws IOException {
+            DataInputStream in = new DataInputStream(input);
+            String configFile;
+            try {
+                configFile = in.readUTF();
+            } catch (EOFException e) {
+                return null;
+            }
+            File serializedContext = new File(in.readUTF());
+            int reportPort = in.readInt();
+            int argCount = in.readInt();
+            List<String> args = new ArrayList<>(argCount);
+            for (int i = 0; i < argCount; i++) {
+                args.add(in.readUTF());
+            }
+            return new Request(new File(configFile), serializedContext, reportPort, args);
+        }
+    }
+
+    /**
+     * Get ready, then run the request received on <var>input</var>.
+     *
+     * @return the exit code of the worker.
+     */
+    public ExitCode serve(InputStream input) {
+        try {
+            GlobalConfiguration.createGlobalConfiguration(new String[] {});
+        } catch (ConfigurationException e) {
+            e.printStackTrace();
+            return ExitCode.CONFIG_EXCEPTION;
+        }
+        try {
+            File ready = new File(System.getProperty("java.io.tmpdir"), READY_FILE);
+            FileUtil.writeToFile(
+                    Long.toString(ManagementFactory.getRuntimeMXBean().getUptime()), ready);
+        } catch (IOException e) {
+            // Only the report of the time saved is missing.
+            e.printStackTrace();
+        }
+
+        Request request;
+        try {
+            request = Request.read(input);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ExitCode.THROWABLE_EXCEPTION;
+        }
+        if (request == null) {
+            // The pool let go of the worker without using it.
+            return ExitCode.NO_ERROR;
+        }
+
+        List<String> dumpArgs = new ArrayList<>();
+        dumpArgs.add(DumpCmd.RUN_CONFIG.toString());
+        dumpArgs.add(request.mConfigFile.getAbsolutePath());
+        dumpArgs.addAll(request.mArgs);
+        if (new SandboxConfigDump().parse(dumpArgs.toArray(new String[0])) != 0) {
+            return ExitCode.CONFIG_EXCEPTION;
+        }
+
+        TradefedSanboxRunner runner =
+                new TradefedSanboxRunner() {
+                    @Override
+                    void initGlobalConfig(String[] args) throws ConfigurationException {
+                        // Already initialized while the worker was waiting.
+                    }
+                };
+        runner.run(
+                new String[] {
+                    request.mSerializedContext.getAbsolutePath(),
+                    request.mConfigFile.getAbsolutePath(),
+                    "--subprocess-report-port",
+                    Integer.toString(request.mReportPort)
+                });
+        return runner.getErrorCode();
+    }
+
+    public static void main(final String[] mainArgs) {
+        SandboxWorker worker = new SandboxWorker();
+        System.exit(worker.serve(System.in).getCodeValue());
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.sandbox;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps {@link SandboxWorker} processes started ahead of time for each Tradefed version, so that a
+ * {@link TradefedSandbox} does not wait for a JVM to start and load Tradefed, neither to dump its
+ * configuration nor to run it. Each worker runs a single invocation then exits, so invocations do
+ * not share any state.
+ */
+public class SandboxWorkerPool {
+
+    private static SandboxWorkerPool sInstance = null;
+
+    /** The idle workers of each Tradefed version, by the folder holding its jars. */
+    private final Map<File, Deque<Worker>> mIdleWorkers = new HashMap<>();
+
+    /** A started {@link SandboxWorker} process, with its tmp folder and output files. */
+    public static class Worker {
+        private final Process mProcess;
+        private final File mTmpFolder;
+        private final File mStdoutFile;
+        private final File mStderrFile;
+        private final long mStartTime = System.currentTimeMillis();
+
+        Worker(Process process, File tmpFolder, File stdoutFile, File stderrFile) {
+            mProcess = process;
+            mTmpFolder = tmpFolder;
+            mStdoutFile = stdoutFile;
+            mStderrFile = stderrFile;
+        }
+
+        /** Returns the java.io.tmpdir of the worker. */
+        public File getTmpFolder() {
+            return mTmpFolder;
+        }
+
+        /** Returns the file receiving the stdout of the worker. */
+        public File getStdoutFile() {
+            return mStdoutFile;
+        }
+
+        /** Returns the file receiving the stderr of the worker. */
+        public File getStderrFile() {
+            return mStderrFile;
+        }
+
+        /**
+         * Returns how long an invocation does not wait for its process to start, in ms: the whole
+         * start up time of the worker if it is ready, or the time since it was started otherwise.
+         */
+        public long getStartupSavedMs() {
+            File ready = new File(mTmpFolder, SandboxWorker.READY_FILE);
+            if (ready.exists()) {
+                try {
+                    return Long.parseLong(FileUtil.readStringFromFile(ready).trim());
+                } catch (IOException | NumberFormatException e) {
+                    CLog.w("Could not read the start up time of the sandbox worker: %s", e);
+                }
+            }
+            return System.currentTimeMillis() - mStartTime;
+        }
+
+        /**
+         * Send the request to the worker, and wait for it to complete.
+         *
+         * @param request the {@link SandboxWorker.Request} to run.
+         * @param timeout the maximum time to wait in ms, 0 to wait for as long as it takes.
+         * @return the {@link CommandResult} of the worker, with its stderr if it failed.
+         */
+        CommandResult run(SandboxWorker.Request request, long timeout) {
+            CommandResult result = new CommandResult(CommandStatus.EXCEPTION);
+            try (OutputStream input = mProcess.getOutputStream()) {
+                request.write(input);
+            } catch (IOException e) {
+                CLog.e(e);
+                mProcess.destroy();
+                result.setStderr(readStderr());
+                return result;
+            }
+            try {
+                if (timeout > 0 && !mProcess.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+                    mProcess.destroy();
+                    result.setStatus(CommandStatus.TIMED_OUT);
+                } else {
+                    result.setStatus(
+                            mProcess.waitFor() == 0
+                                    ? CommandStatus.SUCCESS
+                                    : CommandStatus.FAILED);
+                }
+            } catch (InterruptedException e) {
+                mProcess.destroy();
+                result.setStatus(CommandStatus.EXCEPTION);
+            }
+            if (!CommandStatus.SUCCESS.equals(result.getStatus())) {
+                result.setStderr(readStderr());
+            }
+            return result;
+        }
+
+        /** Returns true if the worker process did not exit. */
+        boolean isAlive() {
+            return mProcess.isAlive();
+        }
+
+        /** Stop the worker if it is still running, and delete its files. */
+        public void destroy() {
+            mProcess.destroy();
+            FileUtil.recursiveDelete(mTmpFolder);
+            FileUtil.deleteFile(mStdoutFile);
+            FileUtil.deleteFile(mStderrFile);
+        }
+
+        private String readStderr() {
+            try {
+                return FileUtil.readStringFromFile(mStderrFile);
+            } catch (IOException e) {
+                return "Could not read the stderr output from process.";
+            }
+        }
+    }
+
+    /** Returns the {@link SandboxWorkerPool} of this Tradefed instance. */
+    public static synchronized SandboxWorkerPool getInstance() {
+        if (sInstance == null) {
+            final SandboxWorkerPool pool = new SandboxWorkerPool();
+            Runtime.getRuntime()
+                    .addShutdownHook(new Thread(() -> pool.shutdown(), "SandboxWorkerPool"));
+            sInstance = pool;
+        }
+        return sInstance;
+    }
+
+    /**
+     * Take a worker for the given Tradefed version, and start new ones so that
+     * <var>warmWorkers</var> remain ready for the next invocations. A worker is started on the spot
+     * if none is ready.
+     *
+     * @param rootFolder the directory containing all the jars of the Tradefed version.
+     * @param warmWorkers the number of workers to keep ready.
+     * @return the {@link Worker}, which belongs to the caller from now on.
+     * @throws IOException if a worker could not be started.
+     */
+    public synchronized Worker acquire(File rootFolder, int warmWorkers) throws IOException {
+        Deque<Worker> idle = mIdleWorkers.get(rootFolder);
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            mIdleWorkers.put(rootFolder, idle);
+        }
+        Worker worker = null;
+        while (worker == null && !idle.isEmpty()) {
+            Worker candidate = idle.poll();
+            if (candidate.isAlive()) {
+                worker = candidate;
+            } else {
+                CLog.w("Sandbox worker exited before being used:\n%s", candidate.readStderr());
+                candidate.destroy();
+            }
+        }
+        if (worker == null) {
+            worker = startWorker(rootFolder);
+        }
+        try {
+            while (idle.size() < warmWorkers) {
+                idle.add(startWorker(rootFolder));
+            }
+        } catch (IOException e) {
+            // The next invocations will start their own worker.
+            CLog.e(e);
+        }
+        return worker;
+    }
+
+    /** Stop all the idle workers. */
+    public synchronized void shutdown() {
+        for (Deque<Worker> idle : mIdleWorkers.values()) {
+            for (Worker worker : idle) {
+                worker.destroy();
+            }
+        }
+        mIdleWorkers.clear();
+    }
+
+    /** Returns the number of idle workers of the given Tradefed version. */
+    @VisibleForTesting
+    synchronized int getIdleWorkerCount(File rootFolder) {
+        Deque<Worker> idle = mIdleWorkers.get(rootFolder);
+        return idle == null ? 0 : idle.size();
+    }
+
+    /**
+     * Returns the command starting a worker.
+     *
+     * @param rootFolder the directory containing all the jars of the Tradefed version.
+     * @param tmpFolder the java.io.tmpdir of the worker.
+     */
+    @VisibleForTesting
+    List<String> buildWorkerCommand(File rootFolder, File tmpFolder) {
+        List<String> command = new ArrayList<>();
+        command.add("java");
+        command.add(String.format("-Djava.io.tmpdir=%s", tmpFolder.getAbsolutePath()));
+        command.add("-cp");
+        command.add(new File(rootFolder, "*").getAbsolutePath());
+        command.add(SandboxWorker.class.getCanonicalName());
+        return command;
+    }
+
+    private Worker startWorker(File rootFolder) throws IOException {
+        File tmpFolder = FileUtil.createTempDir("tradefed-container");
+        File stdoutFile = null;
+        File stderrFile = null;
+        try {
+            stdoutFile = FileUtil.createTempFile("stdout_subprocess_", ".log");
+            stderrFile = FileUtil.createTempFile("stderr_subprocess_", ".log");
+            ProcessBuilder builder = new ProcessBuilder(buildWorkerCommand(rootFolder, tmpFolder));
+            // Unset the current global environment
+            builder.environment().remove(TradefedSandbox.TF_GLOBAL_CONFIG);
+            builder.redirectOutput(stdoutFile);
+            builder.redirectError(stderrFile);
+            return new Worker(builder.start(), tmpFolder, stdoutFile, stderrFile);
+        } catch (IOException e) {
+            FileUtil.recursiveDelete(tmpFolder);
+            FileUtil.deleteFile(stdoutFile);
+            FileUtil.deleteFile(stderrFile);
+            throw e;
+        }
+    }
+}
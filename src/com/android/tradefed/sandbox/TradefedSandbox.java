@@ -19,6 +19,7 @@ import com.android.annotations.VisibleForTesting;
 import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.IConfiguration;
 import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.sandbox.SandboxConfigDump.DumpCmd;
 import com.android.tradefed.util.CommandResult;
@@ -30,11 +31,13 @@ import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.SerializationUtil;
 import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.SubprocessTestResultsParser;
+import com.android.tradefed.util.TimeUtil;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -45,6 +48,8 @@ public class TradefedSandbox implements ISandbox {
 
     /** The variable holding TF specific environment */
     public static final String TF_GLOBAL_CONFIG = "TF_GLOBAL_CONFIG";
+    /** The invocation attribute holding the ms saved by using a started sandbox worker. */
+    public static final String STARTUP_SAVED_ATTRIBUTE = "sandbox-startup-saved-ms";
     /** Timeout to wait for the events received from subprocess to finish being processed. */
     private static final long EVENT_THREAD_JOIN_TIMEOUT_MS = 30 * 1000;
 
@@ -60,24 +65,40 @@ public class TradefedSandbox implements ISandbox {
 
     private SubprocessTestResultsParser mEventParser = null;
 
+    private SandboxWorkerPool.Worker mWorker = null;
+    private String[] mWorkerArgs = null;
+
     private IRunUtil mRunUtil;
 
     @Override
     public CommandResult run(IConfiguration config) {
-        List<String> mCmdArgs = new ArrayList<>();
-        mCmdArgs.add("java");
-        mCmdArgs.add(String.format("-Djava.io.tmpdir=%s", mSandboxTmpFolder.getAbsolutePath()));
-        mCmdArgs.add("-cp");
-        mCmdArgs.add(new File(mRootFolder, "*").getAbsolutePath());
-        mCmdArgs.add(TradefedSanboxRunner.class.getCanonicalName());
-        mCmdArgs.add(mSerializedContext.getAbsolutePath());
-        mCmdArgs.add(mSerializedConfiguration.getAbsolutePath());
-        mCmdArgs.add("--subprocess-report-port");
-        mCmdArgs.add(Integer.toString(mEventParser.getSocketServerPort()));
-
         long timeout = config.getCommandOptions().getInvocationTimeout();
-        CommandResult result =
-                mRunUtil.runTimedCmd(timeout, mStdout, mStderr, mCmdArgs.toArray(new String[0]));
+        CommandResult result;
+        if (mWorker != null) {
+            result =
+                    mWorker.run(
+                            new SandboxWorker.Request(
+                                    mSerializedConfiguration,
+                                    mSerializedContext,
+                                    mEventParser.getSocketServerPort(),
+                                    Arrays.asList(mWorkerArgs)),
+                            timeout);
+        } else {
+            List<String> mCmdArgs = new ArrayList<>();
+            mCmdArgs.add("java");
+            mCmdArgs.add(
+                    String.format("-Djava.io.tmpdir=%s", mSandboxTmpFolder.getAbsolutePath()));
+            mCmdArgs.add("-cp");
+            mCmdArgs.add(new File(mRootFolder, "*").getAbsolutePath());
+            mCmdArgs.add(TradefedSanboxRunner.class.getCanonicalName());
+            mCmdArgs.add(mSerializedContext.getAbsolutePath());
+            mCmdArgs.add(mSerializedConfiguration.getAbsolutePath());
+            mCmdArgs.add("--subprocess-report-port");
+            mCmdArgs.add(Integer.toString(mEventParser.getSocketServerPort()));
+            result =
+                    mRunUtil.runTimedCmd(
+                            timeout, mStdout, mStderr, mCmdArgs.toArray(new String[0]));
+        }
 
         boolean failedStatus = false;
         if (!CommandStatus.SUCCESS.equals(result.getStatus())) {
@@ -104,16 +125,19 @@ public class TradefedSandbox implements ISandbox {
     @Override
     public Exception prepareEnvironment(
             IInvocationContext context, IConfiguration config, ITestInvocationListener listener) {
-        // Create our temp directories.
-        try {
-            mStdoutFile = FileUtil.createTempFile("stdout_subprocess_", ".log");
-            mStderrFile = FileUtil.createTempFile("stderr_subprocess_", ".log");
-            mStdout = new FileOutputStream(mStdoutFile);
-            mStderr = new FileOutputStream(mStderrFile);
+        int warmWorkers = config.getCommandOptions().getSandboxWarmWorkers();
+        // Create our temp directories, a started worker comes with its own.
+        if (warmWorkers <= 0) {
+            try {
+                mStdoutFile = FileUtil.createTempFile("stdout_subprocess_", ".log");
+                mStderrFile = FileUtil.createTempFile("stderr_subprocess_", ".log");
+                mStdout = new FileOutputStream(mStdoutFile);
+                mStderr = new FileOutputStream(mStderrFile);
 
-            mSandboxTmpFolder = FileUtil.createTempDir("tradefed-container");
-        } catch (IOException e) {
-            return e;
+                mSandboxTmpFolder = FileUtil.createTempDir("tradefed-container");
+            } catch (IOException e) {
+                return e;
+            }
         }
         // Unset the current global environment
         mRunUtil = createRunUtil();
@@ -128,6 +152,22 @@ public class TradefedSandbox implements ISandbox {
             return e;
         }
 
+        if (warmWorkers > 0) {
+            try {
+                mWorker = getWorkerPool().acquire(mRootFolder, warmWorkers);
+            } catch (IOException e) {
+                return e;
+            }
+            mStdoutFile = mWorker.getStdoutFile();
+            mStderrFile = mWorker.getStderrFile();
+            mSandboxTmpFolder = mWorker.getTmpFolder();
+            long savedMs = mWorker.getStartupSavedMs();
+            CLog.i(
+                    "Using a started sandbox worker, saved %s of start up.",
+                    TimeUtil.formatElapsedTime(savedMs));
+            context.addInvocationAttribute(STARTUP_SAVED_ATTRIBUTE, Long.toString(savedMs));
+        }
+
         // Prepare the configuration
         Exception res = prepareConfiguration(context, config, listener);
         if (res != null) {
@@ -146,6 +186,9 @@ public class TradefedSandbox implements ISandbox {
 
     @Override
     public void tearDown() {
+        if (mWorker != null) {
+            mWorker.destroy();
+        }
         StreamUtil.close(mEventParser);
         StreamUtil.close(mStdout);
         StreamUtil.close(mStderr);
@@ -181,9 +224,15 @@ public class TradefedSandbox implements ISandbox {
             // TODO: add option to disable the streaming back of results.
             mEventParser = new SubprocessTestResultsParser(listener, true, context);
             String[] args = QuotationAwareTokenizer.tokenizeLine(config.getCommandLine());
-            mSerializedConfiguration =
-                    SandboxConfigUtil.dumpConfigForVersion(
-                            mRootFolder, mRunUtil, args, DumpCmd.RUN_CONFIG);
+            if (mWorker != null) {
+                // The worker dumps the configuration itself, instead of starting another process.
+                mWorkerArgs = args;
+                mSerializedConfiguration = FileUtil.createTempFile("config-container", ".xml");
+            } else {
+                mSerializedConfiguration =
+                        SandboxConfigUtil.dumpConfigForVersion(
+                                mRootFolder, mRunUtil, args, DumpCmd.RUN_CONFIG);
+            }
         } catch (ConfigurationException | IOException e) {
             return e;
         }
@@ -195,6 +244,11 @@ public class TradefedSandbox implements ISandbox {
         return new RunUtil();
     }
 
+    @VisibleForTesting
+    SandboxWorkerPool getWorkerPool() {
+        return SandboxWorkerPool.getInstance();
+    }
+
     /**
      * Prepare and serialize the {@link IInvocationContext}.
      *
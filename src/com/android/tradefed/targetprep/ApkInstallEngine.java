@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Installs apks on a device for {@link TestAppInstallSetup}, one after the other.
+ * <p/>
+ * It can leave out the apks whose exact content is already installed, found with a single shell
+ * command for all of them, and push the next apk to the device while the current one is being
+ * installed. It keeps track of the time both save.
+ */
+class ApkInstallEngine {
+
+    private static final String REMOTE_APK_PATTERN = "/data/local/tmp/tradefed_install_%d.apk";
+    private static final String PACKAGE_TAG = "TRADEFED_PKG";
+    private static final Pattern PACKAGE_LINE =
+            Pattern.compile("^" + PACKAGE_TAG + " (\\S+)\\s*(?:primaryCpuAbi=(\\S+))?"
+                    + "\\s*(?:denied=(\\d+))?");
+    private static final Pattern MD5_LINE = Pattern.compile("^([0-9a-fA-F]{32})\\s+\\S+");
+    /** Max characters of the package names listed by a single shell command. */
+    private static final int PACKAGES_CHAR_LIMIT = 1000;
+
+    /** The time spent installing and the bytes installed on this host, to estimate installs. */
+    private static final AtomicLong sInstallMs = new AtomicLong();
+    private static final AtomicLong sInstallBytes = new AtomicLong();
+
+    private final ITestDevice mDevice;
+    private final String[] mInstallArgs;
+    private final String mAbi;
+
+    private ExecutorService mPushExecutor = null;
+    private List<File> mToPush = new ArrayList<>();
+    private int mNextPush = 0;
+    private final Map<File, Future<String>> mPushes = new HashMap<>();
+    private final Map<File, Long> mPushDurations = new ConcurrentHashMap<>();
+    private final List<String> mRemoteFiles = new ArrayList<>();
+
+    private long mTimeSavedMs = 0;
+    private int mSkippedCount = 0;
+
+    /**
+     * @param device the {@link ITestDevice} to install on.
+     * @param installArgs the arguments of the install command.
+     * @param abi the ABI the apks are installed for, or null if none is forced.
+     */
+    ApkInstallEngine(ITestDevice device, List<String> installArgs, String abi) {
+        mDevice = device;
+        mInstallArgs = installArgs.toArray(new String[0]);
+        mAbi = abi;
+    }
+
+    /**
+     * Find the apks whose exact content is already installed, for the same ABI, with a shell
+     * command listing the installed apk and ABI of each package, for as many packages as fit in a
+     * command. When installs grant all runtime permissions, a package with a denied runtime
+     * permission is installed again so that it gets them back.
+     *
+     * @param packages the package name of each apk.
+     * @return the apks that do not need to be installed.
+     */
+    List<File> findInstalledApks(Map<File, String> packages) throws DeviceNotAvailableException {
+        List<File> installed = new ArrayList<>();
+        if (packages.isEmpty()) {
+            return installed;
+        }
+        Map<String, List<String>> digests = new HashMap<>();
+        Map<String, String> abis = new HashMap<>();
+        Map<String, Integer> denied = new HashMap<>();
+        StringBuilder names = new StringBuilder();
+        for (String packageName : packages.values()) {
+            if (names.length() > 0
+                    && names.length() + packageName.length() + 1 > PACKAGES_CHAR_LIMIT) {
+                listInstalledApks(names.toString(), digests, abis, denied);
+                names.setLength(0);
+            }
+            names.append(' ').append(packageName);
+        }
+        listInstalledApks(names.toString(), digests, abis, denied);
+        boolean grantPermissions = mDevice.isRuntimePermissionSupported();
+        for (Map.Entry<File, String> apk : packages.entrySet()) {
+            List<String> installedDigests = digests.get(apk.getValue());
+            // An app installed with splits is not the same as a single apk.
+            if (installedDigests == null || installedDigests.size() != 1) {
+                continue;
+            }
+            if (mAbi != null && !mAbi.equals(abis.get(apk.getValue()))) {
+                continue;
+            }
+            Integer deniedCount = denied.get(apk.getValue());
+            if (grantPermissions && (deniedCount == null || deniedCount > 0)) {
+                continue;
+            }
+            try {
+                if (installedDigests.get(0).equals(FileUtil.calculateMd5(apk.getKey()))) {
+                    installed.add(apk.getKey());
+                    mSkippedCount++;
+                    mTimeSavedMs += estimateInstallTime(apk.getKey());
+                }
+            } catch (IOException e) {
+                CLog.w("Could not compute the md5 of %s: %s", apk.getKey(), e.getMessage());
+            }
+        }
+        return installed;
+    }
+
+    /**
+     * List the md5 of the installed apks, the ABI and the number of denied permissions of the
+     * given packages.
+     *
+     * @param names the package names, each preceded by a space.
+     */
+    private void listInstalledApks(String names, Map<String, List<String>> digests,
+            Map<String, String> abis, Map<String, Integer> denied)
+            throws DeviceNotAvailableException {
+        String output = mDevice.executeShellCommand(String.format(
+                "for p in%s; do d=$(dumpsys package $p); echo \"%s $p "
+                        + "$(echo \"$d\" | grep -m 1 primaryCpuAbi=) "
+                        + "denied=$(echo \"$d\" | grep -c granted=false)\"; "
+                        + "for f in $(pm path $p); do md5sum ${f#package:}; done; done",
+                names, PACKAGE_TAG));
+        if (output == null) {
+            return;
+        }
+        List<String> current = null;
+        for (String line : output.split("\r?\n")) {
+            Matcher m = PACKAGE_LINE.matcher(line.trim());
+            if (m.find()) {
+                current = new ArrayList<>();
+                digests.put(m.group(1), current);
+                abis.put(m.group(1), m.group(2));
+                if (m.group(3) != null) {
+                    denied.put(m.group(1), Integer.valueOf(m.group(3)));
+                }
+                continue;
+            }
+            m = MD5_LINE.matcher(line.trim());
+            if (m.find() && current != null) {
+                current.add(m.group(1).toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * Start pushing the apks to the device in the background, one ahead of the installs, so that
+     * {@link #installPushed(File)} finds them on the device.
+     */
+    void startPushing(List<File> apks) {
+        mPushExecutor = Executors.newSingleThreadExecutor();
+        mToPush = new ArrayList<>(apks);
+        mNextPush = 0;
+        pushNext();
+    }
+
+    /**
+     * Install an apk with {@link ITestDevice#installPackage(File, boolean, String...)}.
+     *
+     * @return null if the install succeeded, the error otherwise.
+     */
+    String install(File apk) throws DeviceNotAvailableException {
+        long start = System.currentTimeMillis();
+        String result = mDevice.installPackage(apk, true, mInstallArgs);
+        recordInstall(apk, System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * Install an apk pushed by {@link #startPushing(List)} once its push is over, and start pushing
+     * the next one. The part of the push that did not need to be waited for is counted as saved.
+     *
+     * @return null if the install succeeded, the error otherwise.
+     */
+    String installPushed(File apk) throws DeviceNotAvailableException {
+        Future<String> push = mPushes.get(apk);
+        if (push == null) {
+            return install(apk);
+        }
+        long waitStart = System.currentTimeMillis();
+        String remotePath;
+        try {
+            remotePath = push.get();
+        } catch (InterruptedException e) {
+            return String.format("Interrupted while pushing %s", apk.getName());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) e.getCause();
+            }
+            return String.format("Failed to push %s: %s", apk.getName(), e.getCause());
+        } finally {
+            pushNext();
+        }
+        long start = System.currentTimeMillis();
+        if (remotePath == null) {
+            return String.format("Failed to push %s to the device", apk.getName());
+        }
+        Long pushDuration = mPushDurations.get(apk);
+        if (pushDuration != null) {
+            mTimeSavedMs += Math.max(0, pushDuration - (start - waitStart));
+        }
+        String result;
+        try {
+            result = mDevice.installRemotePackage(remotePath, true, mInstallArgs);
+        } finally {
+            mDevice.executeShellCommand("rm -f " + remotePath);
+            mRemoteFiles.remove(remotePath);
+        }
+        long duration = System.currentTimeMillis() - start;
+        recordInstall(apk, duration + (pushDuration != null ? pushDuration : 0));
+        CLog.d("Installed %s in %d ms", apk.getName(), duration);
+        return result;
+    }
+
+    /** Stop pushing, and delete the apks pushed to the device. */
+    void cleanUp() throws DeviceNotAvailableException {
+        if (mPushExecutor == null) {
+            return;
+        }
+        mPushExecutor.shutdownNow();
+        for (Future<String> push : mPushes.values()) {
+            try {
+                push.get();
+            } catch (InterruptedException | ExecutionException e) {
+                // The apk may only be partly pushed, it is deleted anyway.
+            }
+        }
+        mPushExecutor = null;
+        if (!mRemoteFiles.isEmpty()) {
+            // The installed apks were already deleted, these were pushed but not installed.
+            mDevice.executeShellCommand("rm -f " + String.join(" ", mRemoteFiles));
+        }
+    }
+
+    /** Returns the time saved so far in ms, the time skipped installs are estimated to take. */
+    long getTimeSavedMs() {
+        return mTimeSavedMs;
+    }
+
+    /** Returns the number of apks that were not installed because they already were. */
+    int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    private void pushNext() {
+        if (mPushExecutor == null || mNextPush >= mToPush.size()) {
+            return;
+        }
+        final File apk = mToPush.get(mNextPush);
+        final String remotePath = String.format(REMOTE_APK_PATTERN, mNextPush);
+        mNextPush++;
+        mRemoteFiles.add(remotePath);
+        mPushes.put(apk, mPushExecutor.submit(() -> {
+            long start = System.currentTimeMillis();
+            if (!mDevice.pushFile(apk, remotePath)) {
+                return null;
+            }
+            mPushDurations.put(apk, System.currentTimeMillis() - start);
+            return remotePath;
+        }));
+    }
+
+    private static void recordInstall(File apk, long durationMs) {
+        sInstallMs.addAndGet(durationMs);
+        sInstallBytes.addAndGet(apk.length());
+    }
+
+    /** Estimate how long installing the apk takes, from the installs made on this host. */
+    private static long estimateInstallTime(File apk) {
+        long bytes = sInstallBytes.get();
+        if (bytes <= 0) {
+            return 0;
+        }
+        return (long) (apk.length() * ((double) sInstallMs.get() / bytes));
+    }
+}
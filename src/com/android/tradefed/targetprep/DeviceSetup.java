@@ -29,6 +29,7 @@ import com.android.tradefed.util.MultiMap;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -278,6 +279,11 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
             "will be ignored.")
     protected boolean mForceSkipRunCommands = false;
 
+    @Option(name = "batch-setup",
+            description = "Run the shell commands, properties and settings of the setup as a " +
+            "single script on the device instead of one adb shell command each.")
+    protected boolean mBatchSetup = false;
+
     @Option(name = "set-test-harness",
             description = "Set the read-only test harness flag on boot")
     protected boolean mSetTestHarness = true;
@@ -367,6 +373,10 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
     private Collection<String> mDeprecatedSetProps = new ArrayList<String>();
 
     private static final String PERSIST_PREFIX = "persist.";
+    private static final String[] SETTINGS_NAMESPACES = {"system", "secure", "global"};
+
+    /** The steps waiting to run on the device when the setup is batched. */
+    private DeviceSetupScript mScript = null;
 
     /**
      * {@inheritDoc}
@@ -385,6 +395,21 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
                     device.getSerialNumber()), device.getDeviceDescriptor());
         }
 
+        if (mBatchSetup) {
+            mScript = new DeviceSetupScript();
+        }
+        try {
+            doSetUp(device);
+        } finally {
+            mScript = null;
+        }
+    }
+
+    /**
+     * Perform the setup steps, queuing the shell commands if the setup is batched.
+     */
+    private void doSetUp(ITestDevice device) throws DeviceNotAvailableException,
+            TargetSetupError {
         // Convert deprecated options into current options
         processDeprecatedOptions(device);
         // Convert options into settings and run commands
@@ -403,6 +428,7 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
         syncTestData(device);
         // Run commands designated to be run after changing settings
         runCommands(device, mRunCommandAfterSettings);
+        runScript(device);
         // Throw an error if there is not enough storage space
         checkExternalStoreSpace(device);
 
@@ -632,7 +658,7 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
             if (prop.getKey().startsWith(PERSIST_PREFIX)) {
                 String command = String.format("setprop \"%s\" \"%s\"",
                         prop.getKey(), prop.getValue());
-                device.executeShellCommand(command);
+                executeShellCommand(device, String.format("property %s", prop.getKey()), command);
             } else {
                 sb.append(String.format("%s=%s\n", prop.getKey(), prop.getValue()));
             }
@@ -642,6 +668,8 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
             return;
         }
 
+        // the persistent properties must be set before the reboot
+        runScript(device);
         CLog.d("Pushing the following properties to /data/local.prop:\n%s", sb.toString());
         boolean result = device.pushString(sb.toString(), "/data/local.prop");
         if (!result) {
@@ -664,19 +692,20 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
     private void handleScreenAlwaysOnSetting(ITestDevice device)
             throws DeviceNotAvailableException {
         String cmd = "svc power stayon %s";
+        String description = "screen-always-on";
         switch (mScreenAlwaysOn) {
             case ON:
                 CLog.d("Setting screen always on to true");
-                device.executeShellCommand(String.format(cmd, "true"));
+                executeShellCommand(device, description, String.format(cmd, "true"));
                 // send MENU press in case keygaurd needs to be dismissed again
-                device.executeShellCommand("input keyevent 82");
+                executeShellCommand(device, description, "input keyevent 82");
                 // send HOME press in case keyguard was already dismissed, so we bring device back
                 // to home screen
-                device.executeShellCommand("input keyevent 3");
+                executeShellCommand(device, description, "input keyevent 3");
                 break;
             case OFF:
                 CLog.d("Setting screen always on to false");
-                device.executeShellCommand(String.format(cmd, "false"));
+                executeShellCommand(device, description, String.format(cmd, "false"));
                 break;
             case IGNORE:
                 break;
@@ -717,16 +746,16 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
         switch (mAirplaneMode) {
             case ON:
                 CLog.d("Changing global setting airplane_mode_on to 1");
-                device.setSetting("global", "airplane_mode_on", "1");
+                setSetting(device, "global", "airplane_mode_on", "1");
                 if (!mForceSkipRunCommands) {
-                    device.executeShellCommand(String.format(command, "true"));
+                    executeShellCommand(device, "airplane-mode", String.format(command, "true"));
                 }
                 break;
             case OFF:
                 CLog.d("Changing global setting airplane_mode_on to 0");
-                device.setSetting("global", "airplane_mode_on", "0");
+                setSetting(device, "global", "airplane_mode_on", "0");
                 if (!mForceSkipRunCommands) {
-                    device.executeShellCommand(String.format(command, "false"));
+                    executeShellCommand(device, "airplane-mode", String.format(command, "false"));
                 }
                 break;
             case IGNORE:
@@ -737,20 +766,20 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
         for (String key : mSystemSettings.keySet()) {
             for (String value : mSystemSettings.get(key)) {
                 CLog.d("Changing system setting %s to %s", key, value);
-                device.setSetting("system", key, value);
+                setSetting(device, "system", key, value);
             }
         }
         for (String key : mSecureSettings.keySet()) {
             for (String value : mSecureSettings.get(key)) {
                 CLog.d("Changing secure setting %s to %s", key, value);
-                device.setSetting("secure", key, value);
+                setSetting(device, "secure", key, value);
             }
         }
 
         for (String key : mGlobalSettings.keySet()) {
             for (String value : mGlobalSettings.get(key)) {
                 CLog.d("Changing global setting %s to %s", key, value);
-                device.setSetting("global", key, value);
+                setSetting(device, "global", key, value);
             }
         }
     }
@@ -771,10 +800,78 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
         }
 
         for (String command : commands) {
+            executeShellCommand(device, "command", command);
+        }
+    }
+
+    /**
+     * Run a shell command on the device, or queue it if the setup is batched.
+     *
+     * @param device The {@link ITestDevice}
+     * @param description what requested the command, to report its failure
+     * @param command The shell command
+     * @throws DeviceNotAvailableException if the device is not available
+     */
+    private void executeShellCommand(ITestDevice device, String description, String command)
+            throws DeviceNotAvailableException {
+        if (mScript != null) {
+            mScript.addStep(description, command);
+        } else {
             device.executeShellCommand(command);
         }
     }
 
+    /**
+     * Change a setting on the device, or queue the change if the setup is batched.
+     *
+     * @param device The {@link ITestDevice}
+     * @param namespace The namespace of the setting: system, secure or global
+     * @param key The setting key
+     * @param value The setting value
+     * @throws DeviceNotAvailableException if the device is not available
+     */
+    private void setSetting(ITestDevice device, String namespace, String key, String value)
+            throws DeviceNotAvailableException {
+        if (mScript != null) {
+            // same checks as ITestDevice#setSetting, the API level is checked by changeSettings
+            // before any setting is changed
+            namespace = namespace.trim();
+            if (!Arrays.asList(SETTINGS_NAMESPACES).contains(namespace.toLowerCase())) {
+                throw new IllegalArgumentException("Namespace must be one of system, secure, "
+                        + "global. You provided: " + namespace);
+            }
+            // quoted so that the value reaches settings as a single argument, and cannot break
+            // the other steps of the script
+            mScript.addStep(String.format("%s setting %s", namespace, key),
+                    String.format("settings put %s %s %s", quoteShellArgument(namespace),
+                            quoteShellArgument(key.trim()), quoteShellArgument(value.trim())));
+        } else {
+            device.setSetting(namespace, key, value);
+        }
+    }
+
+    /**
+     * Quote an argument of a shell command so that the shell passes it as is.
+     */
+    static String quoteShellArgument(String argument) {
+        return String.format("'%s'", argument.replace("'", "'\\''"));
+    }
+
+    /**
+     * Run the queued commands on the device, if the setup is batched. Must be called before any
+     * step that is not queued and depends on the previous ones.
+     *
+     * @param device The {@link ITestDevice}
+     * @throws DeviceNotAvailableException if the device is not available
+     * @throws TargetSetupError if some commands of the script did not report
+     */
+    private void runScript(ITestDevice device) throws DeviceNotAvailableException,
+            TargetSetupError {
+        if (mScript != null) {
+            mScript.run(device);
+        }
+    }
+
     /**
      * Connects device to Wifi if SSID is specified.
      *
@@ -790,6 +887,7 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
         }
 
         if (mWifiSsid != null) {
+            runScript(device);
             if (!device.connectToWifiNetwork(mWifiSsid, mWifiPsk)) {
                 throw new TargetSetupError(String.format(
                         "Failed to connect to wifi network %s on %s", mWifiSsid,
@@ -810,6 +908,7 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
         if (mLocalDataFile == null) {
             return;
         }
+        runScript(device);
 
         if (!mLocalDataFile.exists() || !mLocalDataFile.isDirectory()) {
             throw new TargetSetupError(String.format(
@@ -1173,6 +1272,13 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
         mSetProps.put(key, value);
     }
 
+    /**
+     * Exposed for unit testing
+     */
+    protected void setBatchSetup(boolean batchSetup) {
+        mBatchSetup = batchSetup;
+    }
+
     /**
      * Exposed for unit testing
      * @deprecated use {@link #setMinExternalStorageKb(long)} instead.
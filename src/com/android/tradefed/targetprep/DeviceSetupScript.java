@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The shell commands of a {@link DeviceSetup}, run on the device as a single script instead of one
+ * adb shell command each.
+ * <p/>
+ * Each step runs in its own subshell and reports its exit code on a marker line, so that a failure
+ * can still be attributed to the option that requested the step. If the script could not be
+ * pushed, the steps are run one by one. If it ran but some steps did not report, for example
+ * because it was interrupted, the setup fails: those steps may or may not have run, and running
+ * them again is not safe for every command.
+ */
+class DeviceSetupScript {
+
+    static final String REMOTE_PATH = "/data/local/tmp/tradefed_device_setup.sh";
+
+    private static final String STEP_MARKER = "TRADEFED_SETUP_STEP";
+    private static final Pattern STEP_RESULT =
+            Pattern.compile(STEP_MARKER + " (\\d+) (\\d+)\\s*$");
+
+    private final List<String> mDescriptions = new ArrayList<>();
+    private final List<String> mCommands = new ArrayList<>();
+
+    /**
+     * Add a step to the script.
+     *
+     * @param description what requested the step, to report its failure.
+     * @param command the shell command of the step.
+     */
+    void addStep(String description, String command) {
+        mDescriptions.add(description);
+        mCommands.add(command);
+    }
+
+    boolean isEmpty() {
+        return mCommands.isEmpty();
+    }
+
+    /**
+     * @return the content of the script running the steps added so far.
+     */
+    String getScript() {
+        return getScript(mCommands);
+    }
+
+    private static String getScript(List<String> commands) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < commands.size(); i++) {
+            sb.append("(\n");
+            sb.append(commands.get(i));
+            // start the marker on a new line in case the command output does not end with one
+            sb.append(String.format("\n)\necho \"\n%s %d $?\"\n", STEP_MARKER, i));
+        }
+        sb.append(String.format("rm -f %s\n", REMOTE_PATH));
+        return sb.toString();
+    }
+
+    /**
+     * Parse the output of the script.
+     *
+     * @return the exit code of each step, <code>null</code> for the steps that did not report.
+     */
+    static Integer[] parseResults(String output, int stepCount) {
+        Integer[] results = new Integer[stepCount];
+        if (output == null) {
+            return results;
+        }
+        for (String line : output.split("\r?\n")) {
+            Matcher m = STEP_RESULT.matcher(line);
+            if (m.find()) {
+                int step = Integer.parseInt(m.group(1));
+                if (step < stepCount) {
+                    results[step] = Integer.parseInt(m.group(2));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Run the steps added so far on the device, then clear them.
+     *
+     * @throws TargetSetupError if the script ran but some steps did not report.
+     */
+    void run(ITestDevice device) throws DeviceNotAvailableException, TargetSetupError {
+        if (isEmpty()) {
+            return;
+        }
+        List<String> commands = new ArrayList<>(mCommands);
+        List<String> descriptions = new ArrayList<>(mDescriptions);
+        mDescriptions.clear();
+        mCommands.clear();
+        String script = getScript(commands);
+        CLog.d("Running %d setup steps on %s:\n%s", commands.size(), device.getSerialNumber(),
+                script);
+        if (!device.pushString(script, REMOTE_PATH)) {
+            CLog.w("Failed to push the setup script to %s, running the steps one by one",
+                    device.getSerialNumber());
+            for (String command : commands) {
+                device.executeShellCommand(command);
+            }
+            return;
+        }
+        String output = device.executeShellCommand(String.format("sh %s", REMOTE_PATH));
+        Integer[] results = parseResults(output, commands.size());
+        for (int i = 0; i < commands.size(); i++) {
+            if (results[i] == null) {
+                throw new TargetSetupError(String.format(
+                        "Setup step '%s' for %s did not report on %s, it may not have run",
+                        commands.get(i), descriptions.get(i), device.getSerialNumber()),
+                        device.getDeviceDescriptor());
+            } else if (results[i] != 0) {
+                CLog.w("Setup step '%s' for %s failed on %s with exit code %d",
+                        commands.get(i), descriptions.get(i), device.getSerialNumber(),
+                        results[i]);
+            }
+        }
+    }
+}
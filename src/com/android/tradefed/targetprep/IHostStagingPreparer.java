@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.device.ITestDevice;
+
+/**
+ * A {@link ITargetPreparer} that can do the host side part of its setup ahead of time, while the
+ * device is still busy with previous tests.
+ * <p/>
+ * For example, locates and parses the files it will install.
+ */
+public interface IHostStagingPreparer extends ITargetPreparer {
+
+    /**
+     * Stage the host side artifacts needed by {@link #setUp(ITestDevice, IBuildInfo)}.
+     * <p/>
+     * Called at most once before the setup, possibly from another thread. It must not change the
+     * state of the device, and the setup must still succeed if the staging failed.
+     *
+     * @param device the {@link ITestDevice} that will be prepared.
+     * @param buildInfo data about the build under test.
+     * @throws TargetSetupError if the staging failed.
+     */
+    public void stage(ITestDevice device, IBuildInfo buildInfo) throws TargetSetupError;
+}
@@ -30,11 +30,16 @@ import com.android.tradefed.util.AaptParser;
 import com.android.tradefed.util.AbiFormatter;
 import com.android.tradefed.util.BuildTestsZipUtils;
 
+import com.google.common.annotations.VisibleForTesting;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A {@link ITargetPreparer} that installs one or more apps from a
@@ -46,7 +51,7 @@ import java.util.List;
  * </p>
  */
 @OptionClass(alias = "tests-zip-app")
-public class TestAppInstallSetup implements ITargetCleaner, IAbiReceiver {
+public class TestAppInstallSetup implements ITargetCleaner, IAbiReceiver, IHostStagingPreparer {
 
     // An error message that occurs when a test APK is already present on the DUT,
     // but cannot be updated. When this occurs, the package is removed from the
@@ -91,10 +96,35 @@ public class TestAppInstallSetup implements ITargetCleaner, IAbiReceiver {
             + "when searching for apks to install")
     private AltDirBehavior mAltDirBehavior = AltDirBehavior.FALLBACK;
 
+    @Option(
+        name = "skip-identical-apks",
+        description =
+                "Do not install the apks whose exact content is already installed on the device "
+                        + "for the same abi. The installed apks are checked with a single shell "
+                        + "command."
+    )
+    private boolean mSkipIdenticalApks = false;
+
+    @Option(
+        name = "overlap-apk-push",
+        description =
+                "Push the next apk to the device while the current one is being installed, "
+                        + "instead of pushing and installing each apk in turn."
+    )
+    private boolean mOverlapApkPush = false;
+
     private IAbi mAbi = null;
 
     private List<String> mPackagesInstalled = null;
 
+    /** The apks resolved by {@link #stage(ITestDevice, IBuildInfo)}, by test file name. */
+    private Map<String, File> mStagedFiles = new HashMap<>();
+    /** The package names parsed by {@link #stage(ITestDevice, IBuildInfo)}, by apk. */
+    private Map<File, String> mStagedPackageNames = new HashMap<>();
+
+    private long mInstallTimeSavedMs = 0;
+    private int mSkippedInstallCount = 0;
+
     /**
      * Adds a file to the list of apks to install
      *
@@ -141,63 +171,171 @@ public class TestAppInstallSetup implements ITargetCleaner, IAbiReceiver {
         if (mCleanup) {
             mPackagesInstalled = new ArrayList<>();
         }
+        // resolve abi flags
+        if (mAbi != null && mForceAbi != null) {
+            throw new IllegalStateException("cannot specify both abi flags");
+        }
+        String abiName = null;
+        if (mAbi != null) {
+            abiName = mAbi.getName();
+        } else if (mForceAbi != null) {
+            abiName = AbiFormatter.getDefaultAbi(device, mForceAbi);
+        }
 
-        for (String testAppName : mTestFileNames) {
-            if (testAppName == null || testAppName.trim().isEmpty()) {
-                continue;
-            }
-            File testAppFile = getLocalPathForFilename(buildInfo, testAppName, device);
-            if (testAppFile == null) {
-                if (mThrowIfNoFile) {
-                    throw new TargetSetupError(
-                            String.format("Test app %s was not found.", testAppName),
-                            device.getDeviceDescriptor());
-                } else {
-                    CLog.d("Test app %s was not found.", testAppName);
+        Map<File, String> apks = new LinkedHashMap<>();
+        Map<File, String> appNames = new HashMap<>();
+        // A bad apk fails the setup only once the apks before it are installed, like when each apk
+        // was installed as soon as it was resolved.
+        TargetSetupError resolveError = null;
+        try {
+            for (String testAppName : mTestFileNames) {
+                if (testAppName == null || testAppName.trim().isEmpty()) {
                     continue;
                 }
-            }
-            if (!testAppFile.canRead()) {
-                if (mThrowIfNoFile) {
-                    throw new TargetSetupError(
-                            String.format("Could not read file %s.", testAppName),
-                            device.getDeviceDescriptor());
-                } else {
-                    CLog.d("Could not read file %s.", testAppName);
-                    continue;
+                File testAppFile = mStagedFiles.remove(testAppName);
+                if (testAppFile == null) {
+                    testAppFile = getLocalPathForFilename(buildInfo, testAppName, device);
                 }
+                if (testAppFile == null) {
+                    if (mThrowIfNoFile) {
+                        throw new TargetSetupError(
+                                String.format("Test app %s was not found.", testAppName),
+                                device.getDeviceDescriptor());
+                    } else {
+                        CLog.d("Test app %s was not found.", testAppName);
+                        continue;
+                    }
+                }
+                if (!testAppFile.canRead()) {
+                    if (mThrowIfNoFile) {
+                        throw new TargetSetupError(
+                                String.format("Could not read file %s.", testAppName),
+                                device.getDeviceDescriptor());
+                    } else {
+                        CLog.d("Could not read file %s.", testAppName);
+                        continue;
+                    }
+                }
+                String packageName = mStagedPackageNames.remove(testAppFile);
+                if (packageName == null) {
+                    packageName = parsePackageName(testAppFile, device.getDeviceDescriptor());
+                }
+                apks.put(testAppFile, packageName);
+                appNames.put(testAppFile, testAppName);
             }
-            // resolve abi flags
-            if (mAbi != null && mForceAbi != null) {
-                throw new IllegalStateException("cannot specify both abi flags");
-            }
-            String abiName = null;
-            if (mAbi != null) {
-                abiName = mAbi.getName();
-            } else if (mForceAbi != null) {
-                abiName = AbiFormatter.getDefaultAbi(device, mForceAbi);
+        } catch (TargetSetupError e) {
+            resolveError = e;
+        }
+        installApks(device, apks, appNames, abiName);
+        if (resolveError != null) {
+            throw resolveError;
+        }
+    }
+
+    /**
+     * Install the apks, leaving out those already installed and pushing them ahead of their
+     * install if requested.
+     *
+     * @param apks the package name of each apk, in install order.
+     * @param appNames the test file name of each apk.
+     * @param abiName the abi the apks are installed for, or null.
+     */
+    private void installApks(ITestDevice device, Map<File, String> apks,
+            Map<File, String> appNames, String abiName)
+            throws TargetSetupError, DeviceNotAvailableException {
+        ApkInstallEngine engine = createInstallEngine(device, abiName);
+        List<File> toInstall = new ArrayList<>(apks.keySet());
+        if (mSkipIdenticalApks) {
+            for (File installed : engine.findInstalledApks(apks)) {
+                CLog.d("%s is already installed, skipping it.", installed.getName());
+                toInstall.remove(installed);
             }
-            if (abiName != null) {
-                mInstallArgs.add(String.format("--abi %s", abiName));
+            // The skipped packages are still cleaned up as if they were installed.
+            if (mCleanup) {
+                for (Map.Entry<File, String> apk : apks.entrySet()) {
+                    if (!toInstall.contains(apk.getKey())) {
+                        mPackagesInstalled.add(apk.getValue());
+                    }
+                }
             }
-            String packageName = parsePackageName(testAppFile, device.getDeviceDescriptor());
-            CLog.d("Installing apk from %s ...", testAppFile.getAbsolutePath());
-            String result = installPackage(device, testAppFile);
-            if (result != null) {
-                if (result.startsWith(INSTALL_FAILED_UPDATE_INCOMPATIBLE)) {
-                    // Try to uninstall package and reinstall.
-                    uninstallPackage(device, packageName);
-                    result = installPackage(device, testAppFile);
+        }
+        if (mOverlapApkPush) {
+            engine.startPushing(toInstall);
+        }
+        try {
+            for (File testAppFile : toInstall) {
+                String packageName = apks.get(testAppFile);
+                CLog.d("Installing apk from %s ...", testAppFile.getAbsolutePath());
+                String result = mOverlapApkPush
+                        ? engine.installPushed(testAppFile)
+                        : engine.install(testAppFile);
+                if (result != null) {
+                    if (result.startsWith(INSTALL_FAILED_UPDATE_INCOMPATIBLE)) {
+                        // Try to uninstall package and reinstall.
+                        uninstallPackage(device, packageName);
+                        result = engine.install(testAppFile);
+                    }
+                }
+                if (result != null) {
+                    throw new TargetSetupError(
+                            String.format("Failed to install %s on %s. Reason: '%s'",
+                                    appNames.get(testAppFile), device.getSerialNumber(), result),
+                            device.getDeviceDescriptor());
+                }
+                if (mCleanup) {
+                    mPackagesInstalled.add(packageName);
                 }
             }
-            if (result != null) {
-                throw new TargetSetupError(
-                        String.format("Failed to install %s on %s. Reason: '%s'", testAppName,
-                                device.getSerialNumber(), result), device.getDeviceDescriptor());
+        } finally {
+            engine.cleanUp();
+            mInstallTimeSavedMs += engine.getTimeSavedMs();
+            mSkippedInstallCount += engine.getSkippedCount();
+            if (mSkipIdenticalApks || mOverlapApkPush) {
+                CLog.i("Skipped %d installs, saved %d ms of install time.",
+                        engine.getSkippedCount(), engine.getTimeSavedMs());
             }
-            if (mCleanup) {
-                mPackagesInstalled.add(packageName);
+        }
+    }
+
+    /** Create the {@link ApkInstallEngine} installing the apks. */
+    @VisibleForTesting
+    ApkInstallEngine createInstallEngine(ITestDevice device, String abiName) {
+        List<String> installArgs = new ArrayList<>(mInstallArgs);
+        if (abiName != null) {
+            installArgs.add(String.format("--abi %s", abiName));
+        }
+        return new ApkInstallEngine(device, installArgs, abiName);
+    }
+
+    /** Returns the install time saved by the apks skipped or pushed ahead, in ms. */
+    public long getInstallTimeSavedMs() {
+        return mInstallTimeSavedMs;
+    }
+
+    /** Returns the number of apks that were already installed, and were skipped. */
+    public int getSkippedInstallCount() {
+        return mSkippedInstallCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Resolves the apks to install and parses their package names.
+     */
+    @Override
+    public void stage(ITestDevice device, IBuildInfo buildInfo) throws TargetSetupError {
+        for (String testAppName : mTestFileNames) {
+            if (testAppName == null || testAppName.trim().isEmpty()) {
+                continue;
+            }
+            File testAppFile = getLocalPathForFilename(buildInfo, testAppName, device);
+            if (testAppFile == null || !testAppFile.canRead()) {
+                // let the setup report it
+                continue;
             }
+            mStagedFiles.put(testAppName, testAppFile);
+            mStagedPackageNames.put(
+                    testAppFile, parsePackageName(testAppFile, device.getDeviceDescriptor()));
         }
     }
 
@@ -238,12 +376,6 @@ public class TestAppInstallSetup implements ITargetCleaner, IAbiReceiver {
         mAltDirBehavior = altDirBehavior;
     }
 
-    /** Attempt to install a package on the device. */
-    private String installPackage(ITestDevice device, File testAppFile)
-            throws DeviceNotAvailableException {
-        return device.installPackage(testAppFile, true, mInstallArgs.toArray(new String[] {}));
-    }
-
     /** Attempt to remove the package from the device. */
     private void uninstallPackage(ITestDevice device, String packageName)
             throws DeviceNotAvailableException {
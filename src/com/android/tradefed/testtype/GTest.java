@@ -39,6 +39,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -90,7 +91,8 @@ public class GTest
 
     @Option(name = "native-test-timeout", description =
             "The max time in ms for a gtest to run. " +
-            "Test run will be aborted if any test takes longer.")
+            "Test run will be aborted if any test takes longer. With parallel-binaries, the " +
+            "run is aborted if no binary prints output for that long.")
     private int mMaxTestTimeMs = 1 * 60 * 1000;
 
     @Option(name = "send-coverage",
@@ -153,6 +155,12 @@ public class GTest
                     + "the same name as the binary with the .json extension.")
     private String mTestFilterKey = null;
 
+    @Option(name = "parallel-binaries", description = "The number of test binaries to run at "
+            + "the same time on the device. When more than 1, the binaries are found with a "
+            + "single listing of the test directory. Ignored with xml-output, "
+            + "reboot-before-test, before-test-cmd and after-test-cmd.")
+    private int mParallelBinaries = 1;
+
     private int mShardCount = 0;
     private int mShardIndex = 0;
     private boolean mIsSharded = false;
@@ -168,6 +176,8 @@ public class GTest
     private static final String GTEST_XML_OUTPUT = "--gtest_output=xml:%s";
     // Max characters allowed for executing GTest via command line
     private static final int GTEST_CMD_CHAR_LIMIT = 1000;
+
+    private static final String PARALLEL_SCRIPT_PATH = "/data/local/tmp/gtest_parallel.sh";
     // Expected extension for the filter file associated with the binary (json formatted file)
     protected static final String FILTER_EXTENSION = ".filter";
     /**
@@ -459,6 +469,114 @@ public class GTest
         }
     }
 
+    /**
+     * Executes all native tests in a folder as well as in all subfolders recursively, running
+     * several test binaries at the same time.
+     *
+     * @param root The root folder to begin searching for native tests
+     * @param testDevice The device to run tests on
+     * @param listener the {@link ITestRunListener}
+     * @throws DeviceNotAvailableException
+     */
+    @VisibleForTesting
+    void doRunAllTestsInParallel(String root, ITestDevice testDevice,
+            ITestRunListener listener) throws DeviceNotAvailableException {
+        List<String> binaries = findTestBinaries(root, testDevice);
+        if (binaries.isEmpty()) {
+            // the device's find may not support the listing, or the listing failed: look at
+            // each file instead of leaving the folder untested
+            CLog.w("Found no gtest binaries in %s with find on %s, running the tests one by one.",
+                    root, testDevice.getSerialNumber());
+            doRunAllTestsInSubdirectory(root, testDevice, listener);
+            return;
+        }
+        List<String> commands = new ArrayList<>();
+        List<IShellOutputReceiver> resultParsers = new ArrayList<>();
+        for (String binary : binaries) {
+            commands.add(getGTestCmdLine(binary, getAllGTestFlags(binary)));
+            resultParsers.add(createResultParser(getFileName(binary), listener));
+        }
+        String script = GTestOutputDemultiplexer.buildScript(commands, mParallelBinaries,
+                PARALLEL_SCRIPT_PATH);
+        if (!testDevice.pushString(script, PARALLEL_SCRIPT_PATH)) {
+            CLog.w("Failed to push the gtest script to %s, running the tests one by one.",
+                    testDevice.getSerialNumber());
+            doRunAllTestsInSubdirectory(root, testDevice, listener);
+            return;
+        }
+        CLog.i("Running %d gtest binaries from %s, %d at a time, on %s", binaries.size(), root,
+                mParallelBinaries, testDevice.getSerialNumber());
+        GTestOutputDemultiplexer demultiplexer = new GTestOutputDemultiplexer(resultParsers);
+        try {
+            // the script reports progress whenever a binary prints output, so this times out
+            // when no binary made progress for that long, like a single binary would
+            testDevice.executeShellCommand(String.format("sh %s", PARALLEL_SCRIPT_PATH),
+                    demultiplexer, mMaxTestTimeMs /* maxTimeToShellOutputResponse */,
+                    TimeUnit.MILLISECONDS, 0 /* retryAttempts */);
+        } finally {
+            if (!demultiplexer.isComplete()) {
+                stopParallelBinaries(testDevice);
+            }
+            demultiplexer.flush();
+        }
+    }
+
+    /**
+     * Stop the binaries left running on the device by an incomplete parallel run.
+     */
+    private void stopParallelBinaries(ITestDevice testDevice) {
+        CLog.w("Not all gtest binaries completed on %s, stopping them.",
+                testDevice.getSerialNumber());
+        try {
+            testDevice.executeShellCommand(
+                    GTestOutputDemultiplexer.buildKillCommand(PARALLEL_SCRIPT_PATH));
+        } catch (DeviceNotAvailableException e) {
+            CLog.e(e);
+        }
+    }
+
+    /**
+     * Find the test binaries under the given folder with a single listing, instead of checking
+     * each file separately.
+     *
+     * @return the full path of the binaries to run, sorted.
+     */
+    private List<String> findTestBinaries(String root, ITestDevice testDevice)
+            throws DeviceNotAvailableException {
+        // like isDeviceFileExecutable, only keep the files the owner can read and execute
+        String output = testDevice.executeShellCommand(
+                String.format("find -L %s -type f -perm -500", root));
+        List<String> binaries = new ArrayList<>();
+        if (output == null) {
+            return binaries;
+        }
+        for (String line : output.split("\r?\n")) {
+            String path = line.trim();
+            if (path.startsWith(root) && !isExcludedFile(path)) {
+                binaries.add(path);
+            }
+        }
+        Collections.sort(binaries);
+        return binaries;
+    }
+
+    /**
+     * @return true if the binaries should run in parallel with the current options.
+     */
+    private boolean shouldRunInParallel() {
+        if (mParallelBinaries <= 1) {
+            return false;
+        }
+        // these options apply to each binary, which cannot be done when they run together
+        if (mEnableXmlOutput || mRebootBeforeTest || !mBeforeTestCmd.isEmpty()
+                || !mAfterTestCmd.isEmpty()) {
+            CLog.w("parallel-binaries is ignored with xml-output, reboot-before-test, "
+                    + "before-test-cmd and after-test-cmd.");
+            return false;
+        }
+        return true;
+    }
+
     String getFileName(String fullPath) {
         int pos = fullPath.lastIndexOf('/');
         if (pos == -1) {
@@ -493,6 +611,13 @@ public class GTest
         if (!isDeviceFileExecutable(fullPath)) {
             return true;
         }
+        return isExcludedFile(fullPath);
+    }
+
+    /**
+     * @return true if the file matches one of the file exclusion regexes.
+     */
+    private boolean isExcludedFile(String fullPath) {
         if (mFileExclusionFilterRegex == null || mFileExclusionFilterRegex.isEmpty()) {
             return false;
         }
@@ -734,7 +859,11 @@ public class GTest
         }
         Throwable throwable = null;
         try {
-            doRunAllTestsInSubdirectory(testPath, mDevice, listener);
+            if (shouldRunInParallel()) {
+                doRunAllTestsInParallel(testPath, mDevice, listener);
+            } else {
+                doRunAllTestsInSubdirectory(testPath, mDevice, listener);
+            }
         } catch (Throwable t) {
             throwable = t;
             throw t;
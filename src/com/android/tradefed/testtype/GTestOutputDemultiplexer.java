@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits the output of gtest binaries running at the same time on a device between one {@link
+ * IShellOutputReceiver} per binary.
+ * <p/>
+ * Each binary writes its output to its own file on the device. A single loop of the script prints
+ * the file of each binary that ended, between a begin and an end line tagged with the index of the
+ * binary, so the output of a binary is never interleaved with another's. The output is then given
+ * to the receiver of the binary at once, so that the results of each binary are reported one
+ * after the other. While binaries run, the loop prints a progress line each time their output
+ * grows, so that the command only times out when no binary made progress for that long.
+ */
+class GTestOutputDemultiplexer implements IShellOutputReceiver {
+
+    private static final String BEGIN_TAG = "TRADEFED_GTEST_BEGIN";
+    private static final String END_TAG = "TRADEFED_GTEST_END";
+    private static final String PROGRESS_TAG = "TRADEFED_GTEST_PROGRESS";
+    private static final Pattern BEGIN_LINE = Pattern.compile("^" + BEGIN_TAG + " (\\d+)\\s*$");
+    /** The end tag follows the last line of output if it did not end with a new line. */
+    private static final Pattern END_LINE = Pattern.compile("^(.*)" + END_TAG + " (\\d+)\\s*$");
+
+    private final List<IShellOutputReceiver> mReceivers;
+    private final ByteArrayOutputStream[] mOutputs;
+    private final boolean[] mDone;
+    private final ByteArrayOutputStream mPartialLine = new ByteArrayOutputStream();
+    private int mCurrent = -1;
+
+    /**
+     * @param receivers the receiver of each binary, in the order of the commands of the script.
+     */
+    GTestOutputDemultiplexer(List<IShellOutputReceiver> receivers) {
+        mReceivers = receivers;
+        mOutputs = new ByteArrayOutputStream[receivers.size()];
+        mDone = new boolean[receivers.size()];
+        for (int i = 0; i < mOutputs.length; i++) {
+            mOutputs[i] = new ByteArrayOutputStream();
+        }
+    }
+
+    /**
+     * Build the script running the given commands, <var>parallelism</var> at a time, with their
+     * output framed for a {@link GTestOutputDemultiplexer}.
+     *
+     * @param commands the command of each binary
+     * @param parallelism the number of commands running at the same time
+     * @param scriptPath where the script is on the device, so that it deletes itself. The output
+     *     of the binaries goes to files next to it.
+     */
+    static String buildScript(List<String> commands, int parallelism, String scriptPath) {
+        StringBuilder script = new StringBuilder();
+        script.append(String.format("rm -f %s.*\n", scriptPath));
+        // the pids of the script, the workers and the binaries, for buildKillCommand
+        script.append(String.format("echo $$ > %s.main.pid\n", scriptPath));
+        int workers = Math.max(1, Math.min(parallelism, commands.size()));
+        for (int worker = 0; worker < workers; worker++) {
+            script.append("(\n");
+            for (int i = worker; i < commands.size(); i += workers) {
+                script.append(String.format("%s > %s.%d 2>&1 &\n", commands.get(i), scriptPath,
+                        i));
+                script.append(String.format("echo $! > %s.%d.pid\n", scriptPath, i));
+                script.append("wait\n");
+                script.append(String.format("touch %s.%d.done\n", scriptPath, i));
+            }
+            script.append(") &\n");
+            script.append(String.format("echo $! > %s.w%d.pid\n", scriptPath, worker));
+        }
+        // Only this loop writes to the output, one binary at a time.
+        script.append("remaining=\"");
+        for (int i = 0; i < commands.size(); i++) {
+            script.append(i == 0 ? "" : " ").append(i);
+        }
+        script.append("\"\n");
+        script.append("while [ -n \"$remaining\" ]; do\n");
+        script.append("left=\"\"\n");
+        script.append("for i in $remaining; do\n");
+        script.append(String.format("if [ -e %s.$i.done ]; then\n", scriptPath));
+        script.append(String.format("echo \"%s $i\"\n", BEGIN_TAG));
+        script.append(String.format("cat %s.$i\n", scriptPath));
+        script.append(String.format("echo \"%s $i\"\n", END_TAG));
+        script.append(String.format("rm -f %1$s.$i %1$s.$i.done\n", scriptPath));
+        script.append("else\n");
+        script.append("left=\"$left $i\"\n");
+        script.append("fi\n");
+        script.append("done\n");
+        script.append("remaining=$left\n");
+        script.append(String.format("state=$(ls -l %s.[0-9]* 2>/dev/null)\n", scriptPath));
+        script.append("if [ \"$state\" != \"$last\" ]; then\n");
+        script.append(String.format("echo \"%s\"\n", PROGRESS_TAG));
+        script.append("last=$state\n");
+        script.append("fi\n");
+        script.append("if [ -n \"$remaining\" ]; then sleep 1; fi\n");
+        script.append("done\n");
+        script.append(String.format("rm -f %1$s %1$s.*\n", scriptPath));
+        return script.toString();
+    }
+
+    /**
+     * Build the command stopping a script built by {@link #buildScript}, its workers and the
+     * binaries they run, then deleting its files.
+     */
+    static String buildKillCommand(String scriptPath) {
+        // stop the script and the workers first, so that they do not start other binaries
+        return String.format("kill $(cat %1$s.main.pid %1$s.w*.pid) 2>/dev/null; "
+                + "kill $(cat %1$s.[0-9]*.pid) 2>/dev/null; rm -f %1$s %1$s.*", scriptPath);
+    }
+
+    /**
+     * @return true if the output of all the binaries was received.
+     */
+    boolean isComplete() {
+        for (boolean done : mDone) {
+            if (!done) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void addOutput(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] == '\n') {
+                processLine(new String(mPartialLine.toByteArray(), StandardCharsets.UTF_8));
+                mPartialLine.reset();
+            } else {
+                mPartialLine.write(data[i]);
+            }
+        }
+    }
+
+    /**
+     * Give the output of the binaries that did not end, for example because the command timed
+     * out, to their receivers.
+     */
+    @Override
+    public void flush() {
+        if (mPartialLine.size() > 0) {
+            processLine(new String(mPartialLine.toByteArray(), StandardCharsets.UTF_8));
+            mPartialLine.reset();
+        }
+        for (int i = 0; i < mReceivers.size(); i++) {
+            if (!mDone[i]) {
+                CLog.w("gtest binary %d did not complete", i);
+                endBinary(i);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    private void processLine(String line) {
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        if (mCurrent < 0 && PROGRESS_TAG.equals(line.trim())) {
+            return;
+        }
+        Matcher m = BEGIN_LINE.matcher(line);
+        if (m.matches()) {
+            int index = Integer.parseInt(m.group(1));
+            mCurrent = index < mReceivers.size() && !mDone[index] ? index : -1;
+            return;
+        }
+        m = END_LINE.matcher(line);
+        if (m.matches()) {
+            if (!m.group(1).isEmpty()) {
+                addLine(m.group(1));
+            }
+            int index = Integer.parseInt(m.group(2));
+            if (index == mCurrent) {
+                endBinary(index);
+            }
+            mCurrent = -1;
+            return;
+        }
+        if (mCurrent >= 0) {
+            addLine(line);
+        } else if (!line.isEmpty()) {
+            CLog.d("Ignoring untagged gtest output: %s", line);
+        }
+    }
+
+    private void addLine(String line) {
+        if (mCurrent >= 0) {
+            byte[] output = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            mOutputs[mCurrent].write(output, 0, output.length);
+        }
+    }
+
+    private void endBinary(int index) {
+        mDone[index] = true;
+        byte[] output = mOutputs[index].toByteArray();
+        mOutputs[index] = null;
+        IShellOutputReceiver receiver = mReceivers.get(index);
+        receiver.addOutput(output, 0, output.length);
+        receiver.flush();
+    }
+}
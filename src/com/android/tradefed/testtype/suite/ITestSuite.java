@@ -24,6 +24,7 @@ import com.android.tradefed.config.OptionCopier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.shard.TestRuntimeHistory;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.ITestLoggerReceiver;
@@ -41,12 +42,18 @@ import com.android.tradefed.testtype.IShardableTest;
 import com.android.tradefed.testtype.ITestCollector;
 import com.android.tradefed.util.TimeUtil;
 
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Abstract class used to run Test Suite. This class provide the base of how the Suite will be run.
@@ -114,6 +121,26 @@ public abstract class ITestSuite
     )
     private boolean mCollectTestsOnly = false;
 
+    @Option(
+        name = "module-staging-lookahead",
+        description =
+                "Number of upcoming modules whose host side preparation, such as locating and "
+                        + "parsing the apks to install, is staged in the background while the "
+                        + "current module runs. 0 to prepare each module when it starts."
+    )
+    private int mStagingLookahead = 0;
+
+    @Option(
+        name = "record-module-runtimes",
+        description =
+                "File where each module records its duration. It must not be the "
+                        + "--shard-runtime-history file of strict shards: they plan from it while "
+                        + "the modules run. Record into a separate file and copy it over the "
+                        + "--shard-runtime-history file once all the shards of the run completed. "
+                        + "Nothing is recorded if not set."
+    )
+    private File mModuleRuntimeHistory = null;
+
     private ITestDevice mDevice;
     private IBuildInfo mBuildInfo;
     private List<ISystemStatusChecker> mSystemStatusCheckers;
@@ -124,6 +151,8 @@ public abstract class ITestSuite
     private ModuleDefinition mDirectModule = null;
     private boolean mShouldMakeDynamicModule = true;
 
+    private TestRuntimeHistory mRuntimeHistory = null;
+
     /**
      * Abstract method to load the tests configuration that will be run. Each tests is defined by a
      * {@link IConfiguration} and a unique name under which it will report results.
@@ -147,6 +176,7 @@ public abstract class ITestSuite
         if (mDirectModule != null) {
             // If we are sharded and already know what to run then we just do it.
             runModules.add(mDirectModule);
+            mDirectModule.setRuntimeHistory(getRuntimeHistory());
             mDirectModule.setDevice(mDevice);
             mDirectModule.setDeviceInfos(mContext.getDeviceBuildMap());
             mDirectModule.setBuild(mBuildInfo);
@@ -174,6 +204,7 @@ public abstract class ITestSuite
                             config.getValue().getTargetPreparers(),
                             config.getValue().getMultiTargetPreparers(),
                             config.getValue().getConfigurationDescription());
+            module.setRuntimeHistory(getRuntimeHistory());
             module.setDevice(mDevice);
             module.setDeviceInfos(mContext.getDeviceBuildMap());
             module.setBuild(mBuildInfo);
@@ -222,6 +253,10 @@ public abstract class ITestSuite
                     runModules);
         }
 
+        ExecutorService stagingExecutor = null;
+        if (mStagingLookahead > 0 && !mCollectTestsOnly) {
+            stagingExecutor = createStagingExecutor();
+        }
         /** Run all the module, make sure to reduce the list to release resources as we go. */
         try {
             while (!runModules.isEmpty()) {
@@ -231,6 +266,9 @@ public abstract class ITestSuite
                 if (module.hasTests()) {
                     continue;
                 }
+                if (stagingExecutor != null) {
+                    stageUpcomingModules(runModules, stagingExecutor);
+                }
 
                 try {
                     listener.testModuleStarted(module.getModuleInvocationContext());
@@ -258,9 +296,72 @@ public abstract class ITestSuite
                 listener.testRunEnded(0, Collections.emptyMap());
             }
             throw e;
+        } finally {
+            if (stagingExecutor != null) {
+                stagingExecutor.shutdownNow();
+            }
+            // keep the module durations for the sharding of the next invocations
+            TestRuntimeHistory runtimeHistory = getRuntimeHistory();
+            if (runtimeHistory != null) {
+                runtimeHistory.save();
+            }
         }
     }
 
+    /** Creates the {@link ExecutorService} staging the upcoming modules, one at a time. */
+    private ExecutorService createStagingExecutor() {
+        return Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ModuleStaging-" + mDevice.getSerialNumber());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Start the staging of the next modules to run, up to the staging look-ahead, so that their
+     * host side preparation overlaps with the current module.
+     */
+    private void stageUpcomingModules(List<ModuleDefinition> runModules, ExecutorService executor) {
+        int staged = 0;
+        for (ModuleDefinition upcoming : runModules) {
+            if (staged >= mStagingLookahead) {
+                break;
+            }
+            if (upcoming.hasTests()) {
+                // skipped without preparation
+                continue;
+            }
+            upcoming.startStaging(executor);
+            staged++;
+        }
+    }
+
+    /**
+     * Returns the {@link TestRuntimeHistory} where the modules record their duration, or null if
+     * they do not record it.
+     */
+    TestRuntimeHistory getRuntimeHistory() {
+        if (mRuntimeHistory == null && mModuleRuntimeHistory != null) {
+            mRuntimeHistory = TestRuntimeHistory.getInstance(mModuleRuntimeHistory);
+        }
+        return mRuntimeHistory;
+    }
+
+    /** Returns the file where the modules record their duration, or null if they do not. */
+    public File getModuleRuntimesFile() {
+        return mModuleRuntimeHistory;
+    }
+
+    /** Sets the {@link TestRuntimeHistory} where the modules record their duration. */
+    @VisibleForTesting
+    void setRuntimeHistory(TestRuntimeHistory runtimeHistory) {
+        mRuntimeHistory = runtimeHistory;
+    }
+
     /**
      * Helper method that handle running a single module logic.
      *
@@ -26,6 +26,7 @@ import com.android.tradefed.device.DeviceUnresponsiveException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.invoker.shard.TestRuntimeHistory;
 import com.android.tradefed.log.ILogRegistry.EventType;
 import com.android.tradefed.log.ITestLogger;
 import com.android.tradefed.log.LogRegistry;
@@ -35,9 +36,11 @@ import com.android.tradefed.result.ITestLoggerReceiver;
 import com.android.tradefed.result.ResultForwarder;
 import com.android.tradefed.suite.checker.ISystemStatusCheckerReceiver;
 import com.android.tradefed.targetprep.BuildError;
+import com.android.tradefed.targetprep.IHostStagingPreparer;
 import com.android.tradefed.targetprep.ITargetCleaner;
 import com.android.tradefed.targetprep.ITargetPreparer;
 import com.android.tradefed.targetprep.TargetSetupError;
+import com.android.tradefed.targetprep.TestAppInstallSetup;
 import com.android.tradefed.targetprep.multi.IMultiTargetPreparer;
 import com.android.tradefed.testtype.IBuildReceiver;
 import com.android.tradefed.testtype.IDeviceTest;
@@ -47,6 +50,7 @@ import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IRuntimeHintProvider;
 import com.android.tradefed.testtype.ITestCollector;
 import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.TimeUtil;
 
 import com.google.common.annotations.VisibleForTesting;
 
@@ -58,6 +62,10 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Container for the test run configuration. This class is an helper to prepare and run the tests.
@@ -90,9 +98,18 @@ public class ModuleDefinition implements Comparable<ModuleDefinition>, ITestColl
 
     private long mElapsedTest = 0l;
 
+    private TestRuntimeHistory mRuntimeHistory = null;
+
+    /** The background staging of the preparers, if started. */
+    private Future<?> mStaging = null;
+
     public static final String PREPARATION_TIME = "PREP_TIME";
     public static final String TEAR_DOWN_TIME = "TEARDOWN_TIME";
     public static final String TEST_TIME = "TEST_TIME";
+    /** The install time saved by the {@link TestAppInstallSetup}s of the module, in ms. */
+    public static final String INSTALL_TIME_SAVED = "INSTALL_TIME_SAVED";
+    /** The number of apks the {@link TestAppInstallSetup}s found already installed. */
+    public static final String SKIPPED_INSTALLS = "SKIPPED_INSTALLS";
 
     /**
      * Constructor
@@ -173,6 +190,77 @@ public class ModuleDefinition implements Comparable<ModuleDefinition>, ITestColl
         }
     }
 
+    /**
+     * Sets the {@link TestRuntimeHistory} where the module records its duration, or null to not
+     * record it.
+     */
+    void setRuntimeHistory(TestRuntimeHistory runtimeHistory) {
+        mRuntimeHistory = runtimeHistory;
+    }
+
+    /**
+     * Start the staging of the {@link IHostStagingPreparer}s of the module in the background, so
+     * that their host side work overlaps with the tests of the previous modules. The device and
+     * build must already be set.
+     *
+     * @param executor the {@link ExecutorService} running the staging.
+     */
+    void startStaging(ExecutorService executor) {
+        if (mStaging != null) {
+            return;
+        }
+        final List<IHostStagingPreparer> stagingPreparers = new ArrayList<>();
+        for (ITargetPreparer preparer : mPreparers) {
+            if (preparer instanceof IHostStagingPreparer) {
+                stagingPreparers.add((IHostStagingPreparer) preparer);
+            }
+        }
+        if (stagingPreparers.isEmpty()) {
+            return;
+        }
+        mStaging =
+                executor.submit(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                for (IHostStagingPreparer preparer : stagingPreparers) {
+                                    try {
+                                        preparer.stage(mDevice, mBuild);
+                                    } catch (TargetSetupError | RuntimeException e) {
+                                        // The setup will do the work and report the error.
+                                        CLog.w(
+                                                "Module %s: staging of %s failed: %s",
+                                                getId(),
+                                                preparer.getClass().getSimpleName(),
+                                                e.getMessage());
+                                    }
+                                }
+                            }
+                        });
+    }
+
+    /** Returns True if the staging of the module was started. */
+    boolean isStagingStarted() {
+        return mStaging != null;
+    }
+
+    /** Wait for the staging of the preparers, if it was started. */
+    private void waitForStaging() {
+        if (mStaging == null) {
+            return;
+        }
+        long startTime = getCurrentTime();
+        try {
+            mStaging.get();
+        } catch (InterruptedException | ExecutionException | CancellationException e) {
+            // The preparers that were not staged will do all their work during the setup.
+            CLog.w("Module %s: staging did not complete: %s", getId(), e);
+        }
+        mStaging = null;
+        CLog.d("Module %s: waited %s for staging", getId(),
+                TimeUtil.formatElapsedTime(getCurrentTime() - startTime));
+    }
+
     /** Return the unique module name. */
     public String getId() {
         return mId;
@@ -232,6 +320,7 @@ public class ModuleDefinition implements Comparable<ModuleDefinition>, ITestColl
         Exception preparationException = null;
         // Setup
         long prepStartTime = getCurrentTime();
+        waitForStaging();
         for (ITargetPreparer preparer : mPreparers) {
             preparationException = runPreparerSetup(preparer, listener);
             if (preparationException != null) {
@@ -416,6 +505,23 @@ public class ModuleDefinition implements Comparable<ModuleDefinition>, ITestColl
         metrics.put(PREPARATION_TIME, Long.toString(mElapsedPreparation));
         metrics.put(TEAR_DOWN_TIME, Long.toString(mElapsedTearDown));
         metrics.put(TEST_TIME, Long.toString(elapsedTime));
+        long installTimeSaved = 0;
+        int skippedInstalls = 0;
+        for (ITargetPreparer preparer : mPreparers) {
+            if (preparer instanceof TestAppInstallSetup) {
+                installTimeSaved += ((TestAppInstallSetup) preparer).getInstallTimeSavedMs();
+                skippedInstalls += ((TestAppInstallSetup) preparer).getSkippedInstallCount();
+            }
+        }
+        if (installTimeSaved > 0 || skippedInstalls > 0) {
+            metrics.put(INSTALL_TIME_SAVED, Long.toString(installTimeSaved));
+            metrics.put(SKIPPED_INSTALLS, Integer.toString(skippedInstalls));
+        }
+        if (mRuntimeHistory != null) {
+            mRuntimeHistory.recordRuntime(
+                    TestRuntimeHistory.getKey(this),
+                    mElapsedPreparation + elapsedTime + mElapsedTearDown);
+        }
         if (totalExpectedTests != numResults) {
             String error =
                     String.format(
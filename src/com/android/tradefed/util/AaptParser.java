@@ -15,18 +15,24 @@
  */
 package com.android.tradefed.util;
 
+import com.android.annotations.VisibleForTesting;
 import com.android.tradefed.log.LogUtil.CLog;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.ZipFile;
 
 /**
- * Class that extracts info from apk by parsing output of 'aapt dump badging'.
+ * Class that extracts info from apk, the info 'aapt dump badging' reports.
  * <p/>
- * aapt must be on PATH
+ * The apk is read directly when possible. Otherwise the output of 'aapt dump badging' is parsed,
+ * and aapt must be on PATH. The results are cached for the whole host by the content of the apk.
  */
 public class AaptParser {
     private static final Pattern PKG_PATTERN = Pattern.compile(
@@ -45,6 +51,17 @@ public class AaptParser {
             Pattern.compile("alt-native-code: '(.*)'");
     private static final int AAPT_TIMEOUT_MS = 60000;
     private static final int INVALID_SDK = -1;
+    /** The number of apks whose info stays cached. */
+    private static final int MAX_CACHED_APKS = 1000;
+
+    /** The parsed apks, by the digest of their content, least recently used first. */
+    private static final Map<String, AaptParser> sCache =
+            new LinkedHashMap<String, AaptParser>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, AaptParser> eldest) {
+                    return size() > MAX_CACHED_APKS;
+                }
+            };
 
     private String mPackageName;
     private String mVersionCode;
@@ -57,6 +74,39 @@ public class AaptParser {
     AaptParser() {
     }
 
+    /** Copy constructor, so that callers do not share the cached instances. */
+    private AaptParser(AaptParser other) {
+        mPackageName = other.mPackageName;
+        mVersionCode = other.mVersionCode;
+        mVersionName = other.mVersionName;
+        mNativeCode = new ArrayList<>(other.mNativeCode);
+        mLabel = other.mLabel;
+        mSdkVersion = other.mSdkVersion;
+    }
+
+    /**
+     * Read the info from the apk itself.
+     *
+     * @throws IOException if the apk could not be read, in which case aapt should be used.
+     */
+    void parse(ApkManifestReader reader) throws IOException {
+        reader.read();
+        mPackageName = reader.getPackageName();
+        mVersionCode = reader.getVersionCode();
+        mVersionName = reader.getVersionName();
+        mLabel = reader.getLabel() != null && !reader.getLabel().isEmpty()
+                ? reader.getLabel() : mPackageName;
+        mSdkVersion = INVALID_SDK;
+        if (reader.getMinSdkVersion() != null) {
+            try {
+                mSdkVersion = Integer.parseInt(reader.getMinSdkVersion());
+            } catch (NumberFormatException e) {
+                // a code name, like aapt reports it
+            }
+        }
+        mNativeCode = reader.getNativeCode();
+    }
+
     boolean parse(String aaptOut) {
         //CLog.e(aaptOut);
         Matcher m = PKG_PATTERN.matcher(aaptOut);
@@ -103,6 +153,41 @@ public class AaptParser {
      * @return the {@link AaptParser} or <code>null</code> if failed to extract the information
      */
     public static AaptParser parse(File apkFile) {
+        String digest = null;
+        AaptParser p = null;
+        try (ZipFile apk = new ZipFile(apkFile)) {
+            digest = ApkManifestReader.digest(apk);
+            synchronized (sCache) {
+                p = sCache.get(digest);
+            }
+            if (p == null) {
+                p = new AaptParser();
+                p.parse(new ApkManifestReader(apk));
+            }
+        } catch (IOException e) {
+            CLog.w("Could not read %s, using aapt instead: %s", apkFile, e.getMessage());
+            p = parseWithAapt(apkFile);
+        }
+        if (p == null) {
+            return null;
+        }
+        if (digest != null) {
+            synchronized (sCache) {
+                sCache.put(digest, p);
+            }
+        }
+        return new AaptParser(p);
+    }
+
+    /** Clear the info cached for all apks. */
+    @VisibleForTesting
+    static void clearCache() {
+        synchronized (sCache) {
+            sCache.clear();
+        }
+    }
+
+    private static AaptParser parseWithAapt(File apkFile) {
         CommandResult result =
                 RunUtil.getDefault()
                         .runTimedCmdRetry(
@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the information {@link AaptParser} exposes directly from the binary AndroidManifest.xml and
+ * resources.arsc of an apk, the way 'aapt dump badging' finds it, without starting aapt.
+ * <p/>
+ * Only what is needed is decoded: the attributes of the manifest, uses-sdk and application
+ * elements, and the default value of the resources they reference.
+ */
+class ApkManifestReader {
+
+    private static final String MANIFEST = "AndroidManifest.xml";
+    private static final String RESOURCES = "resources.arsc";
+    private static final String LIB_DIR = "lib/";
+
+    // Chunk types, from ResourceTypes.h
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_TABLE_TYPE = 0x0002;
+    private static final int RES_XML_TYPE = 0x0003;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    private static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+    private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+    private static final int RES_TABLE_PACKAGE_TYPE = 0x0200;
+    private static final int RES_TABLE_TYPE_TYPE = 0x0201;
+
+    // Value types, from Res_value
+    private static final int TYPE_REFERENCE = 0x01;
+    private static final int TYPE_STRING = 0x03;
+    private static final int TYPE_INT_DEC = 0x10;
+    private static final int TYPE_INT_HEX = 0x11;
+    private static final int TYPE_INT_BOOLEAN = 0x12;
+
+    private static final int UTF8_FLAG = 0x100;
+    private static final int SPARSE_FLAG = 0x01;
+    private static final int COMPLEX_ENTRY_FLAG = 0x0001;
+    private static final int NO_ENTRY = 0xFFFFFFFF;
+    /** How many references are followed to find a value, like aapt. */
+    private static final int MAX_REFERENCE_DEPTH = 20;
+
+    // Framework attribute ids, used when the attribute names were stripped.
+    private static final int LABEL_ATTR = 0x01010001;
+    private static final int MIN_SDK_VERSION_ATTR = 0x0101020c;
+    private static final int VERSION_CODE_ATTR = 0x0101021b;
+    private static final int VERSION_NAME_ATTR = 0x0101021c;
+
+    /** The largest manifest or resource table read, to fail early on corrupted entries. */
+    private static final long MAX_ENTRY_SIZE = 256 * 1024 * 1024;
+
+    private final ZipFile mApk;
+    private ResourceTable mResources = null;
+
+    private String mPackageName = null;
+    private String mVersionCode = "";
+    private String mVersionName = "";
+    private String mLabel = null;
+    private String mMinSdkVersion = null;
+    private boolean mMultiArch = false;
+
+    /** A string pool chunk, whose strings are decoded when first needed. */
+    private static class StringPool {
+        private final ByteBuffer mBuffer;
+        private final int mOffsets;
+        private final int mStrings;
+        private final boolean mUtf8;
+        private final String[] mDecoded;
+
+        StringPool(ByteBuffer buffer, int start) {
+            mBuffer = buffer;
+            mOffsets = start + u16(buffer, start + 2);
+            mStrings = start + buffer.getInt(start + 20);
+            mUtf8 = (buffer.getInt(start + 16) & UTF8_FLAG) != 0;
+            mDecoded = new String[buffer.getInt(start + 8)];
+        }
+
+        String get(int index) {
+            if (index < 0 || index >= mDecoded.length) {
+                return null;
+            }
+            if (mDecoded[index] == null) {
+                mDecoded[index] = decode(mStrings + mBuffer.getInt(mOffsets + index * 4));
+            }
+            return mDecoded[index];
+        }
+
+        private String decode(int pos) {
+            if (mUtf8) {
+                // the length in utf-16 characters, then in bytes
+                pos += (mBuffer.get(pos) & 0x80) != 0 ? 2 : 1;
+                int length = mBuffer.get(pos) & 0xff;
+                if ((length & 0x80) != 0) {
+                    length = ((length & 0x7f) << 8) | (mBuffer.get(pos + 1) & 0xff);
+                    pos += 2;
+                } else {
+                    pos += 1;
+                }
+                byte[] bytes = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = mBuffer.get(pos + i);
+                }
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            int length = u16(mBuffer, pos);
+            if ((length & 0x8000) != 0) {
+                length = ((length & 0x7fff) << 16) | u16(mBuffer, pos + 2);
+                pos += 4;
+            } else {
+                pos += 2;
+            }
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = mBuffer.getChar(pos + i * 2);
+            }
+            return new String(chars);
+        }
+    }
+
+    /** The resources.arsc of the apk, indexed to look up the values of resource ids. */
+    private static class ResourceTable {
+        private final ByteBuffer mBuffer;
+        private StringPool mValues = null;
+        /** The offsets of the type chunks of each package and type, by (package << 8 | type). */
+        private final Map<Integer, List<Integer>> mTypes = new HashMap<>();
+
+        ResourceTable(ByteBuffer buffer) throws IOException {
+            mBuffer = buffer;
+            if (u16(buffer, 0) != RES_TABLE_TYPE) {
+                throw new IOException("Not a resource table");
+            }
+            int end = checkedEnd(buffer, 0, buffer.limit());
+            for (int pos = u16(buffer, 2); pos < end; pos = checkedEnd(buffer, pos, end)) {
+                int type = u16(buffer, pos);
+                if (type == RES_STRING_POOL_TYPE) {
+                    mValues = new StringPool(buffer, pos);
+                } else if (type == RES_TABLE_PACKAGE_TYPE) {
+                    indexPackage(pos);
+                }
+            }
+        }
+
+        private void indexPackage(int start) throws IOException {
+            int packageId = mBuffer.getInt(start + 8);
+            int end = checkedEnd(mBuffer, start, mBuffer.limit());
+            for (int pos = start + u16(mBuffer, start + 2); pos < end;
+                    pos = checkedEnd(mBuffer, pos, end)) {
+                if (u16(mBuffer, pos) == RES_TABLE_TYPE_TYPE) {
+                    int key = (packageId << 8) | (mBuffer.get(pos + 8) & 0xff);
+                    List<Integer> chunks = mTypes.get(key);
+                    if (chunks == null) {
+                        chunks = new ArrayList<>();
+                        mTypes.put(key, chunks);
+                    }
+                    chunks.add(pos);
+                }
+            }
+        }
+
+        /**
+         * Returns the position of the value of the resource, in its default configuration or else
+         * in the first configuration without a locale or else in the first one defining it, or -1
+         * if there is none.
+         */
+        int findValue(int resId) {
+            List<Integer> chunks = mTypes.get(resId >>> 16);
+            if (chunks == null) {
+                return -1;
+            }
+            int entry = resId & 0xffff;
+            int best = -1;
+            int bestRank = Integer.MAX_VALUE;
+            for (int chunk : chunks) {
+                int offset = findEntryOffset(chunk, entry);
+                if (offset == NO_ENTRY) {
+                    continue;
+                }
+                int pos = chunk + mBuffer.getInt(chunk + 16) + offset;
+                if ((u16(mBuffer, pos + 2) & COMPLEX_ENTRY_FLAG) != 0) {
+                    continue;
+                }
+                int rank = configRank(chunk + 20);
+                if (rank < bestRank) {
+                    best = pos + u16(mBuffer, pos);
+                    bestRank = rank;
+                }
+            }
+            return best;
+        }
+
+        private int findEntryOffset(int chunk, int entry) {
+            int entryCount = mBuffer.getInt(chunk + 12);
+            int offsets = chunk + u16(mBuffer, chunk + 2);
+            if ((mBuffer.get(chunk + 9) & SPARSE_FLAG) != 0) {
+                for (int i = 0; i < entryCount; i++) {
+                    if (u16(mBuffer, offsets + i * 4) == entry) {
+                        return u16(mBuffer, offsets + i * 4 + 2) * 4;
+                    }
+                }
+                return NO_ENTRY;
+            }
+            return entry < entryCount ? mBuffer.getInt(offsets + entry * 4) : NO_ENTRY;
+        }
+
+        /** 0 for the default configuration, 1 for one without a locale, 2 otherwise. */
+        private int configRank(int config) {
+            int size = mBuffer.getInt(config);
+            boolean noLocale = mBuffer.getInt(config + 8) == 0;
+            for (int i = 4; i < size; i++) {
+                if (mBuffer.get(config + i) != 0) {
+                    return noLocale ? 1 : 2;
+                }
+            }
+            return 0;
+        }
+    }
+
+    ApkManifestReader(ZipFile apk) {
+        mApk = apk;
+    }
+
+    /**
+     * Returns a digest of the content of the apk, computed from the name, size and CRC-32 of each
+     * of its entries so that only the central directory of the zip is read.
+     */
+    static String digest(ZipFile apk) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        ByteBuffer entryInfo = ByteBuffer.allocate(16);
+        Enumeration<? extends ZipEntry> entries = apk.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            digest.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+            entryInfo.clear();
+            entryInfo.putLong(entry.getSize()).putLong(entry.getCrc());
+            digest.update(entryInfo.array());
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Read the manifest of the apk.
+     *
+     * @throws IOException if the apk could not be read, or uses something this reader does not
+     *     support, in which case aapt should be used instead.
+     */
+    void read() throws IOException {
+        ByteBuffer manifest = readEntry(MANIFEST);
+        if (manifest == null) {
+            throw new IOException("No " + MANIFEST);
+        }
+        try {
+            readManifest(manifest);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed " + MANIFEST, e);
+        }
+        if (mPackageName == null) {
+            throw new IOException("No package name in " + MANIFEST);
+        }
+    }
+
+    String getPackageName() {
+        return mPackageName;
+    }
+
+    /** Returns the version code, or an empty string if it is not set. */
+    String getVersionCode() {
+        return mVersionCode;
+    }
+
+    /** Returns the version name, or an empty string if it is not set. */
+    String getVersionName() {
+        return mVersionName;
+    }
+
+    /** Returns the label of the application, or null if it is not set. */
+    String getLabel() {
+        return mLabel;
+    }
+
+    /** Returns the min sdk version as found in the manifest, or null if it is not set. */
+    String getMinSdkVersion() {
+        return mMinSdkVersion;
+    }
+
+    /**
+     * Returns the ABIs of the native code of the apk. For a multiArch apk, its 64 bit ABI comes
+     * first, like aapt reports it.
+     */
+    List<String> getNativeCode() {
+        TreeSet<String> abis = new TreeSet<>();
+        Enumeration<? extends ZipEntry> entries = mApk.entries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            int end = name.indexOf('/', LIB_DIR.length());
+            if (name.startsWith(LIB_DIR) && end > LIB_DIR.length()) {
+                abis.add(name.substring(LIB_DIR.length(), end));
+            }
+        }
+        List<String> nativeCode = new ArrayList<>();
+        if (mMultiArch) {
+            for (String abi : new String[] {"x86_64", "arm64-v8a"}) {
+                if (abis.remove(abi)) {
+                    nativeCode.add(abi);
+                    break;
+                }
+            }
+        }
+        nativeCode.addAll(abis);
+        return nativeCode;
+    }
+
+    private void readManifest(ByteBuffer buffer) throws IOException {
+        if (u16(buffer, 0) != RES_XML_TYPE) {
+            throw new IOException("Not a binary xml " + MANIFEST);
+        }
+        StringPool strings = null;
+        int[] resourceIds = new int[0];
+        int depth = 0;
+        int end = checkedEnd(buffer, 0, buffer.limit());
+        for (int pos = u16(buffer, 2); pos < end; pos = checkedEnd(buffer, pos, end)) {
+            switch (u16(buffer, pos)) {
+                case RES_STRING_POOL_TYPE:
+                    strings = new StringPool(buffer, pos);
+                    break;
+                case RES_XML_RESOURCE_MAP_TYPE:
+                    int headerSize = u16(buffer, pos + 2);
+                    resourceIds = new int[(buffer.getInt(pos + 4) - headerSize) / 4];
+                    for (int i = 0; i < resourceIds.length; i++) {
+                        resourceIds[i] = buffer.getInt(pos + headerSize + i * 4);
+                    }
+                    break;
+                case RES_XML_START_ELEMENT_TYPE:
+                    depth++;
+                    if (strings == null) {
+                        throw new IOException("No string pool in " + MANIFEST);
+                    }
+                    readElement(buffer, pos + u16(buffer, pos + 2), depth, strings, resourceIds);
+                    break;
+                case RES_XML_END_ELEMENT_TYPE:
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void readElement(
+            ByteBuffer buffer, int ext, int depth, StringPool strings, int[] resourceIds)
+            throws IOException {
+        String element = strings.get(buffer.getInt(ext + 4));
+        boolean isManifest = depth == 1 && "manifest".equals(element);
+        boolean isUsesSdk = depth == 2 && "uses-sdk".equals(element);
+        boolean isApplication = depth == 2 && "application".equals(element);
+        if (!isManifest && !isUsesSdk && !isApplication) {
+            return;
+        }
+        int attributeStart = ext + u16(buffer, ext + 8);
+        int attributeSize = u16(buffer, ext + 10);
+        int attributeCount = u16(buffer, ext + 12);
+        for (int i = 0; i < attributeCount; i++) {
+            int attribute = attributeStart + i * attributeSize;
+            int nameIndex = buffer.getInt(attribute + 4);
+            int resId = nameIndex >= 0 && nameIndex < resourceIds.length
+                    ? resourceIds[nameIndex] : 0;
+            String name = strings.get(nameIndex);
+            int rawValue = buffer.getInt(attribute + 8);
+            int type = buffer.get(attribute + 15) & 0xff;
+            int data = buffer.getInt(attribute + 16);
+            if (isManifest) {
+                if (resId == 0 && "package".equals(name)) {
+                    mPackageName = strings.get(rawValue);
+                } else if (isAttribute(resId, name, VERSION_CODE_ATTR, "versionCode")) {
+                    String value = resolve(type, data, strings, 0);
+                    // aapt only reports a positive integer version code
+                    try {
+                        if (value != null && Integer.parseInt(value) > 0) {
+                            mVersionCode = value;
+                        }
+                    } catch (NumberFormatException e) {
+                        // not reported either
+                    }
+                } else if (isAttribute(resId, name, VERSION_NAME_ATTR, "versionName")) {
+                    mVersionName = checkResolved(resolve(type, data, strings, 0), name);
+                }
+            } else if (isUsesSdk) {
+                if (isAttribute(resId, name, MIN_SDK_VERSION_ATTR, "minSdkVersion")) {
+                    mMinSdkVersion = checkResolved(resolve(type, data, strings, 0), name);
+                }
+            } else {
+                if (isAttribute(resId, name, LABEL_ATTR, "label")) {
+                    mLabel = checkResolved(resolve(type, data, strings, 0), name);
+                } else if ("multiArch".equals(name)) {
+                    mMultiArch = "true".equals(resolve(type, data, strings, 0));
+                }
+            }
+        }
+    }
+
+    private static boolean isAttribute(int resId, String name, int expectedId, String expected) {
+        return resId != 0 ? resId == expectedId : expected.equals(name);
+    }
+
+    private static String checkResolved(String value, String attribute) throws IOException {
+        if (value == null) {
+            throw new IOException("Could not resolve the value of " + attribute);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value as a string, following references to resources, or null if it is of a
+     * type aapt would not report.
+     */
+    private String resolve(int type, int data, StringPool strings, int depth) throws IOException {
+        switch (type) {
+            case TYPE_STRING:
+                return strings.get(data);
+            case TYPE_INT_DEC:
+            case TYPE_INT_HEX:
+                return Integer.toString(data);
+            case TYPE_INT_BOOLEAN:
+                return Boolean.toString(data != 0);
+            case TYPE_REFERENCE:
+                if (depth >= MAX_REFERENCE_DEPTH) {
+                    return null;
+                }
+                ResourceTable resources = getResources();
+                int pos = resources.findValue(data);
+                if (pos < 0 || resources.mValues == null) {
+                    return null;
+                }
+                ByteBuffer buffer = resources.mBuffer;
+                return resolve(buffer.get(pos + 3) & 0xff, buffer.getInt(pos + 4),
+                        resources.mValues, depth + 1);
+            default:
+                return null;
+        }
+    }
+
+    private ResourceTable getResources() throws IOException {
+        if (mResources == null) {
+            ByteBuffer table = readEntry(RESOURCES);
+            if (table == null) {
+                throw new IOException("No " + RESOURCES + " to resolve references");
+            }
+            mResources = new ResourceTable(table);
+        }
+        return mResources;
+    }
+
+    private ByteBuffer readEntry(String name) throws IOException {
+        ZipEntry entry = mApk.getEntry(name);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.getSize() > MAX_ENTRY_SIZE) {
+            throw new IOException(String.format("%s is too large", name));
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream(
+                entry.getSize() > 0 ? (int) entry.getSize() : 8192);
+        try (InputStream input = mApk.getInputStream(entry)) {
+            StreamUtil.copyStreams(input, content);
+        }
+        return ByteBuffer.wrap(content.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Returns the end of the chunk at <var>pos</var>, checking it is within its parent. */
+    private static int checkedEnd(ByteBuffer buffer, int pos, int parentEnd) throws IOException {
+        int size = buffer.getInt(pos + 4);
+        if (size < 8 || size > parentEnd - pos) {
+            throw new IOException(String.format("Malformed chunk at %d", pos));
+        }
+        return pos + size;
+    }
+
+    private static int u16(ByteBuffer buffer, int pos) {
+        return buffer.getShort(pos) & 0xffff;
+    }
+}
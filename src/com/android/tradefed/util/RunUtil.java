@@ -16,6 +16,7 @@
 
 package com.android.tradefed.util;
 
+import com.android.tradefed.log.LogRegistry;
 import com.android.tradefed.log.LogUtil.CLog;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -35,7 +36,12 @@ import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A collection of helper methods for executing operations.
@@ -49,6 +55,11 @@ public class RunUtil implements IRunUtil {
     private static final long THREAD_JOIN_POLL_INTERVAL = 30 * 1000;
     private static final long IO_THREAD_JOIN_INTERVAL = 5 * 1000;
     private static final long PROCESS_DESTROY_TIMEOUT_SEC = 2;
+    /** The maximum number of pooled threads running timed operations. */
+    private static final int MAX_POOLED_RUNNABLES = 128;
+    private static final long POOLED_RUNNABLE_KEEP_ALIVE_SEC = 60;
+    /** The threads running the timed operations, shared by all the instances. */
+    private static ThreadPoolExecutor sRunnableExecutor = null;
     private static IRunUtil sDefaultInstance = null;
     private File mWorkingDir = null;
     private Map<String, String> mEnvVariables = new HashMap<String, String>();
@@ -326,7 +337,7 @@ public class RunUtil implements IRunUtil {
                 CLog.d("Running command without timeout.");
             }
         }
-        runThread.start();
+        execute(runThread);
         long startTime = System.currentTimeMillis();
         long pollIterval = 0;
         if (timeout > 0l && timeout < THREAD_JOIN_POLL_INTERVAL) {
@@ -337,7 +348,7 @@ public class RunUtil implements IRunUtil {
         }
         do {
             try {
-                runThread.join(pollIterval);
+                runThread.await(pollIterval);
             } catch (InterruptedException e) {
                 if (mIsInterruptAllowed.get()) {
                     CLog.i("runTimed: interrupted while joining the runnable");
@@ -349,7 +360,7 @@ public class RunUtil implements IRunUtil {
             }
             checkInterrupted();
         } while ((timeout == 0l || (System.currentTimeMillis() - startTime) < timeout)
-                && runThread.isAlive());
+                && !runThread.isDone());
         // Snapshot the status when out of the run loop because thread may terminate and return a
         // false FAILED instead of TIMED_OUT.
         CommandStatus status = runThread.getStatus();
@@ -520,43 +531,118 @@ public class RunUtil implements IRunUtil {
     }
 
     /**
-     * Helper thread that wraps a runnable, and notifies when done.
+     * Run the {@link RunnableNotifier} on a pooled thread, or on a new thread if all the pooled
+     * threads are busy.
      */
-    private static class RunnableNotifier extends Thread {
+    private static void execute(RunnableNotifier runnable) {
+        try {
+            getRunnableExecutor().execute(runnable);
+        } catch (RejectedExecutionException e) {
+            Thread runThread = new Thread(runnable, RUNNABLE_NOTIFIER_NAME);
+            // Set this thread to be a daemon so that it does not prevent
+            // TF from shutting down.
+            runThread.setDaemon(true);
+            runThread.start();
+        }
+    }
+
+    /** Returns the pool of threads running the timed operations, creating it if needed. */
+    private static synchronized ThreadPoolExecutor getRunnableExecutor() {
+        if (sRunnableExecutor == null) {
+            // The pooled threads are not part of any invocation thread group, where they would be
+            // reported as stray threads. They log on behalf of the calling thread instead.
+            ThreadGroup rootGroup = Thread.currentThread().getThreadGroup();
+            while (rootGroup.getParent() != null) {
+                rootGroup = rootGroup.getParent();
+            }
+            final ThreadGroup poolGroup = new ThreadGroup(rootGroup, RUNNABLE_NOTIFIER_NAME);
+            sRunnableExecutor =
+                    new ThreadPoolExecutor(
+                            0,
+                            MAX_POOLED_RUNNABLES,
+                            POOLED_RUNNABLE_KEEP_ALIVE_SEC,
+                            TimeUnit.SECONDS,
+                            new SynchronousQueue<Runnable>(),
+                            new ThreadFactory() {
+                                private final AtomicInteger mCount = new AtomicInteger();
+
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    Thread thread =
+                                            new Thread(
+                                                    poolGroup,
+                                                    r,
+                                                    String.format("%s-pool-%d",
+                                                            RUNNABLE_NOTIFIER_NAME,
+                                                            mCount.incrementAndGet()));
+                                    // Do not prevent TF from shutting down.
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+        }
+        return sRunnableExecutor;
+    }
+
+    /**
+     * Helper that wraps a runnable, and notifies when done.
+     */
+    private static class RunnableNotifier implements Runnable {
 
         private final IRunUtil.IRunnableResult mRunnable;
+        private final ThreadGroup mLoggingThreadGroup;
+        private final CountDownLatch mDone = new CountDownLatch(1);
         private CommandStatus mStatus = CommandStatus.TIMED_OUT;
         private boolean mLogErrors = true;
 
         RunnableNotifier(IRunUtil.IRunnableResult runnable, boolean logErrors) {
-            // Set this thread to be a daemon so that it does not prevent
-            // TF from shutting down.
-            setName(RUNNABLE_NOTIFIER_NAME);
-            setDaemon(true);
             mRunnable = runnable;
             mLogErrors = logErrors;
+            mLoggingThreadGroup = LogRegistry.getLoggingThreadGroup();
         }
 
         @Override
         public void run() {
-            CommandStatus status;
+            // log into the invocation of the caller
+            LogRegistry.setLoggingThreadGroup(mLoggingThreadGroup);
+            CommandStatus status = CommandStatus.EXCEPTION;
             try {
                 status = mRunnable.run() ? CommandStatus.SUCCESS : CommandStatus.FAILED;
             } catch (InterruptedException e) {
                 CLog.i("runutil interrupted");
-                status = CommandStatus.EXCEPTION;
             } catch (Exception e) {
                 if (mLogErrors) {
                     CLog.e("Exception occurred when executing runnable");
                     CLog.e(e);
                 }
-                status = CommandStatus.EXCEPTION;
-            }
-            synchronized (this) {
-                mStatus = status;
+            } catch (Error e) {
+                // not rethrown, the pooled thread would die with it, but always reported
+                CLog.e("Error occurred when executing runnable");
+                CLog.e(e);
+            } finally {
+                LogRegistry.setLoggingThreadGroup(null);
+                synchronized (this) {
+                    mStatus = status;
+                }
+                // the caller may wait without timeout, it must always be released
+                mDone.countDown();
             }
         }
 
+        /**
+         * Wait for the runnable to complete.
+         *
+         * @param timeout the maximum time to wait in ms.
+         */
+        void await(long timeout) throws InterruptedException {
+            mDone.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /** Returns true once the runnable completed. */
+        boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
         public void cancel() {
             mRunnable.cancel();
         }
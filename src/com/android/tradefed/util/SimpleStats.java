@@ -15,20 +15,35 @@
  */
 package com.android.tradefed.util;
 
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * A small utility class that calculates a few statistical measures given a numerical dataset.  The
- * values are stored internally as {@link Double}s.
+ * values are stored internally in a growable {@code double} array.
+ * <p />
+ * The mean, standard deviation, min and max are kept up to date as measurements are added, with
+ * Welford's algorithm for the first two. A sorted copy of the dataset is only updated to compute a
+ * median or a percentile, with the measurements added since the previous one.
  */
 public class SimpleStats {
-    private List<Double> mData = new LinkedList<Double>();
+    private static final int INITIAL_CAPACITY = 16;
+
+    private double[] mData = new double[INITIAL_CAPACITY];
+    private int mSize = 0;
 
     // cached values
     private double mSum = 0;
+    private double mMean = 0;
+    // sum of squared differences from the mean
+    private double mSsd = 0;
+    private double mMin = Double.NaN;
+    private double mMax = Double.NaN;
+    // sorted copy of the first mSortedSize measurements
+    private double[] mSorted = new double[0];
+    private int mSortedSize = 0;
 
     /**
      * Add a number of measurements to the dataset.
@@ -44,33 +59,87 @@ public class SimpleStats {
         }
     }
 
+    /**
+     * Add all the measurements of another {@link SimpleStats} to the dataset, without going
+     * through them one by one.
+     */
+    public void addAll(SimpleStats other) {
+        if (other.isEmpty()) {
+            return;
+        }
+        if (isEmpty()) {
+            mMean = other.mMean;
+            mSsd = other.mSsd;
+            mMin = other.mMin;
+            mMax = other.mMax;
+        } else {
+            // Chan et al. update of the mean and squared differences of two datasets
+            int count = mSize + other.mSize;
+            double delta = other.mMean - mMean;
+            mSsd += other.mSsd + delta * delta * ((double) mSize * other.mSize / count);
+            mMean += delta * other.mSize / count;
+            mMin = Math.min(mMin, other.mMin);
+            mMax = Math.max(mMax, other.mMax);
+        }
+        ensureCapacity(mSize + other.mSize);
+        System.arraycopy(other.mData, 0, mData, mSize, other.mSize);
+        mSize += other.mSize;
+        mSum += other.mSum;
+    }
+
     /**
      * Add a measurement to the dataset.
      */
     public void add(double meas) {
-        mData.add(meas);
+        ensureCapacity(mSize + 1);
+        mData[mSize++] = meas;
         mSum += meas;
+        double delta = meas - mMean;
+        mMean += delta / mSize;
+        mSsd += delta * (meas - mMean);
+        if (mSize == 1) {
+            mMin = meas;
+            mMax = meas;
+        } else {
+            mMin = Math.min(mMin, meas);
+            mMax = Math.max(mMax, meas);
+        }
     }
 
     /**
-     * Retrieve the dataset.
+     * Retrieve the dataset, in the order the measurements were added. The returned list is a
+     * read-only view of the dataset.
      */
     public List<Double> getData() {
-        return mData;
+        return new AbstractList<Double>() {
+            @Override
+            public Double get(int index) {
+                if (index < 0 || index >= mSize) {
+                    throw new IndexOutOfBoundsException(
+                            String.format("Index: %d, Size: %d", index, mSize));
+                }
+                return mData[index];
+            }
+
+            @Override
+            public int size() {
+                return mSize;
+            }
+        };
     }
 
     /**
      * Check if the dataset is empty.
      */
     public boolean isEmpty() {
-        return mData.isEmpty();
+        return mSize == 0;
     }
 
     /**
      * Check how many elements are in the dataset.
      */
     public int size() {
-        return mData.size();
+        return mSize;
     }
 
     /**
@@ -92,19 +161,42 @@ public class SimpleStats {
             return null;
         }
 
-        Collections.sort(mData);
-        if ((mData.size() & 0x1) == 1) {
+        double[] sorted = sorted();
+        int idx = size() / 2;
+        if ((size() & 0x1) == 1) {
             // odd count of items, pick the middle element.  Note that we don't +1 since indices
             // are zero-based rather than one-based
-            int idx = size() / 2;
-            return mData.get(idx);
+            return sorted[idx];
         } else {
             // even count of items, average the two middle elements
-            int idx = size() / 2;
-            return (mData.get(idx - 1) + mData.get(idx)) / 2;
+            return (sorted[idx - 1] + sorted[idx]) / 2;
         }
     }
 
+    /**
+     * Calculate and return a percentile of the dataset, or {@code null} if the dataset is empty.
+     * Values between two measurements are linearly interpolated, so that the 50th percentile is
+     * the median.
+     *
+     * @param percentile the percentile to calculate, between 0 and 100.
+     * @throws IllegalArgumentException if the percentile is not between 0 and 100
+     */
+    public Double percentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(
+                    String.format("Percentile %s is not between 0 and 100", percentile));
+        }
+        if (isEmpty()) {
+            return null;
+        }
+
+        double[] sorted = sorted();
+        double rank = percentile / 100 * (size() - 1);
+        int lower = (int) Math.floor(rank);
+        int upper = (int) Math.ceil(rank);
+        return sorted[lower] + (sorted[upper] - sorted[lower]) * (rank - lower);
+    }
+
     /**
      * Return the minimum value in the dataset, or {@code null} if the dataset is empty.
      */
@@ -113,8 +205,7 @@ public class SimpleStats {
             return null;
         }
 
-        Collections.sort(mData);
-        return mData.get(0);
+        return mMin;
     }
 
     /**
@@ -125,8 +216,7 @@ public class SimpleStats {
             return null;
         }
 
-        Collections.sort(mData);
-        return mData.get(size() - 1);
+        return mMax;
     }
 
     /**
@@ -141,14 +231,7 @@ public class SimpleStats {
             return null;
         }
 
-        Double avg = mean();
-        Double ssd = 0.0;  // sum of squared differences
-        for (Double meas : mData) {
-            Double diff = meas - avg;
-            ssd += diff * diff;
-        }
-
-        return Math.sqrt(ssd / size());
+        return Math.sqrt(Math.max(0, mSsd) / size());
     }
 
     /**
@@ -163,13 +246,14 @@ public class SimpleStats {
             return null;
         }
 
-        Double avg = mean();
-        Double std = stdev();
-        Double upper = avg + std;
-        Double lower = avg - std;
-        Double sum = 0.0;
+        double avg = mean();
+        double std = stdev();
+        double upper = avg + std;
+        double lower = avg - std;
+        double sum = 0.0;
         int count = 0;
-        for (Double meas : mData) {
+        for (int i = 0; i < mSize; i++) {
+            double meas = mData[i];
             if (meas > lower && meas < upper) {
                 sum += meas;
                 count++;
@@ -177,5 +261,36 @@ public class SimpleStats {
         }
         return sum / count;
     }
-}
 
+    private void ensureCapacity(int capacity) {
+        if (capacity > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(capacity, mData.length * 2));
+        }
+    }
+
+    private double[] sorted() {
+        int added = mSize - mSortedSize;
+        if (added == 0) {
+            return mSorted;
+        }
+        if (mSorted.length < mSize) {
+            mSorted = Arrays.copyOf(mSorted, mData.length);
+        }
+        if (added > mSortedSize / 8) {
+            // sorting again is cheaper than inserting many measurements one by one
+            System.arraycopy(mData, mSortedSize, mSorted, mSortedSize, added);
+            Arrays.sort(mSorted, 0, mSize);
+        } else {
+            for (int i = mSortedSize; i < mSize; i++) {
+                int idx = Arrays.binarySearch(mSorted, 0, i, mData[i]);
+                if (idx < 0) {
+                    idx = -idx - 1;
+                }
+                System.arraycopy(mSorted, idx, mSorted, idx + 1, i - idx);
+                mSorted[idx] = mData[i];
+            }
+        }
+        mSortedSize = mSize;
+        return mSorted;
+    }
+}
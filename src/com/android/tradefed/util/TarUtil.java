@@ -25,6 +25,7 @@ import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.utils.IOUtils;
 
 import java.io.File;
@@ -34,6 +35,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
@@ -126,6 +129,45 @@ public class TarUtil {
         return outputFile;
     }
 
+    /**
+     * Create a tar archive containing the given files. Entries are named by their path relative
+     * to <var>baseDir</var>, with '/' as separator.
+     *
+     * @param baseDir the directory the entry names are relative to. All files must be inside it.
+     * @param files the regular files to add to the archive.
+     * @return the created tar file. Callers are responsible for deleting it.
+     * @throws IOException if the archive could not be written.
+     */
+    public static File tar(File baseDir, Collection<File> files) throws IOException {
+        File outputFile = FileUtil.createTempFile(baseDir.getName(), ".tar");
+        TarArchiveOutputStream out = null;
+        try {
+            out = new TarArchiveOutputStream(new FileOutputStream(outputFile));
+            out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            Path basePath = baseDir.toPath();
+            for (File file : files) {
+                String name = basePath.relativize(file.toPath()).toString()
+                        .replace(File.separatorChar, '/');
+                out.putArchiveEntry(new TarArchiveEntry(file, name));
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    IOUtils.copy(in, out);
+                } finally {
+                    StreamUtil.close(in);
+                }
+                out.closeArchiveEntry();
+            }
+            out.finish();
+        } catch (IOException e) {
+            // delete the tmp file if we failed to create the archive.
+            FileUtil.deleteFile(outputFile);
+            throw e;
+        } finally {
+            StreamUtil.close(out);
+        }
+        return outputFile;
+    }
+
     /**
      * Utility function to gzip (.gz) a file. the .gz extension will be added to base file name.
      *
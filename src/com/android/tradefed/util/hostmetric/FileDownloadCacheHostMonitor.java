@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.hostmetric;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.build.FileDownloadCache;
+import com.android.tradefed.build.FileDownloadCacheFactory;
+import com.android.tradefed.log.ILogRegistry.EventType;
+import com.android.tradefed.log.LogRegistry;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link AbstractHostMonitor} implementation that periodically logs the hit rate and the bytes
+ * saved by each {@link FileDownloadCache} of the host to the history log.
+ */
+public class FileDownloadCacheHostMonitor extends AbstractHostMonitor {
+
+    protected static final String CACHE_DIR_KEY = "cache_dir";
+    protected static final String HIT_KEY = "hits";
+    protected static final String MISS_KEY = "misses";
+    protected static final String BYTES_DOWNLOADED_KEY = "bytes_downloaded";
+    protected static final String BYTES_SAVED_KEY = "bytes_saved";
+    protected static final String CACHE_SIZE_KEY = "cache_size_bytes";
+
+    public FileDownloadCacheHostMonitor() {
+        super();
+        setName("FileDownloadCacheHostMonitor");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void dispatch() {
+        // This host monitor does not care about events, so we flush them out.
+        mHostEvents.clear();
+        for (FileDownloadCache cache : getCaches()) {
+            Map<String, String> args = new HashMap<>();
+            args.put(CACHE_DIR_KEY, cache.getCacheRoot().getAbsolutePath());
+            args.put(HIT_KEY, Long.toString(cache.getHitCount()));
+            args.put(MISS_KEY, Long.toString(cache.getMissCount()));
+            args.put(BYTES_DOWNLOADED_KEY, Long.toString(cache.getBytesDownloaded()));
+            args.put(BYTES_SAVED_KEY, Long.toString(cache.getBytesSaved()));
+            args.put(CACHE_SIZE_KEY, Long.toString(cache.getCurrentCacheSize()));
+            logEvent(args);
+        }
+    }
+
+    /** Returns the caches to report on. */
+    @VisibleForTesting
+    List<FileDownloadCache> getCaches() {
+        return FileDownloadCacheFactory.getInstance().getCaches();
+    }
+
+    /** Log the event to the history log. */
+    @VisibleForTesting
+    void logEvent(Map<String, String> args) {
+        LogRegistry.getLogRegistry().logEvent(LogLevel.INFO, EventType.FILE_DOWNLOAD_CACHE, args);
+    }
+}
@@ -20,6 +20,7 @@ import com.android.tradefed.build.BuildInfoTest;
 import com.android.tradefed.build.DeviceBuildDescriptorTest;
 import com.android.tradefed.build.DeviceBuildInfoTest;
 import com.android.tradefed.build.DeviceFolderBuildInfoTest;
+import com.android.tradefed.build.FileDownloadCacheJournalTest;
 import com.android.tradefed.build.FileDownloadCacheTest;
 import com.android.tradefed.build.KernelBuildInfoTest;
 import com.android.tradefed.build.KernelDeviceBuildInfoTest;
@@ -32,6 +33,7 @@ import com.android.tradefed.command.CommandOptionsTest;
 import com.android.tradefed.command.CommandRunnerTest;
 import com.android.tradefed.command.CommandSchedulerTest;
 import com.android.tradefed.command.ConsoleTest;
+import com.android.tradefed.command.DeviceRequirementsKeyTest;
 import com.android.tradefed.command.VerifyTest;
 import com.android.tradefed.command.remote.RemoteManagerTest;
 import com.android.tradefed.command.remote.RemoteOperationTest;
@@ -49,11 +51,14 @@ import com.android.tradefed.config.SandboxConfigurationFactoryTest;
 import com.android.tradefed.device.BackgroundDeviceActionTest;
 import com.android.tradefed.device.CpuStatsCollectorTest;
 import com.android.tradefed.device.DeviceManagerTest;
+import com.android.tradefed.device.DevicePropertyCacheTest;
+import com.android.tradefed.device.DevicePropertySnapshotTest;
 import com.android.tradefed.device.DeviceSelectionOptionsTest;
 import com.android.tradefed.device.DeviceStateMonitorTest;
 import com.android.tradefed.device.DeviceUtilStatsMonitorTest;
 import com.android.tradefed.device.DumpsysPackageReceiverTest;
 import com.android.tradefed.device.FastbootHelperTest;
+import com.android.tradefed.device.LogcatRingBufferTest;
 import com.android.tradefed.device.ManagedDeviceListTest;
 import com.android.tradefed.device.ManagedTestDeviceFactoryTest;
 import com.android.tradefed.device.NativeDeviceTest;
@@ -70,7 +75,9 @@ import com.android.tradefed.invoker.ShardListenerTest;
 import com.android.tradefed.invoker.TestInvocationMultiTest;
 import com.android.tradefed.invoker.TestInvocationTest;
 import com.android.tradefed.invoker.shard.ShardHelperTest;
+import com.android.tradefed.invoker.shard.ShardPlannerTest;
 import com.android.tradefed.invoker.shard.StrictShardHelperTest;
+import com.android.tradefed.invoker.shard.TestRuntimeHistoryTest;
 import com.android.tradefed.invoker.shard.TestsPoolPollerTest;
 import com.android.tradefed.log.FileLoggerTest;
 import com.android.tradefed.log.HistoryLoggerTest;
@@ -79,12 +86,15 @@ import com.android.tradefed.log.TerribleFailureEmailHandlerTest;
 import com.android.tradefed.profiler.AggregatingProfilerTest;
 import com.android.tradefed.profiler.MetricOutputDataTest;
 import com.android.tradefed.profiler.recorder.NumericAggregateFunctionTest;
+import com.android.tradefed.profiler.recorder.TraceLineTokenizerTest;
 import com.android.tradefed.profiler.recorder.TraceMetricTest;
 import com.android.tradefed.profiler.recorder.TraceMetricsRecorderTest;
 import com.android.tradefed.profiler.recorder.TraceParserTest;
 import com.android.tradefed.result.AggregatingProfilerListenerTest;
+import com.android.tradefed.result.AsyncResultForwarderTest;
 import com.android.tradefed.result.BugreportCollectorTest;
 import com.android.tradefed.result.CollectingTestListenerTest;
+import com.android.tradefed.result.CompactTestRunResultTest;
 import com.android.tradefed.result.ConsoleResultReporterTest;
 import com.android.tradefed.result.DeviceFileReporterTest;
 import com.android.tradefed.result.DeviceUnavailEmailResultReporterTest;
@@ -103,6 +113,7 @@ import com.android.tradefed.result.TestSummaryTest;
 import com.android.tradefed.result.XmlResultReporterTest;
 import com.android.tradefed.sandbox.SandboxConfigDumpTest;
 import com.android.tradefed.sandbox.SandboxConfigUtilTest;
+import com.android.tradefed.sandbox.SandboxWorkerPoolTest;
 import com.android.tradefed.sandbox.TradefedSandboxTest;
 import com.android.tradefed.suite.checker.ActivityStatusCheckerTest;
 import com.android.tradefed.suite.checker.KeyguardStatusCheckerTest;
@@ -141,6 +152,7 @@ import com.android.tradefed.testtype.FakeTestTest;
 import com.android.tradefed.testtype.GTestListTestParserTest;
 import com.android.tradefed.testtype.GTestResultParserTest;
 import com.android.tradefed.testtype.GTestTest;
+import com.android.tradefed.testtype.GTestOutputDemultiplexerTest;
 import com.android.tradefed.testtype.GTestXmlResultParserTest;
 import com.android.tradefed.testtype.GoogleBenchmarkResultParserTest;
 import com.android.tradefed.testtype.GoogleBenchmarkTestTest;
@@ -217,6 +229,7 @@ import com.android.tradefed.util.TimeValTest;
 import com.android.tradefed.util.ZipUtil2Test;
 import com.android.tradefed.util.ZipUtilTest;
 import com.android.tradefed.util.hostmetric.AbstractHostMonitorTest;
+import com.android.tradefed.util.hostmetric.FileDownloadCacheHostMonitorTest;
 import com.android.tradefed.util.hostmetric.HeapHostMonitorTest;
 import com.android.tradefed.util.keystore.JSONFileKeyStoreClientTest;
 import com.android.tradefed.util.keystore.JSONFileKeyStoreFactoryTest;
@@ -246,6 +259,7 @@ import org.junit.runners.Suite.SuiteClasses;
     DeviceBuildInfoTest.class,
     DeviceBuildDescriptorTest.class,
     DeviceFolderBuildInfoTest.class,
+    FileDownloadCacheJournalTest.class,
     FileDownloadCacheTest.class,
     KernelBuildInfoTest.class,
     KernelDeviceBuildInfoTest.class,
@@ -260,6 +274,7 @@ import org.junit.runners.Suite.SuiteClasses;
     CommandRunnerTest.class,
     CommandSchedulerTest.class,
     ConsoleTest.class,
+    DeviceRequirementsKeyTest.class,
     VerifyTest.class,
 
     // command.remote
@@ -283,11 +298,14 @@ import org.junit.runners.Suite.SuiteClasses;
     BackgroundDeviceActionTest.class,
     CpuStatsCollectorTest.class,
     DeviceManagerTest.class,
+    DevicePropertyCacheTest.class,
+    DevicePropertySnapshotTest.class,
     DeviceSelectionOptionsTest.class,
     DeviceStateMonitorTest.class,
     DeviceUtilStatsMonitorTest.class,
     DumpsysPackageReceiverTest.class,
     FastbootHelperTest.class,
+    LogcatRingBufferTest.class,
     ManagedDeviceListTest.class,
     ManagedTestDeviceFactoryTest.class,
     NativeDeviceTest.class,
@@ -311,7 +329,9 @@ import org.junit.runners.Suite.SuiteClasses;
 
     // invoker.shard
     ShardHelperTest.class,
+    ShardPlannerTest.class,
     StrictShardHelperTest.class,
+    TestRuntimeHistoryTest.class,
     TestsPoolPollerTest.class,
 
     // log
@@ -327,12 +347,15 @@ import org.junit.runners.Suite.SuiteClasses;
     TraceMetricsRecorderTest.class,
     TraceMetricTest.class,
     TraceParserTest.class,
+    TraceLineTokenizerTest.class,
 
     // result
     AggregatingProfilerListenerTest.class,
+    AsyncResultForwarderTest.class,
     BugreportCollectorTest.class,
     ConsoleResultReporterTest.class,
     CollectingTestListenerTest.class,
+    CompactTestRunResultTest.class,
     DeviceFileReporterTest.class,
     DeviceUnavailEmailResultReporterTest.class,
     EmailResultReporterTest.class,
@@ -380,6 +403,7 @@ import org.junit.runners.Suite.SuiteClasses;
     // sandbox
     SandboxConfigDumpTest.class,
     SandboxConfigUtilTest.class,
+    SandboxWorkerPoolTest.class,
     TradefedSandboxTest.class,
 
     // suite/checker
@@ -401,6 +425,7 @@ import org.junit.runners.Suite.SuiteClasses;
     GTestListTestParserTest.class,
     GTestResultParserTest.class,
     GTestTest.class,
+    GTestOutputDemultiplexerTest.class,
     GTestXmlResultParserTest.class,
     HostTestTest.class,
     InstalledInstrumentationsTestTest.class,
@@ -484,6 +509,7 @@ import org.junit.runners.Suite.SuiteClasses;
 
     //util/hostmetric
     AbstractHostMonitorTest.class,
+    FileDownloadCacheHostMonitorTest.class,
     HeapHostMonitorTest.class,
 
     // util subdirs
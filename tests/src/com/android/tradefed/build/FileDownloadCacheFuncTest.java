@@ -309,6 +309,72 @@ public class FileDownloadCacheFuncTest extends TestCase {
         }
     }
 
+    /**
+     * Verify the cache is restored from its journal on creation, in access order rather than file
+     * timestamp order.
+     */
+    public void testConstructor_loadJournal() throws Exception {
+        final String remotePath2 = "aa/anotherpath";
+        setDownloadExpectations(REMOTE_PATH);
+        setDownloadExpectations(remotePath2);
+        EasyMock.replay(mMockDownloader);
+        mReturnedFiles.add(mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH));
+        mReturnedFiles.add(mCache.fetchRemoteFile(mMockDownloader, remotePath2));
+        // access the first file again, so that it becomes the most recently used
+        mReturnedFiles.add(mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH));
+        EasyMock.verify(mMockDownloader);
+
+        FileDownloadCache cache = new FileDownloadCache(mTmpDir);
+        cache.waitForIndexVerification();
+        assertNotNull(cache.getCachedFile(REMOTE_PATH));
+        assertNotNull(cache.getCachedFile(remotePath2));
+        assertEquals(remotePath2, cache.getOldestEntry());
+        assertEquals(2 * DOWNLOADED_CONTENTS.length(), cache.getCurrentCacheSize());
+    }
+
+    /**
+     * Verify the index restored from the journal is reconciled with the files actually in the
+     * cache directory.
+     */
+    public void testConstructor_verifyJournal() throws Exception {
+        setDownloadExpectations(REMOTE_PATH);
+        EasyMock.replay(mMockDownloader);
+        mReturnedFiles.add(mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH));
+        EasyMock.verify(mMockDownloader);
+        // remove the downloaded file and add another one behind the journal's back
+        assertTrue(mCache.getCachedFile(REMOTE_PATH).delete());
+        File unknownFile = new File(mTmpDir, "aa/anotherpath");
+        unknownFile.getParentFile().mkdirs();
+        FileUtil.writeToFile(DOWNLOADED_CONTENTS, unknownFile);
+
+        FileDownloadCache cache = new FileDownloadCache(mTmpDir);
+        cache.waitForIndexVerification();
+        assertNull(cache.getCachedFile(REMOTE_PATH));
+        assertEquals(unknownFile, cache.getCachedFile("aa/anotherpath"));
+        assertEquals(DOWNLOADED_CONTENTS.length(), cache.getCurrentCacheSize());
+
+        // the reconciled index is persisted
+        FileDownloadCache reloaded = new FileDownloadCache(mTmpDir);
+        assertNull(reloaded.getCachedFile(REMOTE_PATH));
+        assertNotNull(reloaded.getCachedFile("aa/anotherpath"));
+        reloaded.waitForIndexVerification();
+    }
+
+    /** Set EasyMock expectations for a downloadFile call. */
+    private void setDownloadExpectations(String remotePath) throws BuildRetrievalError {
+        mMockDownloader.downloadFile(EasyMock.eq(remotePath), EasyMock.<File>anyObject());
+        EasyMock.expectLastCall()
+                .andAnswer(
+                        new IAnswer<Object>() {
+                            @Override
+                            public Object answer() throws Throwable {
+                                File fileArg = (File) EasyMock.getCurrentArguments()[1];
+                                FileUtil.writeToFile(DOWNLOADED_CONTENTS, fileArg);
+                                return null;
+                            }
+                        });
+    }
+
     /** Utility method to create thread that calls fetchRemoteFile. */
     private Thread createDownloadThread(IFileDownloader downloader, String remotePath) {
         return new Thread() {
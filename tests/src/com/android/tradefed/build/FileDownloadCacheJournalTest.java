@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Unit tests for {@link FileDownloadCacheJournal}. */
+@RunWith(JUnit4.class)
+public class FileDownloadCacheJournalTest {
+
+    private File mCacheRoot;
+    private FileDownloadCacheJournal mJournal;
+
+    @Before
+    public void setUp() throws Exception {
+        mCacheRoot = FileUtil.createTempDir("journaltest");
+        mJournal = new FileDownloadCacheJournal(mCacheRoot);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mCacheRoot);
+    }
+
+    /** Test that replaying the records restores the entries in access order. */
+    @Test
+    public void testLoad() throws Exception {
+        assertFalse(mJournal.exists());
+        mJournal.recordAccess("a", 1);
+        mJournal.recordAccess("b/with space", 2);
+        mJournal.recordAccess("c", 3);
+        mJournal.recordAccess("a", 1);
+        mJournal.recordRemove("c");
+        mJournal.flush();
+        assertTrue(mJournal.exists());
+
+        Map<String, Long> entries = new FileDownloadCacheJournal(mCacheRoot).load();
+        assertEquals(Arrays.asList("b/with space", "a"), new ArrayList<>(entries.keySet()));
+        assertEquals(Long.valueOf(2), entries.get("b/with space"));
+        assertEquals(Long.valueOf(1), entries.get("a"));
+    }
+
+    /** Test that a record truncated by a crash is ignored. */
+    @Test
+    public void testLoad_truncated() throws Exception {
+        FileUtil.writeToFile(
+                "A 1 a\nA 2 b\nA 3", new File(mCacheRoot, FileDownloadCacheJournal.JOURNAL_NAME));
+        Map<String, Long> entries = mJournal.load();
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<>(entries.keySet()));
+    }
+
+    /** Test that compaction replaces the journal by the snapshot and the later records. */
+    @Test
+    public void testCompact() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            mJournal.recordAccess("a", 1);
+        }
+        assertFalse(mJournal.needsCompaction(1));
+        mJournal.recordAccess("b", 2);
+        assertTrue(mJournal.needsCompaction(2));
+        mJournal.flush();
+
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        snapshot.put("a", 1L);
+        snapshot.put("b", 2L);
+        mJournal.compact(snapshot);
+        mJournal.recordRemove("a");
+        assertFalse(mJournal.needsCompaction(1));
+        mJournal.flush();
+
+        assertEquals("A 1 a\nA 2 b\nR a\n", FileUtil.readStringFromFile(
+                new File(mCacheRoot, FileDownloadCacheJournal.JOURNAL_NAME)));
+        assertEquals(Arrays.asList("b"), new ArrayList<>(mJournal.load().keySet()));
+    }
+
+    /** Test that a disabled journal is deleted and does not record anymore. */
+    @Test
+    public void testDisable() throws Exception {
+        mJournal.recordAccess("a", 1);
+        mJournal.flush();
+        mJournal.disable();
+        assertFalse(mJournal.exists());
+        mJournal.recordAccess("b", 1);
+        mJournal.flush();
+        assertFalse(mJournal.exists());
+    }
+}
@@ -32,6 +32,11 @@ import org.junit.runners.JUnit4;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /** Unit tests for {@link FileDownloadCache}. */
 @RunWith(JUnit4.class)
@@ -199,6 +204,71 @@ public class FileDownloadCacheTest {
         EasyMock.verify(mMockDownloader);
     }
 
+    /** Test that hits, misses and bytes saved are counted. */
+    @Test
+    public void testFetchRemoteFile_metrics() throws Exception {
+        setDownloadExpections();
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile();
+        assertFetchRemoteFile();
+        assertFetchRemoteFile();
+        EasyMock.verify(mMockDownloader);
+        assertEquals(1, mCache.getMissCount());
+        assertEquals(2, mCache.getHitCount());
+        assertEquals(DOWNLOADED_CONTENTS.length(), mCache.getBytesDownloaded());
+        assertEquals(2 * DOWNLOADED_CONTENTS.length(), mCache.getBytesSaved());
+        assertEquals(DOWNLOADED_CONTENTS.length(), mCache.getCurrentCacheSize());
+    }
+
+    /**
+     * Test that concurrent {@link FileDownloadCache#fetchRemoteFile(IFileDownloader, String)}
+     * calls for the same file share a single download.
+     */
+    @Test
+    public void testFetchRemoteFile_concurrent() throws Exception {
+        final int numThreads = 8;
+        final CountDownLatch started = new CountDownLatch(numThreads);
+        IAnswer<Object> downloadAnswer =
+                new IAnswer<Object>() {
+                    @Override
+                    public Object answer() throws Throwable {
+                        // give the other threads a chance to request the file too
+                        started.await(5, TimeUnit.SECONDS);
+                        File fileArg = (File) EasyMock.getCurrentArguments()[1];
+                        FileUtil.writeToFile(DOWNLOADED_CONTENTS, fileArg);
+                        return null;
+                    }
+                };
+        mMockDownloader.downloadFile(EasyMock.eq(REMOTE_PATH), EasyMock.<File>anyObject());
+        EasyMock.expectLastCall().andAnswer(downloadAnswer);
+        EasyMock.replay(mMockDownloader);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            Thread thread =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            started.countDown();
+                            try {
+                                assertFetchRemoteFile();
+                            } catch (Throwable e) {
+                                errors.add(e);
+                            }
+                        }
+                    };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        EasyMock.verify(mMockDownloader);
+        assertEquals(1, mCache.getMissCount());
+        assertEquals(numThreads - 1, mCache.getHitCount());
+    }
+
     /**
      * Perform one fetchRemoteFile call and verify contents for default remote path
      */
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import com.android.tradefed.config.Configuration;
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.config.IConfiguration;
+import com.android.tradefed.config.IConfigurationFactory;
+import com.android.tradefed.device.DeviceSelectionOptions;
+import com.android.tradefed.device.IDeviceManager;
+import com.android.tradefed.device.MockDeviceManager;
+import com.android.tradefed.log.ILogRegistry.EventType;
+import com.android.tradefed.util.keystore.IKeyStoreClient;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Load test for {@link CommandScheduler}. Measures the latency of a scheduling pass when many
+ * commands are waiting for devices that do not match their requirements.
+ */
+public class CommandSchedulerLoadTest extends TestCase {
+
+    private static final int NUM_COMMANDS = 1000;
+    private static final int NUM_DEVICES = 100;
+    /** Number of distinct device requirements among the commands. */
+    private static final int NUM_REQUIREMENTS = 10;
+    private static final int NUM_PASSES = 20;
+
+    private CommandScheduler mScheduler;
+    private MockDeviceManager mMockManager;
+    private IConfigurationFactory mMockConfigFactory;
+    private int mConfigCount = 0;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockManager = new MockDeviceManager(NUM_DEVICES);
+        mMockConfigFactory = EasyMock.createNiceMock(IConfigurationFactory.class);
+        mScheduler =
+                new CommandScheduler() {
+                    @Override
+                    protected IDeviceManager getDeviceManager() {
+                        return mMockManager;
+                    }
+
+                    @Override
+                    protected IConfigurationFactory getConfigFactory() {
+                        return mMockConfigFactory;
+                    }
+
+                    @Override
+                    protected void initLogging() {
+                        // ignore
+                    }
+
+                    @Override
+                    protected void cleanUp() {
+                        // ignore
+                    }
+
+                    @Override
+                    void logEvent(EventType event, Map<String, String> args) {
+                        // ignore
+                    }
+
+                    @Override
+                    void checkInvocations() {
+                        // ignore
+                    }
+                };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mScheduler.shutdown();
+        mScheduler.join();
+        super.tearDown();
+    }
+
+    /**
+     * Queue {@link #NUM_COMMANDS} commands that none of the {@link #NUM_DEVICES} devices can
+     * satisfy, and report the average time of a scheduling pass.
+     */
+    @SuppressWarnings("unchecked")
+    public void testProcessReadyCommands() throws Exception {
+        EasyMock.expect(
+                        mMockConfigFactory.createConfigurationFromArgs(
+                                (String[]) EasyMock.anyObject(),
+                                (List<String>) EasyMock.anyObject(),
+                                (IKeyStoreClient) EasyMock.anyObject()))
+                .andAnswer(
+                        new IAnswer<IConfiguration>() {
+                            @Override
+                            public IConfiguration answer() throws Throwable {
+                                return createUnmatchedConfig();
+                            }
+                        })
+                .anyTimes();
+        EasyMock.replay(mMockConfigFactory);
+        mScheduler.start();
+        for (int i = 0; i < NUM_COMMANDS; i++) {
+            mScheduler.addCommand(new String[] {"cmd" + i});
+        }
+        assertEquals(NUM_COMMANDS, mScheduler.getReadyCommandCount());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < NUM_PASSES; i++) {
+            mScheduler.processReadyCommands(mMockManager);
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        System.out.println(
+                String.format(
+                        "%d commands x %d devices: %d ms per scheduling pass",
+                        NUM_COMMANDS, NUM_DEVICES, elapsedMs / NUM_PASSES));
+        // no command could be matched, they are all still waiting for a device
+        assertEquals(NUM_COMMANDS, mScheduler.getReadyCommandCount());
+        assertEquals(NUM_DEVICES, mMockManager.getQueueOfAvailableDeviceSize());
+    }
+
+    private synchronized IConfiguration createUnmatchedConfig() throws ConfigurationException {
+        IConfiguration config = new Configuration("load", "load test config");
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProductType("unknown" + (mConfigCount++ % NUM_REQUIREMENTS));
+        config.getDeviceConfig().get(0).addSpecificConfig(options);
+        return config;
+    }
+}
@@ -27,6 +27,7 @@ import com.android.tradefed.config.IConfiguration;
 import com.android.tradefed.config.IConfigurationFactory;
 import com.android.tradefed.config.IDeviceConfiguration;
 import com.android.tradefed.config.IGlobalConfiguration;
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.DeviceSelectionOptions;
 import com.android.tradefed.device.FreeDeviceState;
@@ -395,6 +396,46 @@ public class CommandSchedulerTest extends TestCase {
         }
     }
 
+    /**
+     * Test {@link CommandScheduler#run()} when one config has been added in a loop with
+     * config-prototype: the next runs copy their configuration from the prototype.
+     */
+    public void testRun_oneConfigLoop_prototype() throws Throwable {
+        String[] args = new String[] {};
+        UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        try {
+            ExceptionTracker tracker = new ExceptionTracker();
+            Thread.setDefaultUncaughtExceptionHandler(tracker);
+            mMockManager.setNumDevices(1);
+            // only the first config is created from the args
+            setCreateConfigExpectations(args, 1);
+            EasyMock.expect(
+                    mMockConfigFactory.createConfigurationFromPrototype(EasyMock.aryEq(args),
+                    (IKeyStoreClient)EasyMock.anyObject()))
+                    .andReturn(mMockConfiguration)
+                    .times(2);
+            mCommandOptions.setLoopMode(true);
+            mCommandOptions.setMinLoopTime(50);
+            new OptionSetter(mCommandOptions).setOptionValue("config-prototype", "true");
+            Object notifier = waitForExpectedInvokeCalls(2);
+            mMockConfiguration.validateOptions();
+            replayMocks();
+            mScheduler.start();
+            mScheduler.addCommand(args);
+            synchronized (notifier) {
+                notifier.wait(1 * 1000);
+            }
+            mScheduler.shutdown();
+            mScheduler.join();
+            // Wait a little for device to be released.
+            RunUtil.getDefault().sleep(SHORT_WAIT_MS);
+            verifyMocks();
+            assertNull("exception occurred on background thread!", tracker.mThrowable);
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+        }
+    }
+
     class ExceptionTracker implements UncaughtExceptionHandler {
 
         private Throwable mThrowable = null;
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.android.tradefed.config.Configuration;
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.config.DeviceConfigurationHolder;
+import com.android.tradefed.config.IConfiguration;
+import com.android.tradefed.config.IDeviceConfiguration;
+import com.android.tradefed.device.DeviceSelectionOptions;
+import com.android.tradefed.device.IDeviceSelection;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Unit tests for {@link DeviceRequirementsKey}. */
+@RunWith(JUnit4.class)
+public class DeviceRequirementsKeyTest {
+
+    /** Test that configurations with the same device selection have equal keys. */
+    @Test
+    public void testEquals_sameRequirements() throws ConfigurationException {
+        DeviceSelectionOptions options1 = new DeviceSelectionOptions();
+        options1.addProductType("bullhead");
+        options1.addProperty("ro.build.type", "userdebug");
+        options1.setMinBatteryLevel(20);
+        DeviceSelectionOptions options2 = new DeviceSelectionOptions();
+        options2.addProductType("bullhead");
+        options2.addProperty("ro.build.type", "userdebug");
+        options2.setMinBatteryLevel(20);
+        DeviceRequirementsKey key1 = DeviceRequirementsKey.create(createConfig(options1));
+        DeviceRequirementsKey key2 = DeviceRequirementsKey.create(createConfig(options2));
+        assertEquals(key1, key2);
+        assertEquals(key1.hashCode(), key2.hashCode());
+    }
+
+    /** Test that configurations with different device selection have different keys. */
+    @Test
+    public void testEquals_differentRequirements() throws ConfigurationException {
+        DeviceSelectionOptions options1 = new DeviceSelectionOptions();
+        options1.addProductType("bullhead");
+        DeviceSelectionOptions options2 = new DeviceSelectionOptions();
+        options2.addProductType("angler");
+        assertNotEquals(
+                DeviceRequirementsKey.create(createConfig(options1)),
+                DeviceRequirementsKey.create(createConfig(options2)));
+        options2 = new DeviceSelectionOptions();
+        options2.addProductType("bullhead");
+        options2.setMinBatteryLevel(50);
+        assertNotEquals(
+                DeviceRequirementsKey.create(createConfig(options1)),
+                DeviceRequirementsKey.create(createConfig(options2)));
+    }
+
+    /** Test that the number of requested devices is part of the key. */
+    @Test
+    public void testEquals_deviceCount() throws ConfigurationException {
+        IConfiguration single = createConfig(new DeviceSelectionOptions());
+        IConfiguration multi =
+                createConfig(new DeviceSelectionOptions(), new DeviceSelectionOptions());
+        assertNotEquals(DeviceRequirementsKey.create(single), DeviceRequirementsKey.create(multi));
+    }
+
+    /** Test that unknown {@link IDeviceSelection} implementations never share a key. */
+    @Test
+    public void testEquals_customSelection() throws ConfigurationException {
+        IDeviceSelection selection = EasyMock.createMock(IDeviceSelection.class);
+        EasyMock.replay(selection);
+        IConfiguration config = createConfig(selection);
+        assertNotEquals(DeviceRequirementsKey.create(config), DeviceRequirementsKey.create(config));
+        EasyMock.verify(selection);
+    }
+
+    private IConfiguration createConfig(IDeviceSelection... selections)
+            throws ConfigurationException {
+        IConfiguration config = new Configuration("name", "description");
+        List<IDeviceConfiguration> deviceConfigs = new ArrayList<>();
+        for (int i = 0; i < selections.length; i++) {
+            IDeviceConfiguration deviceConfig = new DeviceConfigurationHolder("device" + i);
+            deviceConfig.addSpecificConfig(selections[i]);
+            deviceConfigs.add(deviceConfig);
+        }
+        config.setDeviceConfigList(deviceConfigs);
+        return config;
+    }
+}
@@ -23,6 +23,7 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.targetprep.DeviceWiper;
 import com.android.tradefed.targetprep.StubTargetPreparer;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.keystore.IKeyStoreClient;
 
 import junit.framework.TestCase;
 
@@ -313,6 +314,73 @@ public class ConfigurationFactoryTest extends TestCase {
         assertEquals(LogLevel.VERBOSE, logger.getLogLevel());
     }
 
+    /**
+     * Test {@link ConfigurationFactory#createConfigurationFromPrototype(String[], IKeyStoreClient)}
+     * creates new objects with the options of the command line each time, that do not share state.
+     */
+    public void testCreateConfigurationFromPrototype() throws ConfigurationException {
+        String[] args = new String[] {TEST_CONFIG, "--log-level",
+                LogLevel.VERBOSE.getStringValue(), "--serial", "foo", "--option", "fromArgs"};
+        IConfiguration expected = mFactory.createConfigurationFromArgs(args);
+        IConfiguration first = mFactory.createConfigurationFromPrototype(args, null);
+        IConfiguration second = mFactory.createConfigurationFromPrototype(args, null);
+        assertNotSame(first, second);
+        for (IConfiguration config : Arrays.asList(first, second)) {
+            assertEquals(LogLevel.VERBOSE, config.getLogOutput().getLogLevel());
+            assertEquals(Arrays.asList("foo"),
+                    new ArrayList<>(config.getDeviceRequirements().getSerials()));
+            assertEquals("fromArgs", ((StubOptionTest) config.getTests().get(0)).mOption);
+            assertEquals(expected.getCommandLine(), config.getCommandLine());
+            assertEquals(expected.getTargetPreparers().size(),
+                    config.getTargetPreparers().size());
+            assertEquals(
+                    expected.getTargetPreparers().get(0).getClass(),
+                    config.getTargetPreparers().get(0).getClass());
+        }
+        assertNotSame(first.getTests().get(0), second.getTests().get(0));
+        assertNotSame(first.getDeviceRequirements(), second.getDeviceRequirements());
+        assertNotSame(first.getTargetPreparers().get(0), second.getTargetPreparers().get(0));
+
+        // Changing a configuration does not change the next ones.
+        first.getDeviceRequirements().getSerials().add("bar");
+        ((StubOptionTest) first.getTests().get(0)).mOption = "changed";
+        IConfiguration third = mFactory.createConfigurationFromPrototype(args, null);
+        assertEquals(Arrays.asList("foo"),
+                new ArrayList<>(third.getDeviceRequirements().getSerials()));
+        assertEquals("fromArgs", ((StubOptionTest) third.getTests().get(0)).mOption);
+    }
+
+    /**
+     * Test {@link ConfigurationFactory#createConfigurationFromPrototype(String[], IKeyStoreClient)}
+     * reads key store values again for each configuration, even when they are given in the
+     * --option=value form.
+     */
+    public void testCreateConfigurationFromPrototype_keyStoreValue() throws Exception {
+        IKeyStoreClient keyStore = Mockito.mock(IKeyStoreClient.class);
+        Mockito.when(keyStore.isAvailable()).thenReturn(true);
+        Mockito.when(keyStore.fetchKey("k")).thenReturn("first", "second");
+        String[] args = new String[] {TEST_CONFIG, "--option=USE_KEYSTORE@k"};
+        IConfiguration first = mFactory.createConfigurationFromPrototype(args, keyStore);
+        IConfiguration second = mFactory.createConfigurationFromPrototype(args, keyStore);
+        assertEquals("first", ((StubOptionTest) first.getTests().get(0)).mOption);
+        assertEquals("second", ((StubOptionTest) second.getTests().get(0)).mOption);
+        Mockito.verify(keyStore, Mockito.times(2)).fetchKey("k");
+    }
+
+    /**
+     * Test {@link ConfigurationFactory#createConfigurationFromPrototype(String[], IKeyStoreClient)}
+     * still rejects a bad command line.
+     */
+    public void testCreateConfigurationFromPrototype_unprocessedArgs() {
+        try {
+            mFactory.createConfigurationFromPrototype(new String[] {TEST_CONFIG, "--log-level",
+                    LogLevel.VERBOSE.getStringValue(), "blah"}, null);
+            fail("ConfigurationException not thrown");
+        } catch (ConfigurationException e) {
+            // expected
+        }
+    }
+
     /**
      * Test {@link ConfigurationFactory#createConfigurationFromArgs(String[])} when extra positional
      * arguments are supplied
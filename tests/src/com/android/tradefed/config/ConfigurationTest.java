@@ -30,6 +30,7 @@ import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.TextResultReporter;
 import com.android.tradefed.targetprep.ITargetPreparer;
 import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.testtype.suite.ITestSuite;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.MultiMap;
 
@@ -47,6 +48,7 @@ import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -625,6 +627,57 @@ public class ConfigurationTest extends TestCase {
         }
     }
 
+    /**
+     * Test that {@link Configuration#validateOptions()} throws a config exception when the md5 of
+     * the shard runtime history is given without the history.
+     */
+    public void testValidateOptionsShardRuntimeHistoryMd5() throws Exception {
+        ICommandOptions option = new CommandOptions();
+        new OptionSetter(option).setOptionValue("shard-runtime-history-md5", "abc");
+        mConfig.setConfigurationObject(Configuration.CMD_OPTIONS_TYPE_NAME, option);
+        try {
+            mConfig.validateOptions();
+            fail("Should have thrown an exception.");
+        } catch (ConfigurationException expected) {
+            assertEquals("a shard runtime history md5 requires a shard runtime history file",
+                    expected.getMessage());
+        }
+    }
+
+    /**
+     * Test that {@link Configuration#validateOptions()} throws a config exception when a suite of
+     * a strict shard records its module durations into the shard runtime history.
+     */
+    public void testValidateOptionsRecordIntoShardRuntimeHistory() throws Exception {
+        File historyFile = FileUtil.createTempFile("shard-runtimes", ".txt");
+        try {
+            ICommandOptions option = new CommandOptions();
+            OptionSetter setter = new OptionSetter(option);
+            setter.setOptionValue("shard-count", "2");
+            setter.setOptionValue("shard-index", "0");
+            setter.setOptionValue("shard-runtime-history", historyFile.getAbsolutePath());
+            mConfig.setConfigurationObject(Configuration.CMD_OPTIONS_TYPE_NAME, option);
+            ITestSuite suite = new ITestSuite() {
+                @Override
+                public LinkedHashMap<String, IConfiguration> loadTests() {
+                    return new LinkedHashMap<>();
+                }
+            };
+            mConfig.setTest(suite);
+            mConfig.validateOptions();
+            new OptionSetter(suite)
+                    .setOptionValue("record-module-runtimes", historyFile.getAbsolutePath());
+            try {
+                mConfig.validateOptions();
+                fail("Should have thrown an exception.");
+            } catch (ConfigurationException expected) {
+                assertTrue(expected.getMessage().contains(historyFile.toString()));
+            }
+        } finally {
+            FileUtil.deleteFile(historyFile);
+        }
+    }
+
     /**
      * Test that {@link Configuration#dumpXml(PrintWriter)} produce the xml output.
      */
@@ -21,6 +21,7 @@ import junit.framework.TestCase;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -173,6 +174,45 @@ public class OptionCopierTest extends TestCase {
         assertEquals(DefaultEnumClass.VAL2, dest.mEnumMap.get(DefaultEnumClass.VAL1));
     }
 
+    /**
+     * Test that {@link OptionCopier} copies one source into many destinations, the way sharding
+     * does, and that each destination gets its own copy of the collections.
+     */
+    public void testCopyOptions_manyDestinations() throws ConfigurationException {
+        OptionSource source = new OptionSource();
+        source.mStringCollection.add("foo");
+        List<OptionDest> dests = new ArrayList<OptionDest>();
+        for (int i = 0; i < 100; i++) {
+            OptionDest dest = new OptionDest();
+            OptionCopier.copyOptions(source, dest);
+            dests.add(dest);
+        }
+        dests.get(0).mStringDestCollection.add("bar");
+        for (int i = 1; i < dests.size(); i++) {
+            OptionDest dest = dests.get(i);
+            assertEquals(source.mMyOption, dest.mDestOption);
+            assertEquals(source.mMyIntOption, dest.mDestIntOption);
+            assertEquals(1, dest.mStringDestCollection.size());
+            assertTrue(dest.mStringDestCollection.contains("foo"));
+        }
+        assertEquals(1, source.mStringCollection.size());
+    }
+
+    /**
+     * Test that {@link OptionCopier} rejects fields with different types on every copy, not only
+     * the first one.
+     */
+    public void testCopyOptions_wrongType_again() {
+        for (int i = 0; i < 2; i++) {
+            try {
+                OptionCopier.copyOptions(new OptionSource(), new OptionWrongTypeDest());
+                fail("ConfigurationException not thrown");
+            } catch (ConfigurationException e) {
+                // expected
+            }
+        }
+    }
+
     /**
      * Test {@link OptionCopier} when field's to be copied have different types
      */
@@ -929,6 +929,44 @@ public class OptionSetterTest extends TestCase {
         }
     }
 
+    /**
+     * Test that a class with an invalid option is rejected every time, even though the options of
+     * a class are only checked until they are found valid.
+     */
+    public void testOptionSetter_finalField_again() {
+        for (int i = 0; i < 2; i++) {
+            try {
+                new OptionSetter(new FinalOption());
+                fail("ConfigurationException not thrown");
+            } catch (ConfigurationException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Test that the option fields of a class are found once, made accessible, and shared by all
+     * the {@link OptionSetter}s.
+     */
+    @SuppressWarnings("deprecation")
+    public void testGetOptionFieldsForClass_cached() throws ConfigurationException {
+        Collection<Field> fields = OptionSetter.getOptionFieldsForClass(ChildOptionSource.class);
+        assertSame(fields, OptionSetter.getOptionFieldsForClass(ChildOptionSource.class));
+        assertEquals(4, fields.size());
+        for (Field field : fields) {
+            assertTrue(field.isAccessible());
+        }
+        try {
+            fields.clear();
+            fail("UnsupportedOperationException not thrown");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        ChildOptionSource source = new ChildOptionSource();
+        new OptionSetter(source).setOptionValue("child-string", "child");
+        assertEquals("child", source.mChildString);
+    }
+
     /**
      * Perform {@link OptionSetter#setOptionValue(String, String)} for a given option.
      */
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+
+/** Unit tests for {@link DevicePropertyCache}. */
+@RunWith(JUnit4.class)
+public class DevicePropertyCacheTest {
+
+    private static final String GETPROP_OUTPUT =
+            "[ro.build.id]: [NRD90M]\n"
+            + "[ro.boot.serialno]: []\r\n"
+            + "[sys.boot_completed]: [1]\n"
+            + "[persist.sys.timezone]: [America/Los_Angeles]\n"
+            + "[ro.multiline]: [first\n"
+            + "second]\n";
+
+    private DevicePropertyCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new DevicePropertyCache(1000);
+    }
+
+    /** Test parsing the output of getprop. */
+    @Test
+    public void testParseGetprop() {
+        Map<String, String> properties = DevicePropertyCache.parseGetprop(GETPROP_OUTPUT);
+        assertEquals(4, properties.size());
+        assertEquals("NRD90M", properties.get("ro.build.id"));
+        assertEquals("", properties.get("ro.boot.serialno"));
+        assertEquals("1", properties.get("sys.boot_completed"));
+        assertEquals("America/Los_Angeles", properties.get("persist.sys.timezone"));
+        assertTrue(DevicePropertyCache.parseGetprop(null).isEmpty());
+    }
+
+    /**
+     * Test that read-only properties are served until invalidated, while the other properties
+     * expire with their snapshot.
+     */
+    @Test
+    public void testGet_expiration() {
+        assertNull(mCache.get("ro.build.id", 0));
+        mCache.update(DevicePropertyCache.parseGetprop(GETPROP_OUTPUT), 100);
+        assertTrue(mCache.isFresh(500));
+        assertEquals("NRD90M", mCache.get("ro.build.id", 500));
+        assertEquals("1", mCache.get("sys.boot_completed", 500));
+        // missing from the snapshot, it has to be read on its own
+        assertNull(mCache.get("sys.unset", 500));
+        // after the ttl, only the read-only properties that are set are served
+        assertFalse(mCache.isFresh(1100));
+        assertEquals("NRD90M", mCache.get("ro.build.id", 1100));
+        assertNull(mCache.get("ro.boot.serialno", 1100));
+        assertNull(mCache.get("sys.boot_completed", 1100));
+        assertEquals(3, mCache.getHitCount());
+        assertEquals(4, mCache.getMissCount());
+        mCache.resetCounters();
+        assertEquals(0, mCache.getHitCount());
+        assertEquals(0, mCache.getMissCount());
+    }
+
+    /**
+     * Test that properties read on their own, like the ones with multi-line values, are added to
+     * the snapshot while it is fresh.
+     */
+    @Test
+    public void testPut() {
+        mCache.put("sys.ignored", "1", 0);
+        assertNull(mCache.get("sys.ignored", 0));
+        mCache.update(DevicePropertyCache.parseGetprop(GETPROP_OUTPUT), 100);
+        assertNull(mCache.get("ro.multiline", 500));
+        mCache.put("ro.multiline", "first\nsecond", 500);
+        mCache.put("sys.unset", null, 500);
+        assertEquals("first\nsecond", mCache.get("ro.multiline", 600));
+        assertEquals("", mCache.get("sys.unset", 600));
+        // set read-only properties are kept after the snapshot expires
+        assertEquals("first\nsecond", mCache.get("ro.multiline", 1100));
+        assertNull(mCache.get("sys.unset", 1100));
+    }
+
+    /** Test that removing a property only drops its own value. */
+    @Test
+    public void testRemove() {
+        mCache.update(DevicePropertyCache.parseGetprop(GETPROP_OUTPUT), 100);
+        mCache.remove("ro.build.id");
+        assertTrue(mCache.isFresh(100));
+        assertNull(mCache.get("ro.build.id", 100));
+        assertNotNull(mCache.get("sys.boot_completed", 100));
+    }
+
+    /** Test that invalidating the cache drops the read-only properties too. */
+    @Test
+    public void testInvalidate() {
+        mCache.update(DevicePropertyCache.parseGetprop(GETPROP_OUTPUT), 100);
+        mCache.invalidate();
+        assertFalse(mCache.isFresh(100));
+        assertNull(mCache.get("ro.build.id", 100));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.IDevice;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Unit tests for {@link DevicePropertySnapshot}. */
+@RunWith(JUnit4.class)
+public class DevicePropertySnapshotTest {
+
+    private IDevice mMockDevice;
+
+    @Before
+    public void setUp() {
+        mMockDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+    }
+
+    /**
+     * Test that {@link DevicePropertySnapshot#create(IDevice, long)} copies the cached properties
+     * and only queries the selection properties that are missing.
+     */
+    @Test
+    public void testCreate() {
+        Map<String, String> cached = new HashMap<>();
+        cached.put(DeviceSelectionOptions.DEVICE_PRODUCT_PROPERTY, "bullhead");
+        cached.put(DeviceSelectionOptions.DEVICE_SDK_PROPERTY, "26");
+        cached.put("ro.build.type", "userdebug");
+        EasyMock.expect(mMockDevice.getProperties()).andReturn(cached);
+        EasyMock.expect(mMockDevice.getProperty(DeviceSelectionOptions.DEVICE_VARIANT_PROPERTY))
+                .andReturn("bullhead_variant");
+        SettableFuture<Integer> battery = SettableFuture.create();
+        battery.set(80);
+        EasyMock.expect(mMockDevice.getBattery()).andReturn(battery);
+        EasyMock.replay(mMockDevice);
+        DevicePropertySnapshot snapshot = DevicePropertySnapshot.create(mMockDevice, 100);
+        EasyMock.verify(mMockDevice);
+        assertEquals("serial", snapshot.getSerial());
+        assertEquals("bullhead", snapshot.getProperty(DeviceSelectionOptions.DEVICE_PRODUCT_PROPERTY));
+        assertEquals("bullhead_variant",
+                snapshot.getProperty(DeviceSelectionOptions.DEVICE_VARIANT_PROPERTY));
+        assertEquals("userdebug", snapshot.getProperty("ro.build.type"));
+        assertEquals(Integer.valueOf(80), snapshot.getBatteryLevel());
+        assertFalse(snapshot.hasProperty("ro.unknown"));
+        // later changes to the source map are not reflected
+        cached.put("ro.unknown", "value");
+        assertFalse(snapshot.hasProperty("ro.unknown"));
+    }
+
+    /** Test that a battery level that cannot be retrieved is recorded as unknown. */
+    @Test
+    public void testCreate_batteryTimeout() {
+        EasyMock.expect(mMockDevice.getProperties()).andReturn(new HashMap<String, String>());
+        EasyMock.expect(mMockDevice.getProperty(EasyMock.<String>anyObject()))
+                .andReturn(null).times(3);
+        SettableFuture<Integer> battery = SettableFuture.create();
+        EasyMock.expect(mMockDevice.getBattery()).andReturn(battery);
+        EasyMock.replay(mMockDevice);
+        DevicePropertySnapshot snapshot = DevicePropertySnapshot.create(mMockDevice, 10);
+        EasyMock.verify(mMockDevice);
+        assertNull(snapshot.getBatteryLevel());
+        assertTrue(snapshot.hasProperty(DeviceSelectionOptions.DEVICE_PRODUCT_PROPERTY));
+        assertNull(snapshot.getProperty(DeviceSelectionOptions.DEVICE_PRODUCT_PROPERTY));
+        assertTrue(snapshot.getTimestamp() > 0);
+    }
+}
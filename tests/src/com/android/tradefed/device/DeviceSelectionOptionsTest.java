@@ -23,6 +23,9 @@ import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Unit tests for {@link DeviceSelectionOptions}
  */
@@ -428,6 +431,46 @@ public class DeviceSelectionOptionsTest extends TestCase {
         assertFalse(options.matches(mMockDevice));
     }
 
+    /**
+     * Test that matching against a {@link DevicePropertySnapshot} does not query the device for
+     * properties or battery level.
+     */
+    public void testMatches_snapshot() throws Exception {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProductType(DEVICE_TYPE);
+        options.addProperty("prop1", "propvalue");
+        ArgsOptionParser p = new ArgsOptionParser(options);
+        p.parse("--min-sdk-level", "15");
+        options.setMinBatteryLevel(25);
+        Map<String, String> properties = new HashMap<>();
+        properties.put(DeviceSelectionOptions.DEVICE_PRODUCT_PROPERTY, DEVICE_TYPE);
+        properties.put(DeviceSelectionOptions.DEVICE_SDK_PROPERTY, "23");
+        properties.put(DeviceSelectionOptions.DEVICE_VARIANT_PROPERTY, null);
+        properties.put("prop1", "propvalue");
+        DevicePropertySnapshot snapshot =
+                new DevicePropertySnapshot(DEVICE_SERIAL, properties, 50, 0L);
+        // strict mock: any property or battery query fails the test
+        EasyMock.replay(mMockDevice);
+        assertTrue(options.matches(mMockDevice, snapshot));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the battery level from the {@link DevicePropertySnapshot} is used for matching,
+     * and that properties missing from the snapshot are queried from the device.
+     */
+    public void testMatches_snapshotFallback() throws Exception {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProperty("prop1", "propvalue");
+        options.setMinBatteryLevel(75);
+        DevicePropertySnapshot snapshot =
+                new DevicePropertySnapshot(DEVICE_SERIAL, new HashMap<String, String>(), 50, 0L);
+        EasyMock.expect(mMockDevice.getProperty("prop1")).andReturn("propvalue");
+        EasyMock.replay(mMockDevice);
+        assertFalse(options.matches(mMockDevice, snapshot));
+        EasyMock.verify(mMockDevice);
+    }
+
     private void mockBatteryCheck(Integer battery) {
         SettableFuture<Integer> batteryFuture = SettableFuture.create();
         batteryFuture.set(battery);
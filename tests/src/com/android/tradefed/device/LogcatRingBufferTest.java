@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.result.FileInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.StreamUtil;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/** Unit tests for {@link LogcatRingBuffer}. */
+@RunWith(JUnit4.class)
+public class LogcatRingBufferTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private LogcatRingBuffer mBuffer;
+
+    @After
+    public void tearDown() {
+        if (mBuffer != null) {
+            mBuffer.delete();
+        }
+    }
+
+    /** Test that the appended output is returned as is while it fits in the ring. */
+    @Test
+    public void testGetData() throws Exception {
+        mBuffer = new LogcatRingBuffer("logcat", "serial", 1024);
+        add("line1\n");
+        add("line2\nli");
+        add("ne3\n");
+        assertEquals("line1\nline2\nline3\n", read(mBuffer.getData()));
+        assertEquals("line3\n", read(mBuffer.getData(6)));
+    }
+
+    /** Test that only the most recent complete lines are returned once the ring wrapped. */
+    @Test
+    public void testGetData_wrapped() throws Exception {
+        mBuffer = new LogcatRingBuffer("logcat", "serial", 16);
+        add("aaaaaaaa\n");
+        add("bbbbbbbb\n");
+        add("cccc\n");
+        // 23 bytes were written, the first 7 are gone and the partial 'a' line is dropped
+        assertEquals("bbbbbbbb\ncccc\n", read(mBuffer.getData()));
+        add("dddddddddddddddddddd\n");
+        // a chunk larger than the ring only keeps its end
+        assertEquals("", read(mBuffer.getData()));
+        add("e\n");
+        assertEquals("e\n", read(mBuffer.getData()));
+    }
+
+    /** Test that {@link LogcatRingBuffer#clear()} discards the retained output. */
+    @Test
+    public void testClear() throws Exception {
+        mBuffer = new LogcatRingBuffer("logcat", "serial", 1024);
+        add("line1\n");
+        mBuffer.clear();
+        add("line2\n");
+        assertEquals("line2\n", read(mBuffer.getData()));
+    }
+
+    /**
+     * Test that the output is served from a snapshot file deleted when the source is closed, and
+     * that nothing is retained once the buffer is deleted.
+     */
+    @Test
+    public void testGetData_snapshotAndDelete() throws Exception {
+        mBuffer = new LogcatRingBuffer("logcat", "serial", 1024);
+        add("line1\n");
+        InputStreamSource source = mBuffer.getData();
+        assertTrue(source instanceof FileInputStreamSource);
+        assertEquals("line1\n", read(source));
+        assertNull(source.createInputStream());
+        mBuffer.delete();
+        add("line2\n");
+        assertEquals("", read(mBuffer.getData()));
+        assertNull(mBuffer.getData(0L, Long.MAX_VALUE, UTC));
+    }
+
+    /** Test that the lines between two times are found through the timestamp index. */
+    @Test
+    public void testGetData_timeRange() throws Exception {
+        mBuffer = new LogcatRingBuffer("logcat", "serial", 1024 * 1024);
+        // enough lines to create several index entries
+        for (int second = 0; second < 60; second++) {
+            for (int i = 0; i < 50; i++) {
+                add(logLine(second, i));
+            }
+        }
+        StringBuilder expected = new StringBuilder();
+        for (int second = 20; second < 30; second++) {
+            for (int i = 0; i < 50; i++) {
+                expected.append(logLine(second, i));
+            }
+        }
+        assertEquals(expected.toString(), read(mBuffer.getData(date(20), date(30), UTC)));
+        // lines without a timestamp stay with the preceding line
+        add("--------- beginning of crash\n");
+        add(logLine(59, 50));
+        assertEquals(logLine(59, 49) + "--------- beginning of crash\n" + logLine(59, 50),
+                read(mBuffer.getData(date(59) + 49, Long.MAX_VALUE, UTC)));
+    }
+
+    /** Test that a time range that is not retained anymore is reported as such. */
+    @Test
+    public void testGetData_timeRangeNotRetained() throws Exception {
+        mBuffer = new LogcatRingBuffer("logcat", "serial", LogcatRingBuffer.INDEX_INTERVAL * 4);
+        for (int second = 0; second < 60; second++) {
+            for (int i = 0; i < 50; i++) {
+                add(logLine(second, i));
+            }
+        }
+        assertNull(mBuffer.getData(date(0), Long.MAX_VALUE, UTC));
+        String recent = read(mBuffer.getData(date(59), Long.MAX_VALUE, UTC));
+        assertTrue(recent.startsWith(logLine(59, 0)));
+        assertTrue(recent.endsWith(logLine(59, 49)));
+    }
+
+    /** Test that the lines between two times are found across the end of a year. */
+    @Test
+    public void testGetData_timeRangeNewYear() throws Exception {
+        mBuffer = new LogcatRingBuffer("logcat", "serial", 1024 * 1024);
+        StringBuilder expected = new StringBuilder();
+        for (int second = 0; second < 120; second++) {
+            String time = second < 60 ? String.format("12-31 23:59:%02d", second)
+                    : String.format("01-01 00:00:%02d", second - 60);
+            for (int i = 0; i < 50; i++) {
+                String line = String.format("%s.%03d  123  456 I Tag: message %d\n", time, i, i);
+                add(line);
+                if (second >= 50 && second < 70) {
+                    expected.append(line);
+                }
+            }
+        }
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.clear();
+        calendar.set(2017, Calendar.DECEMBER, 31, 23, 59, 50);
+        long start = calendar.getTimeInMillis();
+        assertEquals(expected.toString(),
+                read(mBuffer.getData(start, start + 20 * 1000, UTC)));
+    }
+
+    /** Test the conversion of logcat timestamps and device times into comparable keys. */
+    @Test
+    public void testTimestampKey() {
+        byte[] line = "01-15 10:00:20.005  123  456 I Tag: message".getBytes();
+        assertEquals(LogcatRingBuffer.toTimestampKey(date(20) + 5, UTC),
+                LogcatRingBuffer.parseTimestampKey(line, 0, line.length));
+        byte[] noTimestamp = "--------- beginning of main".getBytes();
+        assertEquals(-1, LogcatRingBuffer.parseTimestampKey(noTimestamp, 0, noTimestamp.length));
+        // the same instant is printed with a different wall-clock time in another time zone
+        TimeZone plusOne = TimeZone.getTimeZone("GMT+01:00");
+        assertTrue(LogcatRingBuffer.toTimestampKey(date(20), plusOne)
+                > LogcatRingBuffer.toTimestampKey(date(20), UTC));
+    }
+
+    private void add(String output) {
+        byte[] data = output.getBytes();
+        mBuffer.addOutput(data, 0, data.length);
+    }
+
+    private static String read(InputStreamSource source) throws Exception {
+        try {
+            return StreamUtil.getStringFromSource(source);
+        } finally {
+            source.close();
+        }
+    }
+
+    private static String logLine(int second, int millis) {
+        return String.format("01-15 10:00:%02d.%03d  123  456 I Tag: message number %d\n",
+                second, millis, millis);
+    }
+
+    /** Returns the UTC time of 01-15 10:00:<second>. */
+    private static long date(int second) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.clear();
+        calendar.set(2017, Calendar.JANUARY, 15, 10, 0, second);
+        return calendar.getTimeInMillis();
+    }
+}
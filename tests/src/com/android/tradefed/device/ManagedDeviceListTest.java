@@ -92,6 +92,23 @@ public class ManagedDeviceListTest extends TestCase {
         assertNull(mManagedDeviceList.allocate(DeviceManager.ANY_DEVICE_OPTIONS));
     }
 
+    /**
+     * Test that {@link ManagedDeviceList#allocate(IDeviceSelection)} uses the
+     * {@link IDeviceSelection#matches(IDevice)} of the selection when there is no snapshot.
+     */
+    public void testAllocate_overriddenMatches() {
+        IManagedTestDevice d = mManagedDeviceList.findOrCreate(new StubDevice("foo"));
+        d.handleAllocationEvent(DeviceEvent.FORCE_AVAILABLE);
+        DeviceSelectionOptions options = new DeviceSelectionOptions() {
+            @Override
+            public boolean matches(IDevice device) {
+                return false;
+            }
+        };
+        assertNull(mManagedDeviceList.allocate(options));
+        assertNotNull(mManagedDeviceList.allocate(DeviceManager.ANY_DEVICE_OPTIONS));
+    }
+
     /**
      * Basic test for {@link ManagedDeviceList#handleDeviceEvent(IManagedTestDevice, DeviceEvent)}
      */
@@ -27,6 +27,7 @@ import com.android.ddmlib.SyncException.SyncError;
 import com.android.ddmlib.SyncService;
 import com.android.ddmlib.SyncService.ISyncProgressMonitor;
 import com.android.ddmlib.TimeoutException;
+import com.android.tradefed.build.BuildInfo;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.command.remote.DeviceDescriptor;
 import com.android.tradefed.log.ITestLogger;
@@ -40,21 +41,26 @@ import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.StreamUtil;
+import com.google.common.util.concurrent.SettableFuture;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 import org.mockito.Mockito;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -279,6 +285,278 @@ public class NativeDeviceTest extends TestCase {
         FileUtil.recursiveDelete(testDir);
     }
 
+    /**
+     * Test that {@link NativeDevice#pushDir(File, String)} in bulk mode creates all the remote
+     * directories with one command and pushes all the files in one sync session, and that the
+     * transfer is reported with the invocation.
+     */
+    public void testPushDir_bulk() throws Exception {
+        final List<String> commands = new ArrayList<>();
+        final List<List<String>> sessions = new ArrayList<>();
+        mTestDevice = new TestableAndroidNativeDevice() {
+            @Override
+            public String executeShellCommand(String cmd) throws DeviceNotAvailableException {
+                commands.add(cmd);
+                return "";
+            }
+            @Override
+            boolean syncFilesInSession(List<File> localFiles, List<String> remotePaths,
+                    boolean push) throws DeviceNotAvailableException {
+                assertTrue(push);
+                assertEquals(localFiles.size(), remotePaths.size());
+                sessions.add(new ArrayList<>(remotePaths));
+                return true;
+            }
+        };
+        mTestDevice.getOptions().setBulkDirTransferEnabled(true);
+        IBuildInfo info = new BuildInfo();
+        mTestDevice.preInvocationSetup(info);
+        File testDir = FileUtil.createTempDir("pushDirTest");
+        try {
+            File subDir = new File(testDir, "sub");
+            File subSubDir = new File(subDir, "subsub");
+            assertTrue(subSubDir.mkdirs());
+            new File(testDir, "file1").createNewFile();
+            new File(subDir, "file2").createNewFile();
+            new File(subSubDir, "file3").createNewFile();
+            assertTrue(mTestDevice.pushDir(testDir, "/data/foo"));
+            assertEquals(1, commands.size());
+            assertEquals("mkdir -p \"/data/foo/sub\" \"/data/foo/sub/subsub\"", commands.get(0));
+            assertEquals(1, sessions.size());
+            assertEquals(new HashSet<>(Arrays.asList("/data/foo/file1", "/data/foo/sub/file2",
+                    "/data/foo/sub/subsub/file3")), new HashSet<>(sessions.get(0)));
+            mTestDevice.postInvocationTearDown();
+            Map<String, String> attributes = info.getBuildAttributes();
+            assertEquals("3", attributes.get(NativeDevice.BULK_PUSH_ATTRIBUTE + "_files"));
+            assertEquals("0", attributes.get(NativeDevice.BULK_PUSH_ATTRIBUTE + "_bytes"));
+            for (String suffix : NativeDevice.TRANSFER_ATTRIBUTE_SUFFIXES) {
+                assertNotNull(attributes.get(NativeDevice.BULK_PUSH_ATTRIBUTE + suffix));
+                assertNull(attributes.get(NativeDevice.BULK_PULL_ATTRIBUTE + suffix));
+            }
+        } finally {
+            FileUtil.recursiveDelete(testDir);
+        }
+    }
+
+    /**
+     * Test that {@link NativeDevice#pushDir(File, String)} in bulk mode packs the small files in
+     * a tar archive, and pushes the others individually.
+     */
+    public void testPushDir_bulkTar() throws Exception {
+        final List<String> commands = new ArrayList<>();
+        final List<List<String>> sessions = new ArrayList<>();
+        mTestDevice = new TestableAndroidNativeDevice() {
+            @Override
+            public String executeShellCommand(String cmd) throws DeviceNotAvailableException {
+                commands.add(cmd);
+                return cmd.startsWith("tar") ? "TRADEFED_BULK_PUSH_OK\n" : "";
+            }
+            @Override
+            boolean syncFilesInSession(List<File> localFiles, List<String> remotePaths,
+                    boolean push) throws DeviceNotAvailableException {
+                sessions.add(new ArrayList<>(remotePaths));
+                return true;
+            }
+        };
+        mTestDevice.getOptions().setBulkDirTransferEnabled(true);
+        mTestDevice.getOptions().setBulkDirTarThreshold(10);
+        File testDir = FileUtil.createTempDir("pushDirTest");
+        try {
+            FileUtil.writeToFile("a", new File(testDir, "small1"));
+            FileUtil.writeToFile("b", new File(testDir, "small2"));
+            FileUtil.writeToFile("more than ten bytes", new File(testDir, "large"));
+            assertTrue(mTestDevice.pushDir(testDir, "/data/foo"));
+            assertEquals(2, sessions.size());
+            assertEquals(Arrays.asList("/data/foo/.tradefed-bulk-push.tar"), sessions.get(0));
+            assertEquals(Arrays.asList("/data/foo/large"), sessions.get(1));
+            assertEquals(1, commands.size());
+            assertTrue(commands.get(0).startsWith(
+                    "tar -xf \"/data/foo/.tradefed-bulk-push.tar\" -C \"/data/foo\""));
+        } finally {
+            FileUtil.recursiveDelete(testDir);
+        }
+    }
+
+    /**
+     * Test that {@link NativeDevice#pullDir(String, File)} in bulk mode lists the remote tree with
+     * one command and pulls all the files in one sync session.
+     */
+    public void testPullDir_bulk() throws Exception {
+        final List<List<String>> sessions = new ArrayList<>();
+        mTestDevice = new TestableAndroidNativeDevice() {
+            @Override
+            public String executeShellCommand(String cmd) throws DeviceNotAvailableException {
+                assertTrue(cmd.startsWith("find \"/foo\" -type d"));
+                return "/foo\n/foo/bar1\n/foo/bar2\n/foo/bar2/bar3\nTRADEFED_BULK_PULL_FILES\n"
+                        + "/foo/bar2/file1\n/foo/bar2/bar3/file2\n";
+            }
+            @Override
+            public boolean isDirectory(String path) throws DeviceNotAvailableException {
+                return true;
+            }
+            @Override
+            boolean syncFilesInSession(List<File> localFiles, List<String> remotePaths,
+                    boolean push) throws DeviceNotAvailableException {
+                assertFalse(push);
+                sessions.add(new ArrayList<>(remotePaths));
+                for (File localFile : localFiles) {
+                    try {
+                        assertTrue(localFile.createNewFile());
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return true;
+            }
+        };
+        mTestDevice.getOptions().setBulkDirTransferEnabled(true);
+        File dir = FileUtil.createTempDir("tf-test");
+        try {
+            assertTrue(mTestDevice.pullDir("/foo/", dir));
+            assertEquals(1, sessions.size());
+            assertEquals(Arrays.asList("/foo/bar2/file1", "/foo/bar2/bar3/file2"),
+                    sessions.get(0));
+            assertEquals(new HashSet<>(Arrays.asList("bar1/", "bar2/", "bar2/bar3/",
+                    "bar2/file1", "bar2/bar3/file2")), new HashSet<>(getFlatDir(dir)));
+        } finally {
+            FileUtil.recursiveDelete(dir);
+        }
+    }
+
+    /**
+     * Test that {@link NativeDevice#syncFilesInSession(List, List, boolean)} reuses one
+     * {@link SyncService} for all files, and resumes from the failed file after recovery.
+     */
+    public void testSyncFilesInSession_resume() throws Exception {
+        SyncService first = Mockito.mock(SyncService.class);
+        SyncService second = Mockito.mock(SyncService.class);
+        EasyMock.expect(mMockIDevice.getSyncService()).andReturn(first);
+        EasyMock.expect(mMockIDevice.getSyncService()).andReturn(second);
+        EasyMock.replay(mMockIDevice);
+        File file1 = new File("/tmp/file1");
+        File file2 = new File("/tmp/file2");
+        File file3 = new File("/tmp/file3");
+        doThrow(new IOException())
+                .when(first)
+                .pushFile(
+                        Mockito.eq(file2.getAbsolutePath()),
+                        Mockito.eq("/data/file2"),
+                        Mockito.any(ISyncProgressMonitor.class));
+        assertTrue(mTestDevice.syncFilesInSession(Arrays.asList(file1, file2, file3),
+                Arrays.asList("/data/file1", "/data/file2", "/data/file3"), true));
+        EasyMock.verify(mMockIDevice);
+        Mockito.verify(first).pushFile(Mockito.eq(file1.getAbsolutePath()),
+                Mockito.eq("/data/file1"), Mockito.any(ISyncProgressMonitor.class));
+        Mockito.verify(first).close();
+        Mockito.verify(second, Mockito.never()).pushFile(Mockito.eq(file1.getAbsolutePath()),
+                Mockito.anyString(), Mockito.any(ISyncProgressMonitor.class));
+        Mockito.verify(second).pushFile(Mockito.eq(file2.getAbsolutePath()),
+                Mockito.eq("/data/file2"), Mockito.any(ISyncProgressMonitor.class));
+        Mockito.verify(second).pushFile(Mockito.eq(file3.getAbsolutePath()),
+                Mockito.eq("/data/file3"), Mockito.any(ISyncProgressMonitor.class));
+        Mockito.verify(second).close();
+    }
+
+    /**
+     * Test that {@link NativeDevice#syncFiles(File, String)} with hash sync only pushes files that
+     * differ from the device, including same-size changes unless the manifest is trusted.
+     */
+    public void testSyncFiles_hash() throws Exception {
+        final List<String> commands = new ArrayList<>();
+        final List<List<String>> sessions = new ArrayList<>();
+        final Map<String, String> remoteContent = new HashMap<>();
+        final DeviceFileManifest manifest = new DeviceFileManifest();
+        mTestDevice = new TestableAndroidNativeDevice() {
+            @Override
+            public String executeShellCommand(String cmd) throws DeviceNotAvailableException {
+                commands.add(cmd);
+                StringBuilder output = new StringBuilder();
+                if (cmd.contains("stat -c")) {
+                    for (Map.Entry<String, String> file : remoteContent.entrySet()) {
+                        output.append(String.format("%d %s\n", file.getValue().length(),
+                                file.getKey()));
+                    }
+                    output.append("TRADEFED_SYNC_LISTING_END\n");
+                } else if (cmd.startsWith("md5sum")) {
+                    for (Map.Entry<String, String> file : remoteContent.entrySet()) {
+                        if (cmd.contains(file.getKey())) {
+                            try {
+                                output.append(String.format("%s  %s\n", StreamUtil.calculateMd5(
+                                        new ByteArrayInputStream(file.getValue().getBytes())),
+                                        file.getKey()));
+                            } catch (IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    }
+                }
+                return output.toString();
+            }
+            @Override
+            boolean syncFilesInSession(List<File> localFiles, List<String> remotePaths,
+                    boolean push) throws DeviceNotAvailableException {
+                sessions.add(new ArrayList<>(remotePaths));
+                for (int i = 0; i < localFiles.size(); i++) {
+                    try {
+                        remoteContent.put(remotePaths.get(i),
+                                FileUtil.readStringFromFile(localFiles.get(i)));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return true;
+            }
+            @Override
+            DeviceFileManifest getFileManifest() {
+                return manifest;
+            }
+        };
+        mTestDevice.getOptions().setHashSyncFilesEnabled(true);
+        EasyMock.replay(mMockIDevice);
+        File testDir = FileUtil.createTempDir("syncTest");
+        try {
+            FileUtil.writeToFile("same", new File(testDir, "same"));
+            FileUtil.writeToFile("changed", new File(testDir, "changed"));
+            FileUtil.writeToFile("missing", new File(testDir, "missing"));
+            FileUtil.writeToFile("hidden", new File(testDir, ".hidden"));
+            String remoteRoot = "/data/" + testDir.getName();
+            remoteContent.put(remoteRoot + "/same", "same");
+            remoteContent.put(remoteRoot + "/changed", "CHANGED");
+
+            assertTrue(mTestDevice.syncFiles(testDir, "/data"));
+            assertEquals(1, sessions.size());
+            assertEquals(new HashSet<>(Arrays.asList(remoteRoot + "/changed",
+                    remoteRoot + "/missing")), new HashSet<>(sessions.get(0)));
+            assertEquals("changed", remoteContent.get(remoteRoot + "/changed"));
+
+            // nothing changed: the sync lists the remote sizes and hashes the same-size files
+            commands.clear();
+            assertTrue(mTestDevice.syncFiles(testDir, "/data"));
+            assertEquals(1, sessions.size());
+            assertEquals(2, commands.size());
+            assertTrue(commands.get(0).contains("stat -c"));
+            assertTrue(commands.get(1).startsWith("md5sum"));
+
+            // a file changed on the device without changing its size is pushed again
+            remoteContent.put(remoteRoot + "/same", "SAME");
+            assertTrue(mTestDevice.syncFiles(testDir, "/data"));
+            assertEquals(2, sessions.size());
+            assertEquals(Arrays.asList(remoteRoot + "/same"), sessions.get(1));
+            assertEquals("same", remoteContent.get(remoteRoot + "/same"));
+
+            // trusting the manifest, the sync only lists the remote sizes and misses the change
+            mTestDevice.getOptions().setHashSyncTrustManifestEnabled(true);
+            remoteContent.put(remoteRoot + "/same", "SAME");
+            commands.clear();
+            assertTrue(mTestDevice.syncFiles(testDir, "/data"));
+            assertEquals(2, sessions.size());
+            assertEquals(1, commands.size());
+            assertTrue(commands.get(0).contains("stat -c"));
+        } finally {
+            FileUtil.recursiveDelete(testDir);
+        }
+    }
+
     private List<String> getFlatDir(File root) {
         List<String> ret = new ArrayList<>();
         for (File f : root.listFiles()) {
@@ -1929,4 +2207,141 @@ public class NativeDeviceTest extends TestCase {
         assertNull(mTestDevice.getSimOperator());
         EasyMock.verify(mMockIDevice, mMockStateMonitor, mMockDvcMonitor);
     }
+
+    /**
+     * Test that with the property cache enabled, properties are loaded with a single getprop call
+     * until the device reboots, and the cache usage is reported with the invocation build.
+     */
+    public void testGetProperty_cached() throws Exception {
+        final List<String> commands = new ArrayList<>();
+        mTestDevice = new TestableAndroidNativeDevice() {
+            @Override
+            public String executeShellCommand(String command) throws DeviceNotAvailableException {
+                commands.add(command);
+                return "[ro.build.id]: [NRD90M]\n[sys.boot_completed]: [1]\n[ro.empty]: []\n"
+                        + "[ro.multiline]: [first\nsecond]\n";
+            }
+        };
+        mTestDevice.getOptions().setPropertyCacheEnabled(true);
+        EasyMock.expect(mMockIDevice.getState()).andReturn(DeviceState.ONLINE).anyTimes();
+        // the properties missing from the getprop output are read on their own, once
+        SettableFuture<String> unset = SettableFuture.create();
+        unset.set(null);
+        EasyMock.expect(mMockIDevice.getSystemProperty("ro.unset")).andReturn(unset);
+        SettableFuture<String> multiline = SettableFuture.create();
+        multiline.set("first\nsecond");
+        EasyMock.expect(mMockIDevice.getSystemProperty("ro.multiline")).andReturn(multiline);
+        mMockStateMonitor.setState(TestDeviceState.NOT_AVAILABLE);
+        mMockStateMonitor.setState(TestDeviceState.ONLINE);
+        EasyMock.replay(mMockIDevice, mMockStateMonitor);
+        IBuildInfo info = new BuildInfo();
+        mTestDevice.preInvocationSetup(info);
+        assertEquals("NRD90M", mTestDevice.getProperty("ro.build.id"));
+        assertEquals("1", mTestDevice.getProperty("sys.boot_completed"));
+        assertNull(mTestDevice.getProperty("ro.empty"));
+        assertNull(mTestDevice.getProperty("ro.unset"));
+        assertNull(mTestDevice.getProperty("ro.unset"));
+        assertEquals("first\nsecond", mTestDevice.getProperty("ro.multiline"));
+        assertEquals("first\nsecond", mTestDevice.getProperty("ro.multiline"));
+        assertEquals(1, commands.size());
+        assertEquals("getprop", commands.get(0));
+        // a reboot invalidates the cache
+        mTestDevice.setDeviceState(TestDeviceState.NOT_AVAILABLE);
+        mTestDevice.setDeviceState(TestDeviceState.ONLINE);
+        assertEquals("NRD90M", mTestDevice.getProperty("ro.build.id"));
+        assertEquals(2, commands.size());
+        mTestDevice.postInvocationTearDown();
+        assertEquals("4", info.getBuildAttributes().get(
+                NativeDevice.PROPERTY_CACHE_HITS_ATTRIBUTE));
+        assertEquals("4", info.getBuildAttributes().get(
+                NativeDevice.PROPERTY_CACHE_MISSES_ATTRIBUTE));
+        EasyMock.verify(mMockIDevice, mMockStateMonitor);
+    }
+
+    /**
+     * Test that with the property cache enabled, a property set with a shell command is read
+     * again instead of being served from the cache.
+     */
+    public void testGetProperty_cachedSetprop() throws Exception {
+        mTestDevice = new TestableAndroidNativeDevice();
+        mTestDevice.getOptions().setPropertyCacheEnabled(true);
+        EasyMock.expect(mMockIDevice.getState()).andReturn(DeviceState.ONLINE).anyTimes();
+        mMockIDevice.executeShellCommand(EasyMock.eq("getprop"),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS));
+        EasyMock.expectLastCall().andAnswer(() -> {
+            IShellOutputReceiver receiver =
+                    (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+            byte[] output = "[sys.foo]: [1]\n[sys.bar]: [1]\n".getBytes();
+            receiver.addOutput(output, 0, output.length);
+            receiver.flush();
+            return null;
+        });
+        mMockIDevice.executeShellCommand(EasyMock.eq("setprop sys.foo 2"),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS));
+        SettableFuture<String> value = SettableFuture.create();
+        value.set("2");
+        EasyMock.expect(mMockIDevice.getSystemProperty("sys.foo")).andReturn(value);
+        EasyMock.replay(mMockIDevice);
+        assertEquals("1", mTestDevice.getProperty("sys.foo"));
+        mTestDevice.executeShellCommand("setprop sys.foo 2");
+        assertEquals("2", mTestDevice.getProperty("sys.foo"));
+        assertEquals("1", mTestDevice.getProperty("sys.bar"));
+        EasyMock.verify(mMockIDevice);
+    }
+
+    /**
+     * Test that {@link NativeDevice#getLogcatSince(long)} looks up the background capture with
+     * a date in seconds since epoch, as printed by 'date +%s', in the current device time zone.
+     */
+    public void testGetLogcatSince_captured() throws Exception {
+        final String[] timezone = {"UTC"};
+        final LogcatRingBuffer buffer = new LogcatRingBuffer("logcat", "serial", 1024 * 1024);
+        try {
+            for (int second = 0; second < 60; second++) {
+                byte[] line = String.format(
+                        "01-15 10:00:%02d.000  123  456 I Tag: message %d\n", second, second)
+                        .getBytes();
+                buffer.addOutput(line, 0, line.length);
+            }
+            final LogcatReceiver receiver = Mockito.mock(LogcatReceiver.class);
+            Mockito.when(receiver.getLogcatData(Mockito.anyLong(), Mockito.anyLong(),
+                    Mockito.any(TimeZone.class))).thenAnswer(invocation -> buffer.getData(
+                            (Long) invocation.getArguments()[0],
+                            (Long) invocation.getArguments()[1],
+                            (TimeZone) invocation.getArguments()[2]));
+            mTestDevice = new TestableAndroidNativeDevice() {
+                @Override
+                LogcatReceiver createLogcatReceiver() {
+                    return receiver;
+                }
+
+                @Override
+                public String getProperty(String name) {
+                    return "persist.sys.timezone".equals(name) ? timezone[0] : null;
+                }
+            };
+            EasyMock.replay(mMockIDevice);
+            mTestDevice.startLogcat();
+            Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            calendar.clear();
+            calendar.set(2017, Calendar.JANUARY, 15, 10, 0, 58);
+            String logcat = StreamUtil.getStringFromSource(
+                    mTestDevice.getLogcatSince(calendar.getTimeInMillis() / 1000));
+            assertEquals("01-15 10:00:58.000  123  456 I Tag: message 58\n"
+                    + "01-15 10:00:59.000  123  456 I Tag: message 59\n", logcat);
+            // the device time zone changed, the same device time is now an hour earlier
+            timezone[0] = "GMT+01:00";
+            calendar.add(Calendar.HOUR_OF_DAY, -1);
+            logcat = StreamUtil.getStringFromSource(
+                    mTestDevice.getLogcatSince(calendar.getTimeInMillis() / 1000));
+            assertEquals("01-15 10:00:58.000  123  456 I Tag: message 58\n"
+                    + "01-15 10:00:59.000  123  456 I Tag: message 59\n", logcat);
+            // the device was not queried
+            EasyMock.verify(mMockIDevice);
+        } finally {
+            buffer.delete();
+        }
+    }
 }
@@ -20,6 +20,9 @@ import com.android.tradefed.build.BuildInfo;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
@@ -27,6 +30,9 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** Unit tests for {@link ShardListener}. */
 @RunWith(JUnit4.class)
@@ -118,4 +124,118 @@ public class ShardListenerTest {
         mShardListener.invocationEnded(0l);
         EasyMock.verify(mMockListener, mMockDevice);
     }
+
+    /**
+     * Test that with a {@link ShardResultMerger}, the runs are forwarded as soon as they complete,
+     * and the runs of a module when the module completes.
+     */
+    @Test
+    public void testStreamResults() throws Exception {
+        mMockListener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        mShardListener = new ShardListener(new ShardResultMerger(mMockListener, 1));
+        CountDownLatch runForwarded = new CountDownLatch(1);
+        IInvocationContext module1 = new InvocationContext();
+        TestIdentifier tid = new TestIdentifier("class1", "name1");
+        mMockListener.invocationStarted(mContext);
+        mMockListener.testRunStarted("run1", 1);
+        mMockListener.testStarted(tid, 0l);
+        mMockListener.testEnded(tid, 0l, Collections.emptyMap());
+        mMockListener.testRunEnded(0l, Collections.emptyMap());
+        EasyMock.expectLastCall().andAnswer(() -> {
+            runForwarded.countDown();
+            return null;
+        });
+        mMockListener.testModuleStarted(module1);
+        mMockListener.testRunStarted("run2", 1);
+        mMockListener.testStarted(tid, 0l);
+        mMockListener.testFailed(tid, "trace");
+        mMockListener.testEnded(tid, 0l, Collections.emptyMap());
+        mMockListener.testRunEnded(0l, Collections.emptyMap());
+        // the number of tests reported is the number that ran
+        mMockListener.testRunStarted("run3", 0);
+        mMockListener.testRunEnded(0l, Collections.emptyMap());
+        mMockListener.testModuleEnded();
+        mMockListener.invocationEnded(0l);
+
+        EasyMock.replay(mMockListener, mMockDevice);
+        mShardListener.invocationStarted(mContext);
+        mShardListener.testRunStarted("run1", 1);
+        mShardListener.testStarted(tid, 0l);
+        mShardListener.testEnded(tid, 0l, Collections.emptyMap());
+        mShardListener.testRunEnded(0l, Collections.emptyMap());
+        // the run is forwarded while the shard is still running
+        assertTrue(runForwarded.await(10, TimeUnit.SECONDS));
+        mShardListener.testModuleStarted(module1);
+        mShardListener.testRunStarted("run2", 1);
+        mShardListener.testStarted(tid, 0l);
+        mShardListener.testFailed(tid, "trace");
+        mShardListener.testEnded(tid, 0l, Collections.emptyMap());
+        mShardListener.testRunEnded(0l, Collections.emptyMap());
+        mShardListener.testRunStarted("run3", 1);
+        mShardListener.testRunEnded(0l, Collections.emptyMap());
+        mShardListener.testModuleEnded();
+        mShardListener.invocationEnded(0l);
+        // the last shard to end waits for all the results to be forwarded
+        EasyMock.verify(mMockListener, mMockDevice);
+    }
+
+    /**
+     * Test that a {@link ShardResultMerger} delivers the results on the shard thread, without a
+     * thread of its own that would outlive the parent invocation.
+     */
+    @Test
+    public void testStreamResults_deliveredByShard() throws Exception {
+        mMockListener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        mShardListener = new ShardListener(new ShardResultMerger(mMockListener, 2));
+        final Thread shardThread = Thread.currentThread();
+        final AtomicBoolean deliveredByShard = new AtomicBoolean(false);
+        mMockListener.invocationStarted(mContext);
+        mMockListener.testRunStarted("run1", 0);
+        mMockListener.testRunEnded(0l, Collections.emptyMap());
+        EasyMock.expectLastCall().andAnswer(() -> {
+            deliveredByShard.set(Thread.currentThread() == shardThread);
+            return null;
+        });
+        EasyMock.replay(mMockListener, mMockDevice);
+        mShardListener.invocationStarted(mContext);
+        mShardListener.testRunStarted("run1", 0);
+        mShardListener.testRunEnded(0l, Collections.emptyMap());
+        // the run was forwarded before returning, while the other shard is still running
+        EasyMock.verify(mMockListener, mMockDevice);
+        assertTrue(deliveredByShard.get());
+    }
+
+    /**
+     * Test that a shard delivering the results only delivers the batches queued before it took the
+     * delivery lock: a batch submitted meanwhile is delivered by the shard that submitted it.
+     */
+    @Test
+    public void testStreamResults_boundedDelivery() throws Exception {
+        final ShardResultMerger merger = new ShardResultMerger(mMockListener, 2);
+        final CountDownLatch delivering = new CountDownLatch(1);
+        final Thread firstShard = Thread.currentThread();
+        final AtomicBoolean secondDeliveredByFirst = new AtomicBoolean(true);
+        Thread secondShard = new Thread(() -> {
+            try {
+                delivering.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            merger.submit(() -> secondDeliveredByFirst.set(Thread.currentThread() == firstShard));
+        });
+        secondShard.setDaemon(true);
+        secondShard.start();
+        merger.submit(() -> {
+            delivering.countDown();
+            try {
+                // let the second shard queue its batch while this one is delivering
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        });
+        secondShard.join(10000);
+        assertFalse(secondShard.isAlive());
+        assertFalse(secondDeliveredByFirst.get());
+    }
 }
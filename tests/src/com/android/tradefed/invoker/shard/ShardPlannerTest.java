@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker.shard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.testtype.IRuntimeHintProvider;
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Unit tests for {@link ShardPlanner}. */
+@RunWith(JUnit4.class)
+public class ShardPlannerTest {
+
+    private File mHistoryFile;
+    private ShardPlanner mPlanner;
+
+    @Before
+    public void setUp() throws Exception {
+        mHistoryFile = FileUtil.createTempFile("test-runtimes", ".txt");
+        mHistoryFile.delete();
+        mPlanner = new ShardPlanner(new TestRuntimeHistory(mHistoryFile));
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.deleteFile(mHistoryFile);
+    }
+
+    /** Test that the longest jobs are assigned first, each to the least loaded shard. */
+    @Test
+    public void testAssign() {
+        assertArrayEquals(
+                new int[] {0, 1, 1, 0, 1}, ShardPlanner.assign(new long[] {5, 4, 3, 3, 3}, 2));
+        // equal jobs are spread in order
+        assertArrayEquals(new int[] {0, 1, 2, 0}, ShardPlanner.assign(new long[4], 3));
+    }
+
+    /** Test that the shards keep the original order of their tests. */
+    @Test
+    public void testPlan() {
+        IRemoteTest short1 = createHintedTest(10);
+        IRemoteTest longest = createHintedTest(100);
+        IRemoteTest medium = createHintedTest(60);
+        IRemoteTest short2 = createHintedTest(30);
+        List<IRemoteTest> tests = new ArrayList<>();
+        tests.add(short1);
+        tests.add(longest);
+        tests.add(medium);
+        tests.add(short2);
+        List<List<IRemoteTest>> shards = mPlanner.plan(tests, 2);
+        assertEquals(2, shards.size());
+        assertEquals(1, shards.get(0).size());
+        assertSame(longest, shards.get(0).get(0));
+        assertEquals(3, shards.get(1).size());
+        assertSame(short1, shards.get(1).get(0));
+        assertSame(medium, shards.get(1).get(1));
+        assertSame(short2, shards.get(1).get(2));
+    }
+
+    /**
+     * Test replaying a split planned from a history against the durations of a later run: the
+     * planned shards are balanced, the actual ones are only as balanced as the history was right.
+     */
+    @Test
+    public void testSimulate() {
+        Map<String, Long> planned = new HashMap<>();
+        planned.put("a", 100L);
+        planned.put("b", 100L);
+        planned.put("c", 50L);
+        planned.put("d", 50L);
+        Map<String, Long> actual = new HashMap<>(planned);
+        actual.put("b", 300L);
+        // a module that was never planned is expected to be instant
+        actual.put("e", 20L);
+        // the tests are split in key order, as independent shards would list them
+        List<String> keys = new ArrayList<>(actual.keySet());
+        Collections.sort(keys);
+        long[] durations = new long[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            Long duration = planned.get(keys.get(i));
+            durations[i] = duration != null ? duration : 0L;
+        }
+        int[] assignment = ShardPlanner.assign(durations, 2);
+        long[] expectedLoads = new long[2];
+        long[] actualLoads = new long[2];
+        for (int i = 0; i < keys.size(); i++) {
+            expectedLoads[assignment[i]] += durations[i];
+            actualLoads[assignment[i]] += actual.get(keys.get(i));
+        }
+        assertArrayEquals(new long[] {150, 150}, expectedLoads);
+        assertArrayEquals(new long[] {170, 350}, actualLoads);
+    }
+
+    private static IRemoteTest createHintedTest(long hint) {
+        IRemoteTest test =
+                Mockito.mock(
+                        IRemoteTest.class,
+                        Mockito.withSettings().extraInterfaces(IRuntimeHintProvider.class));
+        Mockito.when(((IRuntimeHintProvider) test).getRuntimeHint()).thenReturn(hint);
+        return test;
+    }
+}
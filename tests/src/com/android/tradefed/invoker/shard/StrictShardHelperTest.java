@@ -20,6 +20,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.android.tradefed.build.BuildInfo;
 import com.android.tradefed.command.CommandOptions;
@@ -38,6 +39,8 @@ import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.StubTest;
 import com.android.tradefed.testtype.suite.ITestSuite;
+import com.android.tradefed.testtype.suite.ModuleDefinition;
+import com.android.tradefed.util.FileUtil;
 
 import org.easymock.EasyMock;
 import org.junit.Before;
@@ -47,9 +50,12 @@ import org.junit.runners.JUnit4;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mockito;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /** Unit tests for {@link StrictShardHelper}. */
 @RunWith(JUnit4.class)
@@ -221,6 +227,11 @@ public class StrictShardHelperTest {
     }
 
     private List<IRemoteTest> testShard(int shardIndex) throws Exception {
+        return testShard(shardIndex, null, null);
+    }
+
+    private List<IRemoteTest> testShard(int shardIndex, File runtimeHistory, String md5)
+            throws Exception {
         mContext.addAllocatedDevice("default", EasyMock.createMock(ITestDevice.class));
         List<IRemoteTest> test = new ArrayList<>();
         test.add(createFakeSuite("module2"));
@@ -235,6 +246,12 @@ public class StrictShardHelperTest {
         setter.setOptionValue("disable-strict-sharding", "true");
         setter.setOptionValue("shard-count", "3");
         setter.setOptionValue("shard-index", Integer.toString(shardIndex));
+        if (runtimeHistory != null) {
+            setter.setOptionValue("shard-runtime-history", runtimeHistory.getAbsolutePath());
+        }
+        if (md5 != null) {
+            setter.setOptionValue("shard-runtime-history-md5", md5);
+        }
         mConfig.setCommandOptions(options);
         mConfig.setCommandLine(new String[] {"empty"});
         mConfig.setTests(test);
@@ -299,4 +316,67 @@ public class StrictShardHelperTest {
         assertEquals("module3", ((ITestSuite) res.get(2)).getDirectModule().getId());
         assertEquals(1, ((ITestSuite) res.get(2)).getDirectModule().numTests());
     }
+
+    /**
+     * Test that the strict shards plan from the runtime history with the md5 of the run, and that
+     * a shard started after the history changed fails instead of computing another split.
+     */
+    @Test
+    public void testShardConfig_runtimeHistoryChanges() throws Exception {
+        File historyFile = FileUtil.createTempFile("shard-runtimes", ".txt");
+        try {
+            FileUtil.writeToFile("1000 module1\n10 module2\n10 module3\n", historyFile);
+            String md5 = FileUtil.calculateMd5(historyFile);
+            Map<String, Integer> numTests = new HashMap<>();
+            countTests(testShard(0, historyFile, md5), numTests);
+            // a shard completed and the module durations changed before the next shard started
+            FileUtil.writeToFile("10 module1\n1000 module2\n500 module3\n", historyFile);
+            try {
+                testShard(1, historyFile, md5);
+                fail("Should have thrown an exception.");
+            } catch (IllegalStateException expected) {
+                // expected
+            }
+            // the shards rerun with the history of the run
+            FileUtil.writeToFile("1000 module1\n10 module2\n10 module3\n", historyFile);
+            countTests(testShard(1, historyFile, md5), numTests);
+            countTests(testShard(2, historyFile, md5), numTests);
+
+            Map<String, Integer> expected = new HashMap<>();
+            expected.put("module1", 6);
+            expected.put("module2", 4);
+            expected.put("module3", 4);
+            assertEquals(expected, numTests);
+        } finally {
+            FileUtil.deleteFile(historyFile);
+        }
+    }
+
+    /**
+     * Test that without the md5 of the runtime history, the strict shards are split by number of
+     * tests and ignore the history.
+     */
+    @Test
+    public void testShardConfig_runtimeHistoryWithoutMd5() throws Exception {
+        File historyFile = FileUtil.createTempFile("shard-runtimes", ".txt");
+        try {
+            FileUtil.writeToFile("1000 module1\n10 module2\n10 module3\n", historyFile);
+            List<IRemoteTest> res = testShard(0, historyFile, null);
+            assertEquals(3, res.size());
+            assertEquals("module3", ((ITestSuite) res.get(0)).getDirectModule().getId());
+            assertEquals("module1", ((ITestSuite) res.get(1)).getDirectModule().getId());
+            assertEquals("module2", ((ITestSuite) res.get(2)).getDirectModule().getId());
+        } finally {
+            FileUtil.deleteFile(historyFile);
+        }
+    }
+
+    /** Add the number of tests of each module of the shard to the given counts. */
+    private void countTests(List<IRemoteTest> shard, Map<String, Integer> numTests) {
+        for (IRemoteTest test : shard) {
+            ModuleDefinition module = ((ITestSuite) test).getDirectModule();
+            Integer count = numTests.get(module.getId());
+            numTests.put(module.getId(), (count == null ? 0 : count) + module.numTests());
+        }
+    }
 }
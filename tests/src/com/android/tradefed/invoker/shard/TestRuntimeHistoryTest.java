@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.testtype.IRuntimeHintProvider;
+import com.android.tradefed.testtype.StubTest;
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Unit tests for {@link TestRuntimeHistory}. */
+@RunWith(JUnit4.class)
+public class TestRuntimeHistoryTest {
+
+    private File mHistoryFile;
+    private TestRuntimeHistory mHistory;
+
+    @Before
+    public void setUp() throws Exception {
+        mHistoryFile = FileUtil.createTempFile("test-runtimes", ".txt");
+        mHistoryFile.delete();
+        mHistory = new TestRuntimeHistory(mHistoryFile);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.deleteFile(mHistoryFile);
+    }
+
+    /** Test that the recorded durations are averaged and persisted. */
+    @Test
+    public void testRecordRuntime() {
+        assertNull(mHistory.getRuntime("module"));
+        mHistory.recordRuntime("module", 1000);
+        assertEquals(Long.valueOf(1000), mHistory.getRuntime("module"));
+        mHistory.recordRuntime("module", 3000);
+        assertEquals(Long.valueOf(2000), mHistory.getRuntime("module"));
+        assertFalse(mHistoryFile.exists());
+        mHistory.save();
+
+        TestRuntimeHistory reloaded = new TestRuntimeHistory(mHistoryFile);
+        assertEquals(Long.valueOf(2000), reloaded.getRuntime("module"));
+        assertNull(reloaded.getRuntime("other module"));
+    }
+
+    /** Test that the invocations of the host share the history of a file. */
+    @Test
+    public void testGetInstance() {
+        TestRuntimeHistory history = TestRuntimeHistory.getInstance(mHistoryFile);
+        assertSame(history, TestRuntimeHistory.getInstance(mHistoryFile.getAbsoluteFile()));
+        assertNotSame(history, TestRuntimeHistory.getInstance(new File(mHistoryFile + ".other")));
+    }
+
+    /** Test that the fixed history of a run is only loaded from a file with the given md5. */
+    @Test
+    public void testLoadFixed() throws Exception {
+        FileUtil.writeToFile("12 module\n", mHistoryFile);
+        String md5 = FileUtil.calculateMd5(mHistoryFile);
+        TestRuntimeHistory history = TestRuntimeHistory.loadFixed(mHistoryFile, md5);
+        assertEquals(Long.valueOf(12), history.getRuntime("module"));
+        FileUtil.writeToFile("34 module\n", mHistoryFile);
+        assertNull(TestRuntimeHistory.loadFixed(mHistoryFile, md5));
+        // the fixed history is never persisted
+        history.recordRuntime("module", 56);
+        history.save();
+        assertEquals(Long.valueOf(34), new TestRuntimeHistory(mHistoryFile).getRuntime("module"));
+    }
+
+    /** Test that a history without file only keeps its durations in memory. */
+    @Test
+    public void testSave_noFile() {
+        TestRuntimeHistory history = new TestRuntimeHistory(null);
+        assertNull(history.getRuntime("module"));
+        history.recordRuntime("module", 1000);
+        history.save();
+        assertEquals(Long.valueOf(1000), history.getRuntime("module"));
+    }
+
+    /** Test that invalid lines of the history file are ignored. */
+    @Test
+    public void testLoad_invalid() throws Exception {
+        FileUtil.writeToFile("12 module one\nnot a number\n34\n56 module two\n", mHistoryFile);
+        assertEquals(Long.valueOf(12), mHistory.getRuntime("module one"));
+        assertEquals(Long.valueOf(56), mHistory.getRuntime("module two"));
+    }
+
+    /** Test that tests are sorted by decreasing runtime hint, keeping the order of equal ones. */
+    @Test
+    public void testSortByExpectedRuntime() {
+        IRemoteTest short1 = createHintedTest(10);
+        IRemoteTest longest = createHintedTest(1000);
+        IRemoteTest noHint = new StubTest();
+        IRemoteTest short2 = createHintedTest(10);
+        List<IRemoteTest> tests = new ArrayList<>();
+        tests.add(short1);
+        tests.add(longest);
+        tests.add(noHint);
+        tests.add(short2);
+        mHistory.sortByExpectedRuntime(tests);
+        assertSame(longest, tests.get(0));
+        assertSame(short1, tests.get(1));
+        assertSame(short2, tests.get(2));
+        assertSame(noHint, tests.get(3));
+    }
+
+    private static IRemoteTest createHintedTest(long hint) {
+        IRemoteTest test =
+                Mockito.mock(
+                        IRemoteTest.class,
+                        Mockito.withSettings().extraInterfaces(IRuntimeHintProvider.class));
+        Mockito.when(((IRuntimeHintProvider) test).getRuntimeHint()).thenReturn(hint);
+        return test;
+    }
+}
@@ -27,6 +27,7 @@ import com.android.tradefed.device.DeviceUnresponsiveException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.testtype.IShardableTest;
 import com.android.tradefed.testtype.StubTest;
 
 import org.junit.Before;
@@ -36,6 +37,7 @@ import org.junit.runners.JUnit4;
 import org.mockito.Mockito;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
@@ -239,4 +241,129 @@ public class TestsPoolPollerTest {
         Mockito.verify(mDevice).reboot();
         assertEquals(2, tracker.getCount());
     }
+
+    /**
+     * Tests that {@link TestsPoolPoller#poll()} splits a shardable test for the other pollers once
+     * the pool runs out of tests.
+     */
+    @Test
+    public void testPoll_splitForIdlePollers() throws Exception {
+        List<IRemoteTest> testsList = new ArrayList<>();
+        StubTest splittable = new StubTest();
+        OptionSetter setter = new OptionSetter(splittable);
+        setter.setOptionValue("num-shards", "3");
+        testsList.add(splittable);
+        testsList.add(new StubTest());
+        CountDownLatch tracker = new CountDownLatch(3);
+        TestsPoolPoller poller = new TestsPoolPoller(testsList, tracker, true);
+        // 2 tests for 3 pollers: the other pollers will be idle, the test is split
+        IRemoteTest piece = poller.poll();
+        assertNotNull(piece);
+        assertTrue(piece != splittable);
+        assertEquals(3, testsList.size());
+        // enough tests are left for the pollers, no split
+        assertTrue(testsList.get(0) == poller.poll());
+        assertEquals(2, testsList.size());
+    }
+
+    /**
+     * Tests that {@link TestsPoolPoller#poll()} does not split tests when work stealing is off,
+     * which is the default.
+     */
+    @Test
+    public void testPoll_noWorkStealing() throws Exception {
+        List<IRemoteTest> testsList = new ArrayList<>();
+        StubTest splittable = new StubTest();
+        OptionSetter setter = new OptionSetter(splittable);
+        setter.setOptionValue("num-shards", "3");
+        testsList.add(splittable);
+        TestsPoolPoller poller = new TestsPoolPoller(testsList, new CountDownLatch(3));
+        assertTrue(splittable == poller.poll());
+        assertTrue(testsList.isEmpty());
+    }
+
+    /**
+     * Tests that {@link TestsPoolPoller#poll()} does not split again the pieces of a test it
+     * already split.
+     */
+    @Test
+    public void testPoll_piecesNotSplitAgain() throws Exception {
+        List<IRemoteTest> testsList = new ArrayList<>();
+        testsList.add(new SplittableTest());
+        CountDownLatch tracker = new CountDownLatch(3);
+        TestsPoolPoller poller = new TestsPoolPoller(testsList, tracker, true);
+        TestsPoolPoller otherPoller = new TestsPoolPoller(testsList, tracker, true);
+        IRemoteTest piece = poller.poll();
+        assertTrue(piece instanceof SplittableTest);
+        assertEquals(2, testsList.size());
+        // the pool runs out again, but the pieces are run as is
+        assertTrue(testsList.get(0) == otherPoller.poll());
+        assertTrue(testsList.get(0) == poller.poll());
+        assertTrue(testsList.isEmpty());
+    }
+
+    /** A test that can always be split, into pieces that can be split again. */
+    private static class SplittableTest implements IRemoteTest, IShardableTest {
+        @Override
+        public Collection<IRemoteTest> split(int shardCountHint) {
+            List<IRemoteTest> pieces = new ArrayList<>();
+            for (int i = 0; i < shardCountHint; i++) {
+                pieces.add(new SplittableTest());
+            }
+            return pieces;
+        }
+
+        @Override
+        public void run(ITestInvocationListener listener) {
+            // ignore
+        }
+    }
+
+    /**
+     * Tests that {@link TestsPoolPoller#run(ITestInvocationListener)} reports the number of tests
+     * it ran, the time it was busy and the time it waited for the last poller.
+     */
+    @Test
+    public void testRun_stats() throws Exception {
+        List<IRemoteTest> testsList = new ArrayList<>();
+        int numTests = 3;
+        for (int i = 0; i < numTests; i++) {
+            IRemoteTest test = new StubTest();
+            OptionSetter s = new OptionSetter(test);
+            s.setOptionValue("run-a-test", "true");
+            testsList.add(test);
+        }
+        CountDownLatch tracker = new CountDownLatch(1);
+        TestsPoolPoller poller = new TestsPoolPoller(testsList, tracker);
+        long start = System.currentTimeMillis();
+        poller.run(mListener);
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(numTests, poller.getTestCount());
+        assertTrue(poller.getBusyTime() >= 0);
+        assertTrue(poller.getBusyTime() <= elapsed);
+        // the only poller is the last one
+        assertTrue(poller.getTailTime() >= 0);
+        assertTrue(poller.getTailTime() <= elapsed);
+    }
+
+    /**
+     * Tests that the tail time of the pollers is only known once the last poller of the pool
+     * finished, and counts from the last test of each poller.
+     */
+    @Test
+    public void testRun_tailTime() throws Exception {
+        List<IRemoteTest> testsList = new ArrayList<>();
+        CountDownLatch tracker = new CountDownLatch(2);
+        TestsPoolPoller early = new TestsPoolPoller(testsList, tracker);
+        TestsPoolPoller last = new TestsPoolPoller(testsList, tracker);
+        early.run(mListener);
+        assertEquals(0, early.getTestCount());
+        assertEquals(-1L, early.getTailTime());
+        Thread.sleep(10);
+        last.run(mListener);
+        assertEquals(0, tracker.getCount());
+        assertTrue(early.getTailTime() >= 10);
+        assertTrue(last.getTailTime() >= 0);
+        assertTrue(last.getTailTime() <= early.getTailTime());
+    }
 }
@@ -17,6 +17,7 @@ package com.android.tradefed.log;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.config.ConfigurationException;
@@ -31,6 +32,8 @@ import org.junit.runners.JUnit4;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 
 /** Unit tests for {@link FileLogger}. */
 @RunWith(JUnit4.class)
@@ -86,6 +89,80 @@ public class FileLoggerTest {
         }
     }
 
+    /**
+     * Test that the messages logged concurrently by many threads are all written, in the order
+     * each thread logged them.
+     */
+    @Test
+    public void testLogToLogger_concurrent() throws Exception {
+        final int threadCount = 40;
+        final int messageCount = 200;
+        final FileLogger logger = new FileLogger();
+        InputStreamSource logSource = null;
+        BufferedReader logFileReader = null;
+        try {
+            logger.init();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                final int thread = i;
+                threads.add(
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                for (int j = 0; j < messageCount; j++) {
+                                    logger.printLog(
+                                            LogLevel.DEBUG, LOG_TAG, thread + " " + j);
+                                }
+                            }
+                        });
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            logSource = logger.getLog();
+            logFileReader =
+                    new BufferedReader(new InputStreamReader(logSource.createInputStream()));
+            int[] nextMessage = new int[threadCount];
+            String line;
+            int lineCount = 0;
+            while ((line = logFileReader.readLine()) != null) {
+                String[] message = line.substring(line.indexOf(LOG_TAG + ": ")
+                        + LOG_TAG.length() + 2).split(" ");
+                int thread = Integer.parseInt(message[0]);
+                assertEquals(nextMessage[thread], Integer.parseInt(message[1]));
+                nextMessage[thread]++;
+                lineCount++;
+            }
+            assertEquals(threadCount * messageCount, lineCount);
+        } finally {
+            StreamUtil.close(logFileReader);
+            StreamUtil.cancel(logSource);
+            logger.closeLog();
+        }
+    }
+
+    /** Test logging synchronously when the background writer is disabled. */
+    @Test
+    public void testLogToLogger_sync() throws Exception {
+        FileLogger logger = new FileLogger();
+        OptionSetter setter = new OptionSetter(logger);
+        setter.setOptionValue("async-log-write", "false");
+        InputStreamSource logSource = null;
+        try {
+            logger.init();
+            logger.printLog(LogLevel.INFO, LOG_TAG, "message");
+            logSource = logger.getLog();
+            assertTrue(StreamUtil.getStringFromSource(logSource).endsWith(
+                    LOG_TAG + ": message\n"));
+        } finally {
+            StreamUtil.cancel(logSource);
+            logger.closeLog();
+        }
+    }
+
     /**
      * Remove the timestamp at the beginning of the log message.
      *
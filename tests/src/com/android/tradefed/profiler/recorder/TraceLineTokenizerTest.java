@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.profiler.recorder;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TraceLineTokenizerTest {
+
+    TraceLineTokenizer mTokenizer;
+
+    @Before
+    public void setUp() throws Exception {
+        mTokenizer = new TraceLineTokenizer();
+    }
+
+    private boolean tokenize(String line) {
+        char[] chars = ("xx" + line + "yy").toCharArray();
+        return mTokenizer.tokenize(chars, 2, chars.length - 2);
+    }
+
+    @Test
+    public void testTokenize() {
+        Assert.assertTrue(tokenize(
+                "     kworker/u16:1-260   [002] d.h2 87062.464736: mmc_cmd_rw_end: "
+                        + "cmd=25,int_status=0x00000001,response=0x00000900"));
+        TraceLine line = mTokenizer.toTraceLine();
+        Assert.assertEquals("kworker/u16:1", line.getTaskName());
+        Assert.assertEquals(2, line.getCoreNum());
+        Assert.assertTrue(line.getIrqsOff());
+        Assert.assertFalse(line.getNeedsResched());
+        Assert.assertFalse(line.getHardIrq());
+        Assert.assertEquals(2, line.getPreemptDelay());
+        Assert.assertEquals(87062.464736, line.getTimestamp(), 0);
+        Assert.assertEquals(87062.464736, mTokenizer.getTimestamp(), 1e-9);
+        Assert.assertTrue(mTokenizer.functionNameEquals("mmc_cmd_rw_end"));
+        Assert.assertFalse(mTokenizer.functionNameEquals("mmc_cmd_rw_start"));
+        Assert.assertTrue(mTokenizer.findParam("cmd"));
+        Assert.assertEquals(25, mTokenizer.getParamValue());
+        Assert.assertTrue(mTokenizer.findParam("response"));
+        Assert.assertEquals(0x900, mTokenizer.getParamValue());
+        Assert.assertFalse(mTokenizer.findParam("int"));
+    }
+
+    @Test
+    public void testTokenize_taskWithDash() {
+        Assert.assertTrue(tokenize(
+                " msm-core:sampli-287   [000] ...1    58.216426: mmc_blk_rw_start: cmd=18"));
+        Assert.assertEquals("msm-core:sampli", mTokenizer.toTraceLine().getTaskName());
+        Assert.assertEquals(58.216426, mTokenizer.getTimestamp(), 1e-9);
+    }
+
+    @Test
+    public void testTokenize_invalid() {
+        Assert.assertFalse(tokenize(""));
+        Assert.assertFalse(tokenize("# tracer: nop"));
+        Assert.assertFalse(tokenize("task   [000] d.h2 87062.464736: func: a=1"));
+        Assert.assertFalse(tokenize("task-1   [000] d.h2 87062: func: a=1"));
+        Assert.assertFalse(tokenize("task-1   [000] d.h2 87062.464736: func:"));
+    }
+}
@@ -30,6 +30,7 @@ import java.io.File;
 import java.io.StringReader;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.regex.Matcher;
 
 @RunWith(JUnit4.class)
 public class TraceMetricsRecorderTest {
@@ -120,4 +121,63 @@ public class TraceMetricsRecorderTest {
         EasyMock.verify(mDevice);
         Assert.assertEquals(metrics.get("mmc:mmc_cmd_rw_end:int_status:COUNT"), 3.0, 0.001);
     }
+
+    /** Test that the trace is filtered on the device to the enabled events when possible. */
+    @Test
+    public void testFilterOnDevice() throws Exception {
+        String line =
+                " msm-core:sampli-287   [000] d.h2 87062.264209: mmc_cmd_rw_end: cmd=0,int_status=0x00000002,response=0x00000000\r\n"
+                        + "          <idle>-0     [000] d.h3 87062.279952: mmc_cmd_rw_end: cmd=1,int_status=0x00000004,response=0x00ff8080\r\n";
+        EasyMock.expect(mDevice.executeShellCommand(
+                "grep -E ': (mmc_cmd_rw_end): ' /d/tracing/trace > "
+                        + "/data/local/tmp/tradefed_trace.txt; echo $?"))
+                .andReturn("0\n");
+        EasyMock.expect(mDevice.pullFile("/data/local/tmp/tradefed_trace.txt"))
+                .andReturn(new File(line));
+        EasyMock.expect(mDevice.executeShellCommand((String) EasyMock.anyObject()))
+                .andReturn("")
+                .anyTimes();
+        EasyMock.replay(mDevice);
+        mRecorder.setUp(mDevice, Arrays.asList("mmc:mmc_cmd_rw_end:int_status:SUM"));
+        Map<String, Double> metrics = mRecorder.stopMetrics(mDevice);
+        EasyMock.verify(mDevice);
+        Assert.assertEquals(6.0, metrics.get("mmc:mmc_cmd_rw_end:int_status:SUM"), 0.001);
+    }
+
+    /**
+     * Test that the recorder aggregates a trace mixing several events like the {@link
+     * TraceParser#TRACE_LINE} pattern it replaced.
+     */
+    @Test
+    public void testParseMetrics_sameAsTraceLinePattern() throws Exception {
+        StringBuilder trace = new StringBuilder("# tracer: nop\n");
+        for (int i = 0; i < 2000; i++) {
+            trace.append(String.format(
+                    "         mmcqd/0-%d   [00%d] d.h2 %d.%06d: %s: cmd=%d,"
+                            + "int_status=0x%08x,response=0x00000900\n",
+                    260 + i % 10, i % 8, 87062 + i / 1000, i % 1000,
+                    i % 4 == 0 ? "mmc_cmd_rw_end" : "sched_switch", i % 50, i % 3));
+        }
+        TraceParser parser = new TraceParser();
+        double expected = 0;
+        for (String line : trace.toString().split("\n")) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            Matcher m = TraceParser.TRACE_LINE.matcher(line.trim());
+            Assert.assertTrue(line, m.find());
+            if (m.group(8).equals("mmc_cmd_rw_end")) {
+                expected += parser.parseFunctionParams(m.group(9)).get("int_status");
+            }
+        }
+        EasyMock.expect(mDevice.executeShellCommand((String) EasyMock.anyObject()))
+                .andReturn("")
+                .anyTimes();
+        EasyMock.replay(mDevice);
+        mRecorder.setUp(mDevice, Arrays.asList("mmc:mmc_cmd_rw_end:int_status:SUM"));
+        Map<String, Double> metrics = mRecorder.parseMetrics(
+                new BufferedReader(new StringReader(trace.toString())));
+        Assert.assertEquals(expected, metrics.get("mmc:mmc_cmd_rw_end:int_status:SUM"), 0.001);
+        Assert.assertTrue(expected > 0);
+    }
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/** Unit tests for {@link AsyncResultForwarder}. */
+@RunWith(JUnit4.class)
+public class AsyncResultForwarderTest {
+
+    private static final int TEST_COUNT = 100;
+
+    /** A listener recording the events it receives, optionally blocked until released. */
+    private static class RecordingListener extends ResultForwarder {
+        final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch mRelease;
+
+        RecordingListener(CountDownLatch release) {
+            mRelease = release;
+        }
+
+        @Override
+        public void invocationStarted(IInvocationContext context) {
+            mEvents.add("invocationStarted");
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test, long startTime) {
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            mEvents.add("testStarted " + test.getTestName());
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, long endTime, Map<String, String> metrics) {
+            mEvents.add("testEnded " + test.getTestName());
+        }
+
+        @Override
+        public void testLog(String dataName, LogDataType dataType, InputStreamSource source) {
+            try {
+                mEvents.add("testLog " + StreamUtil.getStringFromStream(
+                        source.createInputStream()));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void invocationEnded(long elapsedTime) {
+            mEvents.add("invocationEnded");
+        }
+    }
+
+    /**
+     * Test that a blocked listener does not hold up the caller nor the other listeners, and that
+     * each listener receives all the events in order before the invocation ends.
+     */
+    @Test
+    public void testForward_order() {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener slow = new RecordingListener(release);
+        RecordingListener fast = new RecordingListener(new CountDownLatch(0));
+        AsyncResultForwarder forwarder = new AsyncResultForwarder(
+                Arrays.<ITestInvocationListener>asList(slow, fast));
+        IInvocationContext context = new InvocationContext();
+        List<String> expected = new ArrayList<>();
+        forwarder.invocationStarted(context);
+        expected.add("invocationStarted");
+        for (int i = 0; i < TEST_COUNT; i++) {
+            TestIdentifier test = new TestIdentifier("class", "test" + i);
+            forwarder.testStarted(test);
+            forwarder.testEnded(test, Collections.<String, String>emptyMap());
+            expected.add("testStarted test" + i);
+            expected.add("testEnded test" + i);
+        }
+        // the fast listener catches up while the slow one is still blocked
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (fast.mEvents.size() < expected.size() && System.currentTimeMillis() < deadline) {
+            RunUtil.getDefault().sleep(10);
+        }
+        assertEquals(expected, fast.mEvents);
+        assertTrue(slow.mEvents.size() <= 1);
+
+        release.countDown();
+        forwarder.invocationEnded(0);
+        expected.add("invocationEnded");
+        assertEquals(expected, slow.mEvents);
+        assertEquals(expected, fast.mEvents);
+        assertEquals(2, context.getAttributes().get(AsyncResultForwarder.MAX_LAG_ATTRIBUTE + ":"
+                + RecordingListener.class.getName()).size());
+    }
+
+    /**
+     * Test that the listeners can read a log after the caller closed its source.
+     */
+    @Test
+    public void testTestLog_sourceClosed() {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener slow = new RecordingListener(release);
+        AsyncResultForwarder forwarder = new AsyncResultForwarder(
+                Arrays.<ITestInvocationListener>asList(slow));
+        forwarder.testStarted(new TestIdentifier("class", "test"));
+        InputStreamSource source = new ByteArrayInputStreamSource("logcat".getBytes());
+        forwarder.testLog("log", LogDataType.LOGCAT, source);
+        source.close();
+        release.countDown();
+        forwarder.invocationEnded(0);
+        assertEquals(Arrays.asList("testStarted test", "testLog logcat", "invocationEnded"),
+                slow.mEvents);
+    }
+
+    /**
+     * Test that with the discard policy, the logs that do not fit in the queue of a blocked
+     * listener are dropped and counted, while the other events are all delivered.
+     */
+    @Test
+    public void testForward_discard() {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener slow = new RecordingListener(release);
+        AsyncResultForwarder forwarder = new AsyncResultForwarder(
+                Arrays.<ITestInvocationListener>asList(slow), 1,
+                AsyncResultForwarder.OverflowPolicy.DISCARD);
+        IInvocationContext context = new InvocationContext();
+        forwarder.invocationStarted(context);
+        forwarder.testStarted(new TestIdentifier("class", "blocked"));
+        for (int i = 0; i < TEST_COUNT; i++) {
+            forwarder.testLog("log", LogDataType.LOGCAT,
+                    new ByteArrayInputStreamSource("logcat".getBytes()));
+        }
+        release.countDown();
+        List<String> expectedTests = new ArrayList<>();
+        expectedTests.add("testStarted blocked");
+        for (int i = 0; i < TEST_COUNT; i++) {
+            // the queue still only holds one event, these wait instead of being dropped
+            TestIdentifier test = new TestIdentifier("class", "test" + i);
+            forwarder.testStarted(test);
+            forwarder.testEnded(test, Collections.<String, String>emptyMap());
+            expectedTests.add("testStarted test" + i);
+            expectedTests.add("testEnded test" + i);
+        }
+        forwarder.invocationEnded(0);
+        long discarded = Long.parseLong(context.getAttributes().get(
+                AsyncResultForwarder.DISCARDED_ATTRIBUTE + ":"
+                + RecordingListener.class.getName()).get(0));
+        assertTrue(discarded >= TEST_COUNT - 2);
+        List<String> tests = new ArrayList<>();
+        int logs = 0;
+        for (String event : slow.mEvents) {
+            if (event.startsWith("testLog")) {
+                logs++;
+            } else if (event.startsWith("test")) {
+                tests.add(event);
+            }
+        }
+        assertEquals(TEST_COUNT, discarded + logs);
+        assertEquals(expectedTests, tests);
+        assertEquals("invocationStarted", slow.mEvents.get(0));
+        assertEquals("invocationEnded", slow.mEvents.get(slow.mEvents.size() - 1));
+    }
+}
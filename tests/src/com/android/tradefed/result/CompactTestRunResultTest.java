@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestResult;
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.android.ddmlib.testrunner.TestRunResult;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Unit tests for {@link CompactTestRunResult}. */
+@RunWith(JUnit4.class)
+public class CompactTestRunResultTest {
+
+    private static final String TRACE = "java.lang.AssertionError\n\tat Foo.test(Foo.java:1)";
+
+    private TestRunResult mExpected;
+    private CompactTestRunResult mCompact;
+
+    @Before
+    public void setUp() {
+        mExpected = new TestRunResult();
+        mCompact = new CompactTestRunResult(
+                new CompactTestRunResult.NamePool(), new CompactTestRunResult.TraceStore(false));
+    }
+
+    /** Replay a run with tests in every state to both results. */
+    private void replayRun(TestRunResult result) {
+        Map<String, String> metrics = new HashMap<>();
+        metrics.put("key", "value");
+        result.testRunStarted("run", 5);
+        TestIdentifier passed = new TestIdentifier("class", "passed");
+        result.testStarted(passed);
+        result.testEnded(passed, metrics);
+        TestIdentifier failed = new TestIdentifier("class", "failed");
+        result.testStarted(failed);
+        result.testFailed(failed, TRACE);
+        result.testEnded(failed, Collections.<String, String>emptyMap());
+        TestIdentifier assumption = new TestIdentifier("other", "assumption");
+        result.testStarted(assumption);
+        result.testAssumptionFailure(assumption, TRACE);
+        result.testEnded(assumption, Collections.<String, String>emptyMap());
+        TestIdentifier ignored = new TestIdentifier("other", "ignored");
+        result.testStarted(ignored);
+        result.testIgnored(ignored);
+        result.testEnded(ignored, Collections.<String, String>emptyMap());
+        result.testStarted(new TestIdentifier("other", "incomplete"));
+        result.testRunFailed("crashed");
+        result.testRunEnded(10, Collections.<String, String>emptyMap());
+    }
+
+    /** Assert that the compact result reports the same results as the ddmlib one. */
+    private void assertSameResults() {
+        assertEquals(mExpected.getName(), mCompact.getName());
+        assertEquals(mExpected.getNumTests(), mCompact.getNumTests());
+        assertEquals(mExpected.getNumCompleteTests(), mCompact.getNumCompleteTests());
+        for (TestStatus status : TestStatus.values()) {
+            assertEquals(mExpected.getNumTestsInState(status),
+                    mCompact.getNumTestsInState(status));
+        }
+        assertEquals(mExpected.isRunComplete(), mCompact.isRunComplete());
+        assertEquals(mExpected.isRunFailure(), mCompact.isRunFailure());
+        assertEquals(mExpected.getRunFailureMessage(), mCompact.getRunFailureMessage());
+        assertEquals(mExpected.getElapsedTime(), mCompact.getElapsedTime());
+        assertEquals(mExpected.getCompletedTests(), mCompact.getCompletedTests());
+        assertEquals(mExpected.getTextSummary(), mCompact.getTextSummary());
+        List<TestIdentifier> expectedOrder = new ArrayList<>(mExpected.getTestResults().keySet());
+        List<TestIdentifier> order = new ArrayList<>(mCompact.getTestResults().keySet());
+        assertEquals(expectedOrder, order);
+        for (TestIdentifier test : expectedOrder) {
+            TestResult expected = mExpected.getTestResults().get(test);
+            TestResult result = mCompact.getTestResults().get(test);
+            assertEquals(expected.getStatus(), result.getStatus());
+            assertEquals(expected.getStackTrace(), result.getStackTrace());
+            assertEquals(expected.getMetrics(), result.getMetrics());
+        }
+    }
+
+    /** Test that a run with tests in every state gives the same results as {@link TestRunResult}. */
+    @Test
+    public void testSameResults() {
+        replayRun(mExpected);
+        replayRun(mCompact);
+        assertSameResults();
+    }
+
+    /** Test that a rerun of the tests replaces their previous results. */
+    @Test
+    public void testSameResults_rerun() {
+        replayRun(mExpected);
+        replayRun(mCompact);
+        for (TestRunResult result : new TestRunResult[] {mExpected, mCompact}) {
+            result.testRunStarted("run", 1);
+            TestIdentifier failed = new TestIdentifier("class", "failed");
+            result.testStarted(failed);
+            result.testEnded(failed, Collections.<String, String>emptyMap());
+            result.testRunEnded(5, Collections.<String, String>emptyMap());
+        }
+        assertSameResults();
+        assertEquals(0, mCompact.getNumAllFailedTests());
+        assertFalse(mCompact.isRunFailure());
+    }
+
+    /** Test that the numeric run metrics are summed when aggregating. */
+    @Test
+    public void testRunEnded_aggregateMetrics() {
+        mCompact.setAggregateMetrics(true);
+        Map<String, String> metrics = new HashMap<>();
+        metrics.put("long", "1");
+        metrics.put("double", "1.5");
+        metrics.put("string", "a");
+        mCompact.testRunEnded(0, metrics);
+        metrics.put("string", "b");
+        mCompact.testRunEnded(0, metrics);
+        assertEquals("2", mCompact.getRunMetrics().get("long"));
+        assertEquals("3.0", mCompact.getRunMetrics().get("double"));
+        assertEquals("b", mCompact.getRunMetrics().get("string"));
+    }
+
+    /** Test that the stack traces are deduplicated and can be read back when spilled to disk. */
+    @Test
+    public void testTraceStore_spill() {
+        CompactTestRunResult.TraceStore store = new CompactTestRunResult.TraceStore(true);
+        int id = store.add(TRACE);
+        int other = store.add("other trace");
+        assertEquals(id, store.add(new String(TRACE)));
+        assertTrue(id != other);
+        assertEquals(TRACE, store.get(id));
+        assertEquals("other trace", store.get(other));
+        File spillFile = store.getSpillFile();
+        assertTrue(spillFile.exists());
+
+        // closing deletes the file without loading the traces back
+        store.close();
+        assertFalse(spillFile.exists());
+        assertNull(store.getSpillFile());
+        assertNull(store.get(id));
+        int added = store.add("new trace");
+        assertNull(store.getSpillFile());
+        assertEquals("new trace", store.get(added));
+    }
+
+    /**
+     * Test that the spilled stack traces of a {@link CollectingTestListener} stay readable while
+     * the invocation ends, and are released once all the listeners were notified.
+     */
+    @Test
+    public void testCollectingTestListener_spillReleased() {
+        final TestIdentifier test = new TestIdentifier("class", "test");
+        final List<String> reported = new ArrayList<>();
+        CollectingTestListener listener = new CollectingTestListener() {
+            @Override
+            public void invocationEnded(long elapsedTime) {
+                super.invocationEnded(elapsedTime);
+                reported.add(getCurrentRunResults().getTestResults().get(test).getStackTrace());
+            }
+        };
+        listener.setCompactResults(true);
+        listener.setSpillStackTraces(true);
+        listener.testRunStarted("run", 1);
+        listener.testStarted(test);
+        listener.testFailed(test, TRACE);
+        listener.testEnded(test, Collections.<String, String>emptyMap());
+        listener.testRunEnded(0, Collections.<String, String>emptyMap());
+        new ResultForwarder(listener).invocationEnded(0);
+        assertEquals(Arrays.asList(TRACE), reported);
+        assertNull(listener.getCurrentRunResults().getTestResults().get(test).getStackTrace());
+    }
+
+    /** Test that {@link CollectingTestListener} stores compact results when requested. */
+    @Test
+    public void testCollectingTestListener_compact() {
+        CollectingTestListener listener = new CollectingTestListener();
+        listener.setCompactResults(true);
+        listener.testRunStarted("run", 1);
+        TestIdentifier test = new TestIdentifier("class", "test");
+        listener.testStarted(test);
+        listener.testFailed(test, TRACE);
+        listener.testEnded(test, Collections.<String, String>emptyMap());
+        listener.testRunEnded(0, Collections.<String, String>emptyMap());
+        assertTrue(listener.getCurrentRunResults() instanceof CompactTestRunResult);
+        assertEquals(1, listener.getNumTestsInState(TestStatus.FAILURE));
+        assertEquals(TRACE, listener.getCurrentRunResults().getTestResults().get(test)
+                .getStackTrace());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.sandbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/** Unit tests for {@link SandboxWorkerPool}. */
+@RunWith(JUnit4.class)
+public class SandboxWorkerPoolTest {
+
+    private File mRootFolder;
+    private String mWorkerScript;
+    private SandboxWorkerPool mPool;
+
+    @Before
+    public void setUp() throws Exception {
+        mRootFolder = FileUtil.createTempDir("tf-jar-dir");
+        mPool =
+                new SandboxWorkerPool() {
+                    @Override
+                    List<String> buildWorkerCommand(File rootFolder, File tmpFolder) {
+                        return Arrays.asList(
+                                "sh", "-c", String.format(mWorkerScript, tmpFolder));
+                    }
+                };
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdown();
+        FileUtil.recursiveDelete(mRootFolder);
+    }
+
+    /**
+     * Test that a worker receives the request, and that the pool starts another one for the next
+     * invocation.
+     */
+    @Test
+    public void testAcquireAndRun() throws Exception {
+        mWorkerScript = "echo 42 > %1$s/" + SandboxWorker.READY_FILE + "; cat > %1$s/request";
+        SandboxWorkerPool.Worker worker = mPool.acquire(mRootFolder, 1);
+        try {
+            assertEquals(1, mPool.getIdleWorkerCount(mRootFolder));
+            SandboxWorker.Request request =
+                    new SandboxWorker.Request(
+                            new File("config.xml"),
+                            new File("context.ser"),
+                            1234,
+                            Arrays.asList("empty", "--arg", "with space"));
+            CommandResult result = worker.run(request, 10000);
+            assertEquals(CommandStatus.SUCCESS, result.getStatus());
+            assertEquals(42, worker.getStartupSavedMs());
+
+            try (InputStream input =
+                    new FileInputStream(new File(worker.getTmpFolder(), "request"))) {
+                SandboxWorker.Request received = SandboxWorker.Request.read(input);
+                assertEquals(request.mConfigFile.getAbsolutePath(), received.mConfigFile.getPath());
+                assertEquals(
+                        request.mSerializedContext.getAbsolutePath(),
+                        received.mSerializedContext.getPath());
+                assertEquals(1234, received.mReportPort);
+                assertEquals(request.mArgs, received.mArgs);
+            }
+        } finally {
+            worker.destroy();
+        }
+        assertFalse(worker.getTmpFolder().exists());
+        // The worker for the next invocation is still there.
+        assertEquals(1, mPool.getIdleWorkerCount(mRootFolder));
+        mPool.shutdown();
+        assertEquals(0, mPool.getIdleWorkerCount(mRootFolder));
+    }
+
+    /** Test that the stderr of a failed worker is part of its result. */
+    @Test
+    public void testRun_failed() throws Exception {
+        mWorkerScript = "cat > /dev/null; echo ouch >&2; exit 3";
+        SandboxWorkerPool.Worker worker = mPool.acquire(mRootFolder, 0);
+        try {
+            assertEquals(0, mPool.getIdleWorkerCount(mRootFolder));
+            CommandResult result =
+                    worker.run(
+                            new SandboxWorker.Request(
+                                    new File("config.xml"),
+                                    new File("context.ser"),
+                                    1234,
+                                    Arrays.asList("empty")),
+                            10000);
+            assertEquals(CommandStatus.FAILED, result.getStatus());
+            assertEquals("ouch\n", result.getStderr());
+        } finally {
+            worker.destroy();
+        }
+    }
+}
@@ -20,8 +20,10 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import com.android.tradefed.command.CommandOptions;
 import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.IConfiguration;
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.InvocationContext;
 import com.android.tradefed.result.ITestInvocationListener;
@@ -36,6 +38,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
 
 import java.io.File;
 
@@ -51,19 +54,29 @@ public class TradefedSandboxTest {
     private IConfiguration mMockConfig;
     private IInvocationContext mMockContext;
     private IRunUtil mMockRunUtil;
+    private SandboxWorkerPool mMockPool;
+    private CommandOptions mCommandOptions;
 
     @Before
     public void setUp() throws Exception {
         mMockRunUtil = EasyMock.createMock(IRunUtil.class);
+        mMockPool = Mockito.mock(SandboxWorkerPool.class);
         mSandbox =
                 new TradefedSandbox() {
                     @Override
                     IRunUtil createRunUtil() {
                         return mMockRunUtil;
                     }
+
+                    @Override
+                    SandboxWorkerPool getWorkerPool() {
+                        return mMockPool;
+                    }
                 };
         mMockListener = EasyMock.createMock(ITestInvocationListener.class);
         mMockConfig = EasyMock.createMock(IConfiguration.class);
+        mCommandOptions = new CommandOptions();
+        EasyMock.expect(mMockConfig.getCommandOptions()).andStubReturn(mCommandOptions);
         mMockContext = new InvocationContext();
 
         mTmpFolder = FileUtil.createTempDir("tmp-tf-jar-dir");
@@ -166,6 +179,35 @@ public class TradefedSandboxTest {
                 "Could not read TF_JAR_DIR to get current Tradefed instance.", res.getMessage());
     }
 
+    /**
+     * Test that when warm workers are requested, {@link
+     * com.android.tradefed.sandbox.TradefedSandbox#prepareEnvironment(IInvocationContext,
+     * IConfiguration, ITestInvocationListener)} takes a worker from the pool instead of starting a
+     * process to dump the configuration, and reports the start up time saved.
+     */
+    @Test
+    public void testPrepareEnvironment_warmWorker() throws Exception {
+        new OptionSetter(mCommandOptions).setOptionValue("sandbox-warm-workers", "2");
+        File workerFolder = FileUtil.createTempDir("worker", mTmpFolder);
+        SandboxWorkerPool.Worker worker = Mockito.mock(SandboxWorkerPool.Worker.class);
+        Mockito.doReturn(workerFolder).when(worker).getTmpFolder();
+        Mockito.doReturn(new File(workerFolder, "stdout")).when(worker).getStdoutFile();
+        Mockito.doReturn(new File(workerFolder, "stderr")).when(worker).getStderrFile();
+        Mockito.doReturn(1500l).when(worker).getStartupSavedMs();
+        Mockito.doReturn(worker).when(mMockPool).acquire(mTmpFolder, 2);
+        mMockRunUtil.unsetEnvVariable(TradefedSandbox.TF_GLOBAL_CONFIG);
+        setPrepareConfigurationExpectations();
+        EasyMock.replay(mMockConfig, mMockListener, mMockRunUtil);
+        Exception res = mSandbox.prepareEnvironment(mMockContext, mMockConfig, mMockListener);
+        EasyMock.verify(mMockConfig, mMockListener, mMockRunUtil);
+        assertNull(res);
+        assertEquals(
+                "1500",
+                mMockContext.getAttributes().get(TradefedSandbox.STARTUP_SAVED_ATTRIBUTE).get(0));
+        mSandbox.tearDown();
+        Mockito.verify(worker).destroy();
+    }
+
     private void setPrepareConfigurationExpectations() throws Exception {
         EasyMock.expect(mMockConfig.getCommandLine()).andReturn("empty --arg 1").times(2);
     }
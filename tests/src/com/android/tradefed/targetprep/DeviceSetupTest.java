@@ -30,6 +30,7 @@ import com.android.tradefed.util.FileUtil;
 import junit.framework.TestCase;
 
 import org.easymock.Capture;
+import org.easymock.CaptureType;
 import org.easymock.EasyMock;
 
 import java.io.File;
@@ -96,6 +97,136 @@ public class DeviceSetupTest extends TestCase {
                 setProp.contains("ro.monkey=1\n"));
     }
 
+    /**
+     * Test that with batch-setup the shell commands and settings are run as scripts, flushed
+     * before the reboot for the local properties.
+     */
+    public void testSetup_batch() throws Exception {
+        Capture<String> scriptCapture = new Capture<>(CaptureType.ALL);
+        TestDeviceOptions options = new TestDeviceOptions();
+        options.setEnableAdbRoot(false);
+        EasyMock.expect(mMockDevice.getOptions()).andReturn(options);
+        // persistent property set before the reboot
+        EasyMock.expect(mMockDevice.pushString(EasyMock.capture(scriptCapture),
+                EasyMock.eq(DeviceSetupScript.REMOTE_PATH))).andReturn(Boolean.TRUE).times(2);
+        EasyMock.expect(mMockDevice.executeShellCommand("sh " + DeviceSetupScript.REMOTE_PATH))
+                .andReturn("TRADEFED_SETUP_STEP 0 0\n");
+        EasyMock.expect(mMockDevice.pushString(EasyMock.<String>anyObject(),
+                EasyMock.contains("local.prop"))).andReturn(Boolean.TRUE);
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                EasyMock.matches("chmod 644 .*local.prop"))).andReturn("");
+        mMockDevice.reboot();
+        EasyMock.expect(mMockDevice.getApiLevel()).andReturn(DEFAULT_API_LEVEL).times(2);
+        // screen, airplane mode and wifi steps
+        EasyMock.expect(mMockDevice.executeShellCommand("sh " + DeviceSetupScript.REMOTE_PATH))
+                .andReturn("TRADEFED_SETUP_STEP 0 0\nTRADEFED_SETUP_STEP 1 0\n"
+                        + "TRADEFED_SETUP_STEP 2 0\nTRADEFED_SETUP_STEP 3 1\n"
+                        + "Broadcast completed: result=0TRADEFED_SETUP_STEP 4 0\n"
+                        + "TRADEFED_SETUP_STEP 5 0\nTRADEFED_SETUP_STEP 6 0\n");
+        EasyMock.expect(mMockDevice.clearErrorDialogs()).andReturn(Boolean.TRUE);
+        doCheckExternalStoreSpaceExpectations();
+        EasyMock.replay(mMockDevice);
+
+        mDeviceSetup.setBatchSetup(true);
+        mDeviceSetup.setProperty("persist.sys.timezone", "UTC");
+        mDeviceSetup.setAirplaneMode(BinaryState.ON);
+        mDeviceSetup.setWifi(BinaryState.ON);
+        mDeviceSetup.setUp(mMockDevice, mMockBuildInfo);
+
+        EasyMock.verify(mMockDevice);
+        assertEquals(2, scriptCapture.getValues().size());
+        assertTrue(scriptCapture.getValues().get(0).contains(
+                "setprop \"persist.sys.timezone\" \"UTC\""));
+        String script = scriptCapture.getValues().get(1);
+        String[] commands = {"svc power stayon true", "input keyevent 82", "input keyevent 3",
+                "settings put 'global' 'airplane_mode_on' '1'",
+                "am broadcast -a android.intent.action.AIRPLANE_MODE --ez state true",
+                "settings put 'global' 'wifi_on' '1'", "svc wifi enable"};
+        int index = 0;
+        for (String command : commands) {
+            int next = script.indexOf(command, index);
+            assertTrue(String.format("'%s' missing or out of order", command), next >= index);
+            index = next;
+        }
+        assertTrue(script.endsWith("rm -f " + DeviceSetupScript.REMOTE_PATH + "\n"));
+    }
+
+    /**
+     * Test that with batch-setup, the setup fails when some steps of a script that ran did not
+     * report, instead of running them again.
+     */
+    public void testSetup_batch_stepNotReported() throws Exception {
+        TestDeviceOptions options = new TestDeviceOptions();
+        options.setEnableAdbRoot(false);
+        EasyMock.expect(mMockDevice.getOptions()).andReturn(options);
+        EasyMock.expect(mMockDevice.pushString(EasyMock.<String>anyObject(),
+                EasyMock.contains("local.prop"))).andReturn(Boolean.TRUE);
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                EasyMock.matches("chmod 644 .*local.prop"))).andReturn("");
+        mMockDevice.reboot();
+        EasyMock.expect(mMockDevice.getApiLevel()).andReturn(DEFAULT_API_LEVEL).times(2);
+        EasyMock.expect(mMockDevice.pushString(EasyMock.<String>anyObject(),
+                EasyMock.eq(DeviceSetupScript.REMOTE_PATH))).andReturn(Boolean.TRUE);
+        // the wifi steps did not report
+        EasyMock.expect(mMockDevice.executeShellCommand("sh " + DeviceSetupScript.REMOTE_PATH))
+                .andReturn("TRADEFED_SETUP_STEP 0 0\nTRADEFED_SETUP_STEP 1 0\n"
+                        + "TRADEFED_SETUP_STEP 2 0\nTRADEFED_SETUP_STEP 3 0\n"
+                        + "TRADEFED_SETUP_STEP 4 0\n");
+        EasyMock.replay(mMockDevice);
+
+        mDeviceSetup.setBatchSetup(true);
+        mDeviceSetup.setAirplaneMode(BinaryState.ON);
+        mDeviceSetup.setWifi(BinaryState.ON);
+        try {
+            mDeviceSetup.setUp(mMockDevice, mMockBuildInfo);
+            fail("TargetSetupError expected");
+        } catch (TargetSetupError e) {
+            assertTrue(e.getMessage().contains("settings put 'global' 'wifi_on' '1'"));
+        }
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that with batch-setup, the steps are run one by one if the script cannot be pushed.
+     */
+    public void testSetup_batch_pushFailed() throws Exception {
+        doSetupExpectations();
+        doCheckExternalStoreSpaceExpectations();
+        EasyMock.expect(mMockDevice.getApiLevel()).andReturn(DEFAULT_API_LEVEL);
+        EasyMock.expect(mMockDevice.pushString(EasyMock.<String>anyObject(),
+                EasyMock.eq(DeviceSetupScript.REMOTE_PATH))).andReturn(Boolean.FALSE);
+        doCommandsExpectations("settings put 'global' 'airplane_mode_on' '1'",
+                "am broadcast -a android.intent.action.AIRPLANE_MODE --ez state true");
+        EasyMock.replay(mMockDevice);
+
+        mDeviceSetup.setBatchSetup(true);
+        mDeviceSetup.setAirplaneMode(BinaryState.ON);
+        mDeviceSetup.setUp(mMockDevice, mMockBuildInfo);
+
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the arguments of the batched settings commands reach the command as they are.
+     */
+    public void testQuoteShellArgument() {
+        assertEquals("'1'", DeviceSetup.quoteShellArgument("1"));
+        assertEquals("'a b'", DeviceSetup.quoteShellArgument("a b"));
+        assertEquals("'it'\\''s $HOME)'", DeviceSetup.quoteShellArgument("it's $HOME)"));
+    }
+
+    /**
+     * Test parsing the results of the steps of a setup script.
+     */
+    public void testParseScriptResults() {
+        Integer[] results = DeviceSetupScript.parseResults(
+                "output\nTRADEFED_SETUP_STEP 0 0\nmore outputTRADEFED_SETUP_STEP 2 127\r\n"
+                + "TRADEFED_SETUP_STEP 7 0\n", 3);
+        assertEquals(Integer.valueOf(0), results[0]);
+        assertNull(results[1]);
+        assertEquals(Integer.valueOf(127), results[2]);
+    }
+
     public void testSetup_airplane_mode_on() throws DeviceNotAvailableException, TargetSetupError {
         doSetupExpectations();
         doCheckExternalStoreSpaceExpectations();
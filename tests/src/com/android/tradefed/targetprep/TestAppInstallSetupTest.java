@@ -25,8 +25,11 @@ import com.android.tradefed.build.IDeviceBuildInfo;
 import com.android.tradefed.command.remote.DeviceDescriptor;
 import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.testtype.Abi;
 import com.android.tradefed.util.FileUtil;
 
+import org.easymock.Capture;
+import org.easymock.CaptureType;
 import org.easymock.EasyMock;
 import org.junit.After;
 import org.junit.Before;
@@ -35,6 +38,9 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /** Unit tests for {@link TestAppInstallSetup} */
 @RunWith(JUnit4.class)
@@ -89,6 +95,7 @@ public class TestAppInstallSetupTest {
         mMockTestDevice = EasyMock.createMock(ITestDevice.class);
         EasyMock.expect(mMockTestDevice.getSerialNumber()).andStubReturn(SERIAL);
         EasyMock.expect(mMockTestDevice.getDeviceDescriptor()).andStubReturn(null);
+        EasyMock.expect(mMockTestDevice.isRuntimePermissionSupported()).andStubReturn(true);
     }
 
     @After
@@ -108,6 +115,162 @@ public class TestAppInstallSetupTest {
         EasyMock.verify(mMockBuildInfo, mMockTestDevice);
     }
 
+    /**
+     * Test that an apk whose content is already installed is not installed again, but still
+     * cleaned up.
+     */
+    @Test
+    public void testSetup_skipIdentical() throws Exception {
+        mSetter.setOptionValue("skip-identical-apks", "true");
+        EasyMock.expect(mMockTestDevice.executeShellCommand(EasyMock.contains("pm path")))
+                .andReturn("TRADEFED_PKG PACKAGE_NAME    primaryCpuAbi=null denied=0\n"
+                        + FileUtil.calculateMd5(fakeApk) + "  /data/app/PACKAGE_NAME/base.apk\n");
+        EasyMock.expect(mMockTestDevice.uninstallPackage(PACKAGE_NAME)).andReturn(null);
+        EasyMock.replay(mMockBuildInfo, mMockTestDevice);
+        mPrep.setUp(mMockTestDevice, mMockBuildInfo);
+        mPrep.tearDown(mMockTestDevice, mMockBuildInfo, null);
+        EasyMock.verify(mMockBuildInfo, mMockTestDevice);
+        assertEquals(1, mPrep.getSkippedInstallCount());
+    }
+
+    /**
+     * Test that an apk installed with a denied runtime permission is installed again, to grant it
+     * all its permissions.
+     */
+    @Test
+    public void testSetup_skipIdentical_deniedPermission() throws Exception {
+        mSetter.setOptionValue("skip-identical-apks", "true");
+        EasyMock.expect(mMockTestDevice.executeShellCommand(EasyMock.contains("pm path")))
+                .andReturn("TRADEFED_PKG PACKAGE_NAME    primaryCpuAbi=null denied=1\n"
+                        + FileUtil.calculateMd5(fakeApk) + "  /data/app/PACKAGE_NAME/base.apk\n");
+        EasyMock.expect(mMockTestDevice.installPackage(fakeApk, true)).andReturn(null);
+        EasyMock.replay(mMockBuildInfo, mMockTestDevice);
+        mPrep.setUp(mMockTestDevice, mMockBuildInfo);
+        EasyMock.verify(mMockBuildInfo, mMockTestDevice);
+        assertEquals(0, mPrep.getSkippedInstallCount());
+    }
+
+    /** Test that an apk installed for another abi is installed again. */
+    @Test
+    public void testSetup_skipIdentical_otherAbi() throws Exception {
+        mSetter.setOptionValue("skip-identical-apks", "true");
+        mPrep.setAbi(new Abi("arm64-v8a", "64"));
+        EasyMock.expect(mMockTestDevice.executeShellCommand(EasyMock.contains("pm path")))
+                .andReturn("TRADEFED_PKG PACKAGE_NAME    primaryCpuAbi=armeabi-v7a denied=0\n"
+                        + FileUtil.calculateMd5(fakeApk) + "  /data/app/PACKAGE_NAME/base.apk\n");
+        EasyMock.expect(mMockTestDevice.installPackage(fakeApk, true, "--abi arm64-v8a"))
+                .andReturn(null);
+        EasyMock.replay(mMockBuildInfo, mMockTestDevice);
+        mPrep.setUp(mMockTestDevice, mMockBuildInfo);
+        EasyMock.verify(mMockBuildInfo, mMockTestDevice);
+        assertEquals(0, mPrep.getSkippedInstallCount());
+    }
+
+    /** Test that the apks are installed when the installed packages cannot be listed. */
+    @Test
+    public void testSetup_skipIdentical_noOutput() throws Exception {
+        mSetter.setOptionValue("skip-identical-apks", "true");
+        EasyMock.expect(mMockTestDevice.executeShellCommand(EasyMock.contains("pm path")))
+                .andReturn(null);
+        EasyMock.expect(mMockTestDevice.installPackage(fakeApk, true)).andReturn(null);
+        EasyMock.replay(mMockBuildInfo, mMockTestDevice);
+        mPrep.setUp(mMockTestDevice, mMockBuildInfo);
+        EasyMock.verify(mMockBuildInfo, mMockTestDevice);
+        assertEquals(0, mPrep.getSkippedInstallCount());
+    }
+
+    /** Test that many packages are listed with several commands of bounded length. */
+    @Test
+    public void testFindInstalledApks_manyPackages() throws Exception {
+        Map<File, String> packages = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            packages.put(new File(mTestDir, "app" + i + ".apk"), "com.android.test.package" + i);
+        }
+        Capture<String> commands = new Capture<>(CaptureType.ALL);
+        EasyMock.expect(mMockTestDevice.executeShellCommand(EasyMock.capture(commands)))
+                .andReturn("")
+                .atLeastOnce();
+        EasyMock.replay(mMockBuildInfo, mMockTestDevice);
+        ApkInstallEngine engine =
+                new ApkInstallEngine(mMockTestDevice, new ArrayList<String>(), null);
+        assertTrue(engine.findInstalledApks(packages).isEmpty());
+        EasyMock.verify(mMockBuildInfo, mMockTestDevice);
+        assertTrue(commands.getValues().size() > 1);
+        int listed = 0;
+        for (String command : commands.getValues()) {
+            String names = command.substring("for p in".length(), command.indexOf(';'));
+            assertTrue(names.length() <= 1000);
+            listed += names.trim().split(" ").length;
+        }
+        assertEquals(packages.size(), listed);
+    }
+
+    /** Test that the apks are pushed ahead, then installed from the device. */
+    @Test
+    public void testSetup_overlapPush() throws Exception {
+        mSetter.setOptionValue("overlap-apk-push", "true");
+        String remotePath = "/data/local/tmp/tradefed_install_0.apk";
+        EasyMock.expect(mMockTestDevice.pushFile(fakeApk, remotePath)).andReturn(true);
+        EasyMock.expect(mMockTestDevice.installRemotePackage(remotePath, true)).andReturn(null);
+        EasyMock.expect(mMockTestDevice.executeShellCommand("rm -f " + remotePath))
+                .andReturn("");
+        EasyMock.replay(mMockBuildInfo, mMockTestDevice);
+        mPrep.setUp(mMockTestDevice, mMockBuildInfo);
+        EasyMock.verify(mMockBuildInfo, mMockTestDevice);
+    }
+
+    /** Test that an install failure from the device is reported. */
+    @Test
+    public void testSetup_overlapPush_failure() throws Exception {
+        mSetter.setOptionValue("overlap-apk-push", "true");
+        String remotePath = "/data/local/tmp/tradefed_install_0.apk";
+        EasyMock.expect(mMockTestDevice.pushFile(fakeApk, remotePath)).andReturn(true);
+        EasyMock.expect(mMockTestDevice.installRemotePackage(remotePath, true))
+                .andReturn("INSTALL_FAILED_OLDER_SDK");
+        EasyMock.expect(mMockTestDevice.executeShellCommand("rm -f " + remotePath))
+                .andReturn("");
+        EasyMock.replay(mMockBuildInfo, mMockTestDevice);
+        try {
+            mPrep.setUp(mMockTestDevice, mMockBuildInfo);
+            fail("Should have thrown an exception.");
+        } catch (TargetSetupError expected) {
+            assertTrue(expected.getMessage().contains("INSTALL_FAILED_OLDER_SDK"));
+        }
+        EasyMock.verify(mMockBuildInfo, mMockTestDevice);
+    }
+
+    /** Test that the setup uses the apks resolved and parsed by the staging. */
+    @Test
+    public void testStage() throws Exception {
+        final int[] resolveCount = new int[1];
+        final int[] parseCount = new int[1];
+        mPrep =
+                new TestAppInstallSetup() {
+                    @Override
+                    protected String parsePackageName(
+                            File testAppFile, DeviceDescriptor deviceDescriptor) {
+                        parseCount[0]++;
+                        return PACKAGE_NAME;
+                    }
+
+                    @Override
+                    protected File getLocalPathForFilename(
+                            IBuildInfo buildInfo, String apkFileName, ITestDevice device)
+                            throws TargetSetupError {
+                        resolveCount[0]++;
+                        return fakeApk;
+                    }
+                };
+        mPrep.addTestFileName(APK_NAME);
+        EasyMock.expect(mMockTestDevice.installPackage(fakeApk, true)).andReturn(null);
+        EasyMock.replay(mMockBuildInfo, mMockTestDevice);
+        mPrep.stage(mMockTestDevice, mMockBuildInfo);
+        mPrep.setUp(mMockTestDevice, mMockBuildInfo);
+        EasyMock.verify(mMockBuildInfo, mMockTestDevice);
+        assertEquals(1, resolveCount[0]);
+        assertEquals(1, parseCount[0]);
+    }
+
     @Test
     public void testInstallFailure() throws Exception {
         final String failure = "INSTALL_PARSE_FAILED_MANIFEST_MALFORMED";
@@ -162,6 +325,41 @@ public class TestAppInstallSetupTest {
         }
     }
 
+    /**
+     * Test that the install failure of an apk is reported before a missing apk listed after it, as
+     * the apks are installed in order.
+     */
+    @Test
+    public void testInstallFailure_beforeMissingApk() throws Exception {
+        mPrep =
+                new TestAppInstallSetup() {
+                    @Override
+                    protected String parsePackageName(
+                            File testAppFile, DeviceDescriptor deviceDescriptor) {
+                        return PACKAGE_NAME;
+                    }
+
+                    @Override
+                    protected File getLocalPathForFilename(
+                            IBuildInfo buildInfo, String apkFileName, ITestDevice device)
+                            throws TargetSetupError {
+                        return APK_NAME.equals(apkFileName) ? fakeApk : null;
+                    }
+                };
+        mPrep.addTestFileName(APK_NAME);
+        mPrep.addTestFileName("missing.apk");
+        EasyMock.expect(mMockTestDevice.installPackage(fakeApk, true))
+                .andReturn("INSTALL_FAILED_OLDER_SDK");
+        EasyMock.replay(mMockBuildInfo, mMockTestDevice);
+        try {
+            mPrep.setUp(mMockTestDevice, mMockBuildInfo);
+            fail("Expected TargetSetupError");
+        } catch (TargetSetupError e) {
+            assertTrue(e.getMessage().contains("INSTALL_FAILED_OLDER_SDK"));
+        }
+        EasyMock.verify(mMockBuildInfo, mMockTestDevice);
+    }
+
     /**
      * Test {@link TestAppInstallSetup#setUp(ITestDevice, IBuildInfo)} with an unreadable apk.
      * TargetSetupError expected.
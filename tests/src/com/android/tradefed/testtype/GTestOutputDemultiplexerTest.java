@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.IShellOutputReceiver;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Unit tests for {@link GTestOutputDemultiplexer}. */
+@RunWith(JUnit4.class)
+public class GTestOutputDemultiplexerTest {
+
+    /** A receiver recording its output and the order in which it was flushed. */
+    private static class RecordingReceiver implements IShellOutputReceiver {
+        final StringBuilder mOutput = new StringBuilder();
+        final List<String> mFlushes;
+        final String mName;
+
+        RecordingReceiver(String name, List<String> flushes) {
+            mName = name;
+            mFlushes = flushes;
+        }
+
+        @Override
+        public void addOutput(byte[] data, int offset, int length) {
+            mOutput.append(new String(data, offset, length, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void flush() {
+            mFlushes.add(mName);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /**
+     * Test that the commands are split between the workers, each writing to its own file, and that
+     * a single loop prints the files.
+     */
+    @Test
+    public void testBuildScript() {
+        String script = GTestOutputDemultiplexer.buildScript(
+                Arrays.asList("/data/a", "/data/b", "/data/c"), 2, "/data/local/tmp/s.sh");
+        assertEquals("rm -f /data/local/tmp/s.sh.*\n"
+                + "echo $$ > /data/local/tmp/s.sh.main.pid\n"
+                + "(\n"
+                + "/data/a > /data/local/tmp/s.sh.0 2>&1 &\n"
+                + "echo $! > /data/local/tmp/s.sh.0.pid\n"
+                + "wait\n"
+                + "touch /data/local/tmp/s.sh.0.done\n"
+                + "/data/c > /data/local/tmp/s.sh.2 2>&1 &\n"
+                + "echo $! > /data/local/tmp/s.sh.2.pid\n"
+                + "wait\n"
+                + "touch /data/local/tmp/s.sh.2.done\n"
+                + ") &\n"
+                + "echo $! > /data/local/tmp/s.sh.w0.pid\n"
+                + "(\n"
+                + "/data/b > /data/local/tmp/s.sh.1 2>&1 &\n"
+                + "echo $! > /data/local/tmp/s.sh.1.pid\n"
+                + "wait\n"
+                + "touch /data/local/tmp/s.sh.1.done\n"
+                + ") &\n"
+                + "echo $! > /data/local/tmp/s.sh.w1.pid\n"
+                + "remaining=\"0 1 2\"\n"
+                + "while [ -n \"$remaining\" ]; do\n"
+                + "left=\"\"\n"
+                + "for i in $remaining; do\n"
+                + "if [ -e /data/local/tmp/s.sh.$i.done ]; then\n"
+                + "echo \"TRADEFED_GTEST_BEGIN $i\"\n"
+                + "cat /data/local/tmp/s.sh.$i\n"
+                + "echo \"TRADEFED_GTEST_END $i\"\n"
+                + "rm -f /data/local/tmp/s.sh.$i /data/local/tmp/s.sh.$i.done\n"
+                + "else\n"
+                + "left=\"$left $i\"\n"
+                + "fi\n"
+                + "done\n"
+                + "remaining=$left\n"
+                + "state=$(ls -l /data/local/tmp/s.sh.[0-9]* 2>/dev/null)\n"
+                + "if [ \"$state\" != \"$last\" ]; then\n"
+                + "echo \"TRADEFED_GTEST_PROGRESS\"\n"
+                + "last=$state\n"
+                + "fi\n"
+                + "if [ -n \"$remaining\" ]; then sleep 1; fi\n"
+                + "done\n"
+                + "rm -f /data/local/tmp/s.sh /data/local/tmp/s.sh.*\n", script);
+    }
+
+    /** Test that the kill command stops the script and the workers before the binaries. */
+    @Test
+    public void testBuildKillCommand() {
+        assertEquals("kill $(cat /data/local/tmp/s.sh.main.pid /data/local/tmp/s.sh.w*.pid) "
+                + "2>/dev/null; kill $(cat /data/local/tmp/s.sh.[0-9]*.pid) 2>/dev/null; "
+                + "rm -f /data/local/tmp/s.sh /data/local/tmp/s.sh.*",
+                GTestOutputDemultiplexer.buildKillCommand("/data/local/tmp/s.sh"));
+    }
+
+    /**
+     * Test that the output between the begin and end lines of a binary goes to its receiver, even
+     * when the last line has no new line.
+     */
+    @Test
+    public void testAddOutput() {
+        List<String> flushes = new ArrayList<>();
+        RecordingReceiver first = new RecordingReceiver("first", flushes);
+        RecordingReceiver second = new RecordingReceiver("second", flushes);
+        GTestOutputDemultiplexer demultiplexer = new GTestOutputDemultiplexer(
+                Arrays.<IShellOutputReceiver>asList(first, second));
+        byte[] output = ("TRADEFED_GTEST_PROGRESS\r\n"
+                + "TRADEFED_GTEST_BEGIN 1\r\n"
+                + "[ RUN      ] other\r\n"
+                + "[       OK ] otherTRADEFED_GTEST_END 1\n"
+                + "stray line\n"
+                + "TRADEFED_GTEST_PROGRESS\n"
+                + "TRADEFED_GTEST_BEGIN 0\n"
+                + "[ RUN      ] test\n"
+                + "TRADEFED_GTEST_END 0\n").getBytes(StandardCharsets.UTF_8);
+        assertFalse(demultiplexer.isComplete());
+        demultiplexer.addOutput(output, 0, output.length);
+        assertTrue(demultiplexer.isComplete());
+        assertEquals(Arrays.asList("second", "first"), flushes);
+        assertEquals("[ RUN      ] test\n", first.mOutput.toString());
+        assertEquals("[ RUN      ] other\n[       OK ] other\n", second.mOutput.toString());
+        demultiplexer.flush();
+        assertEquals(Arrays.asList("second", "first"), flushes);
+    }
+
+    /**
+     * Test that the binaries that did not end get their output on flush, after those that ended.
+     */
+    @Test
+    public void testFlush_incomplete() {
+        List<String> flushes = new ArrayList<>();
+        RecordingReceiver first = new RecordingReceiver("first", flushes);
+        RecordingReceiver second = new RecordingReceiver("second", flushes);
+        GTestOutputDemultiplexer demultiplexer = new GTestOutputDemultiplexer(
+                Arrays.<IShellOutputReceiver>asList(first, second));
+        byte[] output = ("TRADEFED_GTEST_BEGIN 1\n"
+                + "[ RUN      ] other\n"
+                + "TRADEFED_GTEST_END 1\n"
+                + "TRADEFED_GTEST_BEGIN 0\n"
+                + "[ RUN      ] test\n"
+                + "[       OK ] te").getBytes(StandardCharsets.UTF_8);
+        demultiplexer.addOutput(output, 0, output.length);
+        assertEquals(Arrays.asList("second"), flushes);
+        assertTrue(first.mOutput.length() == 0);
+        assertFalse(demultiplexer.isComplete());
+        demultiplexer.flush();
+        assertEquals(Arrays.asList("second", "first"), flushes);
+        assertEquals("[ RUN      ] test\n[       OK ] te\n", first.mOutput.toString());
+        assertEquals("[ RUN      ] other\n", second.mOutput.toString());
+        assertFalse(demultiplexer.isCancelled());
+    }
+}
@@ -34,6 +34,9 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 
@@ -593,4 +596,93 @@ public class GTestTest {
         assertFalse(mGTest.isDeviceFileExecutable("/system"));
         EasyMock.verify(mockDevice);
     }
+
+    /**
+     * Test that with parallel-binaries, the binaries are found with a single listing and run from
+     * a single script, and the output of each binary goes to its own parser.
+     */
+    @Test
+    public void testRun_parallel() throws Exception {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        final Map<String, CollectingOutputReceiver> parsers = new HashMap<>();
+        mGTest = new GTest() {
+            @Override
+            IShellOutputReceiver createResultParser(String runName, ITestRunListener listener) {
+                CollectingOutputReceiver parser = new CollectingOutputReceiver();
+                parsers.put(runName, parser);
+                return parser;
+            }
+        };
+        mGTest.setDevice(mMockITestDevice);
+        mSetter = new OptionSetter(mGTest);
+        mSetter.setOptionValue("parallel-binaries", "2");
+        mGTest.addFileExclusionFilterRegex(".*\\.not");
+
+        EasyMock.expect(mMockITestDevice.doesFileExist(nativeTestPath)).andReturn(true);
+        EasyMock.expect(mMockITestDevice.executeShellCommand(
+                String.format("find -L %s -type f -perm -500", nativeTestPath)))
+                .andReturn(String.format("%1$s/test2\r\n%1$s/sub/test1\r\n%1$s/test3.not\r\n",
+                        nativeTestPath));
+        EasyMock.expect(mMockITestDevice.pushString(
+                EasyMock.contains("TRADEFED_GTEST_END $i"), EasyMock.anyObject()))
+                .andReturn(true);
+        mMockITestDevice.executeShellCommand(EasyMock.startsWith("sh "),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS), EasyMock.eq(0));
+        EasyMock.expectLastCall().andAnswer(() -> {
+            IShellOutputReceiver receiver =
+                    (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+            // binaries are sorted: sub/test1 is 0 and test2 is 1
+            byte[] output = ("TRADEFED_GTEST_BEGIN 1\r\n"
+                    + "[ RUN      ] test2\r\n"
+                    + "[       OK ] test2\n"
+                    + "TRADEFED_GTEST_END 1\n"
+                    + "TRADEFED_GTEST_BEGIN 0\n"
+                    + "[ RUN      ] test1\n"
+                    + "[  FAILED  ] test1\n").getBytes(StandardCharsets.UTF_8);
+            // deliver the output in chunks cutting lines
+            receiver.addOutput(output, 0, 10);
+            receiver.addOutput(output, 10, output.length - 10);
+            return null;
+        });
+        // test1 did not complete, the binaries left running are stopped
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.startsWith("kill ")))
+                .andReturn("");
+        EasyMock.expect(mMockITestDevice.getSerialNumber()).andStubReturn("serial");
+
+        replayMocks();
+        mGTest.run(mMockInvocationListener);
+        verifyMocks();
+        assertEquals("[ RUN      ] test1\n[  FAILED  ] test1\n", parsers.get("test1").getOutput());
+        assertEquals("[ RUN      ] test2\n[       OK ] test2\n", parsers.get("test2").getOutput());
+    }
+
+    /**
+     * Test that with parallel-binaries, the tests are run one by one when the listing finds no
+     * binaries, like when the device's find does not support it.
+     */
+    @Test
+    public void testRun_parallel_findFailed() throws Exception {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        final String testPath1 = String.format("%s/%s", nativeTestPath, "test1");
+        mSetter.setOptionValue("parallel-binaries", "2");
+
+        EasyMock.expect(mMockITestDevice.doesFileExist(nativeTestPath)).andReturn(true);
+        EasyMock.expect(mMockITestDevice.executeShellCommand(
+                String.format("find -L %s -type f -perm -500", nativeTestPath)))
+                .andReturn("find: Unknown option '-perm'\n");
+        EasyMock.expect(mMockITestDevice.isDirectory(nativeTestPath)).andReturn(true);
+        EasyMock.expect(mMockITestDevice.getChildren(nativeTestPath))
+                .andReturn(new String[] {"test1"});
+        EasyMock.expect(mMockITestDevice.isDirectory(testPath1)).andReturn(false);
+        EasyMock.expect(mMockITestDevice.executeShellCommand("ls -l " + testPath1))
+                .andReturn("-rwxr-xr-x 1 root shell 1000 2009-01-01 00:00 " + testPath1);
+        mMockITestDevice.executeShellCommand(EasyMock.contains("test1"),
+                EasyMock.same(mMockReceiver), EasyMock.anyLong(),
+                (TimeUnit) EasyMock.anyObject(), EasyMock.anyInt());
+
+        replayMocks();
+        mGTest.run(mMockInvocationListener);
+        verifyMocks();
+    }
 }
@@ -16,6 +16,8 @@
 package com.android.tradefed.testtype.suite;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import com.android.ddmlib.testrunner.TestIdentifier;
@@ -29,6 +31,7 @@ import com.android.tradefed.device.DeviceUnresponsiveException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.invoker.shard.TestRuntimeHistory;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
 import com.android.tradefed.result.ITestInvocationListener;
@@ -37,6 +40,7 @@ import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.suite.checker.ISystemStatusChecker;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.StubTest;
+import com.android.tradefed.util.FileUtil;
 
 import org.easymock.EasyMock;
 import org.junit.Before;
@@ -44,6 +48,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -368,6 +373,36 @@ public class ITestSuiteTest {
         verifyMocks();
     }
 
+    /**
+     * Test for {@link ITestSuite#run(ITestInvocationListener)} when recording the module runtimes:
+     * the duration of the module is saved in the {@link TestRuntimeHistory} of the given file, and
+     * nothing is recorded by default.
+     */
+    @Test
+    public void testRun_recordModuleRuntimes() throws Exception {
+        File historyFile = FileUtil.createTempFile("module-runtimes", ".txt");
+        try {
+            assertNull(mTestSuite.getRuntimeHistory());
+            OptionSetter setter = new OptionSetter(mTestSuite);
+            setter.setOptionValue("record-module-runtimes", historyFile.getAbsolutePath());
+            mTestSuite.setSystemStatusChecker(new ArrayList<ISystemStatusChecker>());
+            mMockListener.testModuleStarted(EasyMock.anyObject());
+            mMockListener.testRunStarted(TEST_CONFIG_NAME, 1);
+            TestIdentifier test = new TestIdentifier(EMPTY_CONFIG, EMPTY_CONFIG);
+            mMockListener.testStarted(EasyMock.eq(test), EasyMock.anyLong());
+            mMockListener.testEnded(
+                    EasyMock.eq(test), EasyMock.anyLong(), EasyMock.eq(Collections.emptyMap()));
+            mMockListener.testRunEnded(EasyMock.anyLong(), EasyMock.anyObject());
+            mMockListener.testModuleEnded();
+            replayMocks();
+            mTestSuite.run(mMockListener);
+            verifyMocks();
+            assertNotNull(new TestRuntimeHistory(historyFile).getRuntime(TEST_CONFIG_NAME));
+        } finally {
+            FileUtil.deleteFile(historyFile);
+        }
+    }
+
     /**
      * Test for {@link ITestSuite#split(int)} for modules that are not shardable. We end up with a
      * list of all tests. Note that the shardCountHint of 3 in this case does not drive the final
@@ -16,6 +16,8 @@
 package com.android.tradefed.testtype.suite;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.android.ddmlib.testrunner.TestIdentifier;
@@ -25,8 +27,10 @@ import com.android.tradefed.config.ConfigurationDescriptor;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.shard.TestRuntimeHistory;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.targetprep.BuildError;
+import com.android.tradefed.targetprep.IHostStagingPreparer;
 import com.android.tradefed.targetprep.ITargetCleaner;
 import com.android.tradefed.targetprep.ITargetPreparer;
 import com.android.tradefed.targetprep.TargetSetupError;
@@ -35,6 +39,7 @@ import com.android.tradefed.testtype.Abi;
 import com.android.tradefed.testtype.IBuildReceiver;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.util.FileUtil;
 
 import org.easymock.EasyMock;
 import org.junit.Before;
@@ -42,9 +47,12 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /** Unit tests for {@link ModuleDefinition} */
 @RunWith(JUnit4.class)
@@ -187,6 +195,72 @@ public class ModuleDefinitionTest {
         verifyMocks();
     }
 
+    /**
+     * Test that {@link ModuleDefinition#run(ITestInvocationListener)} records the duration of the
+     * module in its {@link TestRuntimeHistory}.
+     */
+    @Test
+    public void testRun_recordRuntime() throws Exception {
+        File historyFile = FileUtil.createTempFile("module-runtimes", ".txt");
+        try {
+            TestRuntimeHistory history = new TestRuntimeHistory(historyFile);
+            mModule.setRuntimeHistory(history);
+            mModule.setBuild(mMockBuildInfo);
+            mModule.setDevice(mMockDevice);
+            mMockPrep.setUp(EasyMock.eq(mMockDevice), EasyMock.eq(mMockBuildInfo));
+            mMockCleaner.setUp(EasyMock.eq(mMockDevice), EasyMock.eq(mMockBuildInfo));
+            mMockTest.setBuild(EasyMock.eq(mMockBuildInfo));
+            mMockTest.setDevice(EasyMock.eq(mMockDevice));
+            mMockTest.run((ITestInvocationListener)EasyMock.anyObject());
+            mMockCleaner.tearDown(EasyMock.eq(mMockDevice), EasyMock.eq(mMockBuildInfo),
+                    EasyMock.isNull());
+            mMockListener.testRunStarted(MODULE_NAME, 0);
+            mMockListener.testRunEnded(EasyMock.anyLong(), EasyMock.anyObject());
+            replayMocks();
+            mModule.run(mMockListener);
+            verifyMocks();
+            assertNotNull(history.getRuntime(MODULE_NAME));
+        } finally {
+            FileUtil.deleteFile(historyFile);
+        }
+    }
+
+    /**
+     * Test that the preparers staged in the background are staged before their setup.
+     */
+    @Test
+    public void testRun_staging() throws Exception {
+        IHostStagingPreparer stagingPrep = EasyMock.createStrictMock(IHostStagingPreparer.class);
+        mTargetPrepList.clear();
+        mTargetPrepList.add(stagingPrep);
+        mModule =
+                new ModuleDefinition(
+                        MODULE_NAME,
+                        mTestList,
+                        mTargetPrepList,
+                        mMultiTargetPrepList,
+                        new ConfigurationDescriptor());
+        mModule.setBuild(mMockBuildInfo);
+        mModule.setDevice(mMockDevice);
+        stagingPrep.stage(EasyMock.eq(mMockDevice), EasyMock.eq(mMockBuildInfo));
+        stagingPrep.setUp(EasyMock.eq(mMockDevice), EasyMock.eq(mMockBuildInfo));
+        mMockTest.setBuild(EasyMock.eq(mMockBuildInfo));
+        mMockTest.setDevice(EasyMock.eq(mMockDevice));
+        mMockTest.run((ITestInvocationListener) EasyMock.anyObject());
+        mMockListener.testRunStarted(MODULE_NAME, 0);
+        mMockListener.testRunEnded(EasyMock.anyLong(), EasyMock.anyObject());
+        replayMocks();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            mModule.startStaging(executor);
+            assertTrue(mModule.isStagingStarted());
+            mModule.run(mMockListener);
+        } finally {
+            executor.shutdownNow();
+        }
+        verifyMocks();
+    }
+
     /**
      * Test that {@link ModuleDefinition#run(ITestInvocationListener)}
      */
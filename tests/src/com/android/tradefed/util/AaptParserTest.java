@@ -18,9 +18,35 @@ package com.android.tradefed.util;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
 /** Tests for {@link AaptParser}. */
 public class AaptParserTest extends TestCase {
 
+    private File mApk = null;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        AaptParser.clearCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.deleteFile(mApk);
+        AaptParser.clearCache();
+        super.tearDown();
+    }
+
     public void testParseInvalidInput() {
         AaptParser p = new AaptParser();
         assertFalse(p.parse("Bad data"));
@@ -139,4 +165,163 @@ public class AaptParserTest extends TestCase {
         assertEquals("arm64-v8a", p.getNativeCode().get(0));
         assertEquals("armeabi-v7a", p.getNativeCode().get(1));
     }
+
+    /** Test reading the manifest of an apk built by aapt. */
+    public void testParseApk() throws Exception {
+        mApk = FileUtil.createTempFile("WifiUtil", ".apk");
+        try (InputStream apk = getClass().getResourceAsStream("/apks/wifiutil/WifiUtil.apk")) {
+            FileUtil.writeToFile(apk, mApk);
+        }
+        AaptParser p = AaptParser.parse(mApk);
+        assertEquals("com.android.tradefed.utils.wifi", p.getPackageName());
+        assertEquals("23", p.getVersionCode());
+        assertEquals("N-eng.avellore.20151124.155708", p.getVersionName());
+        assertEquals("com.android.tradefed.utils.wifi", p.getLabel());
+        assertEquals(3, p.getSdkVersion());
+        assertTrue(p.getNativeCode().isEmpty());
+    }
+
+    /**
+     * Test that references are resolved with the default configuration of resources.arsc, that the
+     * 64 bit ABI of a multiArch apk comes first, and that the cached info is not shared.
+     */
+    public void testParseApk_resources() throws Exception {
+        mApk = FileUtil.createTempFile("app", ".apk");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(mApk))) {
+            addEntry(zip, "AndroidManifest.xml", buildManifest());
+            addEntry(zip, "resources.arsc", buildResources());
+            addEntry(zip, "lib/x86/libfoo.so", new byte[0]);
+            addEntry(zip, "lib/armeabi-v7a/libfoo.so", new byte[0]);
+            addEntry(zip, "lib/arm64-v8a/libfoo.so", new byte[0]);
+        }
+        AaptParser p = AaptParser.parse(mApk);
+        assertEquals("com.example.app", p.getPackageName());
+        assertEquals("42", p.getVersionCode());
+        assertEquals("2.5", p.getVersionName());
+        assertEquals("Example", p.getLabel());
+        assertEquals(21, p.getSdkVersion());
+        assertEquals(Arrays.asList("arm64-v8a", "armeabi-v7a", "x86"), p.getNativeCode());
+        p.getNativeCode().clear();
+        AaptParser cached = AaptParser.parse(mApk);
+        assertEquals("Example", cached.getLabel());
+        assertEquals(3, cached.getNativeCode().size());
+    }
+
+    private static void addEntry(ZipOutputStream zip, String name, byte[] content)
+            throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content);
+        zip.closeEntry();
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Returns a string pool chunk, in utf-8. */
+    private static byte[] buildStringPool(String... strings) {
+        ByteBuffer data = allocate(1024);
+        int[] offsets = new int[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = strings[i].getBytes(StandardCharsets.UTF_8);
+            offsets[i] = data.position();
+            data.put((byte) strings[i].length()).put((byte) bytes.length).put(bytes).put((byte) 0);
+        }
+        int dataSize = (data.position() + 3) & ~3;
+        int headerSize = 28;
+        ByteBuffer pool = allocate(headerSize + strings.length * 4 + dataSize);
+        pool.putShort((short) 0x0001).putShort((short) headerSize).putInt(pool.capacity());
+        pool.putInt(strings.length).putInt(0).putInt(0x100);
+        pool.putInt(headerSize + strings.length * 4).putInt(0);
+        for (int offset : offsets) {
+            pool.putInt(offset);
+        }
+        pool.put(data.array(), 0, dataSize);
+        return pool.array();
+    }
+
+    /** Returns an xml start element chunk, each attribute being {name, type, data}. */
+    private static byte[] startElement(int name, int[]... attributes) {
+        ByteBuffer element = allocate(36 + attributes.length * 20);
+        element.putShort((short) 0x0102).putShort((short) 16).putInt(element.capacity());
+        element.putInt(0).putInt(-1);
+        element.putInt(-1).putInt(name).putShort((short) 20).putShort((short) 20);
+        element.putShort((short) attributes.length).putShort((short) 0).putInt(0);
+        for (int[] attribute : attributes) {
+            element.putInt(-1).putInt(attribute[0]);
+            element.putInt(attribute[1] == 0x03 ? attribute[2] : -1);
+            element.putShort((short) 8).put((byte) 0).put((byte) attribute[1]);
+            element.putInt(attribute[2]);
+        }
+        return element.array();
+    }
+
+    private static byte[] endElement(int name) {
+        ByteBuffer element = allocate(24);
+        element.putShort((short) 0x0103).putShort((short) 16).putInt(24);
+        element.putInt(0).putInt(-1).putInt(-1).putInt(name);
+        return element.array();
+    }
+
+    private static byte[] concat(int type, int headerSize, byte[] header, byte[]... chunks) {
+        int size = headerSize;
+        for (byte[] chunk : chunks) {
+            size += chunk.length;
+        }
+        ByteBuffer buffer = allocate(size);
+        buffer.putShort((short) type).putShort((short) headerSize).putInt(size).put(header);
+        for (byte[] chunk : chunks) {
+            buffer.put(chunk);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] buildManifest() {
+        byte[] strings = buildStringPool("versionCode", "versionName", "minSdkVersion", "label",
+                "multiArch", "package", "manifest", "uses-sdk", "application",
+                "com.example.app");
+        ByteBuffer resourceMap = allocate(24);
+        resourceMap.putShort((short) 0x0180).putShort((short) 8).putInt(24);
+        resourceMap.putInt(0x0101021b).putInt(0x0101021c).putInt(0x0101020c).putInt(0x01010001);
+        return concat(0x0003, 8, new byte[0], strings, resourceMap.array(),
+                startElement(6, new int[] {5, 0x03, 9}, new int[] {0, 0x10, 42},
+                        new int[] {1, 0x01, 0x7f020000}),
+                startElement(7, new int[] {2, 0x10, 21}),
+                endElement(7),
+                startElement(8, new int[] {3, 0x01, 0x7f020001}, new int[] {4, 0x12, -1}),
+                endElement(8),
+                endElement(6));
+    }
+
+    /** Returns a type chunk of the given locale, each entry being the string it points to. */
+    private static byte[] buildType(String language, int... entries) {
+        int headerSize = 20 + 64;
+        ByteBuffer type = allocate(headerSize + entries.length * 4 + entries.length * 16);
+        type.putShort((short) 0x0201).putShort((short) headerSize).putInt(type.capacity());
+        type.put((byte) 2).put((byte) 0).putShort((short) 0).putInt(entries.length);
+        type.putInt(headerSize + entries.length * 4);
+        type.putInt(64).putInt(0).put(language.getBytes(StandardCharsets.US_ASCII));
+        type.position(headerSize);
+        int offset = 0;
+        for (int entry : entries) {
+            type.putInt(entry < 0 ? -1 : offset);
+            offset += entry < 0 ? 0 : 16;
+        }
+        for (int entry : entries) {
+            if (entry >= 0) {
+                type.putShort((short) 8).putShort((short) 0).putInt(0);
+                type.putShort((short) 8).put((byte) 0).put((byte) 0x03).putInt(entry);
+            }
+        }
+        return type.array();
+    }
+
+    private static byte[] buildResources() {
+        byte[] values = buildStringPool("2.5", "Exemple", "Example");
+        ByteBuffer packageHeader = allocate(280);
+        packageHeader.putInt(0x7f);
+        byte[] resourcesPackage = concat(0x0200, 288, packageHeader.array(),
+                buildType("fr", -1, 1), buildType("", 0, 2));
+        return concat(0x0002, 12, allocate(4).putInt(1).array(), values, resourcesPackage);
+    }
 }
@@ -18,6 +18,8 @@ package com.android.tradefed.util;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 
+import com.android.tradefed.log.LogRegistry;
+import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.IRunUtil.EnvPriority;
 import com.android.tradefed.util.IRunUtil.IRunnableResult;
 import com.android.tradefed.util.RunUtil.RunnableResult;
@@ -33,6 +35,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /** Unit tests for {@link RunUtil} */
 public class RunUtilTest extends TestCase {
@@ -102,6 +108,46 @@ public class RunUtilTest extends TestCase {
                 mRunUtil.runTimed(SHORT_TIMEOUT_MS, mockRunnable, true));
     }
 
+    /**
+     * Test that consecutive {@link RunUtil#runTimed(long, IRunnableResult, boolean)} reuse the
+     * pooled threads, and that the runnables log on behalf of the caller.
+     */
+    public void testRunTimed_pooled() throws Exception {
+        final int runCount = 10000;
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final ThreadGroup callerGroup = Thread.currentThread().getThreadGroup();
+        final boolean[] wrongLoggingGroup = new boolean[1];
+        IRunUtil.IRunnableResult runnable =
+                new IRunUtil.IRunnableResult() {
+                    @Override
+                    public boolean run() {
+                        threads.add(Thread.currentThread());
+                        if (LogRegistry.getLoggingThreadGroup() != callerGroup) {
+                            wrongLoggingGroup[0] = true;
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public void cancel() {
+                        // ignore
+                    }
+                };
+        long startTime = System.nanoTime();
+        for (int i = 0; i < runCount; i++) {
+            assertEquals(
+                    CommandStatus.SUCCESS, mRunUtil.runTimed(SHORT_TIMEOUT_MS, runnable, false));
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+        // Sequential calls are served by the same few threads instead of one thread per call.
+        assertTrue(String.format("%d threads used", threads.size()), threads.size() < 10);
+        assertFalse(wrongLoggingGroup[0]);
+        for (Thread thread : threads) {
+            assertNotSame(callerGroup, thread.getThreadGroup());
+        }
+        CLog.d("%d runTimed in %d ms", runCount, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+    }
+
     /**
      * Test failure case for {@link RunUtil#runTimed(long, IRunnableResult, boolean)}.
      */
@@ -127,6 +173,31 @@ public class RunUtilTest extends TestCase {
                 mRunUtil.runTimed(SHORT_TIMEOUT_MS, mockRunnable, true));
     }
 
+    /**
+     * Test that {@link RunUtil#runTimed(long, IRunnableResult, boolean)} without timeout returns
+     * when the runnable throws an {@link Error}.
+     */
+    public void testRunTimed_error() throws Exception {
+        final IRunUtil.IRunnableResult runnable = new IRunUtil.IRunnableResult() {
+            @Override
+            public boolean run() {
+                throw new AssertionError("expected");
+            }
+
+            @Override
+            public void cancel() {
+                // ignore
+            }
+        };
+        final CommandStatus[] status = new CommandStatus[1];
+        Thread caller = new Thread(() -> status[0] = mRunUtil.runTimed(0, runnable, false));
+        caller.setDaemon(true);
+        caller.start();
+        caller.join(LONG_TIMEOUT_MS);
+        assertFalse("runTimed did not return", caller.isAlive());
+        assertEquals(CommandStatus.EXCEPTION, status[0]);
+    }
+
     /**
      * Test that {@link RunUtil#runTimedCmd(long, String[])} fails when given a garbage command.
      */
@@ -17,6 +17,9 @@ package com.android.tradefed.util;
 
 import junit.framework.TestCase;
 
+import java.util.Arrays;
+import java.util.Random;
+
 /**
  * Unit tests for {@link SimpleStats}
  */
@@ -103,5 +106,91 @@ public class SimpleStatsTest extends TestCase {
         assertEquals(4, mStats.median(), 0.1);
         assertEquals(1.247219, mStats.stdev(), 0.000001);
     }
-}
 
+    /**
+     * Make sure that percentiles are interpolated between measurements, and match the median.
+     */
+    public void testStats_percentile() {
+        for (int i = 10; i >= 0; --i) {
+            mStats.add(i * 10);
+        }
+        assertNull(new SimpleStats().percentile(50));
+        assertEquals(0, mStats.percentile(0), 0.000001);
+        assertEquals(mStats.median(), mStats.percentile(50), 0.000001);
+        assertEquals(90, mStats.percentile(90), 0.000001);
+        assertEquals(99, mStats.percentile(99), 0.000001);
+        assertEquals(100, mStats.percentile(100), 0.000001);
+        try {
+            mStats.percentile(101);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Make sure that the data keeps the order of the measurements, even after a median.
+     */
+    public void testStats_getData() {
+        mStats.add(3);
+        mStats.add(1);
+        mStats.add(2);
+        assertEquals(2, mStats.median(), 0.1);
+        assertEquals(Arrays.asList(3.0, 1.0, 2.0), mStats.getData());
+        mStats.add(0);
+        assertEquals(0, mStats.min(), 0.1);
+        assertEquals(1.5, mStats.median(), 0.1);
+        assertEquals(4, mStats.getData().size());
+    }
+
+    /**
+     * Make sure that merging two datasets gives the same measures as adding all the measurements
+     * to one.
+     */
+    public void testStats_addAllStats() {
+        SimpleStats other = new SimpleStats();
+        SimpleStats all = new SimpleStats();
+        for (int i = 1; i <= 5; ++i) {
+            mStats.add(i * i);
+            all.add(i * i);
+        }
+        for (int i = 0; i < 40; ++i) {
+            other.add(100 - i * 3.5);
+            all.add(100 - i * 3.5);
+        }
+        mStats.addAll(other);
+        assertEquals(all.size(), mStats.size());
+        assertEquals(all.min(), mStats.min(), 0.000001);
+        assertEquals(all.max(), mStats.max(), 0.000001);
+        assertEquals(all.mean(), mStats.mean(), 0.000001);
+        assertEquals(all.median(), mStats.median(), 0.000001);
+        assertEquals(all.stdev(), mStats.stdev(), 0.000001);
+        assertEquals(all.getData(), mStats.getData());
+    }
+
+    /**
+     * Make sure that the measures stay exact when they are queried between additions, whether a
+     * few or many measurements were added since the last query.
+     */
+    public void testStats_queriedWhileAdding() {
+        Random random = new Random(0);
+        double[] samples = new double[2000];
+        for (int i = 0; i < samples.length; ++i) {
+            samples[i] = random.nextGaussian() * 10 + 50;
+        }
+        int added = 0;
+        // query after each sample first, then after batches of growing size
+        for (int batch = 1; added < samples.length; batch = added < 200 ? 1 : batch * 2) {
+            for (int i = 0; i < batch && added < samples.length; ++i) {
+                mStats.add(samples[added++]);
+            }
+            double[] sorted = Arrays.copyOf(samples, added);
+            Arrays.sort(sorted);
+            double median = (added & 0x1) == 1 ? sorted[added / 2]
+                    : (sorted[added / 2 - 1] + sorted[added / 2]) / 2;
+            assertEquals(sorted[0], mStats.min(), 0.0);
+            assertEquals(sorted[added - 1], mStats.max(), 0.0);
+            assertEquals(median, mStats.median(), 0.0);
+        }
+    }
+}
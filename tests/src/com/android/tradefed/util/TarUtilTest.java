@@ -29,6 +29,7 @@ import org.junit.Test;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -151,4 +152,31 @@ public class TarUtilTest {
             // expected
         }
     }
+
+    /**
+     * Test that {@link TarUtil#tar(File, java.util.Collection)} archives files under their path
+     * relative to the base directory, and can be untarred to recover them.
+     */
+    @Test
+    public void testTar() throws Exception {
+        File baseDir = FileUtil.createTempDir("tar-test-dir", mWorkDir);
+        File subDir = new File(baseDir, "sub");
+        assertTrue(subDir.mkdir());
+        File file1 = new File(baseDir, "file1");
+        File file2 = new File(subDir, "file2");
+        FileUtil.writeToFile("content1", file1);
+        FileUtil.writeToFile("content2", file2);
+        File untarred = FileUtil.createTempDir("untar-test-dir", mWorkDir);
+        // only file entries are archived, unTar expects their directories to exist
+        assertTrue(new File(untarred, "sub").mkdir());
+        File tar = TarUtil.tar(baseDir, Arrays.asList(file1, file2));
+        try {
+            TarUtil.unTar(tar, untarred);
+            assertEquals("content1", FileUtil.readStringFromFile(new File(untarred, "file1")));
+            assertEquals("content2",
+                    FileUtil.readStringFromFile(new File(untarred, "sub/file2")));
+        } finally {
+            FileUtil.deleteFile(tar);
+        }
+    }
 }
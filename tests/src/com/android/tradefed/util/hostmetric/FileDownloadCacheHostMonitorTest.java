@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.hostmetric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.build.FileDownloadCache;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/** Unit tests for {@link FileDownloadCacheHostMonitor}. */
+@RunWith(JUnit4.class)
+public class FileDownloadCacheHostMonitorTest {
+
+    private FileDownloadCacheHostMonitor mMonitor;
+    private FileDownloadCache mMockCache;
+    private List<Map<String, String>> mArgsLogged;
+
+    @Before
+    public void setUp() {
+        mArgsLogged = new ArrayList<>();
+        mMockCache = Mockito.mock(FileDownloadCache.class);
+        mMonitor =
+                new FileDownloadCacheHostMonitor() {
+                    @Override
+                    List<FileDownloadCache> getCaches() {
+                        return Arrays.asList(mMockCache);
+                    }
+
+                    @Override
+                    void logEvent(Map<String, String> args) {
+                        mArgsLogged.add(args);
+                    }
+                };
+    }
+
+    /** Test that an event is logged with the metrics of each cache. */
+    @Test
+    public void testDispatch() {
+        Mockito.when(mMockCache.getCacheRoot()).thenReturn(new File("/tmp/cache"));
+        Mockito.when(mMockCache.getHitCount()).thenReturn(3L);
+        Mockito.when(mMockCache.getMissCount()).thenReturn(1L);
+        Mockito.when(mMockCache.getBytesDownloaded()).thenReturn(100L);
+        Mockito.when(mMockCache.getBytesSaved()).thenReturn(300L);
+        Mockito.when(mMockCache.getCurrentCacheSize()).thenReturn(100L);
+        mMonitor.dispatch();
+        assertEquals(1, mArgsLogged.size());
+        Map<String, String> args = mArgsLogged.get(0);
+        assertTrue(args.get(FileDownloadCacheHostMonitor.CACHE_DIR_KEY).endsWith("cache"));
+        assertEquals("3", args.get(FileDownloadCacheHostMonitor.HIT_KEY));
+        assertEquals("1", args.get(FileDownloadCacheHostMonitor.MISS_KEY));
+        assertEquals("100", args.get(FileDownloadCacheHostMonitor.BYTES_DOWNLOADED_KEY));
+        assertEquals("300", args.get(FileDownloadCacheHostMonitor.BYTES_SAVED_KEY));
+        assertEquals("100", args.get(FileDownloadCacheHostMonitor.CACHE_SIZE_KEY));
+    }
+}